@@ -17,6 +17,7 @@
 package com.cloud.bridge.io;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,30 +26,43 @@ import javax.activation.DataSource;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Serves a byte range of a file.  The file is opened on each getInputStream() call, so a
+ * data handler that is never read (e.g. for a HEAD request) holds no file descriptor.
+ */
 public class FileRangeDataSource implements DataSource {
     protected final static Logger logger = Logger.getLogger(FileRangeDataSource.class);
     
-	private FileRangeInputStream is;
+	private File file;
+	private long startPos;
+	private long endPos;
 	
 	public FileRangeDataSource(File file, long startPos, long endPos) throws IOException {
-		is = new FileRangeInputStream(file, startPos, endPos);
+		if(!file.isFile())
+			throw new FileNotFoundException(file.getPath());
+		
+		long fileLength = file.length();
+		if(Math.min(startPos, fileLength) > Math.min(endPos, fileLength))
+			throw new IllegalArgumentException("Invalid file range " + startPos + "-" + endPos);
+		
+		this.file = file;
+		this.startPos = startPos;
+		this.endPos = endPos;
 	}
 
 	@Override
 	public String getContentType() {
-		assert(false);
-		return null;
+		return "application/octet-stream";
 	}
 
 	@Override
 	public InputStream getInputStream() throws IOException {
-		return is;
+		return new FileRangeInputStream(file, startPos, endPos);
 	}
 
 	@Override
 	public String getName() {
-		assert(false);
-		return null;
+		return file.getName();
 	}
 
 	@Override
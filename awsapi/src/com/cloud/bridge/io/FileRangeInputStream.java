@@ -17,12 +17,25 @@
 package com.cloud.bridge.io;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
+/**
+ * Reads a byte range of a file through its FileChannel.  Reads are positional, so the
+ * stream never seeks, and transferTo() hands the whole range to another channel without
+ * copying it through a Java buffer when the target is a file or socket.
+ */
 public class FileRangeInputStream extends InputStream {
+	public static final int COPY_BUFFER_SIZE = 64*1024;
+	
 	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
 	private long curPos;
 	private long endPos; 
 	private long fileLength;
@@ -42,22 +55,24 @@ public class FileRangeInputStream extends InputStream {
 		this.curPos = startPos;
 		this.endPos = endPos;
 		randomAccessFile = new RandomAccessFile(file, "r");
-		randomAccessFile.seek(startPos);
+		channel = randomAccessFile.getChannel();
+	}
+	
+	public long getRemaining() {
+		return endPos - curPos;
 	}
 	
 	@Override
 	public int available() throws IOException {
-		return (int)(endPos - curPos);
+		return (int)Math.min(getRemaining(), Integer.MAX_VALUE);
 	}
 
 	@Override
 	public int read() throws IOException {
-		if(available() > 0) {
-			int value = randomAccessFile.read();
-			curPos++;
-			return value;
-		}
-		return -1;
+		byte[] b = new byte[1];
+		if(read(b, 0, 1) < 0)
+			return -1;
+		return b[0] & 0xff;
 	}
 	
 	@Override
@@ -67,11 +82,11 @@ public class FileRangeInputStream extends InputStream {
 	
 	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
-		int bytesToRead = Math.min(len, available());
+		int bytesToRead = (int)Math.min(len, getRemaining());
 		if(bytesToRead == 0)
-			return -1;
+			return len == 0 ? 0 : -1;
 		
-		int bytesRead = randomAccessFile.read(b, off, bytesToRead);
+		int bytesRead = channel.read(ByteBuffer.wrap(b, off, bytesToRead), curPos);
 		if(bytesRead < 0)
 			return -1;
 		
@@ -81,12 +96,47 @@ public class FileRangeInputStream extends InputStream {
 	
 	@Override
 	public long skip(long n) throws IOException {
-		long skipped = Math.min(n, available());
-		randomAccessFile.skipBytes((int)skipped);
+		long skipped = Math.max(0, Math.min(n, getRemaining()));
 		curPos += skipped;
 		return skipped;
 	}
 	
+	/**
+	 * Writes the rest of the range to the target channel with FileChannel.transferTo.
+	 * 
+	 * @return number of bytes transferred, less than the remaining range only if the file shrank
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		long transferred = 0;
+		while(curPos < endPos) {
+			long count = channel.transferTo(curPos, endPos - curPos, target);
+			if(count <= 0)
+				break;
+			
+			curPos += count;
+			transferred += count;
+		}
+		return transferred;
+	}
+	
+	/**
+	 * Writes the rest of the range to the given stream.  File streams get the channel transfer,
+	 * anything else (e.g. a servlet response) is written from the file channel in large chunks.
+	 */
+	public long transferTo(OutputStream os) throws IOException {
+		if(os instanceof FileOutputStream)
+			return transferTo(((FileOutputStream)os).getChannel());
+		
+		byte[] buffer = new byte[(int)Math.min(COPY_BUFFER_SIZE, Math.max(1, getRemaining()))];
+		long transferred = 0;
+		int len;
+		while((len = read(buffer, 0, buffer.length)) > 0) {
+			os.write(buffer, 0, len);
+			transferred += len;
+		}
+		return transferred;
+	}
+	
 	@Override
 	public void close() throws IOException {
 		randomAccessFile.close();
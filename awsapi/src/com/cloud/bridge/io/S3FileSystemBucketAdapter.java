@@ -17,13 +17,23 @@
 package com.cloud.bridge.io;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.MalformedURLException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
@@ -37,9 +47,21 @@ import com.cloud.bridge.service.exception.InternalErrorException;
 import com.cloud.bridge.service.exception.OutOfStorageException;
 import com.cloud.bridge.util.StringHelper;
 import com.cloud.bridge.util.OrderedPair;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 public class S3FileSystemBucketAdapter implements S3BucketAdapter {
     protected final static Logger logger = Logger.getLogger(S3FileSystemBucketAdapter.class);
+    
+	private static final int COPY_BUFFER_SIZE = FileRangeInputStream.COPY_BUFFER_SIZE;
+	
+	// -> shared by all adapters, idle threads time out so the pool costs nothing between uploads
+	private static final ThreadPoolExecutor partCopyExecutor;
+	static {
+		int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		partCopyExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("S3PartAssembler"));
+		partCopyExecutor.allowCoreThreadTimeOut(true);
+	}
 	
 	public S3FileSystemBucketAdapter() {
 	}
@@ -92,17 +114,15 @@ public class S3FileSystemBucketAdapter implements S3BucketAdapter {
 		
 		File file = new File(getBucketFolderDir(mountedRoot, bucket) + File.separatorChar + fileName);
 		try {
-			// -> when versioning is off we need to rewrite the file contents
-			file.delete();
-			file.createNewFile();
-			
+			// -> when versioning is off we need to rewrite the file contents, opening the
+			//    stream truncates it.  The digest is taken from the same buffer that is
+			//    written so the upload is read exactly once.
 	        fos = new FileOutputStream(file);
-	        byte[] buffer = new byte[4096];
+	        byte[] buffer = new byte[COPY_BUFFER_SIZE];
 	        int len = 0;
 	        while( (len = is.read(buffer)) > 0) {
 	        	fos.write(buffer, 0, len);
 	        	md5.update(buffer, 0, len);
-	        	
 	        }       
 	        //Convert MD4 digest to (lowercase) hex String
 	        return StringHelper.toHexString(md5.digest());
@@ -149,51 +169,121 @@ public class S3FileSystemBucketAdapter implements S3BucketAdapter {
 			throw new InternalErrorException("Unable to get MD5 MessageDigest", e);
 		}
 		
+		// -> the offset of every part in the final object is known up front, so the parts are
+		//    copied in parallel with positional channel transfers while this thread digests
+		//    them in order (the second read of each part is served from the page cache)
+		String sourceDir = getBucketFolderDir(mountedRoot, sourceBucket) + File.separatorChar;
+		File[] partFiles = new File[parts.length];
+		long[] offsets = new long[parts.length];
+		for( int i=0; i < parts.length; i++ ) {
+			partFiles[i] = new File(sourceDir + parts[i].getPath());
+			offsets[i] = totalLength;
+			totalLength += partFiles[i].length();
+		}
+		
 		File file = new File(getBucketFolderDir(mountedRoot, destBucket) + File.separatorChar + fileName);
+		RandomAccessFile dest = null;
+		List<Future<Long>> copies = new ArrayList<Future<Long>>(parts.length);
 		try {
 			// -> when versioning is off we need to rewrite the file contents
 			file.delete();
-			file.createNewFile();
+			dest = new RandomAccessFile(file, "rw");
+			dest.setLength(totalLength);
 			
-	        final FileOutputStream fos = new FileOutputStream(file);
-	        byte[] buffer = new byte[4096];
-	        
-	        // -> get the input stream for the next file part
-	        for( int i=0; i < parts.length; i++ )
-	        {
-	           DataHandler nextPart = loadObject( mountedRoot, sourceBucket, parts[i].getPath());
-	           InputStream is = nextPart.getInputStream();
-	           
-	           int len = 0;
-	           while( (len = is.read(buffer)) > 0) {
-	        	   fos.write(buffer, 0, len);
-	        	   md5.update(buffer, 0, len);
-	        	   totalLength += len;
-	           }
-	           is.close();
-	           
-	           // -> after each file write tell the client we are still here to keep connection alive
-	           if (null != client) {
-	        	   client.write( new String(" ").getBytes());
-	        	   client.flush();
-	           }
-	        }        
-	        fos.close();	
-	        return new OrderedPair<String, Long>(StringHelper.toHexString(md5.digest()), new Long(totalLength));
-	        //Create an ordered pair whose first element is the MD4 digest as a (lowercase) hex String
+			final FileChannel destChannel = dest.getChannel();
+			for( int i=0; i < parts.length; i++ )
+				copies.add(partCopyExecutor.submit(new PartCopy(partFiles[i], destChannel, offsets[i])));
+			
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			for( int i=0; i < parts.length; i++ )
+			{
+				InputStream is = new FileInputStream(partFiles[i]);
+				try {
+					int len = 0;
+					while( (len = is.read(buffer)) > 0)
+						md5.update(buffer, 0, len);
+				} finally {
+					is.close();
+				}
+				
+				// -> wait for the part to be in place before telling the client we are still here
+				copies.get(i).get();
+				if (null != client) {
+					client.write( new String(" ").getBytes());
+					client.flush();
+				}
+			}
+			dest.close();
+			dest = null;
+			
+			//Create an ordered pair whose first element is the MD5 digest as a (lowercase) hex String
+			return new OrderedPair<String, Long>(StringHelper.toHexString(md5.digest()), new Long(totalLength));
 		} 
 		catch(IOException e) {
 			logger.error("concatentateObjects unexpected exception " + e.getMessage(), e);
 			throw new OutOfStorageException(e);
-		}	
+		}
+		catch(ExecutionException e) {
+			logger.error("concatentateObjects unexpected exception " + e.getCause().getMessage(), e.getCause());
+			throw new OutOfStorageException(e.getCause());
+		}
+		catch(InterruptedException e) {
+			logger.error("concatentateObjects interrupted", e);
+			throw new InternalErrorException("Interrupted while concatenating object parts", e);
+		}
+		finally {
+			for( Future<Long> copy : copies )
+				copy.cancel(false);
+			
+			try {
+				if (null != dest) dest.close();
+			}
+			catch( Exception e ) {
+				logger.error("Can't close RandomAccessFile " + e.getMessage(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Copies one part file into its place in the concatenated object.
+	 */
+	private static class PartCopy implements Callable<Long> {
+		private final File part;
+		private final FileChannel dest;
+		private final long offset;
+		
+		public PartCopy(File part, FileChannel dest, long offset) {
+			this.part = part;
+			this.dest = dest;
+			this.offset = offset;
+		}
+		
+		@Override
+		public Long call() throws IOException {
+			FileInputStream fis = new FileInputStream(part);
+			try {
+				FileChannel source = fis.getChannel();
+				long length = source.size();
+				long copied = 0;
+				while(copied < length) {
+					long count = dest.transferFrom(source, offset + copied, length - copied);
+					if(count <= 0)
+						throw new IOException("Part " + part.getName() + " shrank while being copied");
+					copied += count;
+				}
+				return copied;
+			} finally {
+				fis.close();
+			}
+		}
 	}
 	
 	@Override
 	public DataHandler loadObject(String mountedRoot, String bucket, String fileName) {
 		File file = new File(getBucketFolderDir(mountedRoot, bucket) + File.separatorChar + fileName);
 		try {
-			return new DataHandler(file.toURL());
-		} catch (MalformedURLException e) {
+			return new DataHandler(new FileRangeDataSource(file, 0, Long.MAX_VALUE));
+		} catch (IOException e) {
 			throw new FileNotExistException("Unable to open underlying object file");
 		}
 	}
@@ -214,8 +304,6 @@ public class S3FileSystemBucketAdapter implements S3BucketAdapter {
 		try {
 			DataSource ds = new FileRangeDataSource(file, startPos, endPos);
 			return new DataHandler(ds);
-		} catch (MalformedURLException e) {
-			throw new FileNotExistException("Unable to open underlying object file");
 		} catch(IOException e) {
 			throw new FileNotExistException("Unable to open underlying object file");
 		}
@@ -43,6 +43,7 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import com.cloud.bridge.io.FileRangeInputStream;
 import com.cloud.bridge.io.MultiPartDimeInputStream;
 import com.cloud.bridge.model.SAcl;
 import com.cloud.bridge.model.UserCredentialsVO;
@@ -486,10 +487,16 @@ public class S3RestServlet extends HttpServlet {
     }
 
     public static void writeResponse(HttpServletResponse response, InputStream is) throws IOException {
-        byte[] data = new byte[4096];
+        OutputStream os = response.getOutputStream();
+        if (is instanceof FileRangeInputStream) {
+            ((FileRangeInputStream)is).transferTo(os);
+            return;
+        }
+
+        byte[] data = new byte[FileRangeInputStream.COPY_BUFFER_SIZE];
         int length = 0;
         while((length = is.read(data)) > 0) {
-            response.getOutputStream().write(data, 0, length);
+            os.write(data, 0, length);
         }
     }
 
@@ -48,6 +48,17 @@ public class UserContext {
 		return context;
 	}
 	
+	/**
+	 * Binds the context to the calling thread, e.g. a worker doing part of a request on behalf
+	 * of the request thread.  Null unbinds it.
+	 */
+	public static void setCurrent(UserContext context) {
+		if (context == null)
+			threadUserContext.remove();
+		else
+			threadUserContext.set(context);
+	}
+	
 	public void initContext() {		
 		annonymous = true;
 	}
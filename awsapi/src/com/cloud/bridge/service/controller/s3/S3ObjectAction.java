@@ -362,8 +362,14 @@ public class S3ObjectAction implements ServletAction {
             response.addHeader("Last-Modified", DateHelper.getDateDisplayString(
                     DateHelper.GMT_TIMEZONE, engineResponse.getLastModified().getTime(), "E, d MMM yyyy HH:mm:ss z"));
 
-            response.setContentLength((int)engineResponse.getContentLength());			
-            S3RestServlet.writeResponse(response, dataHandler.getInputStream());
+            // -> objects can be larger than setContentLength(int) allows
+            response.setHeader("Content-Length", Long.toString(engineResponse.getContentLength()));
+            InputStream is = dataHandler.getInputStream();
+            try {
+                S3RestServlet.writeResponse(response, is);
+            } finally {
+                is.close();
+            }
         }
     }
 
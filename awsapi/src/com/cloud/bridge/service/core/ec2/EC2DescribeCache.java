@@ -0,0 +1,181 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.bridge.service.core.ec2;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Short lived, per user cache of unfiltered describe results.  EC2 tools tend to poll
+ * DescribeInstances and friends with the same arguments every few seconds, each of which
+ * used to turn into one or more list calls against the CloudStack API.  Filters are
+ * evaluated by the caller on the cached result, so requests that only differ in their
+ * filters share an entry.
+ * 
+ * Identical requests arriving while an entry is being loaded wait for that load instead of
+ * issuing their own.  Any state changing call made by a user invalidates that user's entries;
+ * changes made outside the EC2 bridge become visible once the entry expires.
+ */
+public class EC2DescribeCache {
+    protected final static Logger logger = Logger.getLogger(EC2DescribeCache.class);
+
+	public static final long DEFAULT_TTL_MS = 5000;
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private static class Entry {
+		final FutureTask<Object> task;
+		final long expiresAt;
+		final long generation;
+		
+		Entry(FutureTask<Object> task, long expiresAt, long generation) {
+			this.task = task;
+			this.expiresAt = expiresAt;
+			this.generation = generation;
+		}
+	}
+	
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	// -> bumped by invalidate(), entries loaded under an older generation are not served
+	private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+	private volatile long ttlMs;
+	private final int maxEntries;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	public EC2DescribeCache() {
+		this(DEFAULT_TTL_MS, DEFAULT_MAX_ENTRIES);
+	}
+	
+	public EC2DescribeCache(long ttlMs, int maxEntries) {
+		this.ttlMs = ttlMs;
+		this.maxEntries = maxEntries;
+	}
+	
+	public long getTtl() {
+		return ttlMs;
+	}
+	
+	/**
+	 * @param ttlMs - zero or less turns caching off
+	 */
+	public void setTtl(long ttlMs) {
+		this.ttlMs = ttlMs;
+		if (ttlMs <= 0)
+			entries.clear();
+	}
+	
+	/**
+	 * Returns the cached result for the user's request, loading it if there is none.
+	 * 
+	 * @param user - access key of the caller, entries are never shared between users
+	 * @param request - everything except the filters that the result depends on
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(String user, String request, Callable<T> loader) throws Exception {
+		if (ttlMs <= 0)
+			return loader.call();
+		
+		String key = user + "\n" + request;
+		while (true) {
+			long generation = generationOf(user).get();
+			long now = System.currentTimeMillis();
+			Entry entry = entries.get(key);
+			if (entry != null && entry.generation == generation && entry.expiresAt > now) {
+				hits.incrementAndGet();
+				return (T)waitFor(key, entry);
+			}
+			
+			Entry loading = new Entry(new FutureTask<Object>((Callable<Object>)loader), now + ttlMs, generation);
+			boolean installed = entry == null ? entries.putIfAbsent(key, loading) == null : entries.replace(key, entry, loading);
+			if (!installed)
+				continue;
+			
+			misses.incrementAndGet();
+			if (entries.size() > maxEntries)
+				purge(now);
+			
+			loading.task.run();
+			return (T)waitFor(key, loading);
+		}
+	}
+	
+	private Object waitFor(String key, Entry entry) throws Exception {
+		try {
+			return entry.task.get();
+		} catch (ExecutionException e) {
+			// -> failures are not cached, the next request tries again
+			entries.remove(key, entry);
+			if (e.getCause() instanceof Exception)
+				throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Drops every entry of the user, to be called once the user has changed something that
+	 * a describe call would return.  Loads still running at that point are not served either,
+	 * so calling it after the change has completed is enough.
+	 */
+	public void invalidate(String user) {
+		generationOf(user).incrementAndGet();
+	}
+	
+	public void clear() {
+		entries.clear();
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	
+	public long getHitCount() {
+		return hits.get();
+	}
+	
+	public long getMissCount() {
+		return misses.get();
+	}
+	
+	private AtomicLong generationOf(String user) {
+		AtomicLong generation = generations.get(user);
+		if (generation == null) {
+			generations.putIfAbsent(user, new AtomicLong());
+			generation = generations.get(user);
+		}
+		return generation;
+	}
+	
+	private void purge(long now) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expiresAt <= now)
+				it.remove();
+		}
+		
+		if (entries.size() > maxEntries) {
+			logger.debug("EC2 describe cache is full of live entries, dropping all " + entries.size());
+			entries.clear();
+		}
+	}
+}
@@ -30,6 +30,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -73,6 +79,7 @@ import com.cloud.stack.models.CloudStackUserVm;
 import com.cloud.stack.models.CloudStackVolume;
 import com.cloud.stack.models.CloudStackZone;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 /**
  * EC2Engine processes the ec2 commands and calls their cloudstack analogs
@@ -92,7 +99,17 @@ public class EC2Engine extends ManagerBase {
 
     private CloudStackAccount currentAccount = null;
 
+    private final EC2DescribeCache describeCache = new EC2DescribeCache();
+
+    // -> runs the independent CloudStack API calls behind one describe request side by side
+    private static final int DESCRIBE_WORKERS = 16;
+    private final ThreadPoolExecutor describeExecutor;
+    private static final ThreadLocal<Boolean> inDescribeWorker = new ThreadLocal<Boolean>();
+
     public EC2Engine() throws IOException {
+        describeExecutor = new ThreadPoolExecutor(DESCRIBE_WORKERS, DESCRIBE_WORKERS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("EC2DescribeWorker"));
+        describeExecutor.allowCoreThreadTimeOut(true);
     }
     
 	@Override
@@ -108,6 +125,13 @@ public class EC2Engine extends ManagerBase {
         return true;
 	}
 
+    @Override
+    public boolean stop() {
+        describeExecutor.shutdownNow();
+        describeCache.clear();
+        return true;
+    }
+
 
     /**
      * Which management server to we talk to?
@@ -131,6 +155,15 @@ public class EC2Engine extends ManagerBase {
             managementServer = EC2Prop.getProperty( "managementServer" );
             cloudAPIPort = EC2Prop.getProperty( "cloudAPIPort", null );
 
+            String describeCacheTtl = EC2Prop.getProperty( "describeCacheTtl" );
+            if (describeCacheTtl != null) {
+                try {
+                    describeCache.setTtl(Long.parseLong(describeCacheTtl.trim()));
+                } catch (NumberFormatException e) {
+                    logger.warn("Invalid describeCacheTtl " + describeCacheTtl + ", using " + describeCache.getTtl() + "ms");
+                }
+            }
+
             try {
                 if(ofDao.getOfferingCount() == 0) {
                     String strValue = EC2Prop.getProperty("m1.small.serviceId");
@@ -172,14 +205,80 @@ public class EC2Engine extends ManagerBase {
      * @return
      */
     private CloudStackApi getApi() {
-        if (_eng == null) {
-            _eng = new CloudStackApi(managementServer, cloudAPIPort, false);
+        // a new instance per call, the keys of a shared one could be switched to another
+        // user's by a concurrent request (or by a parallel sub-request of this one)
+        CloudStackApi api = new CloudStackApi(managementServer, cloudAPIPort, false);
+        api.setApiKey(UserContext.current().getAccessKey());
+        api.setSecretKey(UserContext.current().getSecretKey());
+        return api;
+    }
+
+    /**
+     * Runs the calls in the describe worker pool with the caller's user context and returns
+     * their results in order.  The first failure is rethrown once all calls are done or cancelled.
+     */
+    private <T> List<T> callInParallel(List<Callable<T>> calls) throws Exception {
+        List<T> results = new ArrayList<T>(calls.size());
+        if (calls.size() < 2 || inDescribeWorker.get() != null) {
+            // -> nested calls run inline, a worker waiting on the pool could starve it
+            for (Callable<T> call : calls)
+                results.add(call.call());
+            return results;
+        }
+
+        final UserContext context = UserContext.current();
+        List<Future<T>> futures = new ArrayList<Future<T>>(calls.size());
+        for (final Callable<T> call : calls) {
+            futures.add(describeExecutor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    UserContext.setCurrent(context);
+                    inDescribeWorker.set(Boolean.TRUE);
+                    try {
+                        return call.call();
+                    } finally {
+                        inDescribeWorker.remove();
+                        UserContext.setCurrent(null);
+                    }
+                }
+            }));
+        }
+
+        try {
+            for (Future<T> future : futures)
+                results.add(future.get());
+        } catch (ExecutionException e) {
+            for (Future<T> future : futures)
+                future.cancel(true);
+            if (e.getCause() instanceof Exception)
+                throw (Exception)e.getCause();
+            throw e;
         }
-        // regardless of whether _eng is initialized, we must make sure
-        // access/secret keys are current with what's in the UserCredentials
-        _eng.setApiKey(UserContext.current().getAccessKey());
-        _eng.setSecretKey(UserContext.current().getSecretKey());
-        return _eng;
+        return results;
+    }
+
+    /**
+     * Everything other than the filters that a describe result depends on.
+     */
+    private static String describeCacheKey(String kind, String[] ids, EC2TagKeyValue[] tags) {
+        StringBuilder sb = new StringBuilder(kind);
+        if (ids != null) {
+            for (String id : ids)
+                sb.append(" id=").append(id);
+        }
+        if (tags != null) {
+            for (EC2TagKeyValue tag : tags)
+                sb.append(" tag=").append(tag.getKey()).append('=').append(tag.getValue());
+        }
+        return sb.toString();
+    }
+
+    private void invalidateDescribeCache() {
+        describeCache.invalidate(UserContext.current().getAccessKey());
+    }
+
+    public EC2DescribeCache getDescribeCache() {
+        return describeCache;
     }
 
 
@@ -591,6 +690,8 @@ public class EC2Engine extends ManagerBase {
         } catch (Exception e) {
             logger.error( "EC2 modifyImageAttribute - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return false;
     }
@@ -776,6 +877,8 @@ public class EC2Engine extends ManagerBase {
         } catch(Exception e) {
             logger.error("EC2 ReleaseAddress - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return false;
     }
@@ -807,6 +910,8 @@ public class EC2Engine extends ManagerBase {
         } catch(Exception e) {
             logger.error( "EC2 AssociateAddress - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return false;
     }
@@ -831,6 +936,8 @@ public class EC2Engine extends ManagerBase {
         } catch(Exception e) {
             logger.error( "EC2 DisassociateAddress - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return false;
     }
@@ -882,16 +989,33 @@ public class EC2Engine extends ManagerBase {
     public EC2DescribeImagesResponse describeImages(EC2DescribeImages request) {
         EC2DescribeImagesResponse images = new EC2DescribeImagesResponse();
         try {
-            String[] templateIds = request.getImageSet();
+            final String[] templateIds = request.getImageSet();
             EC2ImageFilterSet ifs = request.getFilterSet();
 
-            if ( templateIds.length == 0 ) {
-                images = listTemplates(null, images);
-            } else {
-                for (String s : templateIds) {
-                    images = listTemplates(s, images);
+            images = describeCache.get(UserContext.current().getAccessKey(), describeCacheKey("images", templateIds, null),
+                    new Callable<EC2DescribeImagesResponse>() {
+                @Override
+                public EC2DescribeImagesResponse call() throws Exception {
+                    if ( templateIds.length == 0 )
+                        return listTemplates(null, new EC2DescribeImagesResponse());
+
+                    List<Callable<EC2DescribeImagesResponse>> calls = new ArrayList<Callable<EC2DescribeImagesResponse>>();
+                    for (final String s : templateIds) {
+                        calls.add(new Callable<EC2DescribeImagesResponse>() {
+                            @Override
+                            public EC2DescribeImagesResponse call() throws Exception {
+                                return listTemplates(s, new EC2DescribeImagesResponse());
+                            }
+                        });
+                    }
+                    EC2DescribeImagesResponse images = new EC2DescribeImagesResponse();
+                    for (EC2DescribeImagesResponse part : callInParallel(calls)) {
+                        for (EC2Image image : part.getImageSet())
+                            images.addImage(image);
+                    }
+                    return images;
                 }
-            }
+            });
             if (ifs != null)
                 return ifs.evaluate(images);
         } catch( Exception e ) {
@@ -968,6 +1092,8 @@ public class EC2Engine extends ManagerBase {
         } catch( Exception e ) {
             logger.error( "EC2 CreateImage - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return response;
     }
@@ -996,6 +1122,8 @@ public class EC2Engine extends ManagerBase {
         } catch( Exception e ) {
             logger.error( "EC2 RegisterImage - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return image;
     }
@@ -1016,6 +1144,8 @@ public class EC2Engine extends ManagerBase {
         } catch( Exception e ) {
             logger.error( "EC2 DeregisterImage - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return false;
     }
@@ -1029,9 +1159,18 @@ public class EC2Engine extends ManagerBase {
     public EC2DescribeInstancesResponse describeInstances(EC2DescribeInstances request ) {
         EC2DescribeInstancesResponse response = new EC2DescribeInstancesResponse();
         try {
-            EC2TagKeyValue[] tagKeyValueSet = request.getResourceTagSet();
-            response = listVirtualMachines( request.getInstancesSet(), request.getFilterSet(),
-                    getResourceTags(tagKeyValueSet));
+            final EC2TagKeyValue[] tagKeyValueSet = request.getResourceTagSet();
+            final String[] instanceIds = request.getInstancesSet();
+            response = describeCache.get(UserContext.current().getAccessKey(),
+                    describeCacheKey("instances", instanceIds, tagKeyValueSet), new Callable<EC2DescribeInstancesResponse>() {
+                @Override
+                public EC2DescribeInstancesResponse call() throws Exception {
+                    return listVirtualMachines( instanceIds, null, getResourceTags(tagKeyValueSet));
+                }
+            });
+            EC2InstanceFilterSet ifs = request.getFilterSet();
+            if (ifs != null)
+                response = ifs.evaluate(response);
         } catch( Exception e ) {
             logger.error( "EC2 DescribeInstances - " ,e);
             handleException(e);
@@ -1068,15 +1207,33 @@ public class EC2Engine extends ManagerBase {
     public EC2DescribeVolumesResponse describeVolumes( EC2DescribeVolumes request ) {
         EC2DescribeVolumesResponse volumes = new EC2DescribeVolumesResponse();
         EC2VolumeFilterSet vfs = request.getFilterSet();
-        EC2TagKeyValue[] tagKeyValueSet = request.getResourceTagSet();
+        final EC2TagKeyValue[] tagKeyValueSet = request.getResourceTagSet();
         try {
-            String[] volumeIds = request.getVolumeSet();
-            if ( 0 == volumeIds.length ){
-                volumes = listVolumes( null, null, volumes, getResourceTags(tagKeyValueSet) );
-            } else {
-                for (String s : volumeIds)
-                    volumes = listVolumes(s, null, volumes, getResourceTags(tagKeyValueSet) );
-            }
+            final String[] volumeIds = request.getVolumeSet();
+            volumes = describeCache.get(UserContext.current().getAccessKey(), describeCacheKey("volumes", volumeIds, tagKeyValueSet),
+                    new Callable<EC2DescribeVolumesResponse>() {
+                @Override
+                public EC2DescribeVolumesResponse call() throws Exception {
+                    if ( 0 == volumeIds.length )
+                        return listVolumes( null, null, new EC2DescribeVolumesResponse(), getResourceTags(tagKeyValueSet) );
+
+                    List<Callable<EC2DescribeVolumesResponse>> calls = new ArrayList<Callable<EC2DescribeVolumesResponse>>();
+                    for (final String s : volumeIds) {
+                        calls.add(new Callable<EC2DescribeVolumesResponse>() {
+                            @Override
+                            public EC2DescribeVolumesResponse call() throws Exception {
+                                return listVolumes(s, null, new EC2DescribeVolumesResponse(), getResourceTags(tagKeyValueSet) );
+                            }
+                        });
+                    }
+                    EC2DescribeVolumesResponse volumes = new EC2DescribeVolumesResponse();
+                    for (EC2DescribeVolumesResponse part : callInParallel(calls)) {
+                        for (EC2Volume volume : part.getVolumeSet())
+                            volumes.addVolume(volume);
+                    }
+                    return volumes;
+                }
+            });
             if ( vfs != null )
                 volumes = vfs.evaluate( volumes );
         }  catch( Exception e ) {
@@ -1116,6 +1273,8 @@ public class EC2Engine extends ManagerBase {
         } catch( Exception e ) {
             logger.error( "EC2 AttachVolume - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return resp;
     }
@@ -1166,6 +1325,8 @@ public class EC2Engine extends ManagerBase {
         } catch( Exception e ) {
             logger.error( "EC2 DetachVolume - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return resp;
     }
@@ -1215,6 +1376,8 @@ public class EC2Engine extends ManagerBase {
         } catch( Exception e ) {
             logger.error( "EC2 CreateVolume - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return resp;
     }
@@ -1234,6 +1397,8 @@ public class EC2Engine extends ManagerBase {
         } catch( Exception e ) {
             logger.error( "EC2 DeleteVolume - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return request;
     }
@@ -1273,6 +1438,8 @@ public class EC2Engine extends ManagerBase {
         } catch (Exception e){
             logger.error( "EC2 Create/Delete Tags - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return false;
     }
@@ -1344,6 +1511,8 @@ public class EC2Engine extends ManagerBase {
         } catch( Exception e ) {
             logger.error( "EC2 RebootInstances - ", e );
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return false;
     }
@@ -1465,6 +1634,8 @@ public class EC2Engine extends ManagerBase {
         } catch( Exception e ) {
             logger.error( "EC2 RunInstances - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return instances;
     }
@@ -1505,6 +1676,8 @@ public class EC2Engine extends ManagerBase {
         } catch( Exception e ) {
             logger.error( "EC2 StartInstances - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return instances;
     }
@@ -1556,6 +1729,8 @@ public class EC2Engine extends ManagerBase {
         } catch( Exception e ) {
             logger.error( "EC2 StopInstances - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return instances;
     }
@@ -1593,6 +1768,8 @@ public class EC2Engine extends ManagerBase {
         } catch (Exception e) {
             logger.error("ModifyInstanceAttribute - ", e);
             handleException(e);
+        } finally {
+            invalidateDescribeCache();
         }
         return status;
     }
@@ -1643,15 +1820,25 @@ public class EC2Engine extends ManagerBase {
      * @param ifs - filter out unwanted instances
      */
     private EC2DescribeInstancesResponse listVirtualMachines( String[] virtualMachineIds, EC2InstanceFilterSet ifs,
-            List<CloudStackKeyValue> resourceTags ) throws Exception
+            final List<CloudStackKeyValue> resourceTags ) throws Exception
             {
         EC2DescribeInstancesResponse instances = new EC2DescribeInstancesResponse();
 
         if (null == virtualMachineIds || 0 == virtualMachineIds.length) {
             instances = lookupInstances( null, instances, resourceTags );
         } else {
-            for( int i=0; i <  virtualMachineIds.length; i++ ) {
-                instances = lookupInstances( virtualMachineIds[i], instances, resourceTags );
+            List<Callable<EC2DescribeInstancesResponse>> calls = new ArrayList<Callable<EC2DescribeInstancesResponse>>();
+            for (final String virtualMachineId : virtualMachineIds) {
+                calls.add(new Callable<EC2DescribeInstancesResponse>() {
+                    @Override
+                    public EC2DescribeInstancesResponse call() throws Exception {
+                        return lookupInstances( virtualMachineId, new EC2DescribeInstancesResponse(), resourceTags );
+                    }
+                });
+            }
+            for (EC2DescribeInstancesResponse part : callInParallel(calls)) {
+                for (EC2Instance instance : part.getInstanceSet())
+                    instances.addInstance(instance);
             }
         }
 
@@ -1870,6 +2057,8 @@ public class EC2Engine extends ManagerBase {
                 instId, null, null, null, null, null, null, null, null, resourceTagSet);
 
         if(vms != null && vms.size() > 0) {
+            // -> most instances share a handful of offerings, look each one up only once
+            Map<String, String> instanceTypes = new HashMap<String, String>();
             for(CloudStackUserVm cloudVm : vms) {
                 EC2Instance ec2Vm = new EC2Instance();
 
@@ -1886,7 +2075,13 @@ public class EC2Engine extends ManagerBase {
                 ec2Vm.setHypervisor( mapToAmazonHypervisorType(cloudVm.getHypervisor()) );
                 ec2Vm.setRootDeviceType(cloudVm.getRootDeviceType());
                 ec2Vm.setRootDeviceId(cloudVm.getRootDeviceId());
-                ec2Vm.setServiceOffering(serviceOfferingIdToInstanceType(cloudVm.getServiceOfferingId().toString()));
+                String serviceOfferingId = cloudVm.getServiceOfferingId().toString();
+                String instanceType = instanceTypes.get(serviceOfferingId);
+                if (instanceType == null) {
+                    instanceType = serviceOfferingIdToInstanceType(serviceOfferingId);
+                    instanceTypes.put(serviceOfferingId, instanceType);
+                }
+                ec2Vm.setServiceOffering(instanceType);
                 ec2Vm.setKeyPairName(cloudVm.getKeyPairName());
 
                 List<CloudStackNic> nics = cloudVm.getNics();
@@ -1948,24 +2143,21 @@ public class EC2Engine extends ManagerBase {
                     result.addAll(template);
                 }
             }else{
-                List<CloudStackTemplate> selfExecutable = getApi().listTemplates("selfexecutable", null, null, null, null, null, null, null);
-                if(selfExecutable != null){
-                    result.addAll(selfExecutable);
-                }
-
-                List<CloudStackTemplate> featured = getApi().listTemplates("featured", null, null, null, null, null, null, null);
-                if(featured != null){
-                    result.addAll(featured);
-                }
-
-                List<CloudStackTemplate> sharedExecutable = getApi().listTemplates("sharedexecutable", null, null, null, null, null, null, null);
-                if(sharedExecutable != null){
-                    result.addAll(sharedExecutable);
+                // -> the four template filters are independent queries
+                final CloudStackApi api = getApi();
+                List<Callable<List<CloudStackTemplate>>> calls = new ArrayList<Callable<List<CloudStackTemplate>>>();
+                for (final String filter : new String[] { "selfexecutable", "featured", "sharedexecutable", "community" }) {
+                    calls.add(new Callable<List<CloudStackTemplate>>() {
+                        @Override
+                        public List<CloudStackTemplate> call() throws Exception {
+                            return api.listTemplates(filter, null, null, null, null, null, null, null);
+                        }
+                    });
                 }
-
-                List<CloudStackTemplate> community = getApi().listTemplates("community", null, null, null, null, null, null, null);
-                if(community != null){
-                    result.addAll(community);
+                for (List<CloudStackTemplate> templates : callInParallel(calls)) {
+                    if(templates != null){
+                        result.addAll(templates);
+                    }
                 }
             }
 
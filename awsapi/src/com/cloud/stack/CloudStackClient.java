@@ -22,7 +22,6 @@ import java.io.InputStreamReader;
 import java.lang.reflect.Type;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -165,13 +164,15 @@ public class CloudStackClient {
 		if(logger.isDebugEnabled())
 			logger.debug("Cloud API call + [" + url.toString() + "]");
 		
-        URLConnection connect = url.openConnection();
+        // -> HttpURLConnection keeps the connection to the management server alive for the next
+        //    call only if the response body has been read to the end and closed
+        HttpURLConnection connect = (HttpURLConnection)url.openConnection();
         
         int statusCode;
-        statusCode = ((HttpURLConnection)connect).getResponseCode();
+        statusCode = connect.getResponseCode();
         if(statusCode >= 400) {
         	logger.error("Cloud API call + [" + url.toString() + "] failed with status code: " + statusCode);
-            String errorMessage = ((HttpURLConnection)connect).getResponseMessage();
+            String errorMessage = connect.getResponseMessage();
             if(errorMessage == null){
                 errorMessage = connect.getHeaderField("X-Description");
             }
@@ -181,11 +182,17 @@ public class CloudStackClient {
             }
             errorMessage = errorMessage.concat(" Error Code - " + Integer.toString(statusCode));
 
+            drainAndClose(connect.getErrorStream());
         	throw new IOException(errorMessage);
         }
         
         InputStream inputStream = connect.getInputStream(); 
-		JsonElement jsonElement = parser.parse(new InputStreamReader(inputStream));
+        JsonElement jsonElement;
+        try {
+        	jsonElement = parser.parse(new InputStreamReader(inputStream));
+        } finally {
+        	drainAndClose(inputStream);
+        }
 		if(jsonElement == null) {
         	logger.error("Cloud API call + [" + url.toString() + "] failed: unable to parse expected JSON response");
         	
@@ -196,4 +203,22 @@ public class CloudStackClient {
 			logger.debug("Cloud API call + [" + url.toString() + "] returned: " + jsonElement.toString());
 		return new JsonAccessor(jsonElement);
 	}
+	
+	private static void drainAndClose(InputStream is) {
+		if(is == null)
+			return;
+		
+		try {
+			byte[] buffer = new byte[4096];
+			while(is.read(buffer) >= 0)
+				;
+		} catch(IOException e) {
+			// -> the connection will not be reused, nothing else to do
+		} finally {
+			try {
+				is.close();
+			} catch(IOException e) {
+			}
+		}
+	}
 }
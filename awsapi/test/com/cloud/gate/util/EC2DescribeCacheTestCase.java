@@ -0,0 +1,239 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.gate.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.bridge.service.core.ec2.EC2DescribeCache;
+import com.cloud.gate.testcase.BaseTestCase;
+import com.cloud.stack.CloudStackApi;
+import com.cloud.stack.models.CloudStackUserVm;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class EC2DescribeCacheTestCase extends BaseTestCase {
+    protected final static Logger logger = Logger.getLogger(EC2DescribeCacheTestCase.class);
+	
+	private static final int VM_COUNT = 200;
+	
+	private HttpServer server;
+	private final AtomicInteger apiCalls = new AtomicInteger();
+	private final Set<InetSocketAddress> connections = Collections.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+	private byte[] listVmsResponse;
+	
+	/**
+	 * Stands in for the management server's API, answering every command with the same
+	 * listVirtualMachines response after a few milliseconds of "database time".
+	 */
+	@Override
+	protected void setUp() {
+		super.setUp();
+		StringBuilder sb = new StringBuilder("{\"listvirtualmachinesresponse\":{\"count\":" + VM_COUNT + ",\"virtualmachine\":[");
+		for(int i = 0; i < VM_COUNT; i++) {
+			if(i > 0)
+				sb.append(',');
+			sb.append("{\"id\":\"vm-" + i + "\",\"name\":\"i-2-" + i + "-VM\",\"state\":\"Running\",\"zonename\":\"zone1\"," +
+				"\"templateid\":\"tmpl-1\",\"serviceofferingid\":\"so-1\",\"hypervisor\":\"XenServer\",\"nic\":[],\"tags\":[]}");
+		}
+		sb.append("]}}");
+		listVmsResponse = sb.toString().getBytes();
+		
+		try {
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 50);
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+		server.createContext("/client/api", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				apiCalls.incrementAndGet();
+				connections.add(exchange.getRemoteAddress());
+				try {
+					Thread.sleep(5);
+				} catch(InterruptedException e) {
+				}
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, listVmsResponse.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(listVmsResponse);
+				os.close();
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(8));
+		server.start();
+	}
+	
+	@Override
+	protected void tearDown() {
+		server.stop(0);
+	}
+	
+	private CloudStackApi api(String user) {
+		CloudStackApi api = new CloudStackApi("127.0.0.1", String.valueOf(server.getAddress().getPort()), false);
+		api.setApiKey(user);
+		api.setSecretKey("secret-" + user);
+		return api;
+	}
+	
+	private Callable<List<CloudStackUserVm>> listVms(final CloudStackApi api) {
+		return new Callable<List<CloudStackUserVm>>() {
+			@Override
+			public List<CloudStackUserVm> call() throws Exception {
+				return api.listVirtualMachines(null, null, true, null, null, null, null, null, null, null, null, null, null, null, null, null, null);
+			}
+		};
+	}
+	
+	public void testConnectionsAreReused() throws Exception {
+		CloudStackApi api = api("user");
+		for(int i = 0; i < 50; i++)
+			Assert.assertEquals(VM_COUNT, listVms(api).call().size());
+		
+		Assert.assertEquals(50, apiCalls.get());
+		Assert.assertEquals(1, connections.size());
+	}
+	
+	public void testEntriesArePerUserAndInvalidated() throws Exception {
+		EC2DescribeCache cache = new EC2DescribeCache(60000, 100);
+		List<CloudStackUserVm> first = cache.get("alice", "instances", listVms(api("alice")));
+		Assert.assertSame(first, cache.get("alice", "instances", listVms(api("alice"))));
+		Assert.assertEquals(1, apiCalls.get());
+		
+		cache.get("bob", "instances", listVms(api("bob")));
+		Assert.assertEquals(2, apiCalls.get());
+		
+		cache.invalidate("alice");
+		Assert.assertNotSame(first, cache.get("alice", "instances", listVms(api("alice"))));
+		cache.get("bob", "instances", listVms(api("bob")));
+		Assert.assertEquals(3, apiCalls.get());
+	}
+	
+	/**
+	 * A describe that was loading while a mutation completed must not be served afterwards.
+	 */
+	public void testLoadRacingAnInvalidateIsNotServed() throws Exception {
+		final EC2DescribeCache cache = new EC2DescribeCache(60000, 100);
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return cache.get("alice", "instances", new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						loading.countDown();
+						release.await();
+						return "stopping";
+					}
+				});
+			}
+		});
+		Assert.assertTrue(loading.await(5, TimeUnit.SECONDS));
+		cache.invalidate("alice");
+		release.countDown();
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		
+		Assert.assertEquals("stopped", cache.get("alice", "instances", new Callable<String>() {
+			@Override
+			public String call() {
+				return "stopped";
+			}
+		}));
+	}
+	
+	public void testFailuresAreNotCached() throws Exception {
+		EC2DescribeCache cache = new EC2DescribeCache(60000, 100);
+		final AtomicInteger attempts = new AtomicInteger();
+		Callable<String> failing = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				attempts.incrementAndGet();
+				throw new IOException("management server is down");
+			}
+		};
+		for(int i = 0; i < 2; i++) {
+			try {
+				cache.get("alice", "volumes", failing);
+				Assert.fail("expected the loader's exception");
+			} catch(IOException e) {
+			}
+		}
+		Assert.assertEquals(2, attempts.get());
+		Assert.assertEquals(0, cache.size());
+	}
+	
+	/**
+	 * 8 pollers per user, 20 users, each poller issuing the same DescribeInstances 10 times.
+	 */
+	public void testPollingLoad() throws Exception {
+		pollingLoad(new EC2DescribeCache(0, 100));
+		int uncachedCalls = apiCalls.getAndSet(0);
+		
+		EC2DescribeCache cache = new EC2DescribeCache(EC2DescribeCache.DEFAULT_TTL_MS, 100);
+		pollingLoad(cache);
+		int cachedCalls = apiCalls.get();
+		
+		Assert.assertEquals(8 * 20 * 10, uncachedCalls);
+		// -> concurrent misses for the same user share one call
+		Assert.assertTrue("" + cachedCalls, cachedCalls <= 20 * 2);
+	}
+	
+	private void pollingLoad(final EC2DescribeCache cache) throws Exception {
+		ExecutorService pollers = Executors.newFixedThreadPool(32);
+		final CountDownLatch done = new CountDownLatch(8 * 20);
+		for(int user = 0; user < 20; user++) {
+			final String name = "user-" + user;
+			for(int poller = 0; poller < 8; poller++) {
+				pollers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							for(int i = 0; i < 10; i++) {
+								List<CloudStackUserVm> vms = cache.get(name, "instances", listVms(api(name)));
+								Assert.assertEquals(VM_COUNT, vms.size());
+							}
+						} catch(Exception e) {
+							logger.error("describe failed", e);
+						}
+						done.countDown();
+					}
+				});
+			}
+		}
+		Assert.assertTrue(done.await(120, TimeUnit.SECONDS));
+		pollers.shutdown();
+	}
+}
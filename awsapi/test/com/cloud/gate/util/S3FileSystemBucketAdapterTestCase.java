@@ -0,0 +1,156 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.gate.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.bridge.io.FileRangeInputStream;
+import com.cloud.bridge.io.S3FileSystemBucketAdapter;
+import com.cloud.bridge.service.core.s3.S3MultipartPart;
+import com.cloud.bridge.util.OrderedPair;
+import com.cloud.bridge.util.StringHelper;
+import com.cloud.gate.testcase.BaseTestCase;
+
+public class S3FileSystemBucketAdapterTestCase extends BaseTestCase {
+    protected final static Logger logger = Logger.getLogger(S3FileSystemBucketAdapterTestCase.class);
+    
+	private static final int PART_SIZE = 1024*1024;
+	private static final int PART_COUNT = 8;
+	
+	private File root;
+	private S3FileSystemBucketAdapter adapter;
+	private byte[][] partData;
+	
+	@Override
+	protected void setUp() {
+		super.setUp();
+		root = new File(System.getProperty("java.io.tmpdir"), "s3fs-" + System.nanoTime());
+		adapter = new S3FileSystemBucketAdapter();
+		adapter.createContainer(root.getPath(), "parts");
+		adapter.createContainer(root.getPath(), "bucket");
+		
+		Random random = new Random(42);
+		partData = new byte[PART_COUNT][];
+		for(int i = 0; i < PART_COUNT; i++) {
+			// -> the last part is short, like a real multipart upload
+			partData[i] = new byte[i == PART_COUNT - 1 ? PART_SIZE/3 : PART_SIZE];
+			random.nextBytes(partData[i]);
+		}
+	}
+	
+	@Override
+	protected void tearDown() {
+		S3FileSystemBucketAdapter.deleteDirectory(root);
+	}
+	
+	private S3MultipartPart[] writeParts() throws IOException {
+		S3MultipartPart[] parts = new S3MultipartPart[PART_COUNT];
+		for(int i = 0; i < PART_COUNT; i++) {
+			parts[i] = new S3MultipartPart();
+			parts[i].setPartNumber(i + 1);
+			parts[i].setPath("1-" + (i + 1));
+			parts[i].setSize(partData[i].length);
+			FileOutputStream fos = new FileOutputStream(new File(adapter.getBucketFolderDir(root.getPath(), "parts"), parts[i].getPath()));
+			fos.write(partData[i]);
+			fos.close();
+		}
+		return parts;
+	}
+	
+	private String expectedMd5() throws Exception {
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		for(byte[] data : partData)
+			md5.update(data);
+		return StringHelper.toHexString(md5.digest());
+	}
+	
+	public void testConcatenatedObjectMatchesParts() throws Exception {
+		S3MultipartPart[] parts = writeParts();
+		ByteArrayOutputStream keepAlive = new ByteArrayOutputStream();
+		
+		OrderedPair<String, Long> result = adapter.concatentateObjects(root.getPath(), "bucket", "object", "parts", parts, keepAlive);
+		
+		Assert.assertEquals(expectedMd5(), result.getFirst());
+		Assert.assertEquals(PART_SIZE*(PART_COUNT - 1) + PART_SIZE/3, result.getSecond().longValue());
+		Assert.assertEquals(PART_COUNT, keepAlive.size());
+		
+		InputStream is = adapter.loadObject(root.getPath(), "bucket", "object").getInputStream();
+		try {
+			byte[] buffer = new byte[PART_SIZE];
+			for(int i = 0; i < PART_COUNT; i++) {
+				int read = 0;
+				while(read < partData[i].length)
+					read += is.read(buffer, read, partData[i].length - read);
+				for(int j = 0; j < partData[i].length; j++)
+					Assert.assertEquals(partData[i][j], buffer[j]);
+			}
+			Assert.assertEquals(-1, is.read());
+		} finally {
+			is.close();
+		}
+	}
+	
+	public void testRangeRead() throws Exception {
+		adapter.concatentateObjects(root.getPath(), "bucket", "object", "parts", writeParts(), null);
+		
+		long start = PART_SIZE - 100;
+		InputStream is = adapter.loadObjectRange(root.getPath(), "bucket", "object", start, start + 200).getInputStream();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		Assert.assertEquals(200, ((FileRangeInputStream)is).transferTo(os));
+		is.close();
+		
+		byte[] range = os.toByteArray();
+		for(int i = 0; i < 100; i++) {
+			Assert.assertEquals(partData[0][PART_SIZE - 100 + i], range[i]);
+			Assert.assertEquals(partData[1][i], range[100 + i]);
+		}
+	}
+	
+	public void testTransferToFile() throws Exception {
+		OrderedPair<String, Long> result = adapter.concatentateObjects(root.getPath(), "bucket", "object", "parts", writeParts(), null);
+		
+		File copy = new File(adapter.getBucketFolderDir(root.getPath(), "bucket"), "copy");
+		FileRangeInputStream is = (FileRangeInputStream)adapter.loadObject(root.getPath(), "bucket", "object").getInputStream();
+		FileOutputStream fos = new FileOutputStream(copy);
+		try {
+			Assert.assertEquals(result.getSecond().longValue(), is.transferTo(fos));
+		} finally {
+			fos.close();
+			is.close();
+		}
+		
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		RandomAccessFile raf = new RandomAccessFile(copy, "r");
+		byte[] buffer = new byte[4096];
+		int len;
+		while((len = raf.read(buffer)) > 0)
+			md5.update(buffer, 0, len);
+		raf.close();
+		Assert.assertEquals(expectedMd5(), StringHelper.toHexString(md5.digest()));
+	}
+}
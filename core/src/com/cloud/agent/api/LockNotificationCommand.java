@@ -0,0 +1,57 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+/*
+ * Exchanged between MS peers so that threads waiting on a lock held by another
+ * management server are woken up as soon as it is released. A waiting server tells
+ * the owner it is waiting; the owner tells the waiter once the lock is gone.
+ */
+public class LockNotificationCommand extends Command {
+    String key;
+    long msId;
+    boolean released;
+
+    protected LockNotificationCommand() {
+    }
+
+    public LockNotificationCommand(String key, long msId, boolean released) {
+        this.key = key;
+        this.msId = msId;
+        this.released = released;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the management server that sent the notification
+     */
+    public long getMsId() {
+        return msId;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
@@ -24,6 +24,9 @@ import com.cloud.storage.template.TemplateProp;
 public class ListTemplateAnswer extends Answer  {
     private String secUrl;
     private Map<String, TemplateProp> templateInfos;
+    private String manifestDigest;
+    // the store holds the templates of the digest in the command, templateInfos is not sent
+    private boolean unchanged;
 
 	public ListTemplateAnswer() {
 	    super();
@@ -50,4 +53,20 @@ public class ListTemplateAnswer extends Answer  {
     public String getSecUrl() {
         return secUrl;
     }
+
+    public String getManifestDigest() {
+        return manifestDigest;
+    }
+
+    public void setManifestDigest(String manifestDigest) {
+        this.manifestDigest = manifestDigest;
+    }
+
+    public boolean isUnchanged() {
+        return unchanged;
+    }
+
+    public void setUnchanged(boolean unchanged) {
+        this.unchanged = unchanged;
+    }
 }
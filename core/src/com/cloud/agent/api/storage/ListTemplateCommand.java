@@ -21,6 +21,8 @@ import com.cloud.agent.api.to.DataStoreTO;
 public class ListTemplateCommand extends StorageCommand {
     private DataStoreTO store;
     //private String secUrl;
+    // digest of the template list the management server synced last, see TemplateManifest
+    private String manifestDigest;
 
     public ListTemplateCommand() {
     }
@@ -30,6 +32,11 @@ public class ListTemplateCommand extends StorageCommand {
 //        this.secUrl = url;
 	}
 
+    public ListTemplateCommand(DataStoreTO store, String manifestDigest) {
+        this.store = store;
+        this.manifestDigest = manifestDigest;
+    }
+
     @Override
     public boolean executeInSequence() {
         return true;
@@ -40,6 +47,10 @@ public class ListTemplateCommand extends StorageCommand {
         return store;
     }
 
+    public String getManifestDigest() {
+        return manifestDigest;
+    }
+
  //   public String getSecUrl() {
  //       return secUrl;
  //   }
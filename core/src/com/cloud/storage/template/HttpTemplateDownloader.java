@@ -18,16 +18,35 @@ package com.cloud.storage.template;
 
 
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.math.BigInteger;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.cloudstack.storage.command.DownloadCommand.ResourceType;
 import org.apache.commons.httpclient.ChunkedInputStream;
@@ -43,11 +62,13 @@ import org.apache.commons.httpclient.NoHttpResponseException;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.api.storage.Proxy;
 import com.cloud.storage.StorageLayer;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.Pair;
 import com.cloud.utils.UriUtils;
@@ -59,15 +80,24 @@ import com.cloud.utils.UriUtils;
 public class HttpTemplateDownloader implements TemplateDownloader {
 	public static final Logger s_logger = Logger.getLogger(HttpTemplateDownloader.class.getName());
     private static final MultiThreadedHttpConnectionManager s_httpClientManager = new MultiThreadedHttpConnectionManager();
+    static {
+        // ranged downloads open several connections to the same server
+        s_httpClientManager.getParams().setDefaultMaxConnectionsPerHost(16);
+        s_httpClientManager.getParams().setMaxTotalConnections(128);
+    }
 
 	private static final int CHUNK_SIZE = 1024*1024; //1M
+	private static final long RANGE_SIZE = 32L*1024*1024; //32M per ranged GET
+	private static final int RANGE_RETRIES = 3;
+	private static final int MAX_RESUMES = 5;
+	private static final int CHUNK_MAP_MAGIC = 0x43484b31; //"CHK1"
 	private String downloadUrl;
 	private String toFile;
 	public TemplateDownloader.Status status= TemplateDownloader.Status.NOT_STARTED;
 	public String errorString = " ";
 	private long remoteSize = 0;
 	public long downloadTime = 0;
-	public long totalBytes;
+	public volatile long totalBytes;
 	private final HttpClient client;
 	private GetMethod request;
 	private boolean resume = false;
@@ -80,6 +110,46 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	private ResourceType resourceType = ResourceType.TEMPLATE;
 	private final HttpMethodRetryHandler myretryhandler;
 
+	private int parallelism = 1;
+	private BandwidthThrottle throttle;
+	private MessageDigest digest;
+	private String checksum;
+	private int resumes = 0;
+	private long rangeSize = RANGE_SIZE;
+	private String remoteETag;
+	private String remoteLastModified;
+	private final ReentrantLock digestLock = new ReentrantLock();
+	private final Set<HttpMethod> activeRequests = java.util.Collections.newSetFromMap(new ConcurrentHashMap<HttpMethod, Boolean>());
+
+	/**
+	 * Token bucket shared by all connections of a download so that the configured
+	 * cap applies to the download as a whole.
+	 */
+	static class BandwidthThrottle {
+		private final long bytesPerSecond;
+		private long available;
+		private long lastRefill = System.nanoTime();
+
+		BandwidthThrottle(long bytesPerSecond) {
+			this.bytesPerSecond = bytesPerSecond;
+			this.available = bytesPerSecond;
+		}
+
+		synchronized void acquire(int bytes) throws InterruptedException {
+			while (true) {
+				long now = System.nanoTime();
+				available = Math.min(bytesPerSecond, available + (now - lastRefill) * bytesPerSecond / 1000000000L);
+				lastRefill = now;
+				if (available >= bytes || available == bytesPerSecond) {
+					available -= bytes;
+					return;
+				}
+				long waitMs = Math.max(1, (bytes - available) * 1000L / bytesPerSecond);
+				wait(waitMs);
+			}
+		}
+	}
+
 
 
 	public HttpTemplateDownloader (StorageLayer storageLayer, String downloadUrl, String toDir, DownloadCompleteCallback callback, long maxTemplateSizeInBytes, String user, String password, Proxy proxy, ResourceType resourceType) {
@@ -182,6 +252,13 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 
             Date start = new Date();
 
+			if (parallelism > 1) {
+				long size = probeRangeSupport();
+				if (size > rangeSize) {
+					return downloadRanges(file, size, start);
+				}
+			}
+
 			int responseCode=0;
 
 			if (localFileSize > 0 ) {
@@ -247,9 +324,17 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             byte[] block = new byte[CHUNK_SIZE];
             long offset=0;
             boolean done=false;
+            // the digest can only be computed on the fly when the file is fetched from the start
+            digest = localFileSize == 0 ? newDigest() : null;
             status = TemplateDownloader.Status.IN_PROGRESS;
             while (!done && status != Status.ABORTED && offset <= remoteSize) {
             	if ( (bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
+            		if (throttle != null) {
+            			throttle.acquire(bytes);
+            		}
+            		if (digest != null) {
+            			digest.update(block, 0, bytes);
+            		}
             		out.write(block, 0, bytes);
             		offset +=bytes;
             		out.seek(offset);
@@ -263,6 +348,9 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             if (totalBytes >= remoteSize) {
             	status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
             	downloaded = "(download complete remote=" + remoteSize + "bytes)";
+            	if (digest != null) {
+            		checksum = String.format("%032x", new BigInteger(1, digest.digest()));
+            	}
             }
             errorString = "Downloaded " + totalBytes + " bytes " + downloaded;
             downloadTime += finish.getTime() - start.getTime();
@@ -275,9 +363,13 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		} catch (IOException ioe) {
 			status = TemplateDownloader.Status.UNRECOVERABLE_ERROR; //probably a file write error?
 			errorString = ioe.getMessage();
+		} catch (InterruptedException e) {
+			status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+			errorString = "Download interrupted";
 		} finally {
 			if (status == Status.UNRECOVERABLE_ERROR && file.exists() && !file.isDirectory()) {
 				file.delete();
+				getChunkMapFile().delete();
 			}
 			request.releaseConnection();
             if (callback != null) {
@@ -287,6 +379,319 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		return 0;
 	}
 
+	/**
+	 * @return the remote size if the server accepts byte ranges, 0 otherwise.  The ETag and
+	 * Last-Modified of the remote file are kept to validate a chunk map left by an earlier attempt.
+	 */
+	private long probeRangeSupport() {
+		HeadMethod head = new HeadMethod(downloadUrl);
+		try {
+			if (client.executeMethod(head) != HttpStatus.SC_OK) {
+				return 0;
+			}
+			Header ranges = head.getResponseHeader("Accept-Ranges");
+			Header length = head.getResponseHeader("Content-Length");
+			if (ranges == null || !"bytes".equalsIgnoreCase(ranges.getValue().trim()) || length == null) {
+				return 0;
+			}
+			Header etag = head.getResponseHeader("ETag");
+			Header lastModified = head.getResponseHeader("Last-Modified");
+			remoteETag = etag != null ? etag.getValue().trim() : "";
+			remoteLastModified = lastModified != null ? lastModified.getValue().trim() : "";
+			return Long.parseLong(length.getValue().trim());
+		} catch (Exception e) {
+			s_logger.debug("Unable to probe " + downloadUrl + " for range support, using a single connection: " + e.toString());
+			return 0;
+		} finally {
+			head.releaseConnection();
+		}
+	}
+
+	private File getChunkMapFile() {
+		return new File(toFile + ".chunks");
+	}
+
+	/**
+	 * Reads the ranges completed by an earlier attempt.  The map is only trusted when it was
+	 * written for the same remote size, range size, ETag and Last-Modified, otherwise the file
+	 * changed on the server and everything is fetched again.
+	 */
+	private BitSet loadChunkMap(int chunks, long size) {
+		BitSet done = new BitSet(chunks);
+		File mapFile = getChunkMapFile();
+		if (!mapFile.exists()) {
+			return done;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mapFile)));
+			try {
+				if (in.readInt() != CHUNK_MAP_MAGIC || in.readLong() != size || in.readLong() != rangeSize
+						|| !in.readUTF().equals(remoteETag) || !in.readUTF().equals(remoteLastModified)) {
+					s_logger.info(downloadUrl + " changed since " + mapFile + " was written, downloading all chunks again");
+					mapFile.delete();
+					return done;
+				}
+				byte[] bytes = new byte[(chunks + 7) / 8];
+				in.readFully(bytes);
+				for (int i = 0; i < chunks; i++) {
+					if ((bytes[i / 8] & (1 << (i % 8))) != 0) {
+						done.set(i);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			s_logger.warn("Unable to read " + mapFile + ", downloading all chunks again");
+			mapFile.delete();
+			done.clear();
+		}
+		return done;
+	}
+
+	private void saveChunkMap(BitSet done, int chunks, long size) throws IOException {
+		byte[] bytes = new byte[(chunks + 7) / 8];
+		for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) {
+			bytes[i / 8] |= 1 << (i % 8);
+		}
+		File mapFile = getChunkMapFile();
+		File tmp = new File(mapFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeInt(CHUNK_MAP_MAGIC);
+			out.writeLong(size);
+			out.writeLong(rangeSize);
+			out.writeUTF(remoteETag);
+			out.writeUTF(remoteLastModified);
+			out.write(bytes);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(mapFile)) {
+			throw new IOException("Unable to update " + mapFile);
+		}
+	}
+
+	/**
+	 * Fetches the file as fixed size ranges over several connections.  Completed ranges
+	 * are recorded in a chunk map next to the file so that a resumed download only
+	 * fetches what is missing, and the MD5 is computed as soon as the ranges at the head
+	 * of the file are complete.
+	 */
+	private long downloadRanges(File file, final long size, Date start) throws IOException, InterruptedException {
+		if (size > MAX_TEMPLATE_SIZE_IN_BYTES) {
+			s_logger.info("Remote size is too large: " + size + " , max=" + MAX_TEMPLATE_SIZE_IN_BYTES);
+			status = Status.UNRECOVERABLE_ERROR;
+			errorString = "Download file size is too large";
+			return 0;
+		}
+		remoteSize = size;
+		final int chunks = (int)((size + rangeSize - 1) / rangeSize);
+		final BitSet done = loadChunkMap(chunks, size);
+		// ranges from an earlier attempt are read back from the file when the digest reaches them
+		digest = newDigest();
+		final int[] digested = new int[] {0};
+
+		long have = 0;
+		for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) {
+			have += Math.min(rangeSize, size - i * rangeSize);
+		}
+		totalBytes = have;
+
+		s_logger.info("Starting download of " + chunks + " ranges (" + done.cardinality() + " already present) from " + getDownloadUrl() + " to " + toFile
+				+ " over " + parallelism + " connections, remoteSize=" + size);
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		final FileChannel channel = raf.getChannel();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new NamedThreadFactory("HttpRangeDownload"));
+		status = TemplateDownloader.Status.IN_PROGRESS;
+		try {
+			raf.setLength(size);
+			final AtomicInteger next = new AtomicInteger(0);
+			List<Future<?>> workers = new ArrayList<Future<?>>();
+			for (int t = 0; t < parallelism; t++) {
+				workers.add(executor.submit(new java.util.concurrent.Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						int chunk;
+						while ((chunk = next.getAndIncrement()) < chunks && status != Status.ABORTED) {
+							synchronized (done) {
+								if (done.get(chunk)) {
+									continue;
+								}
+							}
+							long from = chunk * rangeSize;
+							long to = Math.min(size, from + rangeSize) - 1;
+							fetchRange(channel, from, to);
+							synchronized (done) {
+								done.set(chunk);
+								saveChunkMap(done, chunks, size);
+							}
+							advanceDigest(channel, done, digested, chunks, size);
+						}
+						return null;
+					}
+				}));
+			}
+
+			String failure = null;
+			for (Future<?> worker : workers) {
+				try {
+					worker.get();
+				} catch (java.util.concurrent.ExecutionException e) {
+					failure = e.getCause().getMessage();
+				}
+			}
+
+			if (status == Status.ABORTED) {
+				return 0;
+			}
+			downloadTime += new Date().getTime() - start.getTime();
+			if (failure != null || done.cardinality() < chunks) {
+				// the chunk map survives, so running again only fetches the missing ranges
+				if (++resumes > MAX_RESUMES) {
+					status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+				} else {
+					status = TemplateDownloader.Status.RECOVERABLE_ERROR;
+				}
+				errorString = "Downloaded " + totalBytes + " bytes (incomplete download): " + failure;
+				return totalBytes;
+			}
+
+			// a worker may have finished its last range while another one was digesting
+			advanceDigest(channel, done, digested, chunks, size);
+			if (digest != null && digested[0] == chunks) {
+				checksum = String.format("%032x", new BigInteger(1, digest.digest()));
+			}
+			getChunkMapFile().delete();
+			status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
+			errorString = "Downloaded " + totalBytes + " bytes (download complete remote=" + remoteSize + "bytes)";
+			return totalBytes;
+		} finally {
+			executor.shutdownNow();
+			channel.close();
+			raf.close();
+		}
+	}
+
+	private void fetchRange(FileChannel channel, long from, long to) throws IOException, InterruptedException {
+		IOException lastError = null;
+		for (int attempt = 0; attempt < RANGE_RETRIES && status != Status.ABORTED; attempt++) {
+			GetMethod get = new GetMethod(downloadUrl);
+			get.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, myretryhandler);
+			get.addRequestHeader("Range", "bytes=" + from + "-" + to);
+			activeRequests.add(get);
+			long position = from;
+			try {
+				int code = client.executeMethod(get);
+				if (code != HttpStatus.SC_PARTIAL_CONTENT) {
+					throw new IOException("HTTP Server returned " + code + " for range " + from + "-" + to + " (expected 206)");
+				}
+				InputStream in = get.getResponseBodyAsStream();
+				byte[] block = new byte[CHUNK_SIZE];
+				int bytes;
+				while (position <= to && status != Status.ABORTED && (bytes = in.read(block, 0, (int)Math.min(CHUNK_SIZE, to - position + 1))) > -1) {
+					if (throttle != null) {
+						throttle.acquire(bytes);
+					}
+					ByteBuffer buffer = ByteBuffer.wrap(block, 0, bytes);
+					while (buffer.hasRemaining()) {
+						position += channel.write(buffer, position);
+					}
+					addDownloadedBytes(bytes);
+				}
+				if (position > to || status == Status.ABORTED) {
+					return;
+				}
+				throw new IOException("Connection closed after " + (position - from) + " bytes of range " + from + "-" + to);
+			} catch (IOException e) {
+				lastError = e;
+				// whatever was written of this range is fetched again
+				addDownloadedBytes(-(position - from));
+				s_logger.debug("Failed to fetch range " + from + "-" + to + " of " + downloadUrl + ", attempt " + (attempt + 1) + ": " + e.getMessage());
+			} finally {
+				activeRequests.remove(get);
+				get.releaseConnection();
+			}
+		}
+		if (lastError != null) {
+			throw lastError;
+		}
+	}
+
+	private synchronized void addDownloadedBytes(long bytes) {
+		totalBytes += bytes;
+	}
+
+	/**
+	 * Feeds the completed ranges at the head of the file to the digest.  The ranges are read
+	 * back without holding the chunk map lock so the other connections keep recording their
+	 * ranges; a worker that finds another one digesting leaves the catching up to it.
+	 */
+	private void advanceDigest(FileChannel channel, BitSet done, int[] digested, int chunks, long size) throws IOException {
+		if (digest == null || !digestLock.tryLock()) {
+			return;
+		}
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+			while (digested[0] < chunks) {
+				synchronized (done) {
+					if (!done.get(digested[0])) {
+						return;
+					}
+				}
+				long from = digested[0] * rangeSize;
+				long to = Math.min(size, from + rangeSize);
+				for (long position = from; position < to;) {
+					buffer.clear();
+					buffer.limit((int)Math.min(CHUNK_SIZE, to - position));
+					int read = channel.read(buffer, position);
+					if (read < 0) {
+						throw new IOException("Unexpected end of " + toFile + " at " + position);
+					}
+					digest.update(buffer.array(), 0, read);
+					position += read;
+				}
+				digested[0]++;
+			}
+		} finally {
+			digestLock.unlock();
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the MD5 of the downloaded file if it could be computed while downloading, null otherwise
+	 */
+	public String getDownloadedChecksum() {
+		return checksum;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism > 0 ? parallelism : 1;
+	}
+
+	void setRangeSize(long rangeSize) {
+		this.rangeSize = rangeSize;
+	}
+
+	/**
+	 * @param bytesPerSecond cap for the whole download, 0 for no cap
+	 */
+	public void setBandwidthLimit(long bytesPerSecond) {
+		this.throttle = bytesPerSecond > 0 ? new BandwidthThrottle(bytesPerSecond) : null;
+	}
+
 	public String getDownloadUrl() {
 		return downloadUrl;
 	}
@@ -316,10 +721,13 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	public boolean stopDownload() {
 		switch (getStatus()) {
 		case IN_PROGRESS:
+			status = TemplateDownloader.Status.ABORTED;
 			if (request != null) {
 				request.abort();
 			}
-			status = TemplateDownloader.Status.ABORTED;
+			for (HttpMethod active : activeRequests) {
+				active.abort();
+			}
 			return true;
 		case UNKNOWN:
 		case NOT_STARTED:
@@ -332,6 +740,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 			if (f.exists()) {
 				f.delete();
 			}
+			getChunkMapFile().delete();
 			return true;
 
 		default:
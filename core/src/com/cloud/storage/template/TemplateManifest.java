@@ -0,0 +1,70 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Digest of the templates on an image store, as listed by ListTemplateCommand.
+ *
+ * The management server sends the digest of the list it synced last with the next
+ * ListTemplateCommand.  If the store still holds the same templates the secondary storage
+ * VM answers with the digest alone, and the management server reuses the list it kept
+ * instead of receiving and comparing tens of thousands of entries again.
+ */
+public final class TemplateManifest {
+
+    private TemplateManifest() {
+    }
+
+    public static String digest(Map<String, TemplateProp> templateInfos) {
+        if (templateInfos == null) {
+            return null;
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            // sorted, so that the digest does not depend on the order the store was walked in
+            for (Map.Entry<String, TemplateProp> entry : new TreeMap<String, TemplateProp>(templateInfos).entrySet()) {
+                TemplateProp prop = entry.getValue();
+                StringBuilder line = new StringBuilder();
+                line.append(entry.getKey()).append('\t');
+                line.append(prop.getId()).append('\t');
+                line.append(prop.getInstallPath()).append('\t');
+                line.append(prop.getSize()).append('\t');
+                line.append(prop.getPhysicalSize()).append('\t');
+                line.append(prop.isCorrupted()).append('\n');
+                md.update(line.toString().getBytes("UTF-8"));
+            }
+
+            StringBuilder digest = new StringBuilder();
+            for (byte b : md.digest()) {
+                digest.append(String.format("%02x", b & 0xff));
+            }
+            return digest.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new CloudRuntimeException("Unable to digest the template list", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new CloudRuntimeException("Unable to digest the template list", e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.cloudstack.storage.command.DownloadCommand.ResourceType;
+
+import com.cloud.agent.api.storage.Proxy;
+import com.cloud.storage.template.TemplateDownloader.Status;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpTemplateDownloaderTest extends TestCase {
+    private static final int RANGE_SIZE = 64 * 1024;
+    private static final int SIZE = 8 * RANGE_SIZE + 12345;
+    private static final int RANGES = 9;
+
+    private HttpServer _server;
+    private byte[] _content;
+    private File _dir;
+    private final AtomicInteger _rangeRequests = new AtomicInteger();
+    // while set, every GET for the first range is cut off half way
+    private volatile boolean _failFirstRange = false;
+    private volatile String _etag = "\"v1\"";
+
+    @Override
+    protected void setUp() throws Exception {
+        _content = new byte[SIZE];
+        new Random(42).nextBytes(_content);
+
+        _dir = File.createTempFile("download", "test");
+        _dir.delete();
+        _dir.mkdirs();
+
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/template.qcow2", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        _server.setExecutor(Executors.newCachedThreadPool());
+        _server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _server.stop(0);
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        exchange.getResponseHeaders().add("ETag", _etag);
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().add("Content-Length", String.valueOf(SIZE));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+
+        int from = 0;
+        int to = SIZE - 1;
+        int code = 200;
+        if (range != null) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            from = Integer.parseInt(bounds[0]);
+            if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                to = Math.min(to, Integer.parseInt(bounds[1]));
+            }
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + SIZE);
+            code = 206;
+            _rangeRequests.incrementAndGet();
+        }
+
+        int length = to - from + 1;
+        exchange.sendResponseHeaders(code, length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            if (range != null && from == 0 && _failFirstRange) {
+                out.write(_content, from, length / 2);
+                out.flush();
+                return;
+            }
+            out.write(_content, from, length);
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private HttpTemplateDownloader newDownloader(int connections) {
+        // loopback urls are refused, so the local server is reached as a proxy for a remote looking url
+        Proxy proxy = new Proxy("127.0.0.1", _server.getAddress().getPort(), null, null);
+        HttpTemplateDownloader td = new HttpTemplateDownloader(null, "http://10.1.1.1/template.qcow2", _dir.getAbsolutePath(), null,
+                TemplateDownloader.DEFAULT_MAX_TEMPLATE_SIZE_IN_BYTES, null, null, proxy, ResourceType.TEMPLATE);
+        assertEquals(Status.NOT_STARTED, td.getStatus());
+        td.setParallelism(connections);
+        td.setRangeSize(RANGE_SIZE);
+        return td;
+    }
+
+    private String md5(byte[] data) throws Exception {
+        return String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(data)));
+    }
+
+    private void assertDownloaded(HttpTemplateDownloader td) throws Exception {
+        File file = new File(td.getDownloadLocalPath());
+        assertEquals(SIZE, file.length());
+        byte[] data = new byte[SIZE];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        in.readFully(data);
+        in.close();
+        assertEquals(md5(_content), md5(data));
+        assertFalse(new File(td.getDownloadLocalPath() + ".chunks").exists());
+    }
+
+    public void testParallelRangeDownload() throws Exception {
+        HttpTemplateDownloader td = newDownloader(4);
+        assertEquals(SIZE, td.download(false, null));
+        assertEquals(Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(RANGES, _rangeRequests.get());
+        assertEquals(md5(_content), td.getDownloadedChecksum());
+        assertDownloaded(td);
+    }
+
+    public void testSingleConnectionDownload() throws Exception {
+        HttpTemplateDownloader td = newDownloader(1);
+        assertEquals(SIZE, td.download(false, null));
+        assertEquals(Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(0, _rangeRequests.get());
+        assertEquals(md5(_content), td.getDownloadedChecksum());
+        assertDownloaded(td);
+    }
+
+    public void testResumeOnlyFetchesMissingRanges() throws Exception {
+        _failFirstRange = true;
+        HttpTemplateDownloader td = newDownloader(2);
+        td.download(false, null);
+        assertEquals(Status.RECOVERABLE_ERROR, td.getStatus());
+        assertTrue(new File(td.getDownloadLocalPath() + ".chunks").exists());
+
+        _failFirstRange = false;
+        int before = _rangeRequests.get();
+        td.download(true, null);
+        assertEquals(Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(1, _rangeRequests.get() - before);
+        assertEquals(md5(_content), td.getDownloadedChecksum());
+        assertDownloaded(td);
+    }
+
+    public void testChangedFileDiscardsChunkMap() throws Exception {
+        _failFirstRange = true;
+        HttpTemplateDownloader td = newDownloader(2);
+        td.download(false, null);
+        assertEquals(Status.RECOVERABLE_ERROR, td.getStatus());
+        assertTrue(new File(td.getDownloadLocalPath() + ".chunks").exists());
+
+        // the file is replaced on the server before the download resumes
+        _failFirstRange = false;
+        new Random(43).nextBytes(_content);
+        _etag = "\"v2\"";
+        int before = _rangeRequests.get();
+        td.download(true, null);
+        assertEquals(Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(RANGES, _rangeRequests.get() - before);
+        assertEquals(md5(_content), td.getDownloadedChecksum());
+        assertDownloaded(td);
+    }
+
+    public void testBandwidthLimit() throws Exception {
+        HttpTemplateDownloader.BandwidthThrottle throttle = new HttpTemplateDownloader.BandwidthThrottle(4 * 1024 * 1024);
+        long start = System.currentTimeMillis();
+        // the bucket starts full, the two megabytes after it take 250ms each
+        throttle.acquire(4 * 1024 * 1024);
+        throttle.acquire(1024 * 1024);
+        throttle.acquire(1024 * 1024);
+        assertTrue(System.currentTimeMillis() - start >= 450);
+    }
+}
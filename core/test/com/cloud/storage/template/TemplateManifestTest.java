@@ -0,0 +1,69 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.template;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TemplateManifestTest {
+
+    private static Map<String, TemplateProp> templates(int count) {
+        Map<String, TemplateProp> templates = new LinkedHashMap<String, TemplateProp>();
+        for (int i = 0; i < count; i++) {
+            templates.put("t" + i, new TemplateProp("t" + i, "template/tmpl/2/" + i + "/t" + i + ".vhd", 1024L * i, 512L * i, true, false));
+        }
+        return templates;
+    }
+
+    @Test
+    public void testDigestDoesNotDependOnOrder() {
+        Map<String, TemplateProp> templates = templates(100);
+        Map<String, TemplateProp> reversed = new LinkedHashMap<String, TemplateProp>();
+        for (int i = 99; i >= 0; i--) {
+            reversed.put("t" + i, templates.get("t" + i));
+        }
+        Assert.assertEquals(TemplateManifest.digest(templates), TemplateManifest.digest(reversed));
+        Assert.assertEquals(TemplateManifest.digest(templates), TemplateManifest.digest(new HashMap<String, TemplateProp>(templates)));
+    }
+
+    @Test
+    public void testDigestChangesWithTheTemplates() {
+        Map<String, TemplateProp> templates = templates(100);
+        String digest = TemplateManifest.digest(templates);
+
+        templates.get("t5").setSize(1);
+        Assert.assertFalse(digest.equals(TemplateManifest.digest(templates)));
+
+        templates = templates(100);
+        templates.put("t5", new TemplateProp("t5", "template/tmpl/2/5/t5.vhd", 1024L * 5, 512L * 5, true, true));
+        Assert.assertFalse(digest.equals(TemplateManifest.digest(templates)));
+
+        templates = templates(100);
+        templates.remove("t99");
+        Assert.assertFalse(digest.equals(TemplateManifest.digest(templates)));
+    }
+
+    @Test
+    public void testNoList() {
+        Assert.assertNull(TemplateManifest.digest(null));
+        Assert.assertNotNull(TemplateManifest.digest(new HashMap<String, TemplateProp>()));
+    }
+}
@@ -115,7 +115,7 @@ public class EngineDataCenterVO implements EngineDataCenter, Identity {
     private String firewallProvider;
 
     @Column(name="mac_address", nullable=false)
-    @TableGenerator(name="mac_address_sq", table="data_center", pkColumnName="id", valueColumnName="mac_address", allocationSize=1)
+    @TableGenerator(name="mac_address_sq", table="data_center", pkColumnName="id", valueColumnName="mac_address", allocationSize=16)
     private long macAddress = 1;
 
     @Column(name="zone_token")
@@ -22,6 +22,7 @@ import java.util.Set;
 import com.cloud.configuration.Resource.ResourceOwnerType;
 import com.cloud.configuration.Resource.ResourceType;
 import com.cloud.configuration.ResourceCountVO;
+import com.cloud.utils.Pair;
 import com.cloud.utils.db.GenericDao;
 
 public interface ResourceCountDao extends GenericDao<ResourceCountVO, Long> {
@@ -57,4 +58,37 @@ public interface ResourceCountDao extends GenericDao<ResourceCountVO, Long> {
     Set<Long> listRowsToUpdateForDomain(long domainId, ResourceType type);
 
     long removeEntriesByOwner(long ownerId, ResourceOwnerType ownerType);
+
+    /**
+     * Adds to one of the domain's delta rows instead of its resource_count row, so that
+     * concurrent updates for different accounts do not queue on the domain's row lock.
+     * getResourceCount() includes the deltas for domains.
+     *
+     * @param stripe the delta row to add to, see DOMAIN_COUNT_STRIPES
+     */
+    void addDomainDelta(long domainId, ResourceType type, int stripe, long delta);
+
+    /**
+     * @return the sum of the domain's delta rows that have not been compacted yet
+     */
+    long getDomainDelta(long domainId, ResourceType type);
+
+    /**
+     * Folds the domain's delta rows into its resource_count row.
+     *
+     * @return the amount that was folded in
+     */
+    long compactDomainDeltas(long domainId, ResourceType type);
+
+    /**
+     * Drops the domain's delta rows, used when the domain's count has been recalculated.
+     */
+    void removeDomainDeltas(long domainId, ResourceType type);
+
+    /**
+     * @return domain id and resource type of every domain count with deltas to compact
+     */
+    List<Pair<Long, ResourceType>> listDomainsWithDeltas();
+
+    int DOMAIN_COUNT_STRIPES = 16;
 }
@@ -16,6 +16,9 @@
 // under the License.
 package com.cloud.configuration.dao;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -36,15 +39,23 @@ import com.cloud.domain.dao.DomainDaoImpl;
 import com.cloud.exception.UnsupportedServiceException;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.AccountDaoImpl;
+import com.cloud.utils.Pair;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 @Local(value={ResourceCountDao.class})
 public class ResourceCountDaoImpl extends GenericDaoBase<ResourceCountVO, Long> implements ResourceCountDao {
+    private static final String ADD_DOMAIN_DELTA = "INSERT INTO op_resource_count_delta (domain_id, type, stripe, count) VALUES (?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE count = count + VALUES(count)";
+    private static final String SUM_DOMAIN_DELTAS = "SELECT SUM(count) FROM op_resource_count_delta WHERE domain_id = ? AND type = ?";
+    private static final String CLEAR_DOMAIN_DELTAS = "UPDATE op_resource_count_delta SET count = 0 WHERE domain_id = ? AND type = ?";
+    private static final String LIST_DOMAINS_WITH_DELTAS = "SELECT DISTINCT domain_id, type FROM op_resource_count_delta WHERE count <> 0";
+
     private final SearchBuilder<ResourceCountVO> TypeSearch;
 
     private final SearchBuilder<ResourceCountVO> AccountSearch;
@@ -89,6 +100,9 @@ public class ResourceCountDaoImpl extends GenericDaoBase<ResourceCountVO, Long>
     public long getResourceCount(long ownerId, ResourceOwnerType ownerType, ResourceType type) {
         ResourceCountVO vo = findByOwnerAndType(ownerId, ownerType, type);
         if (vo != null) {
+            if (ownerType == ResourceOwnerType.Domain) {
+                return vo.getCount() + getDomainDelta(ownerId, type);
+            }
             return vo.getCount();
         } else {
             return 0;
@@ -221,6 +235,98 @@ public class ResourceCountDaoImpl extends GenericDaoBase<ResourceCountVO, Long>
     }
 
 
+    @Override
+    public void addDomainDelta(long domainId, ResourceType type, int stripe, long delta) {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(ADD_DOMAIN_DELTA);
+            pstmt.setLong(1, domainId);
+            pstmt.setString(2, type.name());
+            pstmt.setInt(3, stripe);
+            pstmt.setLong(4, delta);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to update the " + type + " count delta of domain " + domainId, e);
+        }
+    }
+
+    @Override
+    public long getDomainDelta(long domainId, ResourceType type) {
+        return sumDomainDeltas(domainId, type, false);
+    }
+
+    private long sumDomainDeltas(long domainId, ResourceType type, boolean lock) {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(lock ? SUM_DOMAIN_DELTAS + " FOR UPDATE" : SUM_DOMAIN_DELTAS);
+            pstmt.setLong(1, domainId);
+            pstmt.setString(2, type.name());
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to read the " + type + " count delta of domain " + domainId, e);
+        }
+    }
+
+    private void clearDomainDeltas(long domainId, ResourceType type) {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(CLEAR_DOMAIN_DELTAS);
+            pstmt.setLong(1, domainId);
+            pstmt.setString(2, type.name());
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to clear the " + type + " count delta of domain " + domainId, e);
+        }
+    }
+
+    @Override @DB
+    public long compactDomainDeltas(long domainId, ResourceType type) {
+        Transaction txn = Transaction.currentTxn();
+        txn.start();
+        try {
+            // lock order is the domain row first, then its deltas, same as recalculation
+            ResourceCountVO domainCount = findByOwnerAndType(domainId, ResourceOwnerType.Domain, type);
+            if (domainCount == null) {
+                // the domain's counts are gone, e.g. it was removed, so there is nothing to fold into
+                removeDomainDeltas(domainId, type);
+                return 0;
+            }
+            domainCount = lockRow(domainCount.getId(), true);
+            long delta = sumDomainDeltas(domainId, type, true);
+            if (delta != 0) {
+                domainCount.setCount(domainCount.getCount() + delta);
+                update(domainCount.getId(), domainCount);
+                clearDomainDeltas(domainId, type);
+            }
+            return delta;
+        } finally {
+            txn.commit();
+        }
+    }
+
+    @Override
+    public void removeDomainDeltas(long domainId, ResourceType type) {
+        sumDomainDeltas(domainId, type, true);
+        clearDomainDeltas(domainId, type);
+    }
+
+    @Override
+    public List<Pair<Long, ResourceType>> listDomainsWithDeltas() {
+        List<Pair<Long, ResourceType>> result = new ArrayList<Pair<Long, ResourceType>>();
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(LIST_DOMAINS_WITH_DELTAS);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                result.add(new Pair<Long, ResourceType>(rs.getLong(1), ResourceType.valueOf(rs.getString(2))));
+            }
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to list the domain count deltas", e);
+        }
+        return result;
+    }
+
     @Override
     public long removeEntriesByOwner(long ownerId, ResourceOwnerType ownerType) {
         SearchCriteria<ResourceCountVO> sc = TypeSearch.create();
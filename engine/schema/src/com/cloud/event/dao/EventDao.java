@@ -35,4 +35,9 @@ public interface EventDao extends GenericDao<EventVO, Long> {
 
     public void archiveEvents(List<EventVO> events);
 
+    /**
+     * Inserts the events with a single multi-row statement.  Ids are not read back.
+     */
+    public void persistBatch(List<EventVO> events);
+
 }
@@ -16,8 +16,11 @@
 // under the License.
 package com.cloud.event.dao;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
 
 import javax.ejb.Local;
 
@@ -26,12 +29,14 @@ import org.springframework.stereotype.Component;
 
 import com.cloud.event.Event.State;
 import com.cloud.event.EventVO;
+import com.cloud.utils.DateUtil;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.SearchCriteria.Op;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 @Local(value={EventDao.class})
@@ -40,6 +45,9 @@ public class EventDaoImpl extends GenericDaoBase<EventVO, Long> implements Event
     protected final SearchBuilder<EventVO> CompletedEventSearch;
     protected final SearchBuilder<EventVO> ToArchiveOrDeleteEventSearch;
 
+    private static final String INSERT_EVENTS = "INSERT INTO event (uuid, type, state, description, user_id, account_id, domain_id, level, start_id, parameters, archived, created) VALUES ";
+    private static final String INSERT_EVENT_VALUES = "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
     public EventDaoImpl () {
         CompletedEventSearch = createSearchBuilder();
         CompletedEventSearch.and("state",CompletedEventSearch.entity().getState(),SearchCriteria.Op.EQ);
@@ -115,4 +123,43 @@ public class EventDaoImpl extends GenericDaoBase<EventVO, Long> implements Event
             txn.close();
         }
     }
+
+    @Override
+    public void persistBatch(List<EventVO> events) {
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+        StringBuilder sql = new StringBuilder(INSERT_EVENTS);
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(INSERT_EVENT_VALUES);
+        }
+
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql.toString());
+            TimeZone gmt = TimeZone.getTimeZone("GMT");
+            int i = 1;
+            for (EventVO event : events) {
+                Date created = event.getCreateDate() != null ? event.getCreateDate() : new Date();
+                pstmt.setString(i++, event.getUuid());
+                pstmt.setString(i++, event.getType());
+                pstmt.setString(i++, event.getState().toString());
+                pstmt.setString(i++, event.getDescription());
+                pstmt.setLong(i++, event.getUserId());
+                pstmt.setLong(i++, event.getAccountId());
+                pstmt.setLong(i++, event.getDomainId());
+                pstmt.setString(i++, event.getLevel());
+                pstmt.setLong(i++, event.getStartId());
+                pstmt.setString(i++, event.getParameters());
+                pstmt.setBoolean(i++, event.getArchived());
+                pstmt.setString(i++, DateUtil.getDateDisplayString(gmt, created));
+            }
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to insert " + events.size() + " events", e);
+        }
+    }
 }
@@ -18,6 +18,7 @@ package com.cloud.host.dao;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import com.cloud.host.Host;
 import com.cloud.host.Host.Type;
@@ -87,4 +88,22 @@ public interface HostDao extends GenericDao<HostVO, Long>, StateDao<Status, Stat
     List<HostVO> listByDataCenterId(long id);
 
     List<Long> listAllHosts(long zoneId);
+
+    /**
+     * Stores the measured load of agents in op_host.
+     *
+     * @param loads load by host id
+     */
+    void updateAgentLoads(Map<Long, Long> loads);
+
+    /**
+     * @param idleLoad load counted for a host that was never measured
+     * @return total load of the routing hosts owned by each management server, by msid
+     */
+    Map<Long, Long> getAgentLoadByManagementServer(long idleLoad);
+
+    /**
+     * @return measured load of the hosts owned by a management server, by host id; 0 if never measured
+     */
+    Map<Long, Long> getAgentLoads(long managementServerId);
 }
@@ -1037,4 +1037,63 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
         sc.addAnd("dataCenterId", SearchCriteria.Op.EQ, zoneId);
         return customSearch(sc, null);
     }
+
+    @Override
+    @DB
+    public void updateAgentLoads(Map<Long, Long> loads) {
+        if (loads.isEmpty()) {
+            return;
+        }
+        Transaction txn = Transaction.currentTxn();
+        txn.start();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement("UPDATE op_host SET agent_load = ? WHERE id = ?");
+            for (Map.Entry<Long, Long> entry : loads.entrySet()) {
+                pstmt.setLong(1, entry.getValue());
+                pstmt.setLong(2, entry.getKey());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to update the agent loads", e);
+        }
+        txn.commit();
+    }
+
+    @Override
+    public Map<Long, Long> getAgentLoadByManagementServer(long idleLoad) {
+        String sql = "SELECT h.mgmt_server_id, SUM(IF(o.agent_load = 0, ?, o.agent_load)) FROM host h INNER JOIN op_host o ON h.id = o.id "
+                + "WHERE h.mgmt_server_id IS NOT NULL AND h.type = 'Routing' AND h.removed IS NULL GROUP BY h.mgmt_server_id";
+        Map<Long, Long> loads = new HashMap<Long, Long>();
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setLong(1, idleLoad);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                loads.put(rs.getLong(1), rs.getLong(2));
+            }
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to get the agent loads by management server", e);
+        }
+        return loads;
+    }
+
+    @Override
+    public Map<Long, Long> getAgentLoads(long managementServerId) {
+        String sql = "SELECT o.id, o.agent_load FROM op_host o INNER JOIN host h ON h.id = o.id WHERE h.mgmt_server_id = ? AND h.removed IS NULL";
+        Map<Long, Long> loads = new HashMap<Long, Long>();
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setLong(1, managementServerId);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                loads.put(rs.getLong(1), rs.getLong(2));
+            }
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to get the agent loads of management server " + managementServerId, e);
+        }
+        return loads;
+    }
 }
@@ -60,6 +60,14 @@ public class SnapshotScheduleVO implements SnapshotSchedule {
     @Column(name = "uuid")
     String uuid = UUID.randomUUID().toString();
 
+    // management server that leased the schedule to run it, and until when
+    @Column(name = "mgmt_server_id")
+    Long msId;
+
+    @Column(name = "lease_expires")
+    @Temporal(value = TemporalType.TIMESTAMP)
+    Date leaseExpires;
+
     public SnapshotScheduleVO() {
     }
 
@@ -114,6 +122,22 @@ public class SnapshotScheduleVO implements SnapshotSchedule {
         this.snapshotId = snapshotId;
     }
 
+    public Long getMsId() {
+        return msId;
+    }
+
+    public void setMsId(Long msId) {
+        this.msId = msId;
+    }
+
+    public Date getLeaseExpires() {
+        return leaseExpires;
+    }
+
+    public void setLeaseExpires(Date leaseExpires) {
+        this.leaseExpires = leaseExpires;
+    }
+
     @Override
     public String getUuid() {
         return this.uuid;
@@ -29,12 +29,45 @@ public interface SnapshotScheduleDao extends GenericDao<SnapshotScheduleVO, Long
 
     List<SnapshotScheduleVO> getCoincidingSnapshotSchedules(long volumeId, Date date);
 
-    List<SnapshotScheduleVO> getSchedulesToExecute(Date currentTimestamp);
-
     SnapshotScheduleVO getCurrentSchedule(Long volumeId, Long policyId, boolean executing);
 
     SnapshotScheduleVO findOneByVolume(long volumeId);
 
     SnapshotScheduleVO findOneByVolumePolicy(long volumeId, long policyId);
 
+    /**
+     * @return the number of due schedules that are not running and not leased by a management server
+     */
+    int countSchedulesToLease(Date currentTimestamp);
+
+    /**
+     * @return due schedules with an id above afterId that are not running and not leased by a
+     * management server, in id order
+     */
+    List<SnapshotScheduleVO> listSchedulesToLease(Date currentTimestamp, long afterId, int limit);
+
+    /**
+     * Leases a due schedule to a management server, unless another one holds it.
+     *
+     * @return false if the schedule is running or leased by someone else
+     */
+    boolean lease(long id, long msId, Date currentTimestamp, Date leaseExpires);
+
+    /**
+     * Extends the leases a management server holds on schedules it has not run yet.
+     */
+    int renewLeases(long msId, Date leaseExpires);
+
+    /**
+     * Gives up the lease on a schedule that was not run, if the management server still holds it.
+     *
+     * @return false if the lease had already gone to another management server
+     */
+    boolean releaseLease(long id, long msId);
+
+    /**
+     * Gives up the leases of a management server, e.g. of its previous run.
+     */
+    int releaseLeases(long msId);
+
 }
@@ -25,6 +25,7 @@ import org.springframework.stereotype.Component;
 
 import com.cloud.storage.Snapshot;
 import com.cloud.storage.SnapshotScheduleVO;
+import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
@@ -32,20 +33,16 @@ import com.cloud.utils.db.SearchCriteria;
 @Component
 @Local(value = { SnapshotScheduleDao.class })
 public class SnapshotScheduleDaoImpl extends GenericDaoBase<SnapshotScheduleVO, Long> implements SnapshotScheduleDao {
-    protected final SearchBuilder<SnapshotScheduleVO> executableSchedulesSearch;
     protected final SearchBuilder<SnapshotScheduleVO> coincidingSchedulesSearch;
     private final SearchBuilder<SnapshotScheduleVO> VolumeIdSearch;
     private final SearchBuilder<SnapshotScheduleVO> VolumeIdPolicyIdSearch;
+    private final SearchBuilder<SnapshotScheduleVO> LeasableSearch;
+    private final SearchBuilder<SnapshotScheduleVO> LeaseByIdSearch;
+    private final SearchBuilder<SnapshotScheduleVO> LeasedByServerSearch;
+    private final SearchBuilder<SnapshotScheduleVO> LeaseOwnedSearch;
 
     protected SnapshotScheduleDaoImpl() {
 
-        executableSchedulesSearch = createSearchBuilder();
-        executableSchedulesSearch.and("scheduledTimestamp", executableSchedulesSearch.entity().getScheduledTimestamp(),
-                SearchCriteria.Op.LT);
-        executableSchedulesSearch.and("asyncJobId", executableSchedulesSearch.entity().getAsyncJobId(),
-                SearchCriteria.Op.NULL);
-        executableSchedulesSearch.done();
-
         coincidingSchedulesSearch = createSearchBuilder();
         coincidingSchedulesSearch.and("volumeId", coincidingSchedulesSearch.entity().getVolumeId(),
                 SearchCriteria.Op.EQ);
@@ -64,6 +61,33 @@ public class SnapshotScheduleDaoImpl extends GenericDaoBase<SnapshotScheduleVO,
         VolumeIdPolicyIdSearch.and("policyId", VolumeIdPolicyIdSearch.entity().getPolicyId(), SearchCriteria.Op.EQ);
         VolumeIdPolicyIdSearch.done();
 
+        LeasableSearch = createSearchBuilder();
+        LeasableSearch.and("scheduledTimestamp", LeasableSearch.entity().getScheduledTimestamp(), SearchCriteria.Op.LT);
+        LeasableSearch.and("asyncJobId", LeasableSearch.entity().getAsyncJobId(), SearchCriteria.Op.NULL);
+        LeasableSearch.and("afterId", LeasableSearch.entity().getId(), SearchCriteria.Op.GT);
+        LeasableSearch.and().op("noLease", LeasableSearch.entity().getLeaseExpires(), SearchCriteria.Op.NULL);
+        LeasableSearch.or("leaseExpired", LeasableSearch.entity().getLeaseExpires(), SearchCriteria.Op.LT);
+        LeasableSearch.cp();
+        LeasableSearch.done();
+
+        LeaseByIdSearch = createSearchBuilder();
+        LeaseByIdSearch.and("id", LeaseByIdSearch.entity().getId(), SearchCriteria.Op.EQ);
+        LeaseByIdSearch.and("asyncJobId", LeaseByIdSearch.entity().getAsyncJobId(), SearchCriteria.Op.NULL);
+        LeaseByIdSearch.and().op("noLease", LeaseByIdSearch.entity().getLeaseExpires(), SearchCriteria.Op.NULL);
+        LeaseByIdSearch.or("leaseExpired", LeaseByIdSearch.entity().getLeaseExpires(), SearchCriteria.Op.LT);
+        LeaseByIdSearch.cp();
+        LeaseByIdSearch.done();
+
+        LeasedByServerSearch = createSearchBuilder();
+        LeasedByServerSearch.and("msId", LeasedByServerSearch.entity().getMsId(), SearchCriteria.Op.EQ);
+        LeasedByServerSearch.and("asyncJobId", LeasedByServerSearch.entity().getAsyncJobId(), SearchCriteria.Op.NULL);
+        LeasedByServerSearch.done();
+
+        LeaseOwnedSearch = createSearchBuilder();
+        LeaseOwnedSearch.and("id", LeaseOwnedSearch.entity().getId(), SearchCriteria.Op.EQ);
+        LeaseOwnedSearch.and("msId", LeaseOwnedSearch.entity().getMsId(), SearchCriteria.Op.EQ);
+        LeaseOwnedSearch.and("asyncJobId", LeaseOwnedSearch.entity().getAsyncJobId(), SearchCriteria.Op.NULL);
+        LeaseOwnedSearch.done();
     }
 
     /**
@@ -95,16 +119,6 @@ public class SnapshotScheduleDaoImpl extends GenericDaoBase<SnapshotScheduleVO,
         return findOneBy(sc);
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public List<SnapshotScheduleVO> getSchedulesToExecute(Date currentTimestamp) {
-        SearchCriteria<SnapshotScheduleVO> sc = executableSchedulesSearch.create();
-        sc.setParameters("scheduledTimestamp", currentTimestamp);
-        return listBy(sc);
-    }
-
     /**
      * {@inheritDoc}
      */
@@ -136,4 +150,71 @@ public class SnapshotScheduleDaoImpl extends GenericDaoBase<SnapshotScheduleVO,
         }
     }
 
-}
\ No newline at end of file
+    @Override
+    public int countSchedulesToLease(Date currentTimestamp) {
+        SearchCriteria<SnapshotScheduleVO> sc = LeasableSearch.create();
+        sc.setParameters("scheduledTimestamp", currentTimestamp);
+        sc.setParameters("afterId", 0L);
+        sc.setParameters("leaseExpired", currentTimestamp);
+        return getCount(sc);
+    }
+
+    @Override
+    public List<SnapshotScheduleVO> listSchedulesToLease(Date currentTimestamp, long afterId, int limit) {
+        SearchCriteria<SnapshotScheduleVO> sc = LeasableSearch.create();
+        sc.setParameters("scheduledTimestamp", currentTimestamp);
+        sc.setParameters("afterId", afterId);
+        sc.setParameters("leaseExpired", currentTimestamp);
+
+        // paged by id, so that what gets leased while paging does not shift the pages
+        Filter filter = new Filter(SnapshotScheduleVO.class, "id", true, 0L, (long)limit);
+        return listBy(sc, filter);
+    }
+
+    @Override
+    public boolean lease(long id, long msId, Date currentTimestamp, Date leaseExpires) {
+        SearchCriteria<SnapshotScheduleVO> sc = LeaseByIdSearch.create();
+        sc.setParameters("id", id);
+        sc.setParameters("leaseExpired", currentTimestamp);
+
+        // conditional update, the schedule is only ours if nobody leased it first
+        SnapshotScheduleVO vo = createForUpdate();
+        vo.setMsId(msId);
+        vo.setLeaseExpires(leaseExpires);
+        return update(vo, sc) > 0;
+    }
+
+    @Override
+    public int renewLeases(long msId, Date leaseExpires) {
+        SearchCriteria<SnapshotScheduleVO> sc = LeasedByServerSearch.create();
+        sc.setParameters("msId", msId);
+
+        SnapshotScheduleVO vo = createForUpdate();
+        vo.setLeaseExpires(leaseExpires);
+        return update(vo, sc);
+    }
+
+    @Override
+    public boolean releaseLease(long id, long msId) {
+        SearchCriteria<SnapshotScheduleVO> sc = LeaseOwnedSearch.create();
+        sc.setParameters("id", id);
+        sc.setParameters("msId", msId);
+
+        // the lease may have expired and been taken by another management server meanwhile
+        SnapshotScheduleVO vo = createForUpdate();
+        vo.setMsId(null);
+        vo.setLeaseExpires(null);
+        return update(vo, sc) > 0;
+    }
+
+    @Override
+    public int releaseLeases(long msId) {
+        SearchCriteria<SnapshotScheduleVO> sc = LeasedByServerSearch.create();
+        sc.setParameters("msId", msId);
+
+        SnapshotScheduleVO vo = createForUpdate();
+        vo.setMsId(null);
+        vo.setLeaseExpires(null);
+        return update(vo, sc);
+    }
+}
@@ -21,10 +21,12 @@ package org.apache.cloudstack.storage.image;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -128,6 +130,19 @@ public class TemplateServiceImpl implements TemplateService {
     @Inject
     ConfigurationDao _configDao;
 
+    // template list of each image store as of its last sync, keyed by store id
+    private final Map<Long, StoreManifest> _storeManifests = new ConcurrentHashMap<Long, StoreManifest>();
+
+    static class StoreManifest {
+        final String digest;
+        final Map<String, TemplateProp> templateInfos;
+
+        StoreManifest(String digest, Map<String, TemplateProp> templateInfos) {
+            this.digest = digest;
+            this.templateInfos = templateInfos;
+        }
+    }
+
     class TemplateOpContext<T> extends AsyncRpcContext<T> {
         final TemplateObject template;
         final AsyncCallFuture<TemplateApiResult> future;
@@ -300,12 +315,27 @@ public class TemplateServiceImpl implements TemplateService {
 
                     toBeDownloaded.addAll(allTemplates);
 
+                    // compare in memory, one query for the entries of the store instead of one per template
+                    Map<Long, TemplateDataStoreVO> tmpltStores = new HashMap<Long, TemplateDataStoreVO>();
+                    for (TemplateDataStoreVO tmpltStore : _vmTemplateStoreDao.listByStoreId(storeId)) {
+                        if (!tmpltStores.containsKey(tmpltStore.getTemplateId())) {
+                            tmpltStores.put(tmpltStore.getTemplateId(), tmpltStore);
+                        }
+                    }
+                    int onStore = templateInfos.size();
+                    int inSync = 0;
+
                     for (VMTemplateVO tmplt : allTemplates) {
                         String uniqueName = tmplt.getUniqueName();
-                        TemplateDataStoreVO tmpltStore = _vmTemplateStoreDao.findByStoreTemplate(storeId, tmplt.getId());
+                        TemplateDataStoreVO tmpltStore = tmpltStores.get(tmplt.getId());
                         if (templateInfos.containsKey(uniqueName)) {
                             TemplateProp tmpltInfo = templateInfos.remove(uniqueName);
                             toBeDownloaded.remove(tmplt);
+                            if (tmpltStore != null && isInSync(tmplt, tmpltStore, tmpltInfo)) {
+                                // nothing to reconcile
+                                inSync++;
+                                continue;
+                            }
                             if (tmpltStore != null) {
                                 s_logger.info("Template Sync found " + uniqueName + " already in the image store");
                                 if (tmpltStore.getDownloadState() != Status.DOWNLOADED) {
@@ -448,6 +478,9 @@ public class TemplateServiceImpl implements TemplateService {
 
                         }
                     }
+
+                    s_logger.info("Template Sync of image store " + storeId + " found " + onStore + " templates on the store, "
+                            + inSync + " of them already in sync with the database");
                 }
                 finally{
                     syncLock.unlock();
@@ -505,13 +538,44 @@ public class TemplateServiceImpl implements TemplateService {
         }
     }
     
+    private boolean isInSync(VMTemplateVO tmplt, TemplateDataStoreVO tmpltStore, TemplateProp tmpltInfo) {
+        return !tmpltInfo.isCorrupted()
+                && tmpltStore.getState() == ObjectInDataStoreStateMachine.State.Ready
+                && tmpltStore.getDownloadState() == Status.DOWNLOADED
+                && tmpltStore.getDownloadPercent() == 100
+                && tmpltInfo.getInstallPath() != null && tmpltInfo.getInstallPath().equals(tmpltStore.getInstallPath())
+                && tmpltStore.getSize() == tmpltInfo.getSize()
+                && tmpltStore.getPhysicalSize() == tmpltInfo.getPhysicalSize()
+                && tmplt.getSize() != null && tmplt.getSize() == tmpltInfo.getSize();
+    }
+
     private Map<String, TemplateProp> listTemplate(DataStore ssStore) {
-        ListTemplateCommand cmd = new ListTemplateCommand(ssStore.getTO());
+        StoreManifest last = _storeManifests.get(ssStore.getId());
+        ListTemplateCommand cmd = new ListTemplateCommand(ssStore.getTO(), last != null ? last.digest : null);
         EndPoint ep = _epSelector.select(ssStore);
         Answer answer = ep.sendMessage(cmd);
         if (answer != null && answer.getResult()) {
             ListTemplateAnswer tanswer = (ListTemplateAnswer) answer;
-            return tanswer.getTemplateInfo();
+            if (tanswer.isUnchanged()) {
+                if (last != null && last.digest.equals(tanswer.getManifestDigest())) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Template list of image store " + ssStore.getId() + " is unchanged since the last sync");
+                    }
+                    // template sync takes the entries it finds out of the map
+                    return new HashMap<String, TemplateProp>(last.templateInfos);
+                }
+                // forgotten in the meantime, the next sync asks for the full list
+                _storeManifests.remove(ssStore.getId());
+                return null;
+            }
+
+            Map<String, TemplateProp> templateInfos = tanswer.getTemplateInfo();
+            if (templateInfos != null && tanswer.getManifestDigest() != null) {
+                _storeManifests.put(ssStore.getId(), new StoreManifest(tanswer.getManifestDigest(), new HashMap<String, TemplateProp>(templateInfos)));
+            } else {
+                _storeManifests.remove(ssStore.getId());
+            }
+            return templateInfos;
         } else {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("can not list template for secondary storage host " + ssStore.getId());
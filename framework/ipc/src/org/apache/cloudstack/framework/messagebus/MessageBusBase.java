@@ -19,390 +19,415 @@
 
 package org.apache.cloudstack.framework.messagebus;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
 
 import org.apache.cloudstack.framework.serializer.MessageSerializer;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
+/**
+ * In-process message bus.  Subscriptions live in a trie keyed by the dot separated
+ * parts of the subject.  The trie is never modified in place: subscribe, unsubscribe
+ * and friends copy the nodes along the path they change and swap in a new root, so
+ * publish walks whatever root it read without taking any lock, and a subscription
+ * change made while a message is being delivered applies to the next message.
+ *
+ * Subscribers are called on the publishing thread unless they subscribe with
+ * async set, in which case their messages go to a mailbox that a dispatch pool
+ * drains in order.
+ */
 public class MessageBusBase implements MessageBus {
+	private static final Logger s_logger = Logger.getLogger(MessageBusBase.class);
+
+	private static final int DEFAULT_DISPATCH_THREADS = 4;
+	private static final int DEFAULT_MAILBOX_CAPACITY = 10000;
+	// messages a mailbox delivers before giving other subscribers a turn
+	private static final int MAILBOX_BATCH = 100;
+
+	private volatile SubscriptionNode _subscriberRoot;
+	// serializes updates of the trie, publish never takes it
+	private final Object _updateLock = new Object();
+	private MessageSerializer _messageSerializer;
+
+	private ExecutorService _dispatchExecutor;
+	private boolean _stopped;
+	private int _dispatchThreads = DEFAULT_DISPATCH_THREADS;
+	private int _mailboxCapacity = DEFAULT_MAILBOX_CAPACITY;
+	private final AtomicLong _mailboxOverflowCount = new AtomicLong();
 
-	private Gate _gate;
-	private List<ActionRecord> _pendingActions;
-	
-	private SubscriptionNode _subscriberRoot;
-	private MessageSerializer _messageSerializer; 
-	
 	public MessageBusBase() {
-		_gate = new Gate();
-		_pendingActions = new ArrayList<ActionRecord>();
-		
-		_subscriberRoot = new SubscriptionNode(null, "/", null);
+		_subscriberRoot = SubscriptionNode.EMPTY;
 	}
-	
+
 	@Override
 	public void setMessageSerializer(MessageSerializer messageSerializer) {
 		_messageSerializer = messageSerializer;
 	}
-	
+
 	@Override
 	public MessageSerializer getMessageSerializer() {
 		return _messageSerializer;
 	}
-	
+
+	public void setDispatchThreads(int dispatchThreads) {
+		_dispatchThreads = dispatchThreads;
+	}
+
+	public void setMailboxCapacity(int mailboxCapacity) {
+		_mailboxCapacity = mailboxCapacity;
+	}
+
+	/**
+	 * Stops the dispatch pool.  Messages still waiting in the mailboxes of asynchronous
+	 * subscriptions are dropped.
+	 */
+	@PreDestroy
+	public synchronized void stop() {
+		_stopped = true;
+		if(_dispatchExecutor != null) {
+			_dispatchExecutor.shutdownNow();
+			_dispatchExecutor = null;
+		}
+	}
+
+	/**
+	 * Number of messages delivered on the publishing thread because the
+	 * subscriber's mailbox was full.
+	 */
+	public long getMailboxOverflowCount() {
+		return _mailboxOverflowCount.get();
+	}
+
 	@Override
 	public void subscribe(String subject, MessageSubscriber subscriber) {
+		subscribe(subject, subscriber, false);
+	}
+
+	/**
+	 * @param async deliver messages for this subscription on the dispatch pool instead of
+	 *              on the publishing thread; they are still delivered in the order published
+	 */
+	public void subscribe(String subject, final MessageSubscriber subscriber, boolean async) {
 		assert(subject != null);
 		assert(subscriber != null);
-		if(_gate.enter()) {
-			SubscriptionNode current = locate(subject, null, true);
-			assert(current != null);
-			current.addSubscriber(subscriber);
-			_gate.leave();
-		} else {
-			synchronized(_pendingActions) {
-				_pendingActions.add(new ActionRecord(ActionType.Subscribe, subject, subscriber));
+		final Subscription subscription = new Subscription(subscriber, async ? new Mailbox(subscriber) : null);
+		update(tokenize(subject), true, new NodeUpdate() {
+			@Override
+			public SubscriptionNode apply(SubscriptionNode node) {
+				return node.withSubscription(subscription);
 			}
-		}
+		});
 	}
 
 	@Override
-	public void unsubscribe(String subject, MessageSubscriber subscriber) {
-		if(_gate.enter()) {
-			if(subject != null) {
-				SubscriptionNode current = locate(subject, null, false);
-				if(current != null)
-					current.removeSubscriber(subscriber, false);
-			} else {
-				this._subscriberRoot.removeSubscriber(subscriber, true);
-			}
-			_gate.leave();
+	public void unsubscribe(String subject, final MessageSubscriber subscriber) {
+		if(subject != null) {
+			update(tokenize(subject), false, new NodeUpdate() {
+				@Override
+				public SubscriptionNode apply(SubscriptionNode node) {
+					return node.withoutSubscriber(subscriber, false);
+				}
+			});
 		} else {
-			synchronized(_pendingActions) {
-				_pendingActions.add(new ActionRecord(ActionType.Unsubscribe, subject, subscriber));
-			}
+			update(new String[0], false, new NodeUpdate() {
+				@Override
+				public SubscriptionNode apply(SubscriptionNode node) {
+					return node.withoutSubscriber(subscriber, true);
+				}
+			});
 		}
 	}
-	
+
 	@Override
 	public void clearAll() {
-		if(_gate.enter()) {
-			_subscriberRoot.clearAll();
-			doPrune();
-			_gate.leave();
-		} else {
-			synchronized(_pendingActions) {
-				_pendingActions.add(new ActionRecord(ActionType.ClearAll, null, null));
-			}
+		synchronized(_updateLock) {
+			_subscriberRoot = SubscriptionNode.EMPTY;
 		}
 	}
-		
+
 	@Override
 	public void prune() {
-		if(_gate.enter()) {
-			doPrune();
-			_gate.leave();
-		} else {
-			synchronized(_pendingActions) {
-				_pendingActions.add(new ActionRecord(ActionType.Prune, null, null));
-			}
+		// nodes are trimmed as soon as they become empty, so this only has work to do
+		// if that was skipped for some reason
+		synchronized(_updateLock) {
+			SubscriptionNode root = _subscriberRoot.pruned();
+			_subscriberRoot = root != null ? root : SubscriptionNode.EMPTY;
 		}
 	}
-	
-	private void doPrune() {
-		List<SubscriptionNode> trimNodes = new ArrayList<SubscriptionNode>();
-		_subscriberRoot.prune(trimNodes);
-		
-		while(trimNodes.size() > 0) {
-			SubscriptionNode node = trimNodes.remove(0);
-			SubscriptionNode parent = node.getParent();
-			if(parent != null) {
-				parent.removeChild(node.getNodeKey());
-				if(parent.isTrimmable()) {
-					trimNodes.add(parent);
-				}
-			}
-		}
-	}
-	
+
 	@Override
-	public void publish(String senderAddress, String subject, PublishScope scope, 
+	public void publish(String senderAddress, String subject, PublishScope scope,
 		Object args) {
-		
-		if(_gate.enter(true)) {
-
-			List<SubscriptionNode> chainFromTop = new ArrayList<SubscriptionNode>();
-			SubscriptionNode current = locate(subject, chainFromTop, false);
-			
-			if(current != null)
-				current.notifySubscribers(senderAddress, subject, args);
-			
-			Collections.reverse(chainFromTop);
-			for(SubscriptionNode node : chainFromTop)
-				node.notifySubscribers(senderAddress, subject, args);
-			
-			_gate.leave();
+
+		SubscriptionNode root = _subscriberRoot;
+		String[] tokens = tokenize(subject);
+
+		// the node for the subject and each of its ancestors, the subscribers of the
+		// most specific subject are notified first
+		SubscriptionNode[] chain = new SubscriptionNode[tokens.length + 1];
+		chain[0] = root;
+		int depth = 0;
+		for(String token : tokens) {
+			SubscriptionNode next = chain[depth].getChild(token);
+			if(next == null)
+				break;
+			chain[++depth] = next;
 		}
+
+		for(int i = depth; i >= 0; i--)
+			chain[i].notifySubscribers(senderAddress, subject, args);
 	}
-	
-	private void onGateOpen() {
-		synchronized(_pendingActions) {
-			ActionRecord record = null;
-			if(_pendingActions.size() > 0) {
-				while((record = _pendingActions.remove(0)) != null) {
-					switch(record.getType()) {
-					case Subscribe :
-						{
-							SubscriptionNode current = locate(record.getSubject(), null, true);
-							assert(current != null);
-							current.addSubscriber(record.getSubscriber());
-						}
-						break;
-						
-					case Unsubscribe :
-						if(record.getSubject() != null) {
-							SubscriptionNode current = locate(record.getSubject(), null, false);
-							if(current != null)
-								current.removeSubscriber(record.getSubscriber(), false);
-						} else {
-							this._subscriberRoot.removeSubscriber(record.getSubscriber(), true);
-						}
-						break;
-					
-					case ClearAll :
-						_subscriberRoot.clearAll();
-						break;
-						
-					case Prune :
-						doPrune();
-						break;
-						
-					default :
-						assert(false);
-						break;
-					
-					}
-				}
-			}
+
+	private void update(String[] tokens, boolean createPath, NodeUpdate update) {
+		synchronized(_updateLock) {
+			SubscriptionNode root = updatePath(_subscriberRoot, tokens, 0, createPath, update);
+			_subscriberRoot = root != null ? root : SubscriptionNode.EMPTY;
 		}
 	}
-	
-	private SubscriptionNode locate(String subject, List<SubscriptionNode> chainFromTop,
-		boolean createPath) {
-		
+
+	/**
+	 * Applies the update to the node at the end of the path, copying every node on the
+	 * way to it.  Returns the node itself if nothing changed and null if it ended up empty.
+	 */
+	private static SubscriptionNode updatePath(SubscriptionNode node, String[] tokens, int index,
+		boolean createPath, NodeUpdate update) {
+
+		if(index == tokens.length) {
+			SubscriptionNode updated = update.apply(node);
+			return updated.isTrimmable() ? null : updated;
+		}
+
+		SubscriptionNode child = node.getChild(tokens[index]);
+		if(child == null) {
+			if(!createPath)
+				return node;
+			child = SubscriptionNode.EMPTY;
+		}
+
+		SubscriptionNode updated = updatePath(child, tokens, index + 1, createPath, update);
+		if(updated == child)
+			return node;
+
+		SubscriptionNode copy = node.withChild(tokens[index], updated);
+		return copy.isTrimmable() ? null : copy;
+	}
+
+	private static String[] tokenize(String subject) {
 		assert(subject != null);
 		// "/" is special name for root node
 		if(subject.equals("/"))
-			return _subscriberRoot;
-		
-		String[] subjectPathTokens = subject.split("\\.");
-		return locate(subjectPathTokens, _subscriberRoot, chainFromTop, createPath);
+			return new String[0];
+		return subject.split("\\.");
 	}
-	
-	private static SubscriptionNode locate(String[] subjectPathTokens, 
-		SubscriptionNode current, List<SubscriptionNode> chainFromTop, boolean createPath) {
-		
-		assert(current != null);
-		assert(subjectPathTokens != null);
-		assert(subjectPathTokens.length > 0);
-
-		if(chainFromTop != null)
-			chainFromTop.add(current);
-		
-		SubscriptionNode next = current.getChild(subjectPathTokens[0]);
-		if(next == null) {
-			if(createPath) {
-				next = new SubscriptionNode(current, subjectPathTokens[0], null);
-				current.addChild(subjectPathTokens[0], next);
-			} else {
-				return null;
-			}
-		}
-		
-		if(subjectPathTokens.length > 1) {
-			return locate((String[])Arrays.copyOfRange(subjectPathTokens, 1, subjectPathTokens.length),
-				next, chainFromTop, createPath);
-		} else {
-			return next;
-		}
+
+	private synchronized ExecutorService getDispatchExecutor() {
+		if(_stopped)
+			throw new RejectedExecutionException("Message bus is stopped");
+		if(_dispatchExecutor == null)
+			_dispatchExecutor = Executors.newFixedThreadPool(_dispatchThreads, new NamedThreadFactory("MessageBus-Dispatch", true));
+		return _dispatchExecutor;
 	}
-	
-	
+
+
 	//
 	// Support inner classes
 	//
-	private static enum ActionType {
-		Subscribe,
-		Unsubscribe,
-		ClearAll,
-		Prune
+	private interface NodeUpdate {
+		SubscriptionNode apply(SubscriptionNode node);
 	}
-	
-	private static class ActionRecord {
-		private ActionType _type;
-		private String _subject;
-		private MessageSubscriber _subscriber;
-		
-		public ActionRecord(ActionType type, String subject, MessageSubscriber subscriber) {
-			_type = type;
-			_subject = subject;
+
+	private static class Subscription {
+		private final MessageSubscriber _subscriber;
+		// null when the subscriber is called on the publishing thread
+		private final Mailbox _mailbox;
+
+		public Subscription(MessageSubscriber subscriber, Mailbox mailbox) {
 			_subscriber = subscriber;
+			_mailbox = mailbox;
 		}
-		
-		public ActionType getType() { 
-			return _type; 
-		}
-		
-		public String getSubject() {
-			return _subject;
+
+		public void deliver(String senderAddress, String subject, Object args) {
+			if(_mailbox != null)
+				_mailbox.post(senderAddress, subject, args);
+			else
+				_subscriber.onPublishMessage(senderAddress, subject, args);
 		}
-		
-		public MessageSubscriber getSubscriber() {
-			return _subscriber;
+	}
+
+	private static class Message {
+		private final String _senderAddress;
+		private final String _subject;
+		private final Object _args;
+
+		public Message(String senderAddress, String subject, Object args) {
+			_senderAddress = senderAddress;
+			_subject = subject;
+			_args = args;
 		}
 	}
-	
-	private class Gate {
-		private int _reentranceCount;
-		private Thread _gateOwner;
-		
-		public Gate() {
-			_reentranceCount = 0;
-			_gateOwner = null;
+
+	/**
+	 * Queued messages of an asynchronous subscription.  At most one dispatch thread
+	 * works on a mailbox at a time, which keeps the messages in order.
+	 */
+	private class Mailbox implements Runnable {
+		private final MessageSubscriber _subscriber;
+		private final BlockingQueue<Message> _messages = new ArrayBlockingQueue<Message>(_mailboxCapacity);
+		private final AtomicBoolean _scheduled = new AtomicBoolean(false);
+
+		public Mailbox(MessageSubscriber subscriber) {
+			_subscriber = subscriber;
 		}
-		
-		public boolean enter() {
-			return enter(false);
+
+		public void post(String senderAddress, String subject, Object args) {
+			if(!_messages.offer(new Message(senderAddress, subject, args))) {
+				// the subscriber can't keep up, slow the publisher down rather than lose the message
+				_mailboxOverflowCount.incrementAndGet();
+				_subscriber.onPublishMessage(senderAddress, subject, args);
+				return;
+			}
+			schedule();
 		}
-		
-		public boolean enter(boolean wait) {
-			while(true) {
-				synchronized(this) {
-					if(_reentranceCount == 0) {
-						assert(_gateOwner == null);
-						
-						_reentranceCount++;
-						_gateOwner = Thread.currentThread();
-						return true;
-					} else {
-						if(wait) {
-							try {
-								wait();
-							} catch (InterruptedException e) {
-							}
-						} else {
-							break;
-						}
-					}
+
+		private void schedule() {
+			if(_scheduled.compareAndSet(false, true)) {
+				try {
+					getDispatchExecutor().execute(this);
+				} catch(RejectedExecutionException e) {
+					_scheduled.set(false);
+					s_logger.warn("Unable to dispatch messages to " + _subscriber + ", " + _messages.size() + " messages are waiting");
 				}
 			}
-			
-			return false;
 		}
-		
-		public void leave() {
-			synchronized(this) {
-				if(_reentranceCount > 0) {
-					assert(_gateOwner == Thread.currentThread());
-					
-					onGateOpen();
-					_reentranceCount--;
-					assert(_reentranceCount == 0);
-					_gateOwner = null;
-					
-					notifyAll();
+
+		@Override
+		public void run() {
+			try {
+				Message message;
+				int delivered = 0;
+				while(delivered++ < MAILBOX_BATCH && (message = _messages.poll()) != null) {
+					try {
+						_subscriber.onPublishMessage(message._senderAddress, message._subject, message._args);
+					} catch(Throwable e) {
+						s_logger.warn("Subscriber " + _subscriber + " failed to handle message " + message._subject, e);
+					}
 				}
+			} finally {
+				_scheduled.set(false);
 			}
+			if(!_messages.isEmpty())
+				schedule();
 		}
 	}
-	
+
+	/**
+	 * A node of the subscription trie.  Nodes are immutable; the with* methods return
+	 * a modified copy, or the node itself when there is nothing to change.
+	 */
 	private static class SubscriptionNode {
-		private String _nodeKey;
-		private List<MessageSubscriber> _subscribers;
-		private Map<String, SubscriptionNode> _children;
-		private SubscriptionNode _parent;
-		
-		public SubscriptionNode(SubscriptionNode parent, String nodeKey, MessageSubscriber subscriber) {
-			assert(nodeKey != null);
-			_parent = parent;
-			_nodeKey = nodeKey;
-			_subscribers = new ArrayList<MessageSubscriber>();
-			
-			if(subscriber != null)
-				_subscribers.add(subscriber);
-			
-			_children = new HashMap<String, SubscriptionNode>();
-		}
-		
-		public SubscriptionNode getParent() {
-			return _parent;			
+		static final SubscriptionNode EMPTY = new SubscriptionNode(new Subscription[0],
+			Collections.<String, SubscriptionNode>emptyMap());
+
+		private final Subscription[] _subscriptions;
+		private final Map<String, SubscriptionNode> _children;
+
+		private SubscriptionNode(Subscription[] subscriptions, Map<String, SubscriptionNode> children) {
+			_subscriptions = subscriptions;
+			_children = children;
 		}
-		
-		public String getNodeKey() {
-			return _nodeKey;
+
+		public SubscriptionNode getChild(String key) {
+			return _children.get(key);
 		}
-		
-		@SuppressWarnings("unused")
-		public List<MessageSubscriber> getSubscriber() {
-			return _subscribers;
+
+		private int indexOf(MessageSubscriber subscriber) {
+			for(int i = 0; i < _subscriptions.length; i++) {
+				if(_subscriptions[i]._subscriber.equals(subscriber))
+					return i;
+			}
+			return -1;
 		}
-		
-		public void addSubscriber(MessageSubscriber subscriber) {
-			if(!_subscribers.contains(subscriber))
-				_subscribers.add(subscriber);
+
+		public SubscriptionNode withSubscription(Subscription subscription) {
+			if(indexOf(subscription._subscriber) >= 0)
+				return this;
+			Subscription[] subscriptions = Arrays.copyOf(_subscriptions, _subscriptions.length + 1);
+			subscriptions[_subscriptions.length] = subscription;
+			return new SubscriptionNode(subscriptions, _children);
 		}
-		
-		public void removeSubscriber(MessageSubscriber subscriber, boolean recursively) {
+
+		public SubscriptionNode withoutSubscriber(MessageSubscriber subscriber, boolean recursively) {
+			Map<String, SubscriptionNode> children = _children;
 			if(recursively) {
 				for(Map.Entry<String, SubscriptionNode> entry : _children.entrySet()) {
-					entry.getValue().removeSubscriber(subscriber, true);
+					SubscriptionNode child = entry.getValue().withoutSubscriber(subscriber, true);
+					if(child != entry.getValue()) {
+						if(children == _children)
+							children = new HashMap<String, SubscriptionNode>(_children);
+						if(child.isTrimmable())
+							children.remove(entry.getKey());
+						else
+							children.put(entry.getKey(), child);
+					}
 				}
 			}
-			_subscribers.remove(subscriber);
-		}
-		
-		public SubscriptionNode getChild(String key) {
-			return _children.get(key);
-		}
-		
-		public void addChild(String key, SubscriptionNode childNode) {
-			_children.put(key, childNode);
-		}
-		
-		public void removeChild(String key) {
-			_children.remove(key);
-		}
-		
-		public void clearAll() {
-			// depth-first
-			for(Map.Entry<String, SubscriptionNode> entry : _children.entrySet()) {
-				entry.getValue().clearAll();
+
+			Subscription[] subscriptions = _subscriptions;
+			int index = indexOf(subscriber);
+			if(index >= 0) {
+				subscriptions = new Subscription[_subscriptions.length - 1];
+				System.arraycopy(_subscriptions, 0, subscriptions, 0, index);
+				System.arraycopy(_subscriptions, index + 1, subscriptions, index, _subscriptions.length - index - 1);
 			}
-			_subscribers.clear();
+
+			if(subscriptions == _subscriptions && children == _children)
+				return this;
+			return new SubscriptionNode(subscriptions, children);
+		}
+
+		// a null child removes it
+		public SubscriptionNode withChild(String key, SubscriptionNode child) {
+			Map<String, SubscriptionNode> children = new HashMap<String, SubscriptionNode>(_children);
+			if(child != null)
+				children.put(key, child);
+			else
+				children.remove(key);
+			return new SubscriptionNode(_subscriptions, children);
 		}
-		
-		public void prune(List<SubscriptionNode> trimNodes) {
-			assert(trimNodes != null);
-			
+
+		// returns a copy without any empty nodes, or null if nothing is left
+		public SubscriptionNode pruned() {
+			Map<String, SubscriptionNode> children = new HashMap<String, SubscriptionNode>();
 			for(Map.Entry<String, SubscriptionNode> entry : _children.entrySet()) {
-				entry.getValue().prune(trimNodes);
+				SubscriptionNode child = entry.getValue().pruned();
+				if(child != null)
+					children.put(entry.getKey(), child);
 			}
-			
-			if(isTrimmable())
-				trimNodes.add(this);
+			SubscriptionNode node = new SubscriptionNode(_subscriptions, children);
+			return node.isTrimmable() ? null : node;
 		}
-		
+
 		public void notifySubscribers(String senderAddress, String subject,  Object args) {
-			for(MessageSubscriber subscriber : _subscribers) {
-				subscriber.onPublishMessage(senderAddress, subject, args);
+			for(Subscription subscription : _subscriptions) {
+				subscription.deliver(senderAddress, subject, args);
 			}
 		}
-		
+
 		public boolean isTrimmable() {
-			return _children.size() == 0 && _subscribers.size() == 0;
+			return _children.size() == 0 && _subscriptions.length == 0;
 		}
 	}
 }
@@ -18,11 +18,19 @@
  */
 package org.apache.cloudstack.messagebus;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.inject.Inject;
 
 import junit.framework.TestCase;
 
 import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageBusBase;
 import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.junit.Assert;
@@ -113,4 +121,99 @@ public class TestMessageBus extends TestCase {
 		
 		_messageBus.clearAll();
 	}
+
+	@Test
+	public void testSubscriptionChangesFromHandler() {
+		final MessageSubscriber late = Mockito.mock(MessageSubscriber.class);
+		MessageSubscriber subscriber = new MessageSubscriber() {
+			@Override
+			public void onPublishMessage(String senderAddress, String subject, Object args) {
+				// used to wait forever on the gate held by the publish that called us
+				_messageBus.subscribe("Host", late);
+				_messageBus.publish(null, "VM", PublishScope.LOCAL, null);
+			}
+		};
+		_messageBus.subscribe("Host", subscriber);
+
+		_messageBus.publish(null, "Host", PublishScope.LOCAL, null);
+		Mockito.verify(late, Mockito.times(0)).onPublishMessage(null, "Host", null);
+
+		_messageBus.unsubscribe("Host", subscriber);
+		_messageBus.publish(null, "Host", PublishScope.LOCAL, null);
+		Mockito.verify(late).onPublishMessage(null, "Host", null);
+		_messageBus.clearAll();
+	}
+
+	@Test
+	public void testAsyncSubscriberGetsMessagesInOrder() throws Exception {
+		MessageBusBase bus = new MessageBusBase();
+		final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+		final List<Thread> dispatchers = Collections.synchronizedList(new ArrayList<Thread>());
+		final CountDownLatch done = new CountDownLatch(1000);
+		bus.subscribe("VM", new MessageSubscriber() {
+			@Override
+			public void onPublishMessage(String senderAddress, String subject, Object args) {
+				dispatchers.add(Thread.currentThread());
+				received.add(args);
+				done.countDown();
+			}
+		}, true);
+
+		for(int i = 0; i < 1000; i++)
+			bus.publish(null, "VM.StateChange", PublishScope.LOCAL, i);
+
+		Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+		for(int i = 0; i < 1000; i++)
+			Assert.assertEquals(i, received.get(i));
+		Assert.assertEquals(0, bus.getMailboxOverflowCount());
+		Thread dispatcher = dispatchers.get(0);
+		Assert.assertNotSame(Thread.currentThread(), dispatcher);
+		Assert.assertTrue(dispatcher.isDaemon());
+
+		bus.stop();
+		dispatcher.join(10000);
+		Assert.assertFalse(dispatcher.isAlive());
+	}
+
+	/**
+	 * Publishes state changes for many VMs from several threads while a few subscribers
+	 * listen on the top level subjects and one on every VM.
+	 */
+	@Test
+	public void testConcurrentPublish() throws Exception {
+		final MessageBusBase bus = new MessageBusBase();
+		final int subjects = 100;
+		final int threads = 8;
+		final int messages = 5000;
+		final AtomicLong delivered = new AtomicLong();
+		MessageSubscriber counter = new MessageSubscriber() {
+			@Override
+			public void onPublishMessage(String senderAddress, String subject, Object args) {
+				delivered.incrementAndGet();
+			}
+		};
+		bus.subscribe("VM", counter);
+		bus.subscribe("Volume", counter);
+		bus.subscribe("/", counter);
+		for(int i = 0; i < subjects; i++) {
+			bus.subscribe("VM." + i, counter);
+			bus.subscribe("Volume." + i, counter);
+		}
+
+		final CountDownLatch done = new CountDownLatch(threads);
+		for(int t = 0; t < threads; t++) {
+			final int offset = t;
+			new Thread() {
+				@Override
+				public void run() {
+					for(int i = 0; i < messages; i++) {
+						bus.publish(null, (i % 2 == 0 ? "VM." : "Volume.") + ((offset + i) % subjects), PublishScope.LOCAL, null);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+		Assert.assertEquals(threads * messages * 3L, delivered.get());
+	}
 }
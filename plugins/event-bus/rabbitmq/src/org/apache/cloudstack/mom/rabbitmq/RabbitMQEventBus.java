@@ -25,16 +25,27 @@ import org.apache.log4j.Logger;
 
 import com.cloud.utils.Ternary;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
 import java.io.IOException;
 import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Local(value=EventBus.class)
 public class RabbitMQEventBus extends ManagerBase implements EventBus {
@@ -56,13 +67,26 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     private static ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>> _subscribers;
 
     // connection to AMQP server,
-    private static Connection _connection=null;
+    private static volatile Connection _connection=null;
 
     // AMQP server should consider messages acknowledged once delivered if _autoAck is true
     private static boolean _autoAck = true;
 
     private ExecutorService executorService;
     private static DisconnectHandler disconnectHandler;
+
+    // events are handed to publisher threads through a bounded queue, each publisher owns one channel
+    private Integer publisherThreads = 2;
+    private Integer publishQueueSize = 10000;
+    private Integer publishBatchSize = 100;
+    // events a channel may have sent without a confirm from the broker
+    private Integer maxUnconfirmed = 1000;
+
+    private BlockingQueue<PendingEvent> _publishQueue;
+    private ExecutorService _publishExecutor;
+    private volatile boolean _publishing = false;
+    private final AtomicLong _confirmedCount = new AtomicLong();
+    private final AtomicLong _droppedCount = new AtomicLong();
     private static final Logger s_logger = Logger.getLogger(RabbitMQEventBus.class);
 
     @Override
@@ -100,6 +124,8 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         _subscribers = new ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>>();
         executorService = Executors.newCachedThreadPool();
         disconnectHandler = new DisconnectHandler();
+        _publishQueue = new ArrayBlockingQueue<PendingEvent>(publishQueueSize);
+
 
         return true;
     }
@@ -132,6 +158,35 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         this.retryInterval = retryInterval;
     }
 
+    public void setPublisherThreads(Integer publisherThreads) {
+        this.publisherThreads = publisherThreads;
+    }
+
+    public void setPublishQueueSize(Integer publishQueueSize) {
+        this.publishQueueSize = publishQueueSize;
+    }
+
+    public void setPublishBatchSize(Integer publishBatchSize) {
+        this.publishBatchSize = publishBatchSize;
+    }
+
+    public void setMaxUnconfirmed(Integer maxUnconfirmed) {
+        this.maxUnconfirmed = maxUnconfirmed;
+    }
+
+    // number of events waiting to be sent to the AMQP server
+    public int getPendingCount() {
+        return _publishQueue.size();
+    }
+
+    public long getConfirmedCount() {
+        return _confirmedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return _droppedCount.get();
+    }
+
     /** Call to subscribe to interested set of events
      *
      * @param topic defines category and type of the events being subscribed to
@@ -227,24 +282,24 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
-    // publish event on to the exchange created on AMQP server
+    /** queue the event for publishing on to the exchange created on AMQP server
+     *
+     *  The event is sent by a publisher thread, so the caller never waits on the broker.  When the
+     *  queue is full because the broker is slow or down, the oldest queued event is dropped to make room.
+     */
     @Override
     public void publish(Event event) throws EventBusException {
 
         String routingKey = createRoutingKey(event);
         String eventDescription = event.getDescription();
+        PendingEvent pending = new PendingEvent(routingKey, eventDescription == null ? new byte[0] : eventDescription.getBytes());
 
-        try {
-            Connection connection = getConnection();
-            Channel channel = createChannel(connection);
-            createExchange(channel, amqpExchangeName);
-            publishEventToExchange(channel, amqpExchangeName, routingKey, eventDescription);
-            channel.close();
-        } catch (AlreadyClosedException e) {
-            closeConnection();
-            throw new EventBusException("Failed to publish event to message broker as connection to AMQP broker in lost");
-        } catch (Exception e) {
-            throw new EventBusException("Failed to publish event to message broker due to " + e.getMessage());
+        while (!_publishQueue.offer(pending)) {
+            PendingEvent oldest = _publishQueue.poll();
+            if (oldest != null && _droppedCount.incrementAndGet() % 1000 == 1) {
+                s_logger.warn("Dropping event " + oldest.routingKey + " as " + _publishQueue.size() +
+                        " events are already waiting to be sent to the AMQP server");
+            }
         }
     }
 
@@ -335,12 +390,7 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     private synchronized Connection createConnection() throws Exception {
         try {
-            ConnectionFactory factory = new ConnectionFactory();
-            factory.setUsername(username);
-            factory.setPassword(password);
-            factory.setVirtualHost("/");
-            factory.setHost(amqpHost);
-            factory.setPort(port);
+            ConnectionFactory factory = createConnectionFactory();
             Connection connection = factory.newConnection();
             connection.addShutdownListener(disconnectHandler);
             _connection = connection;
@@ -350,6 +400,16 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
+    protected ConnectionFactory createConnectionFactory() {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setUsername(username);
+        factory.setPassword(password);
+        factory.setVirtualHost("/");
+        factory.setHost(amqpHost);
+        factory.setPort(port);
+        return factory;
+    }
+
     private synchronized void closeConnection() {
         try {
             if (_connection != null) {
@@ -399,18 +459,6 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
-    private void publishEventToExchange(Channel channel, String exchangeName,
-                                        String routingKey, String eventDescription) throws Exception {
-        try {
-            byte[] messageBodyBytes = eventDescription.getBytes();
-            channel.basicPublish(exchangeName, routingKey, MessageProperties.PERSISTENT_TEXT_PLAIN, messageBodyBytes);
-        } catch (Exception e) {
-            s_logger.error("Failed to publish event " + routingKey + " on exchange " + exchangeName +
-                    "  of message broker due to " + e.getMessage());
-            throw e;
-        }
-    }
-
     private String getEventCategoryFromRoutingKey(String routingKey) {
         String[] keyParts =  routingKey.split("\\.");
         return keyParts[1];
@@ -445,13 +493,32 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     public boolean start() {
         ReconnectionTask reconnect = new ReconnectionTask(); // initiate connection to AMQP server
         executorService.submit(reconnect);
+
+        _publishing = true;
+        _publishExecutor = Executors.newFixedThreadPool(publisherThreads, new NamedThreadFactory("RabbitMQ-Publisher"));
+        for (int i = 0; i < publisherThreads; i++) {
+            _publishExecutor.submit(new EventPublisher());
+        }
         return true;
     }
 
     @Override
     public boolean stop() {
 
-        if (_connection.isOpen()) {
+        _publishing = false;
+        if (_publishExecutor != null) {
+            _publishExecutor.shutdown();
+            try {
+                _publishExecutor.awaitTermination(retryInterval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                s_logger.debug("Interrupted while waiting for the publishers to finish");
+            }
+            if (!_publishQueue.isEmpty()) {
+                s_logger.warn(_publishQueue.size() + " events were not published to the AMQP server before shutdown");
+            }
+        }
+
+        if (_connection != null && _connection.isOpen()) {
             for (String subscriberId : _subscribers.keySet()) {
                 Ternary<String, Channel, EventSubscriber> subscriberDetails = _subscribers.get(subscriberId);
                 Channel channel =  subscriberDetails.second();
@@ -469,6 +536,177 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         return true;
     }
 
+    private static class PendingEvent {
+        final String routingKey;
+        final byte[] body;
+
+        PendingEvent(String routingKey, byte[] body) {
+            this.routingKey = routingKey;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Drains the publish queue in batches on to a channel of its own.  The channel is put in
+     * confirm mode and confirms are handled as they arrive, so publishing does not stop to wait
+     * for them; up to maxUnconfirmed events may be outstanding.  Events the broker nacks, and
+     * events still unconfirmed when the channel is lost, go back on the queue.
+     */
+    private class EventPublisher implements Runnable {
+        private volatile Channel _channel;
+        private final ConcurrentSkipListMap<Long, PendingEvent> _unconfirmed = new ConcurrentSkipListMap<Long, PendingEvent>();
+        private final Semaphore _window = new Semaphore(maxUnconfirmed);
+
+        @Override
+        public void run() {
+            List<PendingEvent> batch = new ArrayList<PendingEvent>(publishBatchSize);
+            while (_publishing || !batch.isEmpty() || !_publishQueue.isEmpty()) {
+                try {
+                    if (_channel != null && !_channel.isOpen()) {
+                        discardChannel();
+                    }
+                    if (batch.isEmpty()) {
+                        PendingEvent first = _publishQueue.poll(1, TimeUnit.SECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        batch.add(first);
+                        _publishQueue.drainTo(batch, publishBatchSize - 1);
+                    }
+                    publishBatch(getPublishChannel(), batch);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    s_logger.warn("Failed to publish events to AMQP server due to " + e.getMessage() + ", retrying in " + retryInterval + "ms");
+                    discardChannel();
+                    if (!_publishing) {
+                        break;
+                    }
+                    try {
+                        Thread.sleep(retryInterval);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            }
+
+            for (PendingEvent event : batch) {
+                requeue(event);
+            }
+            if (_channel != null) {
+                try {
+                    _channel.waitForConfirms(retryInterval);
+                    _channel.close();
+                } catch (Exception e) {
+                    s_logger.debug("Failed to close publisher channel due to " + e.getMessage());
+                }
+            }
+        }
+
+        private Channel getPublishChannel() throws Exception {
+            if (_channel == null) {
+                // reconnecting is left to ReconnectionTask, publishers wait for it
+                Connection connection = _connection;
+                if (connection == null || !connection.isOpen()) {
+                    throw new ConnectException("not connected to AMQP server");
+                }
+                final Channel channel = createChannel(connection);
+                createExchange(channel, amqpExchangeName);
+                channel.confirmSelect();
+                channel.addConfirmListener(new ConfirmListener() {
+                    @Override
+                    public void handleAck(long deliveryTag, boolean multiple) {
+                        confirm(channel, deliveryTag, multiple, false);
+                    }
+
+                    @Override
+                    public void handleNack(long deliveryTag, boolean multiple) {
+                        s_logger.warn("AMQP server failed to accept event(s) up to " + deliveryTag + ", publishing them again");
+                        confirm(channel, deliveryTag, multiple, true);
+                    }
+                });
+                _channel = channel;
+            }
+            return _channel;
+        }
+
+        // publishes the batch, removing each event from it once it has been handed to the channel
+        private void publishBatch(Channel channel, List<PendingEvent> batch) throws Exception {
+            int published = 0;
+            try {
+                for (PendingEvent event : batch) {
+                    while (!_window.tryAcquire(1, TimeUnit.SECONDS)) {
+                        if (!channel.isOpen()) {
+                            throw new IOException("channel was closed while waiting for confirms");
+                        }
+                    }
+                    long seqNo = channel.getNextPublishSeqNo();
+                    _unconfirmed.put(seqNo, event);
+                    try {
+                        channel.basicPublish(amqpExchangeName, event.routingKey, MessageProperties.PERSISTENT_TEXT_PLAIN, event.body);
+                    } catch (Exception e) {
+                        if (_unconfirmed.remove(seqNo) != null) {
+                            _window.release();
+                        }
+                        throw e;
+                    }
+                    published++;
+                }
+            } finally {
+                batch.subList(0, published).clear();
+            }
+        }
+
+        private void confirm(Channel channel, long seqNo, boolean multiple, boolean requeue) {
+            if (channel != _channel) {
+                return; // confirm for a channel we have given up on, its events have been queued again
+            }
+            Collection<Long> seqNos;
+            if (multiple) {
+                seqNos = new ArrayList<Long>(_unconfirmed.headMap(seqNo, true).keySet());
+            } else {
+                seqNos = Collections.singletonList(seqNo);
+            }
+            for (Long confirmed : seqNos) {
+                PendingEvent event = _unconfirmed.remove(confirmed);
+                if (event != null) {
+                    _window.release();
+                    if (requeue) {
+                        requeue(event);
+                    } else {
+                        _confirmedCount.incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        private void discardChannel() {
+            Channel channel = _channel;
+            _channel = null;
+            if (channel != null) {
+                try {
+                    channel.abort();
+                } catch (Exception e) {
+                    s_logger.debug("Failed to abort publisher channel due to " + e.getMessage());
+                }
+            }
+            for (Long seqNo : _unconfirmed.keySet()) {
+                PendingEvent event = _unconfirmed.remove(seqNo);
+                if (event != null) {
+                    _window.release();
+                    requeue(event);
+                }
+            }
+        }
+    }
+
+    private void requeue(PendingEvent event) {
+        if (!_publishQueue.offer(event)) {
+            _droppedCount.incrementAndGet();
+            s_logger.warn("Dropping event " + event.routingKey + " as the publish queue is full");
+        }
+    }
+
     // logic to deal with loss of connection to AMQP server
     private class DisconnectHandler implements ShutdownListener {
 
@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cloudstack.framework.events.Event;
+import org.apache.cloudstack.framework.events.EventBusException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+public class RabbitMQEventBusTest {
+
+    /**
+     * In-process stand-in for the broker: every channel acks (or nacks) each message from
+     * a separate thread, the way the client library delivers confirms.
+     */
+    static class FakeBroker {
+        final ConcurrentLinkedQueue<String> _received = new ConcurrentLinkedQueue<String>();
+        final ExecutorService _confirmer = Executors.newSingleThreadExecutor();
+        final AtomicInteger _nacks = new AtomicInteger();
+        final AtomicInteger _channels = new AtomicInteger();
+        // confirms are withheld on the first channel while set
+        volatile boolean _holdFirstChannel = false;
+        volatile AtomicBoolean _firstChannelOpen;
+
+        Connection connect() throws IOException {
+            Connection connection = mock(Connection.class);
+            when(connection.isOpen()).thenReturn(true);
+            when(connection.createChannel()).thenAnswer(new Answer<Channel>() {
+                @Override
+                public Channel answer(InvocationOnMock invocation) throws IOException {
+                    return newChannel(_channels.incrementAndGet() == 1);
+                }
+            });
+            return connection;
+        }
+
+        Channel newChannel(final boolean first) throws IOException {
+            final Channel channel = mock(Channel.class);
+            final AtomicBoolean open = new AtomicBoolean(true);
+            final AtomicLong seqNo = new AtomicLong(1);
+            final ConfirmListener[] listener = new ConfirmListener[1];
+            if (first) {
+                _firstChannelOpen = open;
+            }
+
+            when(channel.isOpen()).thenAnswer(new Answer<Boolean>() {
+                @Override
+                public Boolean answer(InvocationOnMock invocation) {
+                    return open.get();
+                }
+            });
+            when(channel.getNextPublishSeqNo()).thenAnswer(new Answer<Long>() {
+                @Override
+                public Long answer(InvocationOnMock invocation) {
+                    return seqNo.get();
+                }
+            });
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    listener[0] = (ConfirmListener)invocation.getArguments()[0];
+                    return null;
+                }
+            }).when(channel).addConfirmListener(any(ConfirmListener.class));
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    open.set(false);
+                    return null;
+                }
+            }).when(channel).abort();
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) throws IOException {
+                    if (!open.get()) {
+                        throw new IOException("channel is closed");
+                    }
+                    final long tag = seqNo.getAndIncrement();
+                    _received.add((String)invocation.getArguments()[1]);
+                    if (first && _holdFirstChannel) {
+                        return null;
+                    }
+                    final boolean nack = _nacks.getAndDecrement() > 0;
+                    _confirmer.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (nack) {
+                                    listener[0].handleNack(tag, false);
+                                } else {
+                                    listener[0].handleAck(tag, false);
+                                }
+                            } catch (IOException e) {
+                            }
+                        }
+                    });
+                    return null;
+                }
+            }).when(channel).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+            return channel;
+        }
+    }
+
+    FakeBroker _broker;
+    RabbitMQEventBus _bus;
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new FakeBroker();
+        _bus = new RabbitMQEventBus() {
+            @Override
+            protected ConnectionFactory createConnectionFactory() {
+                ConnectionFactory factory = mock(ConnectionFactory.class);
+                try {
+                    when(factory.newConnection()).thenAnswer(new Answer<Connection>() {
+                        @Override
+                        public Connection answer(InvocationOnMock invocation) throws IOException {
+                            return _broker.connect();
+                        }
+                    });
+                } catch (IOException e) {
+                }
+                return factory;
+            }
+        };
+        _bus.setServer("localhost");
+        _bus.setPort(5672);
+        _bus.setUsername("guest");
+        _bus.setPassword("guest");
+        _bus.setExchange("cloudstack-events");
+        _bus.setRetryInterval(100);
+    }
+
+    @After
+    public void tearDown() {
+        _bus.stop();
+        _broker._confirmer.shutdownNow();
+    }
+
+    Event event(int i) {
+        Event event = new Event("ManagementServer", "ActionEvent", "VM.CREATE", "VirtualMachine", "uuid-" + i);
+        event.setDescription("{\"id\":" + i + "}");
+        return event;
+    }
+
+    void waitForConfirms(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (_bus.getConfirmedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, _bus.getConfirmedCount());
+    }
+
+    @Test
+    public void testPublishIsConfirmed() throws Exception {
+        _bus.configure("bus", new HashMap<String, Object>());
+        _bus.start();
+
+        final int threads = 8;
+        final int events = 100;
+        final CountDownLatch done = new CountDownLatch(threads);
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * events;
+            callers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < events; i++) {
+                            _bus.publish(event(offset + i));
+                        }
+                    } catch (EventBusException e) {
+                        Assert.fail(e.getMessage());
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        waitForConfirms(threads * events);
+        callers.shutdown();
+
+        Assert.assertEquals(threads * events, _broker._received.size());
+        Assert.assertTrue(_broker._received.contains("ManagementServer.ActionEvent.VM-CREATE.VirtualMachine.uuid-42"));
+        // one channel per publisher, not one per event
+        Assert.assertEquals(2, _broker._channels.get());
+    }
+
+    @Test
+    public void testNackedEventsArePublishedAgain() throws Exception {
+        _broker._nacks.set(5);
+        _bus.configure("bus", new HashMap<String, Object>());
+        _bus.start();
+
+        for (int i = 0; i < 20; i++) {
+            _bus.publish(event(i));
+        }
+        waitForConfirms(20);
+        Assert.assertEquals(25, _broker._received.size());
+    }
+
+    @Test
+    public void testUnconfirmedEventsSurviveChannelLoss() throws Exception {
+        _broker._holdFirstChannel = true;
+        _bus.setPublisherThreads(1);
+        _bus.configure("bus", new HashMap<String, Object>());
+        _bus.start();
+
+        for (int i = 0; i < 10; i++) {
+            _bus.publish(event(i));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (_broker._received.size() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, _bus.getConfirmedCount());
+
+        _broker._firstChannelOpen.set(false);
+        waitForConfirms(10);
+        Assert.assertEquals(20, _broker._received.size());
+    }
+
+    @Test
+    public void testPublishDropsOldestWhenQueueIsFull() throws Exception {
+        _bus.setPublishQueueSize(5);
+        _bus.configure("bus", new HashMap<String, Object>());
+        // not started, so nothing drains the queue until the broker "comes back"
+
+        for (int i = 0; i < 7; i++) {
+            _bus.publish(event(i));
+        }
+        Assert.assertEquals(5, _bus.getPendingCount());
+        Assert.assertEquals(2, _bus.getDroppedCount());
+
+        _bus.start();
+        waitForConfirms(5);
+        Assert.assertFalse(_broker._received.contains("ManagementServer.ActionEvent.VM-CREATE.VirtualMachine.uuid-0"));
+        Assert.assertFalse(_broker._received.contains("ManagementServer.ActionEvent.VM-CREATE.VirtualMachine.uuid-1"));
+        Assert.assertTrue(_broker._received.contains("ManagementServer.ActionEvent.VM-CREATE.VirtualMachine.uuid-6"));
+    }
+}
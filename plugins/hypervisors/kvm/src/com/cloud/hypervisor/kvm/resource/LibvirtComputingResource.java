@@ -242,6 +242,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.OutputInterpreter;
 import com.cloud.utils.script.Script;
+import com.cloud.utils.script.ScriptRunner;
 import com.cloud.vm.DiskProfile;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
@@ -415,6 +416,7 @@ ServerResource {
     protected BridgeType _bridgeType;
 
     protected StorageSubsystemCommandHandler storageHandler;
+    protected KVMStorageProcessor _storageProcessor;
 
     private String getEndIpFromStartIp(String startIp, int numIps) {
         String[] tokens = startIp.split("[.]");
@@ -731,6 +733,22 @@ ServerResource {
         value = (String) params.get("host.reserved.mem.mb");
         _dom0MinMem = NumbersUtil.parseInt(value, 0) * 1024 * 1024;
 
+        value = (String) params.get("script.runner.port");
+        int runnerPort = NumbersUtil.parseInt(value, 0);
+        if (runnerPort > 0) {
+            value = (String) params.get("script.runner.concurrency");
+            int runnerConcurrency = NumbersUtil.parseInt(value, 16);
+            value = (String) params.get("script.runner.key.file");
+            String keyFile = value != null ? value : "/etc/cloudstack/agent/script-runner.key";
+            try {
+                String key = ScriptRunner.readKey(keyFile);
+                s_logger.info("Running scripts through the script runner on port " + runnerPort);
+                Script.setScriptRunner(new ScriptRunner("127.0.0.1", runnerPort, key, runnerConcurrency, 5000));
+            } catch (IOException e) {
+                s_logger.warn("Unable to read the script runner key from " + keyFile + ", forking scripts directly: " + e.getMessage());
+            }
+        }
+
         LibvirtConnection.initialize(_hypervisorURI);
         Connect conn = null;
         try {
@@ -871,9 +889,9 @@ ServerResource {
 
         configureVifDrivers(params);
 
-        KVMStorageProcessor storageProcessor = new KVMStorageProcessor(this._storagePoolMgr, this);
-        storageProcessor.configure(name, params);
-        storageHandler = new StorageSubsystemCommandHandlerBase(storageProcessor);
+        _storageProcessor = new KVMStorageProcessor(this._storagePoolMgr, this);
+        _storageProcessor.configure(name, params);
+        storageHandler = new StorageSubsystemCommandHandlerBase(_storageProcessor);
 
         String unameKernelVersion = Script.runSimpleBashScript("uname -r");
         String[] kernelVersions = unameKernelVersion.split("[\\.\\-]");
@@ -2662,6 +2680,7 @@ ServerResource {
         if (storagepool == null) {
             return new Answer(cmd, false, " Failed to create storage pool");
         }
+        _storageProcessor.poolConnected(storagepool);
 
         Map<String, TemplateProp> tInfo = new HashMap<String, TemplateProp>();
         ModifyStoragePoolAnswer answer = new ModifyStoragePoolAnswer(cmd,
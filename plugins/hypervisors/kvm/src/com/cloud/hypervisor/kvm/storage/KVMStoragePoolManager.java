@@ -22,6 +22,10 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.cloudstack.utils.qemu.QemuImg.PhysicalDiskFormat;
 
@@ -30,6 +34,7 @@ import com.cloud.hypervisor.kvm.resource.KVMHABase.PoolType;
 import com.cloud.hypervisor.kvm.resource.KVMHAMonitor;
 import com.cloud.storage.Storage.StoragePoolType;
 import com.cloud.storage.StorageLayer;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import org.apache.log4j.Logger;
 
@@ -62,10 +67,39 @@ public class KVMStoragePoolManager {
             this.poolType = poolType;
         }
     }
+
+    /**
+     * Last pool object fetched from the adaptor.  Fresh entries are handed out without
+     * going back to libvirt; the refresher re-fetches entries in the background before
+     * they go stale, one task per pool so a hung pool never holds up the others.
+     * Secondary storage pools are mounted for a single command and deleted afterwards,
+     * so they are never cached; the refresher would otherwise mount them again.
+     */
+    private static class CachedPool {
+        final KVMStoragePool pool;
+        final long fetched;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        CachedPool(KVMStoragePool pool) {
+            this.pool = pool;
+            this.fetched = System.currentTimeMillis();
+        }
+
+        long age() {
+            return System.currentTimeMillis() - fetched;
+        }
+    }
+
+    private static final long POOL_CACHE_TTL = 30 * 1000;
+    // shared by all managers of the agent; the threads must not keep it from exiting
+    private static final ScheduledExecutorService s_refresher = Executors.newScheduledThreadPool(4, new NamedThreadFactory("KVMStoragePoolRefresher", true));
+
     private StorageAdaptor _storageAdaptor;
     private KVMHAMonitor _haMonitor;
-    private final Map<String, StoragePoolInformation> _storagePools = new ConcurrentHashMap<String, StoragePoolInformation>();
+    private final ConcurrentHashMap<String, StoragePoolInformation> _storagePools = new ConcurrentHashMap<String, StoragePoolInformation>();
     private final Map<String, StorageAdaptor> _storageMapper = new HashMap<String, StorageAdaptor>();
+    private final ConcurrentHashMap<String, CachedPool> _poolCache = new ConcurrentHashMap<String, CachedPool>();
+    private final ConcurrentHashMap<String, Object> _poolLocks = new ConcurrentHashMap<String, Object>();
 
     private StorageAdaptor getStorageAdaptor(StoragePoolType type) {
         // type can be null: LibVirtComputingResource:3238
@@ -81,36 +115,114 @@ public class KVMStoragePoolManager {
     }
 
     private void addStoragePool(String uuid, StoragePoolInformation pool) {
-        synchronized (_storagePools) {
-            if (!_storagePools.containsKey(uuid)) {
-                _storagePools.put(uuid, pool);
+        _storagePools.putIfAbsent(uuid, pool);
+    }
+
+    /**
+     * Operations on one pool are serialized on that pool's lock only, so a slow
+     * NFS mount or libvirt call on one pool does not hold up the others.  The lock,
+     * the cache and the pool information are all keyed by the pool uuid; pools are
+     * created under the uuid that libvirt then reports for them.
+     */
+    private Object getPoolLock(String uuid) {
+        Object lock = _poolLocks.get(uuid);
+        if (lock == null) {
+            lock = new Object();
+            Object existing = _poolLocks.putIfAbsent(uuid, lock);
+            if (existing != null) {
+                lock = existing;
             }
         }
+        return lock;
     }
 
     public KVMStoragePoolManager(StorageLayer storagelayer, KVMHAMonitor monitor) {
-        this._storageAdaptor = new LibvirtStorageAdaptor(storagelayer);
-        this._haMonitor = monitor;
-        this._storageMapper.put("libvirt", new LibvirtStorageAdaptor(storagelayer));
+        this(new LibvirtStorageAdaptor(storagelayer), monitor);
         // add other storage adaptors here
 	// this._storageMapper.put("newadaptor", new NewStorageAdaptor(storagelayer));
     }
 
+    KVMStoragePoolManager(StorageAdaptor adaptor, KVMHAMonitor monitor) {
+        this._storageAdaptor = adaptor;
+        this._haMonitor = monitor;
+        this._storageMapper.put("libvirt", adaptor);
+        s_refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                scheduleRefreshes();
+            }
+        }, POOL_CACHE_TTL / 2, POOL_CACHE_TTL / 2, TimeUnit.MILLISECONDS);
+    }
+
     public KVMStoragePool getStoragePool(StoragePoolType type, String uuid) {
+        CachedPool cached = _poolCache.get(uuid);
+        if (cached != null && cached.age() < POOL_CACHE_TTL) {
+            return cached.pool;
+        }
 
+        synchronized (getPoolLock(uuid)) {
+            // another thread may have fetched the pool while we were waiting
+            cached = _poolCache.get(uuid);
+            if (cached != null && cached.age() < POOL_CACHE_TTL) {
+                return cached.pool;
+            }
+            return fetchStoragePool(type, uuid);
+        }
+    }
+
+    private KVMStoragePool fetchStoragePool(StoragePoolType type, String uuid) {
         StorageAdaptor adaptor = getStorageAdaptor(type);
         KVMStoragePool pool = null;
         try {
             pool = adaptor.getStoragePool(uuid);
         } catch(Exception e) {
+            _poolCache.remove(uuid);
             StoragePoolInformation info = _storagePools.get(uuid);
             if (info != null) {
                 pool = createStoragePool(info.name, info.host, info.port, info.path, info.userInfo, info.poolType, info.type);
             }
         }
+        if (pool != null && isCacheable(uuid)) {
+            _poolCache.put(uuid, new CachedPool(pool));
+        }
         return pool;
     }
 
+    private boolean isCacheable(String uuid) {
+        StoragePoolInformation info = _storagePools.get(uuid);
+        return info == null || info.type;
+    }
+
+    public void invalidateStoragePool(String uuid) {
+        _poolCache.remove(uuid);
+    }
+
+    private void scheduleRefreshes() {
+        for (final Map.Entry<String, CachedPool> entry : _poolCache.entrySet()) {
+            final CachedPool cached = entry.getValue();
+            if (cached.age() < POOL_CACHE_TTL / 2 || !cached.refreshing.compareAndSet(false, true)) {
+                continue;
+            }
+            s_refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        synchronized (getPoolLock(entry.getKey())) {
+                            if (_poolCache.get(entry.getKey()) == cached) {
+                                fetchStoragePool(cached.pool.getType(), entry.getKey());
+                            }
+                        }
+                    } catch (Exception e) {
+                        s_logger.debug("Failed to refresh storage pool " + entry.getKey() + ": " + e.toString());
+                        _poolCache.remove(entry.getKey(), cached);
+                    } finally {
+                        cached.refreshing.set(false);
+                    }
+                }
+            });
+        }
+    }
+
     public KVMStoragePool getStoragePoolByURI(String uri) {
         URI storageUri = null;
 
@@ -154,6 +266,8 @@ public class KVMStoragePoolManager {
                 s_logger.debug("Failed to find volume:" + volName + " due to" + e.toString() + ", retry:" + cnt);
                 errMsg = e.toString();
             }
+            // the volume may have been created by another host since the pool was cached
+            invalidateStoragePool(poolUuid);
 
             try {
                 Thread.sleep(30000);
@@ -178,11 +292,21 @@ public class KVMStoragePoolManager {
     }
 
     //Note: due to bug CLOUDSTACK-4459, createStoragepool can be called in parallel, so need to be synced.
-    private synchronized KVMStoragePool createStoragePool( String name, String host, int port,
+    //Creating different pools does not conflict, so only calls for the same pool are serialized.
+    //The name of a pool is its uuid, so this takes the same lock as getStoragePool and deleteStoragePool.
+    private KVMStoragePool createStoragePool( String uuid, String host, int port,
+                                             String path, String userInfo,
+                                             StoragePoolType type, boolean primaryStorage) {
+        synchronized (getPoolLock(uuid)) {
+            return createStoragePoolInLock(uuid, host, port, path, userInfo, type, primaryStorage);
+        }
+    }
+
+    private KVMStoragePool createStoragePoolInLock( String uuid, String host, int port,
                                              String path, String userInfo,
                                              StoragePoolType type, boolean primaryStorage) {
         StorageAdaptor adaptor = getStorageAdaptor(type);
-        KVMStoragePool pool = adaptor.createStoragePool(name,
+        KVMStoragePool pool = adaptor.createStoragePool(uuid,
                                 host, port, path, userInfo, type);
 
         // LibvirtStorageAdaptor-specific statement
@@ -192,16 +316,22 @@ public class KVMStoragePoolManager {
                     PoolType.PrimaryStorage);
             _haMonitor.addStoragePool(nfspool);
         }
-        StoragePoolInformation info = new StoragePoolInformation(name, host, port, path, userInfo, type, primaryStorage);
-        addStoragePool(pool.getUuid(), info);
+        StoragePoolInformation info = new StoragePoolInformation(uuid, host, port, path, userInfo, type, primaryStorage);
+        addStoragePool(uuid, info);
+        if (primaryStorage) {
+            _poolCache.put(uuid, new CachedPool(pool));
+        }
         return pool;
     }
 
     public boolean deleteStoragePool(StoragePoolType type, String uuid) {
         StorageAdaptor adaptor = getStorageAdaptor(type);
         _haMonitor.removeStoragePool(uuid);
-        adaptor.deleteStoragePool(uuid);
-        _storagePools.remove(uuid);
+        synchronized (getPoolLock(uuid)) {
+            _poolCache.remove(uuid);
+            adaptor.deleteStoragePool(uuid);
+            _storagePools.remove(uuid);
+        }
         return true;
     }
 
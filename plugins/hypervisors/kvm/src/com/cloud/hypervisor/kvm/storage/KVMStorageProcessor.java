@@ -107,6 +107,7 @@ public class KVMStorageProcessor implements StorageProcessor {
     private String _createTmplPath;
     private String _manageSnapshotPath;
     private int _cmdsTimeout;
+    private KVMTemplateCache _templateCache;
 
     public KVMStorageProcessor(KVMStoragePoolManager storagePoolMgr, LibvirtComputingResource resource) {
         this.storagePoolMgr = storagePoolMgr;
@@ -138,6 +139,12 @@ public class KVMStorageProcessor implements StorageProcessor {
 
         String value = (String) params.get("cmds.timeout");
         _cmdsTimeout = NumbersUtil.parseInt(value, 7200) * 1000;
+
+        value = (String) params.get("template.copy.concurrency");
+        int copyConcurrency = NumbersUtil.parseInt(value, 4);
+        value = (String) params.get("template.cache.min.free.ratio");
+        float minFreeRatio = NumbersUtil.parseFloat(value, 0.1f);
+        _templateCache = new KVMTemplateCache(storagePoolMgr, (String) params.get("guid"), copyConcurrency, minFreeRatio);
         return true;
     }
 
@@ -226,13 +233,23 @@ public class KVMStorageProcessor implements StorageProcessor {
             return new CopyCmdAnswer(e.toString());
         } finally {
             if (secondaryPool != null) {
-                secondaryPool.delete();
+                storagePoolMgr.deleteStoragePool(secondaryPool.getType(), secondaryPool.getUuid());
             }
         }
     }
 
+    /**
+     * Called when a pool is connected, so that template copies cached by a previous run of the
+     * agent are cleaned up before the pool's capacity is reported.
+     */
+    public void poolConnected(KVMStoragePool pool) {
+        if (pool.getType() == StoragePoolType.CLVM) {
+            _templateCache.discover(pool);
+        }
+    }
+
     // this is much like PrimaryStorageDownloadCommand, but keeping it separate
-    private KVMPhysicalDisk templateToPrimaryDownload(String templateUrl, KVMStoragePool primaryPool, int timeout) {
+    private KVMPhysicalDisk templateToPrimaryDownload(String templateUrl, String name, KVMStoragePool primaryPool, int timeout) {
         int index = templateUrl.lastIndexOf("/");
         String mountpoint = templateUrl.substring(0, index);
         String templateName = null;
@@ -268,7 +285,7 @@ public class KVMStorageProcessor implements StorageProcessor {
 
             /* Copy volume to primary storage */
 
-            KVMPhysicalDisk primaryVol = storagePoolMgr.copyPhysicalDisk(templateVol, UUID.randomUUID().toString(),
+            KVMPhysicalDisk primaryVol = storagePoolMgr.copyPhysicalDisk(templateVol, name,
                     primaryPool, timeout);
             return primaryVol;
         } catch (CloudRuntimeException e) {
@@ -276,7 +293,7 @@ public class KVMStorageProcessor implements StorageProcessor {
             return null;
         } finally {
             if (secondaryPool != null) {
-                secondaryPool.delete();
+                storagePoolMgr.deleteStoragePool(secondaryPool.getType(), secondaryPool.getUuid());
             }
         }
     }
@@ -300,7 +317,14 @@ public class KVMStorageProcessor implements StorageProcessor {
 
             if (primaryPool.getType() == StoragePoolType.CLVM) {
                 templatePath = ((NfsTO)imageStore).getUrl() + File.separator + templatePath;
-                vol = templateToPrimaryDownload(templatePath, primaryPool, cmd.getWaitInMillSeconds());
+                // CLVM keeps no template on primary storage, so copy it once per host and clone locally from there
+                vol = _templateCache.createDiskFromTemplate(templatePath, primaryPool, cmd.getWaitInMillSeconds(),
+                        new KVMTemplateCache.BaseImageLoader() {
+                            @Override
+                            public KVMPhysicalDisk load(String templateUrl, String name, KVMStoragePool pool, int timeout) {
+                                return templateToPrimaryDownload(templateUrl, name, pool, timeout);
+                            }
+                        });
             } else {
                 if (templatePath.contains("/mnt")) {
                     //upgrade issue, if the path contains path, need to extract the volume uuid from path
@@ -540,7 +564,7 @@ public class KVMStorageProcessor implements StorageProcessor {
             return new CopyCmdAnswer(e.toString());
         } finally {
             if (secondaryStorage != null) {
-                secondaryStorage.delete();
+                storagePoolMgr.deleteStoragePool(secondaryStorage.getType(), secondaryStorage.getUuid());
             }
         }
     }
@@ -592,7 +616,7 @@ public class KVMStorageProcessor implements StorageProcessor {
                     srcFile.delete();
                 }
                 if (srcStorePool != null) {
-                    srcStorePool.delete();
+                    storagePoolMgr.deleteStoragePool(srcStorePool.getType(), srcStorePool.getUuid());
                 }
             } catch(Exception e) {
                 s_logger.debug("Failed to clean up:", e);
@@ -786,7 +810,7 @@ public class KVMStorageProcessor implements StorageProcessor {
             return new CopyCmdAnswer(e.toString());
         } finally {
             if (secondaryStoragePool != null) {
-                secondaryStoragePool.delete();
+                storagePoolMgr.deleteStoragePool(secondaryStoragePool.getType(), secondaryStoragePool.getUuid());
             }
         }
     }
@@ -0,0 +1,265 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Per-host cache of template base images on primary storage.
+ *
+ * The first request for a template on a pool copies it from secondary storage once;
+ * concurrent requests for the same template wait for that copy instead of starting
+ * their own.  Volumes are then created as local copies of the cached base image.
+ * Copies are bounded by a semaphore, and when a pool runs low on free space the least
+ * recently used base images that are not being copied from are deleted.
+ *
+ * Cached images are named after this host, so that the ones a previous run of the
+ * agent left behind can be found and removed when a pool is first used.
+ */
+public class KVMTemplateCache {
+    private static final Logger s_logger = Logger.getLogger(KVMTemplateCache.class);
+
+    public interface BaseImageLoader {
+        /**
+         * Copies the template to the pool under the given name.
+         */
+        KVMPhysicalDisk load(String templateUrl, String name, KVMStoragePool pool, int timeout);
+    }
+
+    static final String NAME_PREFIX = "tmplcache-";
+
+    private static class BaseImage {
+        final String key;
+        final String poolUuid;
+        final String name;
+        // guarded by this
+        int users = 0;
+        boolean evicted = false;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        BaseImage(String key, String poolUuid, String name) {
+            this.key = key;
+            this.poolUuid = poolUuid;
+            this.name = name;
+        }
+    }
+
+    private final KVMStoragePoolManager _poolMgr;
+    private final String _namePrefix;
+    private final Semaphore _copySlots;
+    private final double _minFreeRatio;
+    private final ConcurrentHashMap<String, FutureTask<BaseImage>> _images = new ConcurrentHashMap<String, FutureTask<BaseImage>>();
+    private final Set<String> _discoveredPools = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public KVMTemplateCache(KVMStoragePoolManager poolMgr, String hostId, int maxConcurrentCopies, double minFreeRatio) {
+        _poolMgr = poolMgr;
+        _namePrefix = NAME_PREFIX + UUID.nameUUIDFromBytes(String.valueOf(hostId).getBytes()) + "-";
+        _copySlots = new Semaphore(maxConcurrentCopies > 0 ? maxConcurrentCopies : 1, true);
+        _minFreeRatio = minFreeRatio;
+    }
+
+    public KVMPhysicalDisk createDiskFromTemplate(String templateUrl, KVMStoragePool pool, int timeout, BaseImageLoader loader) {
+        discover(pool);
+        BaseImage image = acquire(templateUrl, pool, timeout, loader);
+        try {
+            KVMPhysicalDisk base = pool.getPhysicalDisk(image.name);
+            String name = UUID.randomUUID().toString();
+            acquireCopySlot();
+            try {
+                return _poolMgr.copyPhysicalDisk(base, name, pool, timeout);
+            } finally {
+                _copySlots.release();
+            }
+        } finally {
+            image.lastUsed = System.currentTimeMillis();
+            synchronized (image) {
+                image.users--;
+            }
+            evictIfNeeded(pool);
+        }
+    }
+
+    /**
+     * Removes the cached images a previous run of the agent left on the pool, once per pool.
+     * Nothing records which template they hold or whether their copy completed, so they
+     * cannot be reused; removing them gives their space back before the pool is reported.
+     */
+    public void discover(KVMStoragePool pool) {
+        if (_discoveredPools.contains(pool.getUuid())) {
+            return;
+        }
+        synchronized (_discoveredPools) {
+            if (_discoveredPools.contains(pool.getUuid())) {
+                return;
+            }
+            try {
+                // no image of this run can be on the pool yet, every caching goes through here first
+                for (KVMPhysicalDisk disk : pool.listPhysicalDisks()) {
+                    if (disk.getName() != null && disk.getName().startsWith(_namePrefix)) {
+                        s_logger.debug("Removing cached template " + disk.getName() + " left on pool " + pool.getUuid() + " by a previous run");
+                        pool.deletePhysicalDisk(disk.getName());
+                    }
+                }
+                pool.refresh();
+            } catch (Exception e) {
+                s_logger.warn("Failed to look for cached templates left on pool " + pool.getUuid() + ": " + e.toString());
+            }
+            _discoveredPools.add(pool.getUuid());
+        }
+    }
+
+    private BaseImage acquire(final String templateUrl, final KVMStoragePool pool, final int timeout, final BaseImageLoader loader) {
+        final String key = pool.getUuid() + "|" + templateUrl;
+        final String name = _namePrefix + UUID.nameUUIDFromBytes(key.getBytes());
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            FutureTask<BaseImage> task = _images.get(key);
+            if (task == null) {
+                FutureTask<BaseImage> newTask = new FutureTask<BaseImage>(new Callable<BaseImage>() {
+                    @Override
+                    public BaseImage call() throws Exception {
+                        return load(key, name, templateUrl, pool, timeout, loader);
+                    }
+                });
+                task = _images.putIfAbsent(key, newTask);
+                if (task == null) {
+                    task = newTask;
+                    task.run();
+                }
+            }
+
+            BaseImage image;
+            try {
+                image = task.get();
+            } catch (InterruptedException e) {
+                throw new CloudRuntimeException("Interrupted while waiting for template " + templateUrl, e);
+            } catch (ExecutionException e) {
+                _images.remove(key, task);
+                throw new CloudRuntimeException("Failed to copy template " + templateUrl + " to pool " + pool.getUuid() + ": " + e.getCause(), e.getCause());
+            }
+
+            synchronized (image) {
+                if (!image.evicted) {
+                    image.users++;
+                    return image;
+                }
+            }
+            // evicted while we were waiting for it, copy it again
+        }
+        throw new CloudRuntimeException("Unable to keep template " + templateUrl + " cached on pool " + pool.getUuid());
+    }
+
+    private BaseImage load(String key, String name, String templateUrl, KVMStoragePool pool, int timeout, BaseImageLoader loader) {
+        acquireCopySlot();
+        try {
+            try {
+                if (pool.getPhysicalDisk(name) != null) {
+                    s_logger.debug("Removing stale cached copy " + name + " of template " + templateUrl);
+                    pool.deletePhysicalDisk(name);
+                }
+            } catch (Exception e) {
+                // not there, which is the usual case
+            }
+
+            s_logger.debug("Caching template " + templateUrl + " on pool " + pool.getUuid() + " as " + name);
+            KVMPhysicalDisk disk = loader.load(templateUrl, name, pool, timeout);
+            if (disk == null) {
+                throw new CloudRuntimeException("Failed to copy template " + templateUrl + " to pool " + pool.getUuid());
+            }
+            return new BaseImage(key, pool.getUuid(), disk.getName());
+        } finally {
+            _copySlots.release();
+        }
+    }
+
+    private void acquireCopySlot() {
+        try {
+            _copySlots.acquire();
+        } catch (InterruptedException e) {
+            throw new CloudRuntimeException("Interrupted while waiting to copy a template", e);
+        }
+    }
+
+    private void evictIfNeeded(KVMStoragePool pool) {
+        if (_minFreeRatio <= 0) {
+            return;
+        }
+        pool.refresh();
+        if (pool.getCapacity() <= 0 || (double)pool.getAvailable() / pool.getCapacity() >= _minFreeRatio) {
+            return;
+        }
+
+        List<BaseImage> candidates = new ArrayList<BaseImage>();
+        for (FutureTask<BaseImage> task : _images.values()) {
+            if (!task.isDone()) {
+                continue;
+            }
+            try {
+                BaseImage image = task.get();
+                if (image.poolUuid.equals(pool.getUuid())) {
+                    candidates.add(image);
+                }
+            } catch (Exception e) {
+                // failed copies are removed by acquire()
+            }
+        }
+        Collections.sort(candidates, new Comparator<BaseImage>() {
+            @Override
+            public int compare(BaseImage a, BaseImage b) {
+                return a.lastUsed < b.lastUsed ? -1 : (a.lastUsed == b.lastUsed ? 0 : 1);
+            }
+        });
+
+        for (BaseImage image : candidates) {
+            if ((double)pool.getAvailable() / pool.getCapacity() >= _minFreeRatio) {
+                break;
+            }
+            // the disk is deleted before the entry goes, so a new copy under the same name cannot race with it
+            synchronized (image) {
+                if (image.users > 0 || image.evicted) {
+                    continue;
+                }
+                image.evicted = true;
+                s_logger.debug("Evicting cached template " + image.name + " from pool " + pool.getUuid() + " to free space");
+                try {
+                    pool.deletePhysicalDisk(image.name);
+                } catch (Exception e) {
+                    s_logger.warn("Failed to evict cached template " + image.name + " from pool " + pool.getUuid() + ": " + e.toString());
+                }
+                FutureTask<BaseImage> task = _images.get(image.key);
+                if (task != null) {
+                    _images.remove(image.key, task);
+                }
+            }
+            pool.refresh();
+        }
+    }
+}
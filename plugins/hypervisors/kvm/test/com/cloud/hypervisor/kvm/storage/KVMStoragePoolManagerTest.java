@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.cloud.hypervisor.kvm.storage;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.hypervisor.kvm.resource.KVMHAMonitor;
+import com.cloud.storage.Storage.StoragePoolType;
+
+public class KVMStoragePoolManagerTest {
+    StorageAdaptor _adaptor;
+    KVMStoragePoolManager _manager;
+
+    @Before
+    public void setUp() {
+        _adaptor = mock(StorageAdaptor.class);
+        _manager = new KVMStoragePoolManager(_adaptor, mock(KVMHAMonitor.class));
+    }
+
+    private KVMStoragePool mockPool(String uuid) {
+        KVMStoragePool pool = mock(KVMStoragePool.class);
+        when(pool.getUuid()).thenReturn(uuid);
+        when(pool.getType()).thenReturn(StoragePoolType.Filesystem);
+        return pool;
+    }
+
+    @Test
+    public void testPoolIsCached() {
+        KVMStoragePool pool = mockPool("pool-1");
+        when(_adaptor.getStoragePool("pool-1")).thenReturn(pool);
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(pool, _manager.getStoragePool(StoragePoolType.Filesystem, "pool-1"));
+        }
+        verify(_adaptor, times(1)).getStoragePool("pool-1");
+
+        _manager.invalidateStoragePool("pool-1");
+        _manager.getStoragePool(StoragePoolType.Filesystem, "pool-1");
+        verify(_adaptor, times(2)).getStoragePool("pool-1");
+    }
+
+    @Test
+    public void testCreatedPoolIsServedFromCache() {
+        KVMStoragePool pool = mockPool("pool-2");
+        when(_adaptor.createStoragePool(eq("pool-2"), anyString(), anyInt(), anyString(), anyString(), eq(StoragePoolType.Filesystem))).thenReturn(pool);
+
+        _manager.createStoragePool("pool-2", "host", 0, "/path", "", StoragePoolType.Filesystem);
+        Assert.assertSame(pool, _manager.getStoragePool(StoragePoolType.Filesystem, "pool-2"));
+        verify(_adaptor, times(0)).getStoragePool("pool-2");
+
+        _manager.deleteStoragePool(StoragePoolType.Filesystem, "pool-2");
+        Assert.assertNull(_manager.getStoragePool(StoragePoolType.Filesystem, "pool-2"));
+    }
+
+    @Test
+    public void testSecondaryPoolIsNotCached() {
+        String uuid = UUID.nameUUIDFromBytes("nfs-host/export".getBytes()).toString();
+        KVMStoragePool pool = mockPool(uuid);
+        when(_adaptor.createStoragePool(eq(uuid), anyString(), anyInt(), anyString(), anyString(), eq(StoragePoolType.NetworkFilesystem))).thenReturn(pool);
+        when(_adaptor.getStoragePool(uuid)).thenReturn(pool);
+
+        Assert.assertSame(pool, _manager.getStoragePoolByURI("nfs://nfs-host/export"));
+        _manager.getStoragePool(StoragePoolType.NetworkFilesystem, uuid);
+        _manager.getStoragePool(StoragePoolType.NetworkFilesystem, uuid);
+        // every lookup goes to libvirt, so a deleted pool is never handed out or remounted
+        verify(_adaptor, times(2)).getStoragePool(uuid);
+
+        _manager.deleteStoragePool(StoragePoolType.NetworkFilesystem, uuid);
+        verify(_adaptor).deleteStoragePool(uuid);
+    }
+
+    @Test(timeout = 10000)
+    public void testHungPoolDoesNotBlockOtherPools() throws Exception {
+        final CountDownLatch hung = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final KVMStoragePool slowPool = mockPool("slow");
+        when(_adaptor.createStoragePool(eq("slow"), anyString(), anyInt(), anyString(), anyString(), eq(StoragePoolType.NetworkFilesystem))).thenAnswer(
+                new Answer<KVMStoragePool>() {
+                    @Override
+                    public KVMStoragePool answer(InvocationOnMock invocation) throws Throwable {
+                        hung.countDown();
+                        release.await();
+                        return slowPool;
+                    }
+                });
+        KVMStoragePool fast = mockPool("fast");
+        when(_adaptor.createStoragePool(eq("fast"), anyString(), anyInt(), anyString(), anyString(), eq(StoragePoolType.Filesystem))).thenReturn(fast);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<KVMStoragePool> slow = executor.submit(new Callable<KVMStoragePool>() {
+            @Override
+            public KVMStoragePool call() {
+                return _manager.createStoragePool("slow", "nfs", 0, "/export", "", StoragePoolType.NetworkFilesystem);
+            }
+        });
+        Assert.assertTrue(hung.await(5, TimeUnit.SECONDS));
+
+        Assert.assertSame(fast, _manager.createStoragePool("fast", "host", 0, "/path", "", StoragePoolType.Filesystem));
+        Assert.assertSame(fast, _manager.getStoragePool(StoragePoolType.Filesystem, "fast"));
+
+        release.countDown();
+        Assert.assertNotNull(slow.get());
+        executor.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void testLookupWaitsForCreateOfSamePool() throws Exception {
+        final CountDownLatch creating = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final KVMStoragePool pool = mockPool("pool-3");
+        when(_adaptor.createStoragePool(eq("pool-3"), anyString(), anyInt(), anyString(), anyString(), eq(StoragePoolType.Filesystem))).thenAnswer(
+                new Answer<KVMStoragePool>() {
+                    @Override
+                    public KVMStoragePool answer(InvocationOnMock invocation) throws Throwable {
+                        creating.countDown();
+                        release.await();
+                        return pool;
+                    }
+                });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        executor.submit(new Callable<KVMStoragePool>() {
+            @Override
+            public KVMStoragePool call() {
+                return _manager.createStoragePool("pool-3", "host", 0, "/path", "", StoragePoolType.Filesystem);
+            }
+        });
+        Assert.assertTrue(creating.await(5, TimeUnit.SECONDS));
+        Future<KVMStoragePool> lookup = executor.submit(new Callable<KVMStoragePool>() {
+            @Override
+            public KVMStoragePool call() {
+                return _manager.getStoragePool(StoragePoolType.Filesystem, "pool-3");
+            }
+        });
+
+        release.countDown();
+        // the lookup waited on the same lock and found the pool the create cached
+        Assert.assertSame(pool, lookup.get());
+        verify(_adaptor, times(0)).getStoragePool("pool-3");
+        executor.shutdown();
+    }
+
+    /**
+     * Many threads starting VMs against a handful of pools, each libvirt lookup
+     * taking a few milliseconds.
+     */
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final int pools = 8;
+        final int threads = 32;
+        final int lookups = 500;
+        for (int i = 0; i < pools; i++) {
+            final KVMStoragePool pool = mockPool("pool-" + i);
+            when(_adaptor.getStoragePool("pool-" + i)).thenAnswer(new Answer<KVMStoragePool>() {
+                @Override
+                public KVMStoragePool answer(InvocationOnMock invocation) throws Throwable {
+                    Thread.sleep(5);
+                    return pool;
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < lookups; i++) {
+                        _manager.getStoragePool(StoragePoolType.Filesystem, "pool-" + ((offset + i) % pools));
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        for (int i = 0; i < pools; i++) {
+            verify(_adaptor, times(1)).getStoragePool("pool-" + i);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.cloud.hypervisor.kvm.storage;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.storage.Storage.StoragePoolType;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class KVMTemplateCacheTest {
+    static final String HOST_PREFIX = KVMTemplateCache.NAME_PREFIX + UUID.nameUUIDFromBytes("host-1".getBytes()) + "-";
+
+    KVMStoragePoolManager _poolMgr;
+    KVMStoragePool _pool;
+    volatile long _available = 90;
+
+    class CountingLoader implements KVMTemplateCache.BaseImageLoader {
+        final List<String> _names = new ArrayList<String>();
+        final AtomicInteger _loads = new AtomicInteger();
+
+        @Override
+        public KVMPhysicalDisk load(String templateUrl, String name, KVMStoragePool pool, int timeout) {
+            _loads.incrementAndGet();
+            synchronized (_names) {
+                _names.add(name);
+            }
+            return new KVMPhysicalDisk("/dev/vg/" + name, name, pool);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        _poolMgr = mock(KVMStoragePoolManager.class);
+        _pool = mock(KVMStoragePool.class);
+        when(_pool.getUuid()).thenReturn("pool-1");
+        when(_pool.getType()).thenReturn(StoragePoolType.CLVM);
+        when(_pool.getCapacity()).thenReturn(100L);
+        when(_pool.getAvailable()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                return _available;
+            }
+        });
+        when(_pool.listPhysicalDisks()).thenReturn(new ArrayList<KVMPhysicalDisk>());
+    }
+
+    KVMTemplateCache cache() {
+        return new KVMTemplateCache(_poolMgr, "host-1", 2, 0.5);
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentRequestsCopyTemplateOnce() throws Exception {
+        final KVMTemplateCache cache = cache();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountingLoader loader = new CountingLoader() {
+            @Override
+            public KVMPhysicalDisk load(String templateUrl, String name, KVMStoragePool pool, int timeout) {
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                return super.load(templateUrl, name, pool, timeout);
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<KVMPhysicalDisk>> clones = new ArrayList<Future<KVMPhysicalDisk>>();
+        for (int i = 0; i < 4; i++) {
+            clones.add(executor.submit(new Callable<KVMPhysicalDisk>() {
+                @Override
+                public KVMPhysicalDisk call() {
+                    return cache.createDiskFromTemplate("nfs://sec/template/1", _pool, 1000, loader);
+                }
+            }));
+        }
+        Assert.assertTrue(loading.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        for (Future<KVMPhysicalDisk> clone : clones) {
+            clone.get();
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(1, loader._loads.get());
+        Assert.assertTrue(loader._names.get(0).startsWith(HOST_PREFIX));
+        verify(_poolMgr, times(4)).copyPhysicalDisk(any(KVMPhysicalDisk.class), anyString(), any(KVMStoragePool.class), anyInt());
+    }
+
+    @Test
+    public void testFailedCopyIsRetried() {
+        KVMTemplateCache cache = cache();
+        final AtomicInteger attempts = new AtomicInteger();
+        CountingLoader loader = new CountingLoader() {
+            @Override
+            public KVMPhysicalDisk load(String templateUrl, String name, KVMStoragePool pool, int timeout) {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new CloudRuntimeException("secondary storage is not mounted");
+                }
+                return super.load(templateUrl, name, pool, timeout);
+            }
+        };
+
+        try {
+            cache.createDiskFromTemplate("nfs://sec/template/1", _pool, 1000, loader);
+            Assert.fail("the first copy failed");
+        } catch (CloudRuntimeException e) {
+        }
+        cache.createDiskFromTemplate("nfs://sec/template/1", _pool, 1000, loader);
+        cache.createDiskFromTemplate("nfs://sec/template/1", _pool, 1000, loader);
+        Assert.assertEquals(1, loader._loads.get());
+    }
+
+    @Test
+    public void testLeftoversOfThisHostAreRemovedOnce() {
+        String leftover = HOST_PREFIX + UUID.randomUUID();
+        String otherHost = KVMTemplateCache.NAME_PREFIX + UUID.nameUUIDFromBytes("host-2".getBytes()) + "-" + UUID.randomUUID();
+        String volume = UUID.randomUUID().toString();
+        List<KVMPhysicalDisk> disks = new ArrayList<KVMPhysicalDisk>();
+        for (String name : Arrays.asList(leftover, otherHost, volume)) {
+            disks.add(new KVMPhysicalDisk("/dev/vg/" + name, name, _pool));
+        }
+        when(_pool.listPhysicalDisks()).thenReturn(disks);
+
+        KVMTemplateCache cache = cache();
+        cache.discover(_pool);
+        cache.createDiskFromTemplate("nfs://sec/template/1", _pool, 1000, new CountingLoader());
+
+        verify(_pool, times(1)).listPhysicalDisks();
+        verify(_pool).deletePhysicalDisk(leftover);
+        verify(_pool, never()).deletePhysicalDisk(otherHost);
+        verify(_pool, never()).deletePhysicalDisk(volume);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedImageIsEvictedWhenPoolIsFull() throws Exception {
+        KVMTemplateCache cache = cache();
+        CountingLoader loader = new CountingLoader();
+        cache.createDiskFromTemplate("nfs://sec/template/1", _pool, 1000, loader);
+        Thread.sleep(10);
+        cache.createDiskFromTemplate("nfs://sec/template/2", _pool, 1000, loader);
+        Thread.sleep(10);
+        Assert.assertEquals(2, loader._loads.get());
+
+        // evicting one image frees enough
+        _available = 40;
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                _available += 20;
+                return true;
+            }
+        }).when(_pool).deletePhysicalDisk(anyString());
+        cache.createDiskFromTemplate("nfs://sec/template/2", _pool, 1000, loader);
+
+        verify(_pool).deletePhysicalDisk(loader._names.get(0));
+        verify(_pool, never()).deletePhysicalDisk(loader._names.get(1));
+
+        // the evicted template is copied again, the other one is still cached
+        cache.createDiskFromTemplate("nfs://sec/template/2", _pool, 1000, loader);
+        Assert.assertEquals(2, loader._loads.get());
+        cache.createDiskFromTemplate("nfs://sec/template/1", _pool, 1000, loader);
+        Assert.assertEquals(3, loader._loads.get());
+    }
+}
@@ -23,11 +23,15 @@ import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
 import com.cloud.cluster.ClusterManager;
+import com.cloud.configuration.Config;
+import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.hypervisor.vmware.manager.VmwareManager;
 import com.cloud.hypervisor.vmware.util.VmwareClient;
 import com.cloud.hypervisor.vmware.util.VmwareContext;
 import com.cloud.hypervisor.vmware.util.VmwareContextPool;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.StringUtils;
+import com.cloud.utils.mgmt.JmxUtil;
 
 @Component
 public class VmwareContextFactory {
@@ -40,6 +44,7 @@ public class VmwareContextFactory {
 
 	@Inject VmwareManager _vmwareMgr;
 	@Inject ClusterManager _clusterMgr;
+	@Inject ConfigurationDao _configDao;
 
 	static {
 		// skip certificate check
@@ -51,6 +56,17 @@ public class VmwareContextFactory {
 	void init() {
 	    s_vmwareMgr = _vmwareMgr;
 	    s_clusterMgr = _clusterMgr;
+
+	    int maxContexts = NumbersUtil.parseInt(_configDao.getValue(Config.VmwareContextPoolMaxSize.key()), 64);
+	    int warmContexts = NumbersUtil.parseInt(_configDao.getValue(Config.VmwareContextPoolWarmSize.key()), 4);
+	    int waitSeconds = NumbersUtil.parseInt(_configDao.getValue(Config.VmwareContextPoolWait.key()), 120);
+	    s_pool.configure(maxContexts, warmContexts, waitSeconds * 1000L);
+
+	    try {
+	        JmxUtil.registerMBean("VMware", "ContextPool", s_pool);
+	    } catch (Exception e) {
+	        s_logger.warn("Unable to register the VMware context pool MBean", e);
+	    }
 	}
 
 	public static VmwareContext create(String vCenterAddress, String vCenterUserName, String vCenterPassword) throws Exception {
@@ -78,17 +94,15 @@ public class VmwareContextFactory {
 		return context;
 	}
 	
-	public static VmwareContext getContext(String vCenterAddress, String vCenterUserName, String vCenterPassword) throws Exception {
-		VmwareContext context = s_pool.getContext(vCenterAddress, vCenterUserName);
-		if(context == null) {
-			context = create(vCenterAddress, vCenterUserName, vCenterPassword);
-		} else {
-			if(!context.validate()) {
-				s_logger.info("Validation of the context faild. dispose and create a new one");
-				context.close();
-				context = create(vCenterAddress, vCenterUserName, vCenterPassword);
+	public static VmwareContext getContext(final String vCenterAddress, final String vCenterUserName, final String vCenterPassword) throws Exception {
+		VmwareContextPool.ContextCreator creator = new VmwareContextPool.ContextCreator() {
+			@Override
+			public VmwareContext create() throws Exception {
+				return VmwareContextFactory.create(vCenterAddress, vCenterUserName, vCenterPassword);
 			}
-		}
+		};
+
+		VmwareContext context = s_pool.getContext(vCenterAddress, vCenterUserName, creator);
 		
 		if(context != null) {
 			context.registerStockObject(VmwareManager.CONTEXT_STOCK_NAME, s_vmwareMgr);
@@ -229,12 +229,15 @@ import com.cloud.hypervisor.vmware.mo.VirtualMachineDiskInfo;
 import com.cloud.hypervisor.vmware.mo.VirtualMachineDiskInfoBuilder;
 import com.cloud.hypervisor.vmware.mo.VirtualMachineMO;
 import com.cloud.hypervisor.vmware.mo.VirtualSwitchType;
+import com.cloud.hypervisor.vmware.mo.VmInventoryCache;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHost;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHostNetworkSummary;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHostResourceSummary;
 import com.cloud.hypervisor.vmware.util.VmwareContext;
+import com.cloud.hypervisor.vmware.util.VmwareContextPool;
 import com.cloud.hypervisor.vmware.util.VmwareGuestOsMapper;
 import com.cloud.hypervisor.vmware.util.VmwareHelper;
+import com.cloud.hypervisor.vmware.util.VmwareInventorySession;
 import com.cloud.network.HAProxyConfigurator;
 import com.cloud.network.LoadBalancerConfigurator;
 import com.cloud.network.Networks;
@@ -371,6 +374,10 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
     protected String _hostName;
 
     protected HashMap<String, State> _vms = new HashMap<String, State>(71);
+    // VM properties of the ping and stats syncs, collected in the inventory session of the vCenter
+    protected VmInventoryCache _vmInventory;
+    protected String _vmInventoryCustomField;
+    protected final Object _vmInventoryLock = new Object();
     protected List<PropertyMapDynamicBean> _cmdMBeans = new ArrayList<PropertyMapDynamicBean>();
 
     protected Gson _gson;
@@ -6309,7 +6316,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
         
         // CLOUD_VM_INTERNAL_NAME stores the internal CS generated vm name. This was earlier stored in name. Now, name can be either the hostname or
         // the internal CS name, but the custom field CLOUD_VM_INTERNAL_NAME always stores the internal CS name.
-        ObjectContent[] ocs = hyperHost.getVmPropertiesOnHyperHost(new String[] { "name", "runtime.powerState", "config.template", instanceNameCustomField });
+        ObjectContent[] ocs = getInventoryVmProperties(hyperHost, instanceNameCustomField, new String[] { "name", "runtime.powerState", "config.template", instanceNameCustomField });
 
         HashMap<String, State> newStates = new HashMap<String, State>();
         if (ocs != null && ocs.length > 0) {
@@ -6377,7 +6384,9 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
 		}
 		String instanceNameCustomField = "value[" + key + "]";
 
-        ObjectContent[] ocs = hyperHost.getVmPropertiesOnHyperHost(new String[] {"name", "summary.config.numCpu", "summary.quickStats.overallCpuUsage", instanceNameCustomField});
+        ObjectContent[] ocs = getInventoryVmProperties(hyperHost, instanceNameCustomField, new String[] {"name", "summary.config.numCpu", "summary.quickStats.overallCpuUsage", instanceNameCustomField});
+        List<PerfQuerySpec> qSpecs = new ArrayList<PerfQuerySpec>();
+        Map<String, String> vmNameByMor = new HashMap<String, String>();
         if (ocs != null && ocs.length > 0) {
             for (ObjectContent oc : ocs) {
                 List<DynamicProperty> objProps = oc.getPropSet();
@@ -6400,7 +6409,6 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                             maxCpuUsage =  objProp.getVal().toString();
                         }
                     }
-                    VirtualMachineMO vmMo = new VirtualMachineMO(hyperHost.getContext(), oc.getObj());
                     if (vmInternalCSName != null) {
                         name = vmInternalCSName;
                     } else {
@@ -6411,7 +6419,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                         continue;
                     }
 
-                    ManagedObjectReference vmMor = hyperHost.findVmOnHyperHost(name).getMor();
+                    ManagedObjectReference vmMor = oc.getObj();
                     assert(vmMor!=null);
 
                     ArrayList vmNetworkMetrics = new ArrayList();
@@ -6426,46 +6434,112 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                         }
                     }
 
-                    double networkReadKBs=0;
-                    double networkWriteKBs=0;
-                    long sampleDuration=0;
-
                     if (vmNetworkMetrics.size() != 0) {
                         PerfQuerySpec qSpec = new PerfQuerySpec();
                         qSpec.setEntity(vmMor);
                         PerfMetricId[] availableMetricIds = (PerfMetricId[]) vmNetworkMetrics.toArray(new PerfMetricId[0]);
                         qSpec.getMetricId().addAll(Arrays.asList(availableMetricIds));
-                        List<PerfQuerySpec> qSpecs = new ArrayList<PerfQuerySpec>();
                         qSpecs.add(qSpec);
-                        List<PerfEntityMetricBase> values = service.queryPerf(perfMgr, qSpecs);
-
-                        for(int i=0; i<values.size(); ++i) {
-                            List<PerfSampleInfo>  infos = ((PerfEntityMetric)values.get(i)).getSampleInfo();
-                            int endMs = infos.get(infos.size()-1).getTimestamp().getSecond() * 1000 + infos.get(infos.size()-1).getTimestamp().getMillisecond();
-                            int beginMs = infos.get(0).getTimestamp().getSecond() * 1000 + infos.get(0).getTimestamp().getMillisecond();
-                            sampleDuration = (endMs - beginMs) /1000;
-                            List<PerfMetricSeries> vals = ((PerfEntityMetric)values.get(i)).getValue();
-                            for(int vi = 0; ((vals!= null) && (vi < vals.size())); ++vi){
-                                if(vals.get(vi) instanceof PerfMetricIntSeries) {
-                                    PerfMetricIntSeries val = (PerfMetricIntSeries)vals.get(vi);
-                                    List<Long> perfValues = val.getValue();
-                                    if (vals.get(vi).getId().getCounterId() == rxPerfCounterInfo.getKey()) {
-                                        networkReadKBs = sampleDuration * perfValues.get(3); //get the average RX rate multiplied by sampled duration
-                                    }
-                                    if (vals.get(vi).getId().getCounterId() == txPerfCounterInfo.getKey()) {
-                                        networkWriteKBs = sampleDuration * perfValues.get(3);//get the average TX rate multiplied by sampled duration
-                                    }
-                                }
-                            }
+                    }
+                    vmNameByMor.put(vmMor.getValue(), name);
+                    vmResponseMap.put(name, new VmStatsEntry(Integer.parseInt(maxCpuUsage), 0, 0, Integer.parseInt(numberCPUs), "vm"));
+                }
+            }
+        }
+
+        if (!qSpecs.isEmpty()) {
+            // one query for the network counters of all the VMs
+            List<PerfEntityMetricBase> values = service.queryPerf(perfMgr, qSpecs);
+
+            for(int i=0; i<values.size(); ++i) {
+                VmStatsEntry statsEntry = vmResponseMap.get(vmNameByMor.get(values.get(i).getEntity().getValue()));
+                if (statsEntry == null) {
+                    continue;
+                }
+
+                double networkReadKBs=0;
+                double networkWriteKBs=0;
+                long sampleDuration=0;
+
+                List<PerfSampleInfo>  infos = ((PerfEntityMetric)values.get(i)).getSampleInfo();
+                int endMs = infos.get(infos.size()-1).getTimestamp().getSecond() * 1000 + infos.get(infos.size()-1).getTimestamp().getMillisecond();
+                int beginMs = infos.get(0).getTimestamp().getSecond() * 1000 + infos.get(0).getTimestamp().getMillisecond();
+                sampleDuration = (endMs - beginMs) /1000;
+                List<PerfMetricSeries> vals = ((PerfEntityMetric)values.get(i)).getValue();
+                for(int vi = 0; ((vals!= null) && (vi < vals.size())); ++vi){
+                    if(vals.get(vi) instanceof PerfMetricIntSeries) {
+                        PerfMetricIntSeries val = (PerfMetricIntSeries)vals.get(vi);
+                        List<Long> perfValues = val.getValue();
+                        if (vals.get(vi).getId().getCounterId() == rxPerfCounterInfo.getKey()) {
+                            networkReadKBs = sampleDuration * perfValues.get(3); //get the average RX rate multiplied by sampled duration
+                        }
+                        if (vals.get(vi).getId().getCounterId() == txPerfCounterInfo.getKey()) {
+                            networkWriteKBs = sampleDuration * perfValues.get(3);//get the average TX rate multiplied by sampled duration
                         }
                     }
-                    vmResponseMap.put(name, new VmStatsEntry(Integer.parseInt(maxCpuUsage), networkReadKBs, networkWriteKBs, Integer.parseInt(numberCPUs), "vm"));
                 }
+                statsEntry.setNetworkReadKBs(networkReadKBs);
+                statsEntry.setNetworkWriteKBs(networkWriteKBs);
             }
         }
         return vmResponseMap;
     }
 
+    private ObjectContent[] getInventoryVmProperties(VmwareHypervisorHost hyperHost, String instanceNameCustomField, String[] propertyPaths) throws Exception {
+        try {
+            return getVmInventory(hyperHost, instanceNameCustomField).getVmProperties(propertyPaths);
+        } catch (Exception e) {
+            s_logger.warn("Unable to refresh the VM inventory of " + _morHyperHost.getValue() + ", read the VM properties directly. " + e.getMessage());
+            closeVmInventory();
+            return hyperHost.getVmPropertiesOnHyperHost(propertyPaths);
+        }
+    }
+
+    private VmInventoryCache getVmInventory(VmwareHypervisorHost hyperHost, String instanceNameCustomField) throws Exception {
+        synchronized (_vmInventoryLock) {
+            // the property collectors of all hosts of the vCenter live in one session, calls through it take turns
+            VmwareInventorySession session = VmwareInventorySession.get(_vCenterAddress, _username);
+            synchronized (session) {
+                VmwareContext context = session.getContext(new VmwareContextPool.ContextCreator() {
+                    @Override
+                    public VmwareContext create() throws Exception {
+                        return VmwareContextFactory.create(_vCenterAddress, _username, _password);
+                    }
+                });
+
+                // a collector goes away with the session it was created in
+                if (_vmInventory != null && (_vmInventory.getContext() != context || !instanceNameCustomField.equals(_vmInventoryCustomField))) {
+                    closeVmInventory();
+                }
+
+                if (_vmInventory == null) {
+                    _vmInventory = new VmInventoryCache(context, hyperHost.getVmPropertyFilterSpec(new String[] {
+                        "name", "runtime.powerState", "config.template", "summary.config.numCpu", "summary.quickStats.overallCpuUsage", instanceNameCustomField }));
+                    _vmInventoryCustomField = instanceNameCustomField;
+                }
+
+                try {
+                    _vmInventory.refresh();
+                } catch (Exception e) {
+                    session.checkContext(context);
+                    throw e;
+                }
+                return _vmInventory;
+            }
+        }
+    }
+
+    private void closeVmInventory() {
+        synchronized (_vmInventoryLock) {
+            if (_vmInventory != null) {
+                synchronized (VmwareInventorySession.get(_vCenterAddress, _username)) {
+                    _vmInventory.close();
+                }
+                _vmInventory = null;
+            }
+        }
+    }
+
     protected String networkUsage(final String privateIpAddress, final String option, final String ethName) {
         String args = null;
         if (option.equals("get")) {
@@ -6739,6 +6813,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
 
     @Override
     public boolean stop() {
+        closeVmInventory();
         return true;
     }
 
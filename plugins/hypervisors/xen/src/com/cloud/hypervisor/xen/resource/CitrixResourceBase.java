@@ -259,14 +259,9 @@ import org.apache.cloudstack.storage.to.VolumeObjectTO;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.XmlRpcException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -342,6 +337,8 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
 
     // Guest and Host Performance Statistics
     protected String _consolidationFunction = "AVERAGE";
+    protected RrdUpdatesParser _hostRrdParser = new RrdUpdatesParser();
+    protected RrdUpdatesParser _vmRrdParser = new RrdUpdatesParser();
     protected int _pollingIntervalInSeconds = 60;
 
     //Hypervisor specific params with generic value, may need to be overridden for specific versions
@@ -2601,68 +2598,47 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     protected HostStatsEntry getHostStats(Connection conn, GetHostStatsCommand cmd, String hostGuid, long hostId) {
 
         HostStatsEntry hostStats = new HostStatsEntry(hostId, 0, 0, 0, "host", 0, 0, 0, 0);
-        Object[] rrdData = getRRDData(conn, 1); // call rrd method with 1 for host
+        RrdUpdatesParser.Averages rrdData = getRRDData(conn, 1, new RrdUpdatesParser.ColumnSelector() { // call rrd method with 1 for host
+            @Override
+            public boolean select(RrdUpdatesParser.Column column) {
+                return column.getType().equalsIgnoreCase("host");
+            }
+        });
 
         if (rrdData == null) {
             return null;
         }
 
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
-
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
+        for (int col = 0; col < rrdData.size(); col++) {
+            String param = rrdData.getColumn(col).getParam();
+            double average = rrdData.getAverage(col);
 
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
+            if (param.contains("pif_eth0_rx")) {
+                hostStats.setNetworkReadKBs(average);
             }
 
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
+            if (param.contains("pif_eth0_tx")) {
+                hostStats.setNetworkWriteKBs(average);
             }
 
-            String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
+            if (param.contains("memory_total_kib")) {
+                hostStats.setTotalMemoryKBs(average);
             }
 
-            String type = columnMetadataList[1];
-            String param = columnMetadataList[3];
-
-            if (type.equalsIgnoreCase("host")) {
-
-                if (param.contains("pif_eth0_rx")) {
-                    hostStats.setNetworkReadKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("pif_eth0_tx")) {
-                    hostStats.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("memory_total_kib")) {
-                    hostStats.setTotalMemoryKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("memory_free_kib")) {
-                    hostStats.setFreeMemoryKBs(getDataAverage(dataNode, col, numRows));
-                }
+            if (param.contains("memory_free_kib")) {
+                hostStats.setFreeMemoryKBs(average);
+            }
 
-                if (param.contains("cpu")) {
-                    // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
-                    hostStats.setCpuUtilization(hostStats.getCpuUtilization() + getDataAverage(dataNode, col, numRows));
-                }
+            if (param.contains("cpu")) {
+                // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
+                hostStats.setCpuUtilization(hostStats.getCpuUtilization() + average);
+            }
 
-                /*
-                if (param.contains("loadavg")) {
-                    hostStats.setAverageLoad((hostStats.getAverageLoad() + getDataAverage(dataNode, col, numRows)));
-                }
-                 */
+            /*
+            if (param.contains("loadavg")) {
+                hostStats.setAverageLoad((hostStats.getAverageLoad() + average));
             }
+             */
         }
 
         // add the host cpu utilization
@@ -2721,55 +2697,33 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             vmResponseMap.put(vmUUID, new VmStatsEntry(0, 0, 0, 0, "vm"));
         }
 
-        Object[] rrdData = getRRDData(conn, 2); // call rrddata with 2 for vm
+        final HashMap<String, VmStatsEntry> requested = vmResponseMap;
+        RrdUpdatesParser.Averages rrdData = getRRDData(conn, 2, new RrdUpdatesParser.ColumnSelector() { // call rrddata with 2 for vm
+            @Override
+            public boolean select(RrdUpdatesParser.Column column) {
+                return column.getType().equals("vm") && requested.containsKey(column.getUuid());
+            }
+        });
 
         if (rrdData == null) {
             return null;
         }
 
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
-
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
-
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
-            }
-
-            String[] columnMetadataList = columnMetadata.split(":");
+        for (int col = 0; col < rrdData.size(); col++) {
+            String param = rrdData.getColumn(col).getParam();
+            double average = rrdData.getAverage(col);
+            VmStatsEntry vmStatsAnswer = vmResponseMap.get(rrdData.getColumn(col).getUuid());
 
-            if (columnMetadataList.length != 4) {
-                continue;
-            }
-
-            String type = columnMetadataList[1];
-            String uuid = columnMetadataList[2];
-            String param = columnMetadataList[3];
-
-            if (type.equals("vm") && vmResponseMap.keySet().contains(uuid)) {
-                VmStatsEntry vmStatsAnswer = vmResponseMap.get(uuid);
+            vmStatsAnswer.setEntityType("vm");
 
-                vmStatsAnswer.setEntityType("vm");
-
-                if (param.contains("cpu")) {
-                    vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
-                    vmStatsAnswer.setCPUUtilization(((vmStatsAnswer.getCPUUtilization() + getDataAverage(dataNode, col, numRows))));
-                } else if (param.matches("vif_\\d_rx")) {
-                    vmStatsAnswer.setNetworkReadKBs(vmStatsAnswer.getNetworkReadKBs() + (getDataAverage(dataNode, col, numRows)/(8*2)));
-                } else if (param.matches("vif_\\d_tx")) {
-                    vmStatsAnswer.setNetworkWriteKBs(vmStatsAnswer.getNetworkWriteKBs() + (getDataAverage(dataNode, col, numRows)/(8*2)));
-                }
+            if (param.contains("cpu")) {
+                vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
+                vmStatsAnswer.setCPUUtilization(((vmStatsAnswer.getCPUUtilization() + average)));
+            } else if (param.matches("vif_\\d_rx")) {
+                vmStatsAnswer.setNetworkReadKBs(vmStatsAnswer.getNetworkReadKBs() + (average/(8*2)));
+            } else if (param.matches("vif_\\d_tx")) {
+                vmStatsAnswer.setNetworkWriteKBs(vmStatsAnswer.getNetworkWriteKBs() + (average/(8*2)));
             }
-
         }
 
         for (String vmUUID : vmResponseMap.keySet()) {
@@ -2815,114 +2769,39 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return new GetVmDiskStatsAnswer(cmd, null, null, null);
     }
 
-    protected Object[] getRRDData(Connection conn, int flag) {
+    protected RrdUpdatesParser.Averages getRRDData(Connection conn, int flag, RrdUpdatesParser.ColumnSelector selector) {
 
         /*
          * Note: 1 => called from host, hence host stats 2 => called from vm, hence vm stats
          */
         String stats = "";
+        RrdUpdatesParser parser = null;
 
         try {
             if (flag == 1) {
                 stats = getHostStatsRawXML(conn);
+                parser = _hostRrdParser;
             }
             if (flag == 2) {
                 stats = getVmStatsRawXML(conn);
+                parser = _vmRrdParser;
             }
         } catch (Exception e1) {
             s_logger.warn("Error whilst collecting raw stats from plugin: ", e1);
             return null;
         }
 
-        // s_logger.debug("The raw xml stream is:"+stats);
-        // s_logger.debug("Length of raw xml is:"+stats.length());
-
         //stats are null when the host plugin call fails (host down state)
         if(stats == null) {
             return null;
         }
 
-        StringReader statsReader = new StringReader(stats);
-        InputSource statsSource = new InputSource(statsReader);
-
-        Document doc = null;
         try {
-            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(statsSource);
+            return parser.parse(new StringReader(stats), selector);
         } catch (Exception e) {
-            s_logger.warn("Exception caught whilst processing the document via document factory:", e);
-            return null;
-        }
-
-        if(doc==null){
-            s_logger.warn("Null document found after tryinh to parse the stats source");
+            s_logger.warn("Exception caught whilst parsing the stats:", e);
             return null;
         }
-
-        NodeList firstLevelChildren = doc.getChildNodes();
-        NodeList secondLevelChildren = (firstLevelChildren.item(0)).getChildNodes();
-        Node metaNode = secondLevelChildren.item(0);
-        Node dataNode = secondLevelChildren.item(1);
-
-        Integer numRows = 0;
-        Integer numColumns = 0;
-        Node legend = null;
-        NodeList metaNodeChildren = metaNode.getChildNodes();
-        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
-            Node n = metaNodeChildren.item(i);
-            if (n.getNodeName().equals("rows")) {
-                numRows = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("columns")) {
-                numColumns = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("legend")) {
-                legend = n;
-            }
-        }
-
-        return new Object[] { numRows, numColumns, legend, dataNode };
-    }
-
-    protected String getXMLNodeValue(Node n) {
-        return n.getChildNodes().item(0).getNodeValue();
-    }
-
-    protected double getDataAverage(Node dataNode, int col, int numRows) {
-        double value = 0;
-        double dummy = 0;
-        int numRowsUsed = 0;
-        for (int row = 0; row < numRows; row++) {
-            Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
-            Double currentDataAsDouble = Double.valueOf(getXMLNodeValue(data));
-            if (!currentDataAsDouble.equals(Double.NaN)) {
-                numRowsUsed += 1;
-                value += currentDataAsDouble;
-            }
-        }
-
-        if(numRowsUsed == 0)
-        {
-            if((!Double.isInfinite(value))&&(!Double.isNaN(value)))
-            {
-                return value;
-            }
-            else
-            {
-                s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows=0");
-                return dummy;
-            }
-        }
-        else
-        {
-            if((!Double.isInfinite(value/numRowsUsed))&&(!Double.isNaN(value/numRowsUsed)))
-            {
-                return (value/numRowsUsed);
-            }
-            else
-            {
-                s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows>0");
-                return dummy;
-            }
-        }
-
     }
 
     protected String getHostStatsRawXML(Connection conn) {
@@ -0,0 +1,233 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.Reader;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Averages columns of an rrd_updates export, as returned by the gethostvmstats plugin:
+ *
+ * <pre>
+ * &lt;xport&gt;&lt;meta&gt;...&lt;legend&gt;&lt;entry&gt;AVERAGE:vm:uuid:cpu0&lt;/entry&gt;...&lt;/legend&gt;&lt;/meta&gt;
+ * &lt;data&gt;&lt;row&gt;&lt;t&gt;time&lt;/t&gt;&lt;v&gt;value&lt;/v&gt;...&lt;/row&gt;...&lt;/data&gt;&lt;/xport&gt;
+ * </pre>
+ *
+ * The export is read as a stream, and only the values of the selected columns are
+ * parsed, into primitive arrays.  The legend of the previous export is kept: a host
+ * exports the same columns poll after poll, so a legend entry that did not change is
+ * not decoded again.  Use one parser per host and kind of export.
+ */
+public class RrdUpdatesParser {
+    private static final XMLInputFactory s_factory = XMLInputFactory.newInstance();
+    static {
+        s_factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        s_factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    /**
+     * A legend entry, consolidation function:type:uuid:parameter.
+     */
+    public static class Column {
+        final String _entry;
+        final String _type;
+        final String _uuid;
+        final String _param;
+
+        Column(String entry) {
+            _entry = entry;
+            String[] parts = entry.split(":");
+            if (parts.length == 4) {
+                _type = parts[1];
+                _uuid = parts[2];
+                _param = parts[3];
+            } else {
+                _type = null;
+                _uuid = null;
+                _param = null;
+            }
+        }
+
+        /**
+         * @return false if the entry doesn't have the four parts
+         */
+        public boolean isValid() {
+            return _type != null;
+        }
+
+        public String getType() {
+            return _type;
+        }
+
+        public String getUuid() {
+            return _uuid;
+        }
+
+        public String getParam() {
+            return _param;
+        }
+    }
+
+    public interface ColumnSelector {
+        boolean select(Column column);
+    }
+
+    public static class Averages {
+        final Column[] _columns;
+        final double[] _averages;
+
+        Averages(Column[] columns, double[] averages) {
+            _columns = columns;
+            _averages = averages;
+        }
+
+        public int size() {
+            return _columns.length;
+        }
+
+        public Column getColumn(int i) {
+            return _columns[i];
+        }
+
+        /**
+         * @return the average of the column over the rows that have a value, 0 if it is not a number
+         */
+        public double getAverage(int i) {
+            return _averages[i];
+        }
+    }
+
+    private Column[] _legend = new Column[0];
+
+    public synchronized Averages parse(Reader in, ColumnSelector selector) throws XMLStreamException {
+        XMLStreamReader reader = s_factory.createXMLStreamReader(in);
+        try {
+            Column[] legend = new Column[Math.max(_legend.length, 16)];
+            int legendSize = 0;
+            // slot of each column in the arrays below, -1 if it is not selected
+            int[] slots = null;
+            Column[] selected = null;
+            double[] sums = null;
+            int[] counts = null;
+            int col = 0;
+
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                if (name.equals("v")) {
+                    if (slots != null && col < slots.length && slots[col] >= 0) {
+                        int slot = slots[col];
+                        try {
+                            double value = Double.parseDouble(reader.getElementText());
+                            if (!Double.isNaN(value)) {
+                                sums[slot] += value;
+                                counts[slot]++;
+                            }
+                        } catch (NumberFormatException e) {
+                            // counted like NaN
+                        }
+                    }
+                    col++;
+                } else if (name.equals("row")) {
+                    col = 0;
+                    if (slots == null) {
+                        slots = new int[legendSize];
+                        selected = select(legend, legendSize, selector, slots);
+                        sums = new double[selected.length];
+                        counts = new int[selected.length];
+                    }
+                } else if (name.equals("entry")) {
+                    if (legendSize == legend.length) {
+                        legend = Arrays.copyOf(legend, legendSize * 2);
+                    }
+                    legend[legendSize] = readColumn(reader, legendSize);
+                    legendSize++;
+                }
+            }
+
+            _legend = Arrays.copyOf(legend, legendSize);
+            if (slots == null) {
+                // no rows, the selected columns average 0 like the DOM parsing did
+                selected = select(legend, legendSize, selector, new int[legendSize]);
+                return new Averages(selected, new double[selected.length]);
+            }
+
+            double[] averages = new double[selected.length];
+            for (int i = 0; i < selected.length; i++) {
+                double average = counts[i] == 0 ? sums[i] : sums[i] / counts[i];
+                averages[i] = Double.isInfinite(average) || Double.isNaN(average) ? 0 : average;
+            }
+            return new Averages(selected, averages);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Column readColumn(XMLStreamReader reader, int index) throws XMLStreamException {
+        if (reader.next() != XMLStreamConstants.CHARACTERS) {
+            return new Column("");
+        }
+        char[] text = reader.getTextCharacters();
+        int start = reader.getTextStart();
+        int length = reader.getTextLength();
+        if (index < _legend.length) {
+            String cached = _legend[index]._entry;
+            if (cached.length() == length) {
+                int i = 0;
+                while (i < length && cached.charAt(i) == text[start + i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return _legend[index];
+                }
+            }
+        }
+        return new Column(new String(text, start, length));
+    }
+
+    private static Column[] select(Column[] legend, int legendSize, ColumnSelector selector, int[] slots) {
+        Column[] selected = new Column[legendSize];
+        int count = 0;
+        for (int i = 0; i < legendSize; i++) {
+            if (legend[i].isValid() && selector.select(legend[i])) {
+                slots[i] = count;
+                selected[count++] = legend[i];
+            } else {
+                slots[i] = -1;
+            }
+        }
+        return Arrays.copyOf(selected, count);
+    }
+
+    /**
+     * @return number of columns in the legend of the last export
+     */
+    public synchronized int getLegendSize() {
+        return _legend.length;
+    }
+
+    Column getLegendColumn(int index) {
+        return _legend[index];
+    }
+}
@@ -22,11 +22,20 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.SocketException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -38,6 +47,7 @@ import org.apache.xmlrpc.client.XmlRpcClientException;
 
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.xensource.xenapi.APIVersion;
 import com.xensource.xenapi.Connection;
@@ -51,11 +61,27 @@ import com.xensource.xenapi.Types.XenAPIException;
 
 public class XenServerConnectionPool {
     private static final Logger s_logger = Logger.getLogger(XenServerConnectionPool.class);
-    protected HashMap<String /* poolUuid */, XenServerConnection> _conns = new HashMap<String, XenServerConnection>();
+    protected ConcurrentHashMap<String /* poolUuid */, PoolSessions> _conns = new ConcurrentHashMap<String, PoolSessions>();
+    private final ConcurrentHashMap<String /* poolUuid */, Object> _poolLocks = new ConcurrentHashMap<String, Object>();
+    // runs the health checks and logs out the sessions of pools that are dropped
+    private final ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("XenServerConnectionPool-KeepAlive", true));
     protected int _retries;
     protected int _interval;
     protected static boolean s_managePool = true;
     protected static long s_sleepOnError = 10 * 1000; // in ms
+    protected static int s_sessionsPerPool = 4;
+    protected static int s_maxTaskCalls = 8;
+    protected static int s_maxReadCalls = 32;
+    protected static int s_healthCheckInterval = 60; // in seconds
+    protected static int s_keepAliveInterval = 300; // in seconds
+
+    // calls that keep XAPI busy for a long time; they get their own permits so that they cannot hold up reads.
+    // Their Async.* variants create a task in XAPI and count as task calls too.
+    protected static final Set<String> s_taskCalls = new HashSet<String>(Arrays.asList(
+            "VM.start", "VM.start_on", "VM.clean_shutdown", "VM.hard_shutdown", "VM.clean_reboot", "VM.hard_reboot",
+            "VM.pool_migrate", "VM.migrate_send", "VM.snapshot", "VM.checkpoint", "VM.copy", "VM.clone", "VM.destroy",
+            "VDI.copy", "VDI.clone", "VDI.snapshot", "VDI.pool_migrate", "VDI.destroy", "SR.create", "SR.scan", "SR.introduce",
+            "PBD.plug", "PBD.unplug", "VBD.plug", "VBD.unplug", "VIF.plug", "VIF.unplug", "host.call_plugin", "host.evacuate", "pool.join"));
     static {
         File file = PropertiesUtil.findConfigFile("environment.properties");
         if (file == null) {
@@ -75,7 +101,14 @@ public class XenServerConnectionPool {
                 if (search != null) {
                     s_sleepOnError = NumbersUtil.parseInterval(search,  10) * 1000;
                 }
-                s_logger.info("XenServer Connection Pool Configs: manage.xenserver.pool.master=" + s_managePool + "; sleep.interval.on.error=" + s_sleepOnError);
+                s_sessionsPerPool = Math.max(1, NumbersUtil.parseInt(props.getProperty("xenserver.pool.sessions"), s_sessionsPerPool));
+                s_maxTaskCalls = Math.max(1, NumbersUtil.parseInt(props.getProperty("xenserver.pool.max.task.calls"), s_maxTaskCalls));
+                s_maxReadCalls = Math.max(1, NumbersUtil.parseInt(props.getProperty("xenserver.pool.max.read.calls"), s_maxReadCalls));
+                s_healthCheckInterval = NumbersUtil.parseInt(props.getProperty("xenserver.pool.health.check.interval"), s_healthCheckInterval);
+                s_keepAliveInterval = NumbersUtil.parseInt(props.getProperty("xenserver.pool.keepalive.interval"), s_keepAliveInterval);
+                s_logger.info("XenServer Connection Pool Configs: manage.xenserver.pool.master=" + s_managePool + "; sleep.interval.on.error=" + s_sleepOnError
+                        + "; xenserver.pool.sessions=" + s_sessionsPerPool + "; xenserver.pool.max.task.calls=" + s_maxTaskCalls
+                        + "; xenserver.pool.max.read.calls=" + s_maxReadCalls);
             } catch (FileNotFoundException e) {
                 s_logger.debug("File is not found", e);
             } catch (IOException e) {
@@ -104,38 +137,204 @@ public class XenServerConnectionPool {
     protected XenServerConnectionPool() {
         _retries = 3;
         _interval = 3;
+        if (s_healthCheckInterval > 0) {
+            _executor.scheduleWithFixedDelay(new KeepAliveTask(), s_healthCheckInterval, s_healthCheckInterval, TimeUnit.SECONDS);
+        }
     }
-   
+
+    /**
+     * The XML-RPC sessions to the master of one Xen pool.  Connections are handed out
+     * round robin without locking.  Calls through them are bounded by two sets of
+     * permits, one for long running calls and one for everything else, so that a burst
+     * of VM starts cannot keep host stats and other reads from getting through.
+     */
+    protected class PoolSessions {
+        final String _poolUuid;
+        final XenServerConnection[] _sessions;
+        final AtomicInteger _next = new AtomicInteger();
+        final Semaphore _taskPermits = new Semaphore(s_maxTaskCalls, true);
+        final Semaphore _readPermits = new Semaphore(s_maxReadCalls, true);
+        // hosts whose connectivity to the master was checked, and when
+        final ConcurrentHashMap<String, Long> _verifiedHosts = new ConcurrentHashMap<String, Long>();
+
+        PoolSessions(String poolUuid, XenServerConnection[] sessions) {
+            _poolUuid = poolUuid;
+            _sessions = sessions;
+            for (XenServerConnection session : sessions) {
+                session._poolUuid = poolUuid;
+                session._pool = this;
+            }
+        }
+
+        XenServerConnection next() {
+            return _sessions[(_next.getAndIncrement() & Integer.MAX_VALUE) % _sessions.length];
+        }
+
+        XenServerConnection master() {
+            return _sessions[0];
+        }
+
+        boolean contains(XenServerConnection conn) {
+            for (XenServerConnection session : _sessions) {
+                if (session == conn) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isVerified(String hostUuid) {
+            Long verified = _verifiedHosts.get(hostUuid);
+            return verified != null && System.currentTimeMillis() - verified < s_healthCheckInterval * 1000L;
+        }
+
+        void verified(String hostUuid) {
+            _verifiedHosts.put(hostUuid, System.currentTimeMillis());
+        }
+
+        Semaphore permitsFor(String methodCall) {
+            if (methodCall.startsWith("session.")) {
+                // logins happen within other calls, they must not wait for a permit
+                return null;
+            }
+            return isTaskCall(methodCall) ? _taskPermits : _readPermits;
+        }
+    }
+
+    static boolean isTaskCall(String methodCall) {
+        return methodCall.startsWith("Async.") || s_taskCalls.contains(methodCall);
+    }
+
+    /**
+     * Keeps idle sessions from expiring and finds broken ones before a command does.
+     * A session that fails the check takes its pool out of the cache; the next connect
+     * logs on again.
+     */
+    protected class KeepAliveTask implements Runnable {
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            for (PoolSessions pool : _conns.values()) {
+                for (XenServerConnection session : pool._sessions) {
+                    if (now - session._lastUsed < s_keepAliveInterval * 1000L) {
+                        continue;
+                    }
+                    try {
+                        Pool.getAll(session);
+                    } catch (Throwable e) {
+                        s_logger.info("Health check of the session through " + session.getIp() + " for pool(" + pool._poolUuid + ") failed due to " + e.toString());
+                        removeConnect(pool._poolUuid, session);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private Object getPoolLock(String poolUuid) {
+        Object lock = _poolLocks.get(poolUuid);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = _poolLocks.putIfAbsent(poolUuid, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
     private void addConnect(String poolUuid, XenServerConnection conn){
         if( poolUuid == null ) return;
         if (s_logger.isDebugEnabled()) {
-            s_logger.debug("Add master connection through " + conn.getIp() + " for pool(" + conn.getPoolUuid() + ")");                           
+            s_logger.debug("Add master connection through " + conn.getIp() + " for pool(" + poolUuid + ")");
         }
-        synchronized (_conns) {
-            _conns.put(poolUuid, conn);
+        // the other sessions log on to the same master; the pool works with fewer if they can't
+        XenServerConnection[] sessions = new XenServerConnection[s_sessionsPerPool];
+        sessions[0] = conn;
+        int count = 1;
+        for (int i = 1; i < s_sessionsPerPool; i++) {
+            XenServerConnection session = new XenServerConnection(conn.getURL(), conn.getIp(), conn.getUsername(), conn.getPassword(), _retries, _interval, conn.getWait());
+            try {
+                loginWithPassword(session, conn.getUsername(), conn.getPassword(), APIVersion.latest().toString());
+                sessions[count++] = session;
+            } catch (Exception e) {
+                s_logger.debug("Unable to open session " + (i + 1) + " to " + conn.getIp() + " for pool(" + poolUuid + ") due to " + e.toString());
+                break;
+            }
         }
+        _conns.put(poolUuid, new PoolSessions(poolUuid, Arrays.copyOf(sessions, count)));
     }
-    
-    private XenServerConnection getConnect(String poolUuid) {
+
+    private PoolSessions getConnect(String poolUuid) {
         if( poolUuid == null ) return null;
-        synchronized (_conns) {
-            return _conns.get(poolUuid);
-        }
+        return _conns.get(poolUuid);
     }
-    
+
     private void removeConnect(String poolUuid) {
         if( poolUuid == null ) {
             return;
         }
-        XenServerConnection conn = null;
-        synchronized (_conns) {
-            conn =  _conns.remove(poolUuid);
+        PoolSessions pool = _conns.remove(poolUuid);
+        if ( pool != null ) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Remove master connection through " + pool.master().getIp() + " for pool(" + poolUuid + ")");
+            }
+            logoutSessions(pool);
+        }
+    }
+
+    /**
+     * Removes the sessions of a pool because one of them broke, unless they were replaced already.
+     */
+    private void removeConnect(String poolUuid, XenServerConnection conn) {
+        if( poolUuid == null ) {
+            return;
         }
-        if ( conn != null ) {
+        PoolSessions pool = _conns.get(poolUuid);
+        if (pool != null && pool.contains(conn) && _conns.remove(poolUuid, pool)) {
             if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Remove master connection through " + conn.getIp() + " for pool(" + conn.getPoolUuid() + ")");                           
+                s_logger.debug("Remove master connection through " + conn.getIp() + " for pool(" + poolUuid + ")");
             }
-            
+            logoutSessions(pool);
+        }
+    }
+
+    /**
+     * Retires the sessions opened by addConnect next to the master connection, which
+     * belongs to the caller of connect.  Command threads may still be using them, so
+     * each one is logged out once its last call returns.
+     */
+    private void logoutSessions(PoolSessions pool) {
+        for (int i = 1; i < pool._sessions.length; i++) {
+            XenServerConnection session = pool._sessions[i];
+            // the session must not drop the pool that replaced this one
+            session._pool = null;
+            session._poolUuid = null;
+            session._retired = true;
+            if (session._inFlight.get() == 0) {
+                logout(session);
+            }
+        }
+    }
+
+    /**
+     * Logs out a retired session in the background because the master may be the
+     * reason its pool was dropped.
+     */
+    private void logout(final XenServerConnection session) {
+        try {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Session.logout(session);
+                    } catch (Exception e) {
+                        s_logger.debug("Unable to log out a retired session through " + session.getIp() + " due to " + e.toString());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            s_logger.debug("Not logging out a retired session through " + session.getIp() + ": " + e.toString());
         }
     }
     
@@ -215,7 +414,7 @@ public class XenServerConnectionPool {
     public void switchMaster(String slaveIp, String poolUuid,
             Connection conn, Host host, String username, Queue<String> password,
             int wait) throws XmlRpcException, XenAPIException {
-        synchronized (poolUuid.intern()) {
+        synchronized (getPoolLock(poolUuid)) {
             String masterIp = host.getAddress(conn);
             s_logger.debug("Designating the new master to " + masterIp);
             Pool.designateNewMaster(conn, host);
@@ -530,10 +729,17 @@ public class XenServerConnectionPool {
             s_logger.debug(msg);
             throw new CloudRuntimeException(msg);
         }
+        // connectivity of the host was checked recently, no need to go to the master
+        PoolSessions pool = getConnect(poolUuid);
+        if (pool != null && pool.isVerified(hostUuid)) {
+            return pool.next();
+        }
+
         Host host = null;
-        synchronized (poolUuid.intern()) {
+        synchronized (getPoolLock(poolUuid)) {
             // Let's see if it is an existing connection.
-            mConn = getConnect(poolUuid);
+            pool = getConnect(poolUuid);
+            mConn = pool == null ? null : pool.next();
             if (mConn != null){
                 try{
                     host = Host.getByUuid(mConn, hostUuid);
@@ -606,6 +812,7 @@ public class XenServerConnectionPool {
                                 ensurePoolIntegrity(mConn, ipAddress, username, password,  wait);
                             }
                             addConnect(poolUuid, mConn);
+                            getConnect(poolUuid).verified(hostUuid);
                             return mConn;
                         }
                     }
@@ -621,7 +828,8 @@ public class XenServerConnectionPool {
                         mConn = new XenServerConnection(getURL(masterIp), masterIp, username, password, _retries, _interval, wait);
                         loginWithPassword(mConn, username, password, APIVersion.latest().toString());
                         addConnect(poolUuid, mConn);
-                        return mConn;               
+                        getConnect(poolUuid).verified(hostUuid);
+                        return mConn;
                     } catch (Exception e) {
                         String msg = "Unable to logon in " + masterIp + " as master in pool(" + poolUuid + ")";
                         if (s_logger.isDebugEnabled()) {
@@ -641,6 +849,7 @@ public class XenServerConnectionPool {
                 try {
                     Map<String, String> args = new HashMap<String, String>();
                     host.callPlugin(mConn, "echo", "main", args);
+                    pool.verified(hostUuid);
                 } catch (Types.SessionInvalid e) {
                     if (s_logger.isDebugEnabled()) {
                         String msg = "Catch Exception: " + e.getClass().getName() + " Can't connect host " + ipAddress + " due to " + e.toString();
@@ -670,6 +879,8 @@ public class XenServerConnectionPool {
                     s_logger.warn(msg, e);                           
                     throw new CloudRuntimeException(msg, e);
                 }
+            } else {
+                pool.verified(hostUuid);
             }
         }
         return mConn;
@@ -842,11 +1053,18 @@ public class XenServerConnectionPool {
         String _ip;
         String _username;
         Queue<String> _password;
-        String _poolUuid;
+        volatile String _poolUuid;
+        URL _url;
+        volatile PoolSessions _pool;
+        volatile long _lastUsed = System.currentTimeMillis();
+        // calls that are not session calls, so a retired session is logged out after the last one
+        final AtomicInteger _inFlight = new AtomicInteger();
+        volatile boolean _retired;
 
         public XenServerConnection(URL url, String ip, String username, Queue<String> password,
                 int retries, int interval, int wait) {
             super(url, wait);
+            _url = url;
             _ip = ip;
             _retries = retries;
             _username = username;
@@ -854,6 +1072,14 @@ public class XenServerConnectionPool {
             _interval = (long) interval * 1000;
 
         }
+
+        public URL getURL() {
+            return _url;
+        }
+
+        public int getWait() {
+            return _wait;
+        }
         
         public String getPoolUuid() {
             return _poolUuid;
@@ -873,6 +1099,41 @@ public class XenServerConnectionPool {
         
         @Override
         protected Map dispatch(String method_call, Object[] method_params)  throws XmlRpcException, XenAPIException {
+            _lastUsed = System.currentTimeMillis();
+            if (method_call.startsWith("session.")) {
+                return dispatchWithPermits(method_call, method_params);
+            }
+            _inFlight.incrementAndGet();
+            try {
+                return dispatchWithPermits(method_call, method_params);
+            } finally {
+                if (_inFlight.decrementAndGet() == 0 && _retired) {
+                    logout(this);
+                }
+            }
+        }
+
+        protected Map dispatchWithPermits(String method_call, Object[] method_params)  throws XmlRpcException, XenAPIException {
+            PoolSessions pool = _pool;
+            Semaphore permits = pool == null ? null : pool.permitsFor(method_call);
+            if (permits == null) {
+                return dispatchWithRetry(method_call, method_params);
+            }
+            try {
+                if (!permits.tryAcquire(_wait, TimeUnit.SECONDS)) {
+                    throw new CloudRuntimeException("Timed out waiting to call " + method_call + " on pool(" + _poolUuid + ") through " + _ip);
+                }
+            } catch (InterruptedException e) {
+                throw new CloudRuntimeException("Interrupted waiting to call " + method_call + " on pool(" + _poolUuid + ") through " + _ip, e);
+            }
+            try {
+                return dispatchWithRetry(method_call, method_params);
+            } finally {
+                permits.release();
+            }
+        }
+
+        protected Map dispatchWithRetry(String method_call, Object[] method_params)  throws XmlRpcException, XenAPIException {
             if (method_call.equals("session.local_logout") 
                     || method_call.equals("session.slave_local_login_with_password") 
                     || method_call.equals("session.logout")) {
@@ -911,31 +1172,31 @@ public class XenServerConnectionPool {
                         s_logger.debug("Session is invalid for method: " + method_call + " due to " + e.getMessage() + ".  Reconnecting...retry="
                                 + retries);
                         if (retries >= _retries) {
-                            removeConnect(_poolUuid);
+                            removeConnect(_poolUuid, this);
                             throw e;
                         }
                         loginWithPassword(this, _username, _password, APIVersion.latest().toString());
                         method_params[0] = getSessionReference();
                     } catch (XmlRpcClientException e) {
                         s_logger.debug("XmlRpcClientException for method: " + method_call + " due to " + e.getMessage()); 
-                        removeConnect(_poolUuid);
+                        removeConnect(_poolUuid, this);
                         throw e;
                     } catch (XmlRpcException e) {
                         s_logger.debug("XmlRpcException for method: " + method_call + " due to " + e.getMessage() + ".  Reconnecting...retry="
                                 + retries);
                         if (retries >= _retries) {
-                            removeConnect(_poolUuid);
+                            removeConnect(_poolUuid, this);
                             throw e;
                         }
                         Throwable cause = e.getCause();
                         if (cause == null || !(cause instanceof SocketException)) {
-                            removeConnect(_poolUuid);
+                            removeConnect(_poolUuid, this);
                             throw e;
                         }
                     } catch (Types.HostIsSlave e) {
                         s_logger.debug("HostIsSlave Exception for method: " + method_call + " due to " + e.getMessage() + ".  Reconnecting...retry="
                                 + retries);
-                        removeConnect(_poolUuid);
+                        removeConnect(_poolUuid, this);
                         throw e;
                     }   
                     try {
@@ -945,7 +1206,7 @@ public class XenServerConnectionPool {
                     }
                 }
                 assert false : "We should never get here";
-                removeConnect(_poolUuid);
+                removeConnect(_poolUuid, this);
             }
             throw new CloudRuntimeException("After " + _retries
                     + " retries, we cannot contact the host ");
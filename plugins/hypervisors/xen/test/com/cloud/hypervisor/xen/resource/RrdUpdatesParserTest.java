@@ -0,0 +1,214 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+public class RrdUpdatesParserTest {
+    static final String[] VM_PARAMS = { "cpu0", "cpu1", "cpu2", "cpu3", "vif_0_rx", "vif_0_tx", "vif_1_rx", "vif_1_tx", "vbd_xvda_read", "vbd_xvda_write",
+            "memory", "memory_internal_free" };
+
+    /**
+     * An export like the ones gethostvmstats returns for a host running the given VMs, one row a minute.
+     */
+    static String rrdUpdates(int vms, int rows, long seed) {
+        Random random = new Random(seed);
+        StringBuilder xml = new StringBuilder();
+        int columns = vms * VM_PARAMS.length;
+        xml.append("<xport><meta><start>1380000000</start><step>60</step><end>1380001000</end><rows>").append(rows).append("</rows><columns>")
+                .append(columns).append("</columns><legend>");
+        for (int vm = 0; vm < vms; vm++) {
+            for (String param : VM_PARAMS) {
+                xml.append("<entry>AVERAGE:vm:").append(vmUuid(vm)).append(':').append(param).append("</entry>");
+            }
+        }
+        xml.append("</legend></meta><data>");
+        for (int row = 0; row < rows; row++) {
+            xml.append("<row><t>").append(1380001000 - row * 60).append("</t>");
+            for (int col = 0; col < columns; col++) {
+                // VMs that started within the window have no values for the older rows
+                xml.append("<v>").append(row > 10 && col % 17 == 0 ? "NaN" : Double.toString(random.nextDouble())).append("</v>");
+            }
+            xml.append("</row>");
+        }
+        xml.append("</data></xport>");
+        return xml.toString();
+    }
+
+    static String vmUuid(int vm) {
+        return String.format("6ab1ed3e-0d6f-4a5a-8c5b-%012d", vm);
+    }
+
+    static RrdUpdatesParser.ColumnSelector vms(final Set<String> uuids) {
+        return new RrdUpdatesParser.ColumnSelector() {
+            @Override
+            public boolean select(RrdUpdatesParser.Column column) {
+                return column.getType().equals("vm") && uuids.contains(column.getUuid());
+            }
+        };
+    }
+
+    /**
+     * The averages the way CitrixResourceBase used to compute them, from a DOM of the export.
+     */
+    static Map<String, Double> domAverages(String xml, Set<String> uuids) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        NodeList secondLevelChildren = doc.getChildNodes().item(0).getChildNodes();
+        Node metaNode = secondLevelChildren.item(0);
+        Node dataNode = secondLevelChildren.item(1);
+        int numRows = 0;
+        int numColumns = 0;
+        Node legend = null;
+        NodeList metaNodeChildren = metaNode.getChildNodes();
+        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
+            Node n = metaNodeChildren.item(i);
+            if (n.getNodeName().equals("rows")) {
+                numRows = Integer.valueOf(n.getChildNodes().item(0).getNodeValue());
+            } else if (n.getNodeName().equals("columns")) {
+                numColumns = Integer.valueOf(n.getChildNodes().item(0).getNodeValue());
+            } else if (n.getNodeName().equals("legend")) {
+                legend = n;
+            }
+        }
+
+        Map<String, Double> averages = new HashMap<String, Double>();
+        for (int col = 0; col < numColumns; col++) {
+            String[] metadata = legend.getChildNodes().item(col).getChildNodes().item(0).getNodeValue().split(":");
+            if (!metadata[1].equals("vm") || !uuids.contains(metadata[2])) {
+                continue;
+            }
+            double value = 0;
+            int numRowsUsed = 0;
+            for (int row = 0; row < numRows; row++) {
+                Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
+                Double current = Double.valueOf(data.getChildNodes().item(0).getNodeValue());
+                if (!current.equals(Double.NaN)) {
+                    numRowsUsed += 1;
+                    value += current;
+                }
+            }
+            averages.put(metadata[2] + ":" + metadata[3], numRowsUsed == 0 ? value : value / numRowsUsed);
+        }
+        return averages;
+    }
+
+    static Map<String, Double> toMap(RrdUpdatesParser.Averages averages) {
+        Map<String, Double> map = new HashMap<String, Double>();
+        for (int i = 0; i < averages.size(); i++) {
+            map.put(averages.getColumn(i).getUuid() + ":" + averages.getColumn(i).getParam(), averages.getAverage(i));
+        }
+        return map;
+    }
+
+    @Test
+    public void testSameAveragesAsDom() throws Exception {
+        String xml = rrdUpdates(20, 17, 1);
+        Set<String> uuids = new HashSet<String>();
+        uuids.add(vmUuid(0));
+        uuids.add(vmUuid(7));
+        uuids.add(vmUuid(19));
+
+        Map<String, Double> expected = domAverages(xml, uuids);
+        Map<String, Double> actual = toMap(new RrdUpdatesParser().parse(new StringReader(xml), vms(uuids)));
+        Assert.assertEquals(3 * VM_PARAMS.length, actual.size());
+        Assert.assertEquals(expected.keySet(), actual.keySet());
+        for (String key : expected.keySet()) {
+            Assert.assertEquals(key, expected.get(key), actual.get(key), 1e-12);
+        }
+    }
+
+    @Test
+    public void testLegendIsReusedWhileItDoesNotChange() throws Exception {
+        RrdUpdatesParser parser = new RrdUpdatesParser();
+        Set<String> none = new HashSet<String>();
+        parser.parse(new StringReader(rrdUpdates(3, 5, 1)), vms(none));
+        RrdUpdatesParser.Column first = parser.getLegendColumn(0);
+        RrdUpdatesParser.Column last = parser.getLegendColumn(3 * VM_PARAMS.length - 1);
+
+        parser.parse(new StringReader(rrdUpdates(3, 5, 2)), vms(none));
+        Assert.assertSame(first, parser.getLegendColumn(0));
+        Assert.assertSame(last, parser.getLegendColumn(3 * VM_PARAMS.length - 1));
+
+        // a VM stopped, the columns of the others moved
+        parser.parse(new StringReader(rrdUpdates(2, 5, 3)), vms(none));
+        Assert.assertEquals(2 * VM_PARAMS.length, parser.getLegendSize());
+        Assert.assertSame(first, parser.getLegendColumn(0));
+    }
+
+    @Test
+    public void testUnparseableValuesAndEmptyExport() throws Exception {
+        String xml = "<xport><meta><rows>2</rows><columns>3</columns><legend><entry>AVERAGE:host:h:cpu0</entry><entry>bogus</entry>"
+                + "<entry>AVERAGE:host:h:memory_free_kib</entry></legend></meta><data>"
+                + "<row><t>2</t><v>0.5</v><v>1</v><v>inf</v></row><row><t>1</t><v>NaN</v><v>1</v><v>Infinity</v></row></data></xport>";
+        RrdUpdatesParser.Averages averages = new RrdUpdatesParser().parse(new StringReader(xml), new RrdUpdatesParser.ColumnSelector() {
+            @Override
+            public boolean select(RrdUpdatesParser.Column column) {
+                return column.getType().equalsIgnoreCase("host");
+            }
+        });
+        Assert.assertEquals(2, averages.size());
+        Assert.assertEquals(0.5, averages.getAverage(0), 0);
+        Assert.assertEquals(0, averages.getAverage(1), 0);
+
+        xml = "<xport><meta><rows>0</rows><columns>1</columns><legend><entry>AVERAGE:host:h:cpu0</entry></legend></meta><data></data></xport>";
+        averages = new RrdUpdatesParser().parse(new StringReader(xml), vms(new HashSet<String>()));
+        Assert.assertEquals(0, averages.size());
+
+        // selected columns without rows average 0
+        averages = new RrdUpdatesParser().parse(new StringReader(xml), new RrdUpdatesParser.ColumnSelector() {
+            @Override
+            public boolean select(RrdUpdatesParser.Column column) {
+                return column.getType().equalsIgnoreCase("host");
+            }
+        });
+        Assert.assertEquals(1, averages.size());
+        Assert.assertEquals(0, averages.getAverage(0), 0);
+    }
+
+    @Test
+    public void testParserReusedAcrossPollsMatchesDom() throws Exception {
+        // a host running 80 VMs, 17 rows for the 1000 seconds the stats are asked for
+        Set<String> uuids = new HashSet<String>();
+        for (int vm = 0; vm < 80; vm += 2) {
+            uuids.add(vmUuid(vm));
+        }
+        RrdUpdatesParser parser = new RrdUpdatesParser();
+        for (int i = 0; i < 4; i++) {
+            String xml = rrdUpdates(80, 17, i);
+            Map<String, Double> expected = domAverages(xml, uuids);
+            Map<String, Double> actual = toMap(parser.parse(new StringReader(xml), vms(uuids)));
+            Assert.assertEquals(expected.keySet(), actual.keySet());
+            for (String key : expected.keySet()) {
+                Assert.assertEquals(key, expected.get(key), actual.get(key), 1e-12);
+            }
+        }
+    }
+}
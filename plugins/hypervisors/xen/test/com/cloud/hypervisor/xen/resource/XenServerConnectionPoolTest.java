@@ -0,0 +1,315 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.xensource.xenapi.Connection;
+import com.xensource.xenapi.Host;
+import com.xensource.xenapi.Types;
+import com.xensource.xenapi.VM;
+
+/**
+ * Runs the connection pool against a local XML-RPC stand-in for XAPI: VM.start takes
+ * START_MS, reads answer right away.
+ */
+public class XenServerConnectionPoolTest {
+    static final String POOL_UUID = "pool-uuid";
+    static final String HOST_UUID = "host-uuid";
+    static final long START_MS = 500;
+    static final Pattern METHOD = Pattern.compile("<methodName>(.*?)</methodName>");
+    static {
+        // otherwise every call waits for a delayed ack
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    static class XapiStandIn implements HttpHandler {
+        final ConcurrentHashMap<String, AtomicInteger> _calls = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger _starting = new AtomicInteger();
+        final AtomicInteger _maxStarting = new AtomicInteger();
+        final HttpServer _server;
+
+        XapiStandIn() throws IOException {
+            _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            _server.createContext("/", this);
+            _server.setExecutor(Executors.newCachedThreadPool());
+            _server.start();
+        }
+
+        String getAddress() {
+            return "127.0.0.1:" + _server.getAddress().getPort();
+        }
+
+        int getCalls(String method) {
+            AtomicInteger count = _calls.get(method);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                body.write(buf, 0, len);
+            }
+            Matcher m = METHOD.matcher(body.toString("UTF-8"));
+            String method = m.find() ? m.group(1) : "";
+            _calls.putIfAbsent(method, new AtomicInteger());
+            _calls.get(method).incrementAndGet();
+
+            String value;
+            if (method.startsWith("session.")) {
+                value = "<value>OpaqueRef:session</value>";
+            } else if (method.equals("pool.get_all_records")) {
+                value = "<value><struct><member><name>OpaqueRef:pool</name><value><struct>"
+                        + "<member><name>uuid</name><value>" + POOL_UUID + "</value></member>"
+                        + "<member><name>master</name><value>OpaqueRef:master</value></member>"
+                        + "</struct></value></member></struct></value>";
+            } else if (method.equals("pool.get_all")) {
+                value = "<value><array><data><value>OpaqueRef:pool</value></data></array></value>";
+            } else if (method.startsWith("host.get_API_version")) {
+                value = "<value>1</value>";
+            } else if (method.equals("host.get_address")) {
+                value = "<value>" + getAddress() + "</value>";
+            } else if (method.equals("VM.get_name_label")) {
+                // the host was demoted under the pool
+                byte[] response = ("<?xml version=\"1.0\"?><methodResponse><params><param><value><struct>"
+                        + "<member><name>Status</name><value>Failure</value></member>"
+                        + "<member><name>ErrorDescription</name><value><array><data><value>HOST_IS_SLAVE</value><value>127.0.0.2</value></data></array></value></member>"
+                        + "</struct></value></param></params></methodResponse>").getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/xml");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+                return;
+            } else if (method.equals("VM.start")) {
+                int starting = _starting.incrementAndGet();
+                synchronized (_maxStarting) {
+                    _maxStarting.set(Math.max(_maxStarting.get(), starting));
+                }
+                try {
+                    Thread.sleep(START_MS);
+                } catch (InterruptedException e) {
+                }
+                _starting.decrementAndGet();
+                value = "<value></value>";
+            } else {
+                value = "<value>OpaqueRef:" + method + "</value>";
+            }
+
+            byte[] response = ("<?xml version=\"1.0\"?><methodResponse><params><param><value><struct>"
+                    + "<member><name>Status</name><value>Success</value></member>"
+                    + "<member><name>Value</name>" + value + "</member>"
+                    + "</struct></value></param></params></methodResponse>").getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/xml");
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+        }
+    }
+
+    static class LocalConnectionPool extends XenServerConnectionPool {
+        @Override
+        public URL getURL(String ip) {
+            try {
+                return new URL("http://" + ip);
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    XapiStandIn _xapi;
+    XenServerConnectionPool _pool;
+
+    @Before
+    public void setUp() throws Exception {
+        _xapi = new XapiStandIn();
+        _pool = new LocalConnectionPool();
+    }
+
+    @After
+    public void tearDown() {
+        _xapi._server.stop(0);
+    }
+
+    Connection connect() {
+        Queue<String> password = new LinkedList<String>();
+        password.add("password");
+        return _pool.connect(HOST_UUID, POOL_UUID, _xapi.getAddress(), "root", password, 60);
+    }
+
+    @Test
+    public void testConnectionsComeFromSessionPool() {
+        Set<Connection> connections = new HashSet<Connection>();
+        for (int i = 0; i < 4 * XenServerConnectionPool.s_sessionsPerPool; i++) {
+            connections.add(connect());
+        }
+        Assert.assertEquals(XenServerConnectionPool.s_sessionsPerPool, connections.size());
+        Assert.assertEquals(XenServerConnectionPool.s_sessionsPerPool, _xapi.getCalls("session.login_with_password"));
+        // the pool was looked up on the first connect only
+        Assert.assertEquals(1, _xapi.getCalls("pool.get_all_records"));
+        Assert.assertEquals(0, _xapi.getCalls("host.get_by_uuid"));
+    }
+
+    @Test
+    public void testSlowStartsDoNotHoldUpReads() throws Exception {
+        connect();
+        final int starters = 16;
+        final int startsEach = 2;
+        final CountDownLatch done = new CountDownLatch(starters);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < starters; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < startsEach; j++) {
+                            Connection conn = connect();
+                            VM.getByUuid(conn, "vm-uuid").start(conn, false, false);
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long maxReadMs = 0;
+        while (done.getCount() > 0) {
+            long begin = System.nanoTime();
+            Connection conn = connect();
+            Host.getByUuid(conn, HOST_UUID).getNameLabel(conn);
+            maxReadMs = Math.max(maxReadMs, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        }
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        Assert.assertEquals(0, failures.get());
+        Assert.assertEquals(starters * startsEach, _xapi.getCalls("VM.start"));
+        Assert.assertTrue("concurrent starts " + _xapi._maxStarting.get(), _xapi._maxStarting.get() <= XenServerConnectionPool.s_maxTaskCalls);
+        Assert.assertTrue("a read took " + maxReadMs + "ms", maxReadMs < START_MS);
+        Assert.assertEquals(XenServerConnectionPool.s_sessionsPerPool, _xapi.getCalls("session.login_with_password"));
+    }
+
+    @Test
+    public void testAsyncCallsAreTaskCalls() {
+        Assert.assertTrue(XenServerConnectionPool.isTaskCall("VM.start_on"));
+        Assert.assertTrue(XenServerConnectionPool.isTaskCall("Async.VM.start_on"));
+        Assert.assertTrue(XenServerConnectionPool.isTaskCall("Async.host.call_plugin"));
+        Assert.assertFalse(XenServerConnectionPool.isTaskCall("host.get_by_uuid"));
+    }
+
+    @Test
+    public void testDroppedPoolLogsOutItsSessions() throws Exception {
+        Connection conn = connect();
+        try {
+            VM.getByUuid(conn, "vm-uuid").getNameLabel(conn);
+            Assert.fail("the stand-in reports the host as a slave");
+        } catch (Types.HostIsSlave e) {
+        }
+        // the master connection belongs to the caller, the others are logged out in the background
+        int expected = XenServerConnectionPool.s_sessionsPerPool - 1;
+        for (int i = 0; i < 100 && _xapi.getCalls("session.logout") < expected; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(expected, _xapi.getCalls("session.logout"));
+
+        // the next connect opens a new set of sessions
+        connect();
+        Assert.assertEquals(2 * XenServerConnectionPool.s_sessionsPerPool, _xapi.getCalls("session.login_with_password"));
+    }
+
+    @Test
+    public void testSessionsInUseAreLoggedOutAfterTheirCalls() throws Exception {
+        List<Connection> sessions = new ArrayList<Connection>();
+        for (int i = 0; i < XenServerConnectionPool.s_sessionsPerPool; i++) {
+            sessions.add(connect());
+        }
+        final int busy = sessions.size() - 1;
+        final CountDownLatch done = new CountDownLatch(busy);
+        final AtomicInteger failures = new AtomicInteger();
+        for (final Connection conn : sessions.subList(1, sessions.size())) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        VM.getByUuid(conn, "vm-uuid").start(conn, false, false);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        for (int i = 0; i < 100 && _xapi._starting.get() < busy; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(busy, _xapi._starting.get());
+
+        // another session breaks while the starts are running
+        Connection broken = sessions.get(0);
+        try {
+            VM.getByUuid(broken, "vm-uuid").getNameLabel(broken);
+            Assert.fail("the stand-in reports the host as a slave");
+        } catch (Types.HostIsSlave e) {
+        }
+        Thread.sleep(100);
+        Assert.assertTrue("sessions were logged out under running calls", _xapi.getCalls("session.logout") <= 1);
+
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(0, failures.get());
+        int expected = XenServerConnectionPool.s_sessionsPerPool - 1;
+        for (int i = 0; i < 100 && _xapi.getCalls("session.logout") < expected; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(expected, _xapi.getCalls("session.logout"));
+    }
+}
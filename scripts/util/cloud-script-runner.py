@@ -0,0 +1,197 @@
+#!/usr/bin/python
+# Licensed to the Apache Software Foundation (ASF) under one
+# or more contributor license agreements.  See the NOTICE file
+# distributed with this work for additional information
+# regarding copyright ownership.  The ASF licenses this file
+# to you under the Apache License, Version 2.0 (the
+# "License"); you may not use this file except in compliance
+# with the License.  You may obtain a copy of the License at
+#
+#   http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an
+# "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+# KIND, either express or implied.  See the License for the
+# specific language governing permissions and limitations
+# under the License.
+
+# Long-lived helper that runs scripts on behalf of the agent so the agent JVM
+# does not have to fork itself for every command.  Speaks the framed protocol
+# of com.cloud.utils.script.ScriptRunner on a loopback TCP port:
+#
+#   request:  int length, string key, long id, int timeoutMs, string workDir, int argc, string[argc] argv
+#   response: int length, long id, int exitCode, byte timedOut, string output
+#
+# All integers are big-endian; strings are an int byte count followed by UTF-8.
+#
+# Scripts run as the user of the helper, so every request has to carry the secret
+# from the key file, which must be readable by its owner only.  A connection that
+# sends a wrong key is closed without running anything.  The agent init script
+# creates the key and starts the helper when script.runner.port is set.
+
+import os
+import signal
+import socket
+import stat
+import struct
+import subprocess
+import sys
+import syslog
+import threading
+from optparse import OptionParser
+
+MAX_FRAME = 64 * 1024 * 1024
+
+def readFully(sock, size):
+    chunks = []
+    while size > 0:
+        data = sock.recv(min(size, 65536))
+        if not data:
+            raise EOFError()
+        chunks.append(data)
+        size -= len(data)
+    return ''.join(chunks)
+
+class Reader:
+    def __init__(self, data):
+        self.data = data
+        self.pos = 0
+
+    def unpack(self, fmt):
+        size = struct.calcsize(fmt)
+        value = struct.unpack(fmt, self.data[self.pos:self.pos + size])
+        self.pos += size
+        return value[0]
+
+    def string(self):
+        size = self.unpack('>i')
+        value = self.data[self.pos:self.pos + size]
+        self.pos += size
+        return value
+
+def sameKey(expected, given):
+    # compare in constant time so the key cannot be guessed byte by byte
+    if len(expected) != len(given):
+        return False
+    diff = 0
+    for x, y in zip(expected, given):
+        diff |= ord(x) ^ ord(y)
+    return diff == 0
+
+def readKey(path):
+    st = os.stat(path)
+    if st.st_uid != os.getuid() or st.st_mode & (stat.S_IRWXG | stat.S_IRWXO):
+        raise ValueError("%s must be owned by uid %d and not accessible by group or others" % (path, os.getuid()))
+    key = open(path).read().strip()
+    if not key:
+        raise ValueError("%s is empty" % path)
+    return key
+
+def packString(value):
+    return struct.pack('>i', len(value)) + value
+
+def execute(argv, workDir, timeout):
+    proc = subprocess.Popen(argv, stdout=subprocess.PIPE, stderr=subprocess.STDOUT,
+                            cwd=workDir or None, close_fds=True)
+    timedOut = [False]
+    timer = None
+    if timeout > 0:
+        def kill():
+            timedOut[0] = True
+            try:
+                os.kill(proc.pid, signal.SIGKILL)
+            except OSError:
+                pass
+        timer = threading.Timer(timeout / 1000.0, kill)
+        timer.start()
+    try:
+        output = proc.communicate()[0]
+    finally:
+        if timer:
+            timer.cancel()
+    return proc.returncode, timedOut[0], output
+
+class Connection(threading.Thread):
+    def __init__(self, sock, slots, key):
+        threading.Thread.__init__(self)
+        self.setDaemon(True)
+        self.sock = sock
+        self.slots = slots
+        self.key = key
+
+    def run(self):
+        try:
+            while True:
+                length = struct.unpack('>i', readFully(self.sock, 4))[0]
+                if length < 0 or length > MAX_FRAME:
+                    break
+                req = Reader(readFully(self.sock, length))
+                if not sameKey(self.key, req.string()):
+                    syslog.syslog(syslog.LOG_WARNING, "Closing a script runner connection that sent a wrong key")
+                    break
+                reqId = req.unpack('>q')
+                timeout = req.unpack('>i')
+                workDir = req.string()
+                argv = [req.string() for i in range(req.unpack('>i'))]
+
+                self.slots.acquire()
+                try:
+                    try:
+                        exitCode, timedOut, output = execute(argv, workDir, timeout)
+                    except OSError, e:
+                        exitCode, timedOut, output = 127, False, str(e)
+                finally:
+                    self.slots.release()
+
+                body = struct.pack('>qib', reqId, exitCode, timedOut and 1 or 0) + packString(output)
+                self.sock.sendall(struct.pack('>i', len(body)) + body)
+        except (EOFError, socket.error):
+            pass
+        self.sock.close()
+
+def daemonize(pidFile):
+    if os.fork() > 0:
+        os._exit(0)
+    os.setsid()
+    if os.fork() > 0:
+        os._exit(0)
+    os.chdir('/')
+    devnull = os.open(os.devnull, os.O_RDWR)
+    for fd in (0, 1, 2):
+        os.dup2(devnull, fd)
+    if pidFile:
+        open(pidFile, 'w').write("%d\n" % os.getpid())
+
+def main():
+    parser = OptionParser()
+    parser.add_option("-p", "--port", dest="port", type="int", default=8251)
+    parser.add_option("-c", "--concurrency", dest="concurrency", type="int", default=16)
+    parser.add_option("-k", "--key-file", dest="keyFile", default="/etc/cloudstack/agent/script-runner.key")
+    parser.add_option("-d", "--daemon", dest="daemon", action="store_true", default=False)
+    parser.add_option("--pidfile", dest="pidFile")
+    (options, args) = parser.parse_args()
+
+    try:
+        key = readKey(options.keyFile)
+    except (OSError, IOError, ValueError), e:
+        print >> sys.stderr, "Unable to read the script runner key: %s" % e
+        sys.exit(1)
+
+    server = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+    server.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+    server.bind(('127.0.0.1', options.port))
+    server.listen(64)
+
+    syslog.openlog("cloud-script-runner")
+    if options.daemon:
+        daemonize(options.pidFile)
+
+    slots = threading.BoundedSemaphore(options.concurrency)
+    while True:
+        sock, addr = server.accept()
+        sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        Connection(sock, slots, key).start()
+
+if __name__ == "__main__":
+    main()
@@ -30,6 +30,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -109,6 +110,10 @@ public abstract class AgentAttache {
 
     protected AgentManagerImpl _agentMgr;
 
+    // load counters, sampled by AgentLoadMonitor
+    protected final AtomicLong _commandCount = new AtomicLong();
+    protected final AtomicLong _busyTime = new AtomicLong();
+
     public final static String[] s_commandsAllowedInMaintenanceMode =
             new String[] { MaintainCommand.class.toString(), MigrateCommand.class.toString(), StopCommand.class.toString(), CheckVirtualMachineCommand.class.toString(), PingTestCommand.class.toString(),
     					   CheckHealthCommand.class.toString(), ReadyCommand.class.toString(), ShutdownCommand.class.toString(), SetupCommand.class.toString(), ClusterSyncCommand.class.toString(),
@@ -245,6 +250,24 @@ public abstract class AgentAttache {
         return _requests.size();
     }
 
+    /**
+     * @return number of commands sent to the agent through this attache
+     */
+    public long getCommandCount() {
+        return _commandCount.get();
+    }
+
+    /**
+     * @return milliseconds spent by management server threads executing commands for the agent
+     */
+    public long getBusyTime() {
+        return _busyTime.get();
+    }
+
+    public void recordBusyTime(long millis) {
+        _busyTime.addAndGet(millis);
+    }
+
     public int getNonRecurringListenersSize() {
         List<Listener> nonRecurringListenersList = new ArrayList<Listener>();
         if (_waitForList.isEmpty()) {
@@ -337,7 +360,9 @@ public abstract class AgentAttache {
     }
 
     public void send(Request req, final Listener listener) throws AgentUnavailableException {
-        checkAvailability(req.getCommands());
+        Command[] cmds = req.getCommands();
+        checkAvailability(cmds);
+        _commandCount.addAndGet(cmds.length);
 
         long seq = req.getSequence();
         if (listener != null) {
@@ -0,0 +1,178 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures what the agents connected to this management server cost it, so that agent
+ * load balancing can move load instead of host counts.
+ *
+ * The load of an agent is IDLE_LOAD for holding the connection, plus its command rate,
+ * its request queue and, for direct agents, the time management server threads spend
+ * executing its commands and pings.  Each sample is smoothed with the previous one so
+ * that a short burst does not move hosts around.  An agent is measured from its second
+ * sample on, until then it keeps the load it had in op_host.
+ */
+public class AgentLoadMonitor implements AgentLoadMonitorMBean {
+    public static final long IDLE_LOAD = 100;
+
+    // an agent sent 20 commands a minute costs as much again as an idle one
+    static final double COMMAND_WEIGHT = 5.0;
+    static final double QUEUE_WEIGHT = 20.0;
+    // an agent that keeps a thread of the direct agent pool busy costs as much as 5 idle ones
+    static final double BUSY_WEIGHT = 400.0;
+    static final double SMOOTHING = 0.5;
+
+    static class Sample {
+        long _time;
+        long _commands;
+        long _busyTime;
+        double _load;
+    }
+
+    private final Map<Long, Sample> _samples = new HashMap<Long, Sample>();
+
+    private volatile int _measuredAgents;
+    private volatile long _localLoad;
+    private volatile long _averageLoad;
+    private volatile long _maxLoad;
+    private final AtomicLong _transfersRequested = new AtomicLong();
+    private final AtomicLong _transfersStarted = new AtomicLong();
+
+    /**
+     * Samples the counters of the agents owned by this management server.
+     *
+     * @return load of the agents measured in this and the previous sample, by host id
+     */
+    public synchronized Map<Long, Long> sample(Collection<AgentAttache> attaches, long now) {
+        Map<Long, Long> loads = new HashMap<Long, Long>();
+        Map<Long, Sample> seen = new HashMap<Long, Sample>();
+        for (AgentAttache attache : attaches) {
+            long commands = attache.getCommandCount();
+            long busyTime = attache.getBusyTime();
+
+            Sample sample = _samples.get(attache.getId());
+            if (sample != null && now > sample._time) {
+                long interval = now - sample._time;
+                double commandRate = (commands - sample._commands) * 60000.0 / interval;
+                double busy = (double)(busyTime - sample._busyTime) / interval;
+                double load = IDLE_LOAD + commandRate * COMMAND_WEIGHT + attache.getQueueSize() * QUEUE_WEIGHT + busy * BUSY_WEIGHT;
+                sample._load = sample._load == 0 ? load : SMOOTHING * load + (1 - SMOOTHING) * sample._load;
+                loads.put(attache.getId(), Math.round(sample._load));
+            } else if (sample == null) {
+                sample = new Sample();
+            }
+            sample._time = now;
+            sample._commands = commands;
+            sample._busyTime = busyTime;
+            seen.put(attache.getId(), sample);
+        }
+
+        // forget agents that left
+        for (Iterator<Long> it = _samples.keySet().iterator(); it.hasNext();) {
+            if (!seen.containsKey(it.next())) {
+                it.remove();
+            }
+        }
+        _samples.putAll(seen);
+
+        _measuredAgents = loads.size();
+        return loads;
+    }
+
+    /**
+     * @param loads agent load by msid, as stored in op_host
+     * @param upServers msids of the management servers that are up
+     * @param msId this management server
+     */
+    public void setClusterLoads(Map<Long, Long> loads, Collection<Long> upServers, long msId) {
+        if (upServers.isEmpty()) {
+            return;
+        }
+        long total = 0;
+        long max = 0;
+        for (Long server : upServers) {
+            Long load = loads.get(server);
+            if (load != null) {
+                total += load;
+                max = Math.max(max, load);
+            }
+        }
+        Long local = loads.get(msId);
+        _localLoad = local == null ? 0 : local;
+        _averageLoad = total / upServers.size();
+        _maxLoad = max;
+    }
+
+    /**
+     * @return whether this management server is below the cluster average by more than the tolerance
+     */
+    public boolean isUnderloaded(int tolerancePercent) {
+        long average = _averageLoad;
+        return average > 0 && _localLoad * 100 < average * (100 - tolerancePercent);
+    }
+
+    public void transferRequested() {
+        _transfersRequested.incrementAndGet();
+    }
+
+    public void transferStarted() {
+        _transfersStarted.incrementAndGet();
+    }
+
+    @Override
+    public int getMeasuredAgents() {
+        return _measuredAgents;
+    }
+
+    @Override
+    public long getLocalLoad() {
+        return _localLoad;
+    }
+
+    @Override
+    public long getClusterAverageLoad() {
+        return _averageLoad;
+    }
+
+    @Override
+    public long getImbalancePercent() {
+        long average = _averageLoad;
+        return average == 0 ? 0 : (_localLoad - average) * 100 / average;
+    }
+
+    @Override
+    public long getMaxImbalancePercent() {
+        long average = _averageLoad;
+        return average == 0 ? 0 : (_maxLoad - average) * 100 / average;
+    }
+
+    @Override
+    public long getTransfersRequested() {
+        return _transfersRequested.get();
+    }
+
+    @Override
+    public long getTransfersStarted() {
+        return _transfersStarted.get();
+    }
+}
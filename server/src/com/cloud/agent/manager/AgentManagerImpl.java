@@ -146,6 +146,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     private static final Logger status_logger = Logger.getLogger(Status.class);
 
     protected ConcurrentHashMap<Long, AgentAttache> _agents = new ConcurrentHashMap<Long, AgentAttache>(10007);
+    // last gateway state reported by each routing agent, so pings only reach the DB when it changes
+    protected ConcurrentHashMap<Long, Boolean> _gatewayAccessible = new ConcurrentHashMap<Long, Boolean>(10007);
     protected List<Pair<Integer, Listener>> _hostMonitors = new ArrayList<Pair<Integer, Listener>>(17);
     protected List<Pair<Integer, Listener>> _cmdMonitors = new ArrayList<Pair<Integer, Listener>>(17);
     protected List<Pair<Integer, StartupCommandProcessor>> _creationMonitors = new ArrayList<Pair<Integer, StartupCommandProcessor>>(17);
@@ -542,6 +544,11 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     }
 
 
+    protected boolean gatewayStateChanged(long hostId, boolean gatewayAccessible) {
+        Boolean reported = _gatewayAccessible.put(hostId, gatewayAccessible);
+        return reported == null || reported.booleanValue() != gatewayAccessible;
+    }
+
     public void removeAgent(AgentAttache attache, Status nextState) {
         if (attache == null) {
             return;
@@ -566,6 +573,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         if (removed != null) {
             removed.disconnect(nextState);
         }
+        _gatewayAccessible.remove(hostId);
 
         for (Pair<Integer, Listener> monitor : _hostMonitors) {
             if (s_logger.isDebugEnabled()) {
@@ -1264,8 +1272,9 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                             long cmdHostId = ((PingCommand) cmd).getHostId();
 
                             // if the router is sending a ping, verify the
-                            // gateway was pingable
-                            if (cmd instanceof PingRoutingCommand) {
+                            // gateway was pingable; the alert is only raised
+                            // or cleared when that changes
+                            if (cmd instanceof PingRoutingCommand && gatewayStateChanged(cmdHostId, ((PingRoutingCommand) cmd).isGatewayAccessible())) {
                                 boolean gatewayAccessible = ((PingRoutingCommand) cmd).isGatewayAccessible();
                                 HostVO host = _hostDao.findById(Long.valueOf(cmdHostId));
 
@@ -18,8 +18,6 @@ package com.cloud.agent.manager;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -34,6 +32,7 @@ import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.PingCommand;
 import com.cloud.agent.api.StartupCommand;
+import com.cloud.cluster.ManagementServerNode;
 import com.cloud.alert.AlertManager;
 import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.dc.DataCenterVO;
@@ -74,10 +73,14 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
     @Inject ResourceManager _resourceMgr;
         
     // private ConnectionConcierge _concierge;
-    private Map<Long, Long> _pingMap;
+    private volatile PingTimingWheel _pingWheel;
+
+    // ping deadlines are checked every second, the rest every minute as before
+    private static final long MAINTENANCE_CHECK_INTERVAL = 60;
+    private static final int PING_WHEEL_SHARDS = 16;
 
     public AgentMonitor() {
-        _pingMap = new ConcurrentHashMap<Long, Long>(10007);
+        _pingWheel = new PingTimingWheel(PING_WHEEL_SHARDS, _pingTimeout, MAINTENANCE_CHECK_INTERVAL, InaccurateClock.getTimeInSeconds());
     }
     
     /**
@@ -88,7 +91,7 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
      * @return null if the agent is not kept here. true if behind; false if not.
      */
     public Boolean isAgentBehindOnPing(long agentId) {
-        Long pingTime = _pingMap.get(agentId);
+        Long pingTime = _pingWheel.getLastPing(agentId);
         if (pingTime == null) {
             return null;
         }
@@ -96,11 +99,14 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
     }
 
     public Long getAgentPingTime(long agentId) {
-        return _pingMap.get(agentId);
+        return _pingWheel.getLastPing(agentId);
     }
 
     public void pingBy(long agentId) {
-        _pingMap.put(agentId, InaccurateClock.getTimeInSeconds());
+        long now = InaccurateClock.getTimeInSeconds();
+        if (!_pingWheel.ping(agentId, now)) {
+            _pingWheel.add(agentId, now);
+        }
     }
 
     // TODO : use host machine time is not safe in clustering environment
@@ -108,10 +114,10 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
     public void run() {
         s_logger.info("Agent Monitor is started.");
 
+        long nextMaintenanceCheck = InaccurateClock.getTimeInSeconds() + MAINTENANCE_CHECK_INTERVAL;
         while (!_stop) {
             try {
-                // check every 60 seconds
-                Thread.sleep(60 * 1000);
+                Thread.sleep(1000);
             } catch (InterruptedException e) {
                 s_logger.info("Who woke me from my slumber?");
             }
@@ -141,11 +147,12 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
                 	}
                 }
 
-                SearchCriteriaService<HostVO, HostVO> sc = SearchCriteria2.create(HostVO.class);
-                sc.addAnd(sc.getEntity().getResourceState(), Op.IN, ResourceState.PrepareForMaintenance, ResourceState.ErrorInMaintenance);
-                List<HostVO> hosts = sc.list();
+                if (InaccurateClock.getTimeInSeconds() < nextMaintenanceCheck) {
+                    continue;
+                }
+                nextMaintenanceCheck = InaccurateClock.getTimeInSeconds() + MAINTENANCE_CHECK_INTERVAL;
 
-                for (HostVO host : hosts) {
+                for (HostVO host : listHostsPreparingForMaintenance()) {
                     long hostId = host.getId();
                     DataCenterVO dcVO = _dcDao.findById(host.getDataCenterId());
                     HostPodVO podVO = _podDao.findById(host.getPodId());
@@ -168,6 +175,23 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
         s_logger.info("Agent Monitor is leaving the building!");
     }
 
+    /**
+     * Lists the hosts this management server should move into maintenance: the ones it
+     * manages, and the ones without a management server, which any of them may move.
+     */
+    protected List<HostVO> listHostsPreparingForMaintenance() {
+        SearchCriteriaService<HostVO, HostVO> sc = SearchCriteria2.create(HostVO.class);
+        sc.addAnd(sc.getEntity().getResourceState(), Op.IN, ResourceState.PrepareForMaintenance, ResourceState.ErrorInMaintenance);
+        sc.addAnd(sc.getEntity().getManagementServerId(), Op.EQ, _msId);
+        List<HostVO> hosts = new ArrayList<HostVO>(sc.list());
+
+        sc = SearchCriteria2.create(HostVO.class);
+        sc.addAnd(sc.getEntity().getResourceState(), Op.IN, ResourceState.PrepareForMaintenance, ResourceState.ErrorInMaintenance);
+        sc.addAnd(sc.getEntity().getManagementServerId(), Op.NULL);
+        hosts.addAll(sc.list());
+        return hosts;
+    }
+
     public void signalStop() {
         _stop = true;
         interrupt();
@@ -195,13 +219,7 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
     }
 
     protected List<Long> findAgentsBehindOnPing() {
-        List<Long> agentsBehind = new ArrayList<Long>();
-        long cutoffTime = InaccurateClock.getTimeInSeconds() - _pingTimeout;
-        for (Map.Entry<Long, Long> entry : _pingMap.entrySet()) {
-            if (entry.getValue() < cutoffTime) {
-                agentsBehind.add(entry.getKey());
-            }
-        }
+        List<Long> agentsBehind = _pingWheel.advance(InaccurateClock.getTimeInSeconds());
 
         if (agentsBehind.size() > 0) {
             s_logger.info("Found the following agents behind on ping: " + agentsBehind);
@@ -255,12 +273,12 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
         }
 
         // NOTE: We don't use pingBy here because we're initiating.
-        _pingMap.put(host.getId(), InaccurateClock.getTimeInSeconds());
+        _pingWheel.add(host.getId(), InaccurateClock.getTimeInSeconds());
     }
 
     @Override
     public boolean processDisconnect(long agentId, Status state) {
-        _pingMap.remove(agentId);
+        _pingWheel.remove(agentId);
         return true;
     }
 
@@ -276,8 +294,18 @@ public class AgentMonitor extends Thread implements AgentMonitorService {
 
     @Override
     public void startMonitoring(long pingTimeout) {
+        _msId = ManagementServerNode.getManagementServerId();
+        if (pingTimeout != _pingTimeout) {
+            PingTimingWheel wheel = new PingTimingWheel(PING_WHEEL_SHARDS, pingTimeout, MAINTENANCE_CHECK_INTERVAL, InaccurateClock.getTimeInSeconds());
+            _pingWheel.transferTo(wheel);
+            _pingWheel = wheel;
+        }
         _pingTimeout = pingTimeout;
     	start();
     }
+
+    public PingTimingWheel getPingWheel() {
+        return _pingWheel;
+    }
 }
 
@@ -86,6 +86,7 @@ import com.cloud.utils.db.SearchCriteria2;
 import com.cloud.utils.db.SearchCriteriaService;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.nio.Link;
 import com.cloud.utils.nio.Task;
 
@@ -102,6 +103,13 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     protected int _directAgentScanInterval = 90; // 90 seconds
     protected Set<Long> _agentToTransferIds = new HashSet<Long>();
 
+    public final static int AGENT_LOAD_INTERVAL = 60; // seconds between agent load samples
+    public final static int UNDERLOADED_SAMPLES_TO_REBALANCE = 5;
+    protected final AgentLoadMonitor _loadMonitor = new AgentLoadMonitor();
+    protected int _transferBatch = 5;
+    protected int _loadTolerance = 10;
+    private int _underloadedSamples = 0;
+
     @Inject
     protected ClusterManager _clusterMgr = null;
 
@@ -138,6 +146,9 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         value = params.get(Config.DirectAgentScanInterval.key());
         _directAgentScanInterval = NumbersUtil.parseInt(value, 90); // defaulted to 90 seconds
 
+        _transferBatch = NumbersUtil.parseInt(params.get(Config.AgentLbTransferBatch.key()), 5);
+        _loadTolerance = NumbersUtil.parseInt(params.get(Config.AgentLbLoadTolerance.key()), 10);
+
         ClusteredAgentAttache.initialize(this);
 
         _clusterMgr.registerListener(this);
@@ -159,6 +170,13 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         if (_clusterMgr.isAgentRebalanceEnabled()) {
             s_transferExecutor.scheduleAtFixedRate(getTransferScanTask(), 60000, ClusteredAgentRebalanceService.DEFAULT_TRANSFER_CHECK_INTERVAL,
                     TimeUnit.MILLISECONDS);
+            s_transferExecutor.scheduleAtFixedRate(new AgentLoadTask(), AGENT_LOAD_INTERVAL, AGENT_LOAD_INTERVAL, TimeUnit.SECONDS);
+
+            try {
+                JmxUtil.registerMBean("AgentManager", "AgentLoadMonitor", _loadMonitor);
+            } catch (Exception e) {
+                s_logger.warn("Unable to register the agent load monitor MBean", e);
+            }
         }
 
         return true;
@@ -825,6 +843,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                             if (answer == null) {
                                 s_logger.warn("Failed to get host id=" + hostId + " from management server " + node.getMsid());
                                 result = false;
+                            } else {
+                                _loadMonitor.transferRequested();
                             }
                         } catch (Exception ex) {
                             s_logger.warn("Failed to get host id=" + hostId + " from management server " + node.getMsid(), ex);
@@ -849,6 +869,41 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         }
     }
 
+    protected class AgentLoadTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                List<AgentAttache> attaches = new ArrayList<AgentAttache>();
+                for (AgentAttache attache : _agents.values()) {
+                    if (!attache.forForward()) {
+                        attaches.add(attache);
+                    }
+                }
+                _hostDao.updateAgentLoads(_loadMonitor.sample(attaches, System.currentTimeMillis()));
+
+                List<Long> upServers = new ArrayList<Long>();
+                for (ManagementServerHostVO ms : _mshostDao.listBy(ManagementServerHost.State.Up)) {
+                    upServers.add(ms.getMsid());
+                }
+                _loadMonitor.setClusterLoads(_hostDao.getAgentLoadByManagementServer(AgentLoadMonitor.IDLE_LOAD), upServers, _nodeId);
+
+                // ask the peers for load when it stays low here, not only when this server joins the cluster
+                if (_loadMonitor.isUnderloaded(_loadTolerance)) {
+                    if (++_underloadedSamples >= UNDERLOADED_SAMPLES_TO_REBALANCE) {
+                        _underloadedSamples = 0;
+                        s_logger.info("Agent load " + _loadMonitor.getLocalLoad() + " of management server " + _nodeId + " is below the average agent load "
+                                + _loadMonitor.getClusterAverageLoad() + ", scheduling agent rebalancing");
+                        scheduleRebalanceAgents();
+                    }
+                } else {
+                    _underloadedSamples = 0;
+                }
+            } catch (Throwable e) {
+                s_logger.error("Problem with the agent load sampling", e);
+            }
+        }
+    }
+
     private Answer[] sendRebalanceCommand(long peer, long agentId, long currentOwnerId, long futureOwnerId, Event event) {
         TransferAgentCommand transfer = new TransferAgentCommand(agentId, currentOwnerId, futureOwnerId, event);
         Commands commands = new Commands(OnError.Stop);
@@ -880,8 +935,10 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                     synchronized (_agentToTransferIds) {
                         if (_agentToTransferIds.size() > 0) {
                             s_logger.debug("Found " + _agentToTransferIds.size() + " agents to transfer");
+                            // the rest wait for the next scan, so that the peers are not flooded with reconnecting agents
+                            int started = 0;
                             //for (Long hostId : _agentToTransferIds) {
-                            for (Iterator<Long> iterator = _agentToTransferIds.iterator(); iterator.hasNext();) {
+                            for (Iterator<Long> iterator = _agentToTransferIds.iterator(); iterator.hasNext() && started < _transferBatch;) {
                                 Long hostId = iterator.next();
                                 AgentAttache attache = findAttache(hostId);
 
@@ -920,6 +977,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                                     iterator.remove();
                                     try {
                                         _executor.execute(new RebalanceTask(hostId, transferMap.getInitialOwner(), transferMap.getFutureOwner()));
+                                        _loadMonitor.transferStarted();
+                                        started++;
                                     } catch (RejectedExecutionException ex) {
                                         s_logger.warn("Failed to submit rebalance task for host id=" + hostId + "; postponing the execution");
                                         continue;
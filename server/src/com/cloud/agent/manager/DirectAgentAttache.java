@@ -130,6 +130,7 @@ public class DirectAgentAttache extends AgentAttache {
     protected class PingTask implements Runnable {
         @Override
         public synchronized void run() {
+            long started = System.currentTimeMillis();
             try {
                 ServerResource resource = _resource;
 
@@ -155,6 +156,8 @@ public class DirectAgentAttache extends AgentAttache {
                 }
             } catch (Exception e) {
                 s_logger.warn("Unable to complete the ping task", e);
+            } finally {
+                recordBusyTime(System.currentTimeMillis() - started);
             }
         }
     }
@@ -170,6 +173,7 @@ public class DirectAgentAttache extends AgentAttache {
         @Override
         public void run() {
             long seq = _req.getSequence();
+            long started = System.currentTimeMillis();
             try {
                 ServerResource resource = _resource;
                 Command[] cmds = _req.getCommands();
@@ -212,6 +216,8 @@ public class DirectAgentAttache extends AgentAttache {
                 processAnswers(seq, resp);
             } catch (Exception e) {
                 s_logger.warn(log(seq, "Exception caught "), e);
+            } finally {
+                recordBusyTime(System.currentTimeMillis() - started);
             }
         }
     }
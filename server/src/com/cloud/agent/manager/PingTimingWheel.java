@@ -0,0 +1,215 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ping deadlines of the agents connected to this management server, kept in a hashed
+ * timing wheel with one slot per second.
+ *
+ * A ping only records the time on the agent's entry; it does not move the entry in the
+ * wheel.  When the wheel reaches the slot an entry is in, the entry is either expired
+ * (its last ping is older than the timeout) or put back in the slot of its current
+ * deadline.  Pings therefore cost a map lookup, and advancing the wheel only looks at
+ * the entries that could be due, instead of every agent.  Deadlines beyond the wheel
+ * just go round again.
+ *
+ * The wheel is split in shards by agent id so that connects, disconnects and expiry
+ * for different agents do not share a lock.  Times are in seconds.
+ */
+public class PingTimingWheel {
+    static final class Entry {
+        final long _agentId;
+        volatile long _lastPing;
+        volatile boolean _removed;
+        // last ping of the entry when it was reported behind, guarded by the shard
+        long _reportedPing = -1;
+
+        Entry(long agentId, long lastPing) {
+            _agentId = agentId;
+            _lastPing = lastPing;
+        }
+    }
+
+    final class Shard {
+        final List<Entry>[] _slots;
+        long _tick;
+
+        @SuppressWarnings("unchecked")
+        Shard(long now) {
+            _slots = new List[_wheelSize];
+            for (int i = 0; i < _wheelSize; i++) {
+                _slots[i] = new ArrayList<Entry>();
+            }
+            _tick = now;
+        }
+
+        synchronized void schedule(Entry entry, long time) {
+            // never behind the wheel, or the entry would wait a full turn
+            _slots[(int)(Math.max(time, _tick + 1) & _mask)].add(entry);
+        }
+
+        synchronized void advance(long now, List<Long> expired) {
+            // after a long stall one turn covers every slot
+            long from = Math.max(_tick + 1, now - _wheelSize + 1);
+            for (long tick = from; tick <= now; tick++) {
+                int index = (int)(tick & _mask);
+                List<Entry> slot = _slots[index];
+                if (slot.isEmpty()) {
+                    continue;
+                }
+                _slots[index] = new ArrayList<Entry>();
+                _tick = tick;
+                for (Entry entry : slot) {
+                    if (entry._removed) {
+                        continue;
+                    }
+                    long deadline = entry._lastPing + _timeout;
+                    if (deadline <= now) {
+                        expired.add(entry._agentId);
+                        _expiredCount.incrementAndGet();
+                        if (entry._reportedPing != entry._lastPing) {
+                            entry._reportedPing = entry._lastPing;
+                            long lag = now - deadline;
+                            if (lag > _maxDetectionLag) {
+                                _maxDetectionLag = lag;
+                            }
+                        }
+                        // keep reporting it until it pings again or is disconnected
+                        _slots[(int)(Math.max(now + _recheckInterval, tick + 1) & _mask)].add(entry);
+                    } else {
+                        _slots[(int)(Math.max(deadline, tick + 1) & _mask)].add(entry);
+                    }
+                }
+            }
+            _tick = Math.max(_tick, now);
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Entry> _entries = new ConcurrentHashMap<Long, Entry>(10007);
+    private final Shard[] _shards;
+    private final int _wheelSize;
+    private final long _mask;
+    private final long _timeout;
+    private final long _recheckInterval;
+
+    private final AtomicLong _expiredCount = new AtomicLong();
+    private volatile long _maxDetectionLag;
+
+    /**
+     * @param timeout seconds without a ping after which an agent is behind
+     * @param recheckInterval seconds between reports of an agent that stays behind
+     * @param now current time, the wheel starts there
+     */
+    public PingTimingWheel(int shards, long timeout, long recheckInterval, long now) {
+        int size = 64;
+        while (size < Math.max(timeout, recheckInterval) + 1) {
+            size <<= 1;
+        }
+        _wheelSize = size;
+        _mask = size - 1;
+        _timeout = timeout;
+        _recheckInterval = recheckInterval;
+        _shards = new PingTimingWheel.Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            _shards[i] = new Shard(now);
+        }
+    }
+
+    private Shard shardOf(long agentId) {
+        return _shards[(int)(agentId % _shards.length)];
+    }
+
+    public void add(long agentId, long now) {
+        Entry entry = new Entry(agentId, now);
+        Entry old = _entries.put(agentId, entry);
+        if (old != null) {
+            old._removed = true;
+        }
+        shardOf(agentId).schedule(entry, now + _timeout);
+    }
+
+    /**
+     * @return false if the agent is not monitored here
+     */
+    public boolean ping(long agentId, long now) {
+        Entry entry = _entries.get(agentId);
+        if (entry == null) {
+            return false;
+        }
+        entry._lastPing = now;
+        return true;
+    }
+
+    public void remove(long agentId) {
+        Entry entry = _entries.remove(agentId);
+        if (entry != null) {
+            entry._removed = true;
+        }
+    }
+
+    /**
+     * @return the last ping time of the agent, null if it is not monitored here
+     */
+    public Long getLastPing(long agentId) {
+        Entry entry = _entries.get(agentId);
+        return entry == null ? null : entry._lastPing;
+    }
+
+    /**
+     * Moves the wheel up to now.
+     *
+     * @return the agents that are behind on ping
+     */
+    public List<Long> advance(long now) {
+        List<Long> expired = new ArrayList<Long>();
+        for (Shard shard : _shards) {
+            shard.advance(now, expired);
+        }
+        return expired;
+    }
+
+    /**
+     * Adds the agents of this wheel to another one, e.g. one with a different timeout.
+     */
+    public void transferTo(PingTimingWheel other) {
+        for (Entry entry : _entries.values()) {
+            if (!entry._removed) {
+                other.add(entry._agentId, entry._lastPing);
+            }
+        }
+    }
+
+    public int size() {
+        return _entries.size();
+    }
+
+    public long getExpiredCount() {
+        return _expiredCount.get();
+    }
+
+    /**
+     * @return the longest time, in seconds, between an agent's deadline and it being found behind
+     */
+    public long getMaxDetectionLag() {
+        return _maxDetectionLag;
+    }
+}
@@ -64,6 +64,7 @@ import com.cloud.configuration.Config;
 import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.exception.PermissionDeniedException;
+import com.cloud.event.ActionEventUtils;
 import com.cloud.event.EventCategory;
 import com.cloud.event.EventTypes;
 import com.cloud.server.ManagementServer;
@@ -242,6 +243,9 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             return;
         }
 
+        // the job's events should be visible by the time its result is
+        ActionEventUtils.flushPendingEvents();
+
         Transaction txt = Transaction.currentTxn();
         try {
             txt.start();
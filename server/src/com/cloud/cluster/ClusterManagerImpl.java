@@ -34,10 +34,16 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -53,6 +59,7 @@ import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.TransferAgentCommand;
+import com.cloud.agent.api.LockNotificationCommand;
 import com.cloud.agent.api.ScheduleHostScanTaskCommand;
 import com.cloud.agent.manager.ClusteredAgentManagerImpl;
 import com.cloud.agent.manager.Commands;
@@ -138,6 +145,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
     //
     private Long _mshostId = null;
     protected long _msId = ManagementServerNode.getManagementServerId();
+    private LockMasterListener _lockMasterListener;
     protected long _runId = System.currentTimeMillis();
 
     private boolean _peerScanInited = false;
@@ -147,9 +155,15 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
     private double _connectedAgentsThreshold = 0.7;
     private static boolean _agentLbHappened = false;
     
-    private final List<ClusterServicePdu> _clusterPduOutgoingQueue = new ArrayList<ClusterServicePdu>();
-    private final List<ClusterServicePdu> _clusterPduIncomingQueue = new ArrayList<ClusterServicePdu>();
-    private final Map<Long, ClusterServiceRequestPdu> _outgoingPdusWaitingForAck = new HashMap<Long, ClusterServiceRequestPdu>();
+    // one queue per peer, so a slow or unreachable peer only holds up its own PDUs
+    private final ConcurrentHashMap<String, PeerPduQueue> _clusterPduOutgoingQueues = new ConcurrentHashMap<String, PeerPduQueue>();
+    private final BlockingQueue<ClusterServicePdu> _clusterPduIncomingQueue = new LinkedBlockingQueue<ClusterServicePdu>();
+    private final Map<Long, ClusterServiceRequestPdu> _outgoingPdusWaitingForAck = new ConcurrentHashMap<Long, ClusterServiceRequestPdu>();
+
+    private static class PeerPduQueue {
+        final Queue<ClusterServicePdu> _pdus = new ConcurrentLinkedQueue<ClusterServicePdu>();
+        final AtomicInteger _senders = new AtomicInteger();
+    }
     
     public ClusterManagerImpl() {
         _clusterPeers = new HashMap<String, ClusterService>();
@@ -164,34 +178,18 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
     }
     
     private void registerRequestPdu(ClusterServiceRequestPdu pdu) {
-        synchronized(_outgoingPdusWaitingForAck) {
-            _outgoingPdusWaitingForAck.put(pdu.getSequenceId(), pdu);
-        }
+        _outgoingPdusWaitingForAck.put(pdu.getSequenceId(), pdu);
     }
     
     private ClusterServiceRequestPdu popRequestPdu(long ackSequenceId) {
-        synchronized(_outgoingPdusWaitingForAck) {
-            if(_outgoingPdusWaitingForAck.get(ackSequenceId) != null) {
-                ClusterServiceRequestPdu pdu = _outgoingPdusWaitingForAck.get(ackSequenceId);
-                _outgoingPdusWaitingForAck.remove(ackSequenceId);
-                return pdu;
-            }
-        }
-        
-        return null;
+        return _outgoingPdusWaitingForAck.remove(ackSequenceId);
     }
     
     private void cancelClusterRequestToPeer(String strPeer) {
         List<ClusterServiceRequestPdu> candidates = new ArrayList<ClusterServiceRequestPdu>();
-        synchronized(_outgoingPdusWaitingForAck) {
-            for(Map.Entry<Long, ClusterServiceRequestPdu> entry : _outgoingPdusWaitingForAck.entrySet()) {
-                if(entry.getValue().getDestPeer().equalsIgnoreCase(strPeer))
-                    candidates.add(entry.getValue());
-            }
-
-            for(ClusterServiceRequestPdu pdu : candidates) {
-                _outgoingPdusWaitingForAck.remove(pdu.getSequenceId());
-            }
+        for(ClusterServiceRequestPdu pdu : _outgoingPdusWaitingForAck.values()) {
+            if(pdu.getDestPeer().equalsIgnoreCase(strPeer) && _outgoingPdusWaitingForAck.remove(pdu.getSequenceId()) != null)
+                candidates.add(pdu);
         }
         
         for(ClusterServiceRequestPdu pdu : candidates) {
@@ -203,56 +201,47 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
     }
     
     private void addOutgoingClusterPdu(ClusterServicePdu pdu) {
-    	synchronized(_clusterPduOutgoingQueue) {
-    		_clusterPduOutgoingQueue.add(pdu);
-    		_clusterPduOutgoingQueue.notifyAll();
-    	}
+        PeerPduQueue queue = _clusterPduOutgoingQueues.get(pdu.getDestPeer());
+        if(queue == null) {
+            queue = new PeerPduQueue();
+            PeerPduQueue existing = _clusterPduOutgoingQueues.putIfAbsent(pdu.getDestPeer(), queue);
+            if(existing != null)
+                queue = existing;
+        }
+        queue._pdus.add(pdu);
+        
+        // the transport pipelines requests on one connection, so a few senders per peer keep it busy
+        if(tryAddSender(queue))
+            _executor.execute(getClusterPduSendingTask(queue));
     }
     
-    private ClusterServicePdu popOutgoingClusterPdu(long timeoutMs) {
-    	synchronized(_clusterPduOutgoingQueue) {
-    		try {
-				_clusterPduOutgoingQueue.wait(timeoutMs);
-			} catch (InterruptedException e) {
-			}
-			
-			if(_clusterPduOutgoingQueue.size() > 0) {
-				ClusterServicePdu pdu = _clusterPduOutgoingQueue.get(0);
-				_clusterPduOutgoingQueue.remove(0);
-				return pdu;
-			}
-    	}
-    	return null;
+    private static boolean tryAddSender(PeerPduQueue queue) {
+        while(true) {
+            int senders = queue._senders.get();
+            if(senders >= DEFAULT_OUTGOING_WORKERS)
+                return false;
+            if(queue._senders.compareAndSet(senders, senders + 1))
+                return true;
+        }
     }
-
+    
     private void addIncomingClusterPdu(ClusterServicePdu pdu) {
-    	synchronized(_clusterPduIncomingQueue) {
-    		_clusterPduIncomingQueue.add(pdu);
-    		_clusterPduIncomingQueue.notifyAll();
-    	}
+        _clusterPduIncomingQueue.add(pdu);
     }
     
     private ClusterServicePdu popIncomingClusterPdu(long timeoutMs) {
-    	synchronized(_clusterPduIncomingQueue) {
-    		try {
-    			_clusterPduIncomingQueue.wait(timeoutMs);
-			} catch (InterruptedException e) {
-			}
-			
-			if(_clusterPduIncomingQueue.size() > 0) {
-				ClusterServicePdu pdu = _clusterPduIncomingQueue.get(0);
-				_clusterPduIncomingQueue.remove(0);
-				return pdu;
-			}
-    	}
-    	return null;
+        try {
+            return _clusterPduIncomingQueue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return null;
+        }
     }
     
-    private Runnable getClusterPduSendingTask() {
+    private Runnable getClusterPduSendingTask(final PeerPduQueue queue) {
         return new Runnable() {
             @Override
             public void run() {
-                onSendingClusterPdu();
+                onSendingClusterPdu(queue);
             }
         };
     }
@@ -266,12 +255,17 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
         };
     }
     
-    private void onSendingClusterPdu() {
+    private void onSendingClusterPdu(PeerPduQueue queue) {
         while(true) {
             try {
-                ClusterServicePdu pdu = popOutgoingClusterPdu(1000);
-                if(pdu == null)
-                	continue;
+                ClusterServicePdu pdu = queue._pdus.poll();
+                if(pdu == null) {
+                    queue._senders.decrementAndGet();
+                    // a PDU queued while we were leaving may have found no free sender slot
+                    if(queue._pdus.isEmpty() || !tryAddSender(queue))
+                        return;
+                    continue;
+                }
                 	
                 ClusterService peerService =  null;
                 for(int i = 0; i < 2; i++) {
@@ -463,6 +457,12 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
             ScheduleHostScanTaskCommand cmd = (ScheduleHostScanTaskCommand) cmds[0];
             String response = handleScheduleHostScanTaskCommand(cmd);
             return response;
+        } else if (cmds.length == 1 && cmds[0] instanceof LockNotificationCommand) {
+            LockNotificationCommand cmd = (LockNotificationCommand) cmds[0];
+            _lockMasterListener.onLockNotification(cmd);
+            Answer[] answers = new Answer[1];
+            answers[0] = new Answer(cmd, true, null);
+            return _gson.toJson(answers);
         }
 
         try {
@@ -1319,9 +1319,6 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
             throw new ConfigurationException("cluster node IP should be valid local address where the server is running, please check your configuration");
         }
 
-        for(int i = 0; i < DEFAULT_OUTGOING_WORKERS; i++)
-        	_executor.execute(getClusterPduSendingTask());
-        
         // notification task itself in turn works as a task dispatcher
         _executor.execute(getClusterPduNotificationTask());
 
@@ -1342,7 +1339,8 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager {
             _connectedAgentsThreshold = Double.parseDouble(connectedAgentsThreshold);
         }
 
-        this.registerListener(new LockMasterListener(_msId));
+        _lockMasterListener = new LockMasterListener(this, _msId);
+        this.registerListener(_lockMasterListener);
 
         checkConflicts();
 
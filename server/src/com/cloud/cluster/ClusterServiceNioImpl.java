@@ -0,0 +1,86 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Talks to a peer over the multiplexed cluster transport, and over the cluster servlet
+ * when the peer does not accept transport connections, e.g. while a cluster is being
+ * upgraded one server at a time.
+ */
+public class ClusterServiceNioImpl implements ClusterService {
+    private static final long serialVersionUID = -3384925917592187934L;
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioImpl.class);
+
+    private final ClusterServiceNioTransport _transport;
+    private final String _host;
+    private final int _port;
+    private final int _requestTimeoutSeconds;
+    private final ClusterService _fallback;
+
+    public ClusterServiceNioImpl(ClusterServiceNioTransport transport, String host, int port, int requestTimeoutSeconds, ClusterService fallback) {
+        _transport = transport;
+        _host = host;
+        _port = port;
+        _requestTimeoutSeconds = requestTimeoutSeconds;
+        _fallback = fallback;
+    }
+
+    @Override
+    public String execute(ClusterServicePdu pdu) throws RemoteException {
+        if (useTransport()) {
+            try {
+                return _transport.deliver(_host, _port, pdu, _requestTimeoutSeconds * 1000L);
+            } catch (RemoteException e) {
+                throw e;
+            } catch (IOException e) {
+                fallBack(e);
+            }
+        }
+        return _fallback.execute(pdu);
+    }
+
+    @Override
+    public boolean ping(String callingPeer) throws RemoteException {
+        if (useTransport()) {
+            try {
+                return _transport.ping(_host, _port, callingPeer, _requestTimeoutSeconds * 1000L);
+            } catch (RemoteException e) {
+                throw e;
+            } catch (IOException e) {
+                fallBack(e);
+            }
+        }
+        return _fallback.ping(callingPeer);
+    }
+
+    private boolean useTransport() {
+        // the transport remembers unreachable peers, so a new instance for the same peer falls back at once too
+        return _fallback == null || _transport.isReachable(_host, _port);
+    }
+
+    private void fallBack(IOException e) throws RemoteException {
+        if (_fallback == null) {
+            throw new RemoteException("Unable to reach cluster peer " + _host + ":" + _port, e);
+        }
+        s_logger.info("Cluster peer " + _host + ":" + _port + " is not reachable over the cluster transport, using the cluster servlet: " + e.getMessage());
+    }
+}
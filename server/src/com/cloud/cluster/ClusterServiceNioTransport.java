@@ -0,0 +1,405 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLEngine;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioClient;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+
+/**
+ * Binary transport for cluster PDUs.  Each management server keeps one long-lived
+ * connection to every peer it talks to, and any number of requests can be in flight
+ * on it at once: every request carries an id and the reply to it carries the same id,
+ * so a slow request does not hold up the ones sent after it.
+ *
+ * Frames are a byte (request or reply) and the request id, followed for requests by
+ * the RemoteMethodConstants method and its arguments, and for replies by the result.
+ */
+public class ClusterServiceNioTransport implements HandlerFactory {
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioTransport.class);
+
+    private static final byte FRAME_REQUEST = 0;
+    private static final byte FRAME_REPLY = 1;
+    // a peer that is down or has no transport must not hold its callers up for long
+    private static final int CONNECT_TIMEOUT = 5000;
+    // how long callers are sent elsewhere after a peer could not be connected to
+    private static final long UNREACHABLE_PERIOD = 60000;
+
+    private final ClusterManager _manager;
+    private final int _workers;
+    private NioServer _server;
+    private final ConcurrentHashMap<String, PeerConnection> _peers = new ConcurrentHashMap<String, PeerConnection>();
+    private final ConcurrentHashMap<String, Object> _connectLocks = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentHashMap<String, Long> _unreachableUntil = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong _nextRequestId = new AtomicLong(1);
+
+    public ClusterServiceNioTransport(ClusterManager manager, int workers) {
+        _manager = manager;
+        _workers = workers;
+    }
+
+    public void start(int port) {
+        _server = new NioServer("ClusterService", port, _workers, this) {
+            @Override
+            protected void configureSSLEngine(SSLEngine sslEngine) {
+                disableTls13(sslEngine);
+            }
+        };
+        _server.start();
+        s_logger.info("Cluster service transport listening on port " + port);
+    }
+
+    /**
+     * Link frames raw SSLEngine records and does not expect the post-handshake messages
+     * TLS 1.3 sends, which newer JDK builds negotiate by default.  Peers keep a link open
+     * for a long time, so they run into them; both ends of the transport stay on TLS 1.2.
+     */
+    static void disableTls13(SSLEngine sslEngine) {
+        List<String> protocols = new ArrayList<String>(Arrays.asList(sslEngine.getEnabledProtocols()));
+        if (protocols.remove("TLSv1.3")) {
+            sslEngine.setEnabledProtocols(protocols.toArray(new String[protocols.size()]));
+        }
+    }
+
+    public void stop() {
+        if (_server != null) {
+            _server.stop();
+        }
+        for (PeerConnection peer : _peers.values()) {
+            peer.close();
+        }
+    }
+
+    /**
+     * Delivers the PDU to the peer and waits for its acknowledgement.
+     *
+     * @throws IOException if no connection to the peer can be made
+     * @throws RemoteException if the peer does not answer in time
+     */
+    public String deliver(String host, int port, ClusterServicePdu pdu, long timeoutMs) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeLong(pdu.getSequenceId());
+        out.writeLong(pdu.getAckSequenceId());
+        writeString(out, pdu.getSourcePeer());
+        writeString(out, pdu.getDestPeer());
+        out.writeLong(pdu.getAgentId());
+        out.writeBoolean(pdu.isStopOnError());
+        out.writeInt(pdu.getPduType());
+        writeString(out, pdu.getJsonPackage());
+        return getPeer(host, port).call(RemoteMethodConstants.METHOD_DELIVER_PDU, buffer.toByteArray(), timeoutMs);
+    }
+
+    public boolean ping(String host, int port, String callingPeer, long timeoutMs) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writeString(new DataOutputStream(buffer), callingPeer);
+        return "true".equals(getPeer(host, port).call(RemoteMethodConstants.METHOD_PING, buffer.toByteArray(), timeoutMs));
+    }
+
+    /**
+     * @return false if the last attempt to connect to the peer failed not long ago
+     */
+    public boolean isReachable(String host, int port) {
+        Long until = _unreachableUntil.get(host + ":" + port);
+        return until == null || System.currentTimeMillis() >= until;
+    }
+
+    private PeerConnection getPeer(String host, int port) throws IOException {
+        String address = host + ":" + port;
+        PeerConnection peer = _peers.get(address);
+        if (peer != null && !peer.isClosed()) {
+            return peer;
+        }
+        if (!isReachable(host, port)) {
+            throw new IOException("Cluster peer at " + address + " was not reachable recently");
+        }
+
+        // connecting to one peer must not hold up the threads sending to the others
+        Object lock = _connectLocks.get(address);
+        if (lock == null) {
+            Object created = new Object();
+            lock = _connectLocks.putIfAbsent(address, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        synchronized (lock) {
+            peer = _peers.get(address);
+            if (peer != null && !peer.isClosed()) {
+                return peer;
+            }
+            // whoever was connecting before us failed, no need to wait for the same answer again
+            if (!isReachable(host, port)) {
+                throw new IOException("Cluster peer at " + address + " was not reachable recently");
+            }
+            peer = new PeerConnection(address, host, port);
+            try {
+                peer.connect();
+            } catch (IOException e) {
+                _unreachableUntil.put(address, System.currentTimeMillis() + UNREACHABLE_PERIOD);
+                throw e;
+            }
+            _unreachableUntil.remove(address);
+            _peers.put(address, peer);
+        }
+        return peer;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static byte[] frame(byte type, long requestId, int method, byte[] body) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length + 16);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(type);
+        out.writeLong(requestId);
+        out.writeInt(method);
+        out.write(body);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Handles requests from peers on the server side.
+     */
+    @Override
+    public Task create(Task.Type type, Link link, byte[] data) {
+        return new RequestTask(type, link, data);
+    }
+
+    protected String handleRequest(int method, DataInputStream in) throws IOException {
+        switch (method) {
+        case RemoteMethodConstants.METHOD_DELIVER_PDU:
+            ClusterServicePdu pdu = new ClusterServicePdu();
+            pdu.setSequenceId(in.readLong());
+            pdu.setAckSequenceId(in.readLong());
+            pdu.setSourcePeer(readString(in));
+            pdu.setDestPeer(readString(in));
+            pdu.setAgentId(in.readLong());
+            pdu.setStopOnError(in.readBoolean());
+            pdu.setPduType(in.readInt());
+            pdu.setJsonPackage(readString(in));
+            _manager.OnReceiveClusterServicePdu(pdu);
+            return "true";
+
+        case RemoteMethodConstants.METHOD_PING:
+            String callingPeer = readString(in);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Handle ping request from " + callingPeer);
+            }
+            return "true";
+
+        default:
+            s_logger.error("unrecognized method " + method);
+            return null;
+        }
+    }
+
+    protected class RequestTask extends Task {
+        public RequestTask(Task.Type type, Link link, byte[] data) {
+            super(type, link, data);
+        }
+
+        @Override
+        protected void doTask(Task task) throws Exception {
+            if (task.getType() != Task.Type.DATA) {
+                return;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(task.getData()));
+            byte type = in.readByte();
+            long requestId = in.readLong();
+            int method = in.readInt();
+            if (type != FRAME_REQUEST) {
+                s_logger.warn("Unexpected frame type " + type + " from " + task.getLink().getSocketAddress());
+                return;
+            }
+
+            String result;
+            try {
+                result = handleRequest(method, in);
+            } catch (Exception e) {
+                s_logger.error("Unexpected exception when processing cluster service request : ", e);
+                result = null;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            writeString(new DataOutputStream(body), result);
+            task.getLink().send(frame(FRAME_REPLY, requestId, method, body.toByteArray()));
+        }
+    }
+
+    protected static class PendingCall {
+        final CountDownLatch _done = new CountDownLatch(1);
+        volatile String _result;
+        volatile boolean _failed;
+    }
+
+    /**
+     * The connection to one peer, shared by every thread sending to it.
+     */
+    protected class PeerConnection implements HandlerFactory {
+        final String _address;
+        final String _host;
+        final int _port;
+        final CountDownLatch _connected = new CountDownLatch(1);
+        final Map<Long, PendingCall> _inFlight = new ConcurrentHashMap<Long, PendingCall>();
+        NioClient _client;
+        volatile Link _link;
+        volatile boolean _closed = false;
+
+        PeerConnection(String address, String host, int port) {
+            _address = address;
+            _host = host;
+            _port = port;
+        }
+
+        void connect() throws IOException {
+            _client = new NioClient("ClusterPeer-" + _address, _host, _port, _workers, this) {
+                @Override
+                protected void configureSSLEngine(SSLEngine sslEngine) {
+                    disableTls13(sslEngine);
+                }
+            };
+            _client.setConnectTimeout(CONNECT_TIMEOUT);
+            _client.start();
+            try {
+                if (!_client.isStartup() || !_connected.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    _client.stop();
+                    throw new IOException("Unable to connect to cluster peer at " + _address);
+                }
+            } catch (InterruptedException e) {
+                _client.stop();
+                throw new IOException("Interrupted while connecting to cluster peer at " + _address);
+            }
+        }
+
+        boolean isClosed() {
+            return _closed;
+        }
+
+        String call(int method, byte[] body, long timeoutMs) throws IOException {
+            long requestId = _nextRequestId.getAndIncrement();
+            PendingCall call = new PendingCall();
+            _inFlight.put(requestId, call);
+            try {
+                if (_closed) {
+                    throw new RemoteException("Connection to cluster peer " + _address + " is closed");
+                }
+                _link.send(frame(FRAME_REQUEST, requestId, method, body));
+                if (!call._done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    throw new RemoteException("Timed out waiting for cluster peer " + _address + " after " + timeoutMs + "ms");
+                }
+                if (call._failed) {
+                    throw new RemoteException("Connection to cluster peer " + _address + " was lost");
+                }
+                return call._result;
+            } catch (InterruptedException e) {
+                throw new RemoteException("Interrupted while waiting for cluster peer " + _address);
+            } catch (RemoteException e) {
+                throw e;
+            } catch (IOException e) {
+                close();
+                throw new RemoteException("Unable to send to cluster peer " + _address, e);
+            } finally {
+                _inFlight.remove(requestId);
+            }
+        }
+
+        void close() {
+            _closed = true;
+            _peers.remove(_address, this);
+            if (_client != null) {
+                _client.stop();
+            }
+            Iterator<PendingCall> it = _inFlight.values().iterator();
+            while (it.hasNext()) {
+                PendingCall call = it.next();
+                call._failed = true;
+                call._done.countDown();
+            }
+        }
+
+        @Override
+        public Task create(Task.Type type, Link link, byte[] data) {
+            return new ReplyTask(type, link, data);
+        }
+
+        protected class ReplyTask extends Task {
+            public ReplyTask(Task.Type type, Link link, byte[] data) {
+                super(type, link, data);
+            }
+
+            @Override
+            protected void doTask(Task task) throws Exception {
+                if (task.getType() == Task.Type.CONNECT) {
+                    _link = task.getLink();
+                    _connected.countDown();
+                } else if (task.getType() == Task.Type.DISCONNECT) {
+                    s_logger.info("Connection to cluster peer " + _address + " closed");
+                    close();
+                } else if (task.getType() == Task.Type.DATA) {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(task.getData()));
+                    in.readByte();
+                    long requestId = in.readLong();
+                    in.readInt();
+                    PendingCall call = _inFlight.get(requestId);
+                    if (call != null) {
+                        call._result = readString(in);
+                        call._done.countDown();
+                    }
+                }
+            }
+        }
+    }
+}
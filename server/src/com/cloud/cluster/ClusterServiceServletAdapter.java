@@ -45,6 +45,8 @@ public class ClusterServiceServletAdapter extends AdapterBase implements Cluster
     private static final Logger s_logger = Logger.getLogger(ClusterServiceServletAdapter.class);
     private static final int DEFAULT_SERVICE_PORT = 9090;
     private static final int DEFAULT_REQUEST_TIMEOUT = 300;			// 300 seconds
+    private static final int TRANSPORT_PORT_OFFSET = 1;
+    private static final int DEFAULT_TRANSPORT_WORKERS = 5;
     
     @Inject private ClusterManager _manager;
     
@@ -58,6 +60,10 @@ public class ClusterServiceServletAdapter extends AdapterBase implements Cluster
     
     private int _clusterRequestTimeoutSeconds = DEFAULT_REQUEST_TIMEOUT;
     
+    private boolean _transportEnabled = false;
+    
+    private ClusterServiceNioTransport _transport;
+    
     @Override
 	public ClusterService getPeerService(String strPeer) throws RemoteException {
     	try {
@@ -67,11 +73,19 @@ public class ClusterServiceServletAdapter extends AdapterBase implements Cluster
     		throw new RemoteException("Unable to init ClusterServiceServletAdapter");
     	}
     	
-    	String serviceUrl = getServiceEndpointName(strPeer);
-    	if(serviceUrl == null)
+    	long msid = Long.parseLong(strPeer);
+    	ManagementServerHostVO mshost = _mshostDao.findByMsid(msid);
+    	if(mshost == null)
     		return null;
     	
-    	return new ClusterServiceServletImpl(serviceUrl, _clusterRequestTimeoutSeconds);
+    	ClusterService servlet = new ClusterServiceServletImpl(composeEndpointName(mshost.getServiceIP(), mshost.getServicePort()),
+    	        _clusterRequestTimeoutSeconds);
+    	if(_transport == null)
+    		return servlet;
+    	
+    	// peers listen for the transport right above their servlet port
+    	return new ClusterServiceNioImpl(_transport, mshost.getServiceIP(), mshost.getServicePort() + TRANSPORT_PORT_OFFSET,
+    	        _clusterRequestTimeoutSeconds, servlet);
 	}
     
     @Override
@@ -113,6 +127,10 @@ public class ClusterServiceServletAdapter extends AdapterBase implements Cluster
     public boolean start() {
     	_servletContainer = new ClusterServiceServletContainer();
     	_servletContainer.start(new ClusterServiceServletHttpHandler(_manager), _clusterServicePort);
+    	if(_transportEnabled) {
+    		_transport = new ClusterServiceNioTransport(_manager, DEFAULT_TRANSPORT_WORKERS);
+    		_transport.start(_clusterServicePort + TRANSPORT_PORT_OFFSET);
+    	}
     	return true;
     }
     
@@ -120,6 +138,8 @@ public class ClusterServiceServletAdapter extends AdapterBase implements Cluster
     public boolean stop() {
     	if(_servletContainer != null)
     		_servletContainer.stop();
+    	if(_transport != null)
+    		_transport.stop();
     	return true;
     }
     
@@ -144,5 +164,9 @@ public class ClusterServiceServletAdapter extends AdapterBase implements Cluster
         _clusterServicePort = NumbersUtil.parseInt(dbProps.getProperty("cluster.servlet.port"), DEFAULT_SERVICE_PORT);
         if(s_logger.isInfoEnabled())
         	s_logger.info("Cluster servlet port : " + _clusterServicePort);
+        
+        _transportEnabled = "true".equalsIgnoreCase(dbProps.getProperty("cluster.transport.enabled"));
+        if(s_logger.isInfoEnabled())
+        	s_logger.info("Cluster transport " + (_transportEnabled ? "enabled on port " + (_clusterServicePort + TRANSPORT_PORT_OFFSET) : "disabled"));
     }
 }
@@ -18,17 +18,48 @@ package com.cloud.cluster;
 
 import java.util.List;
 
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.LockNotificationCommand;
 import com.cloud.utils.db.Merovingian2;
 
 /**
  * when a management server is down.
  *
+ * Also relays lock waits and releases between management servers so waiters do not
+ * have to poll op_lock.
  */
-public class LockMasterListener implements ClusterManagerListener {
+public class LockMasterListener implements ClusterManagerListener, Merovingian2.LockNotifier {
     Merovingian2 _lockMaster;
-    
-    public LockMasterListener(long msId) {
+    ClusterManager _clusterMgr;
+    long _msId;
+
+    public LockMasterListener(ClusterManager clusterMgr, long msId) {
+        _clusterMgr = clusterMgr;
+        _msId = msId;
         _lockMaster = Merovingian2.createLockMaster(msId);
+        _lockMaster.setLockNotifier(this);
+    }
+
+    public void onLockNotification(LockNotificationCommand cmd) {
+        if (cmd.isReleased()) {
+            _lockMaster.lockReleased(cmd.getKey());
+        } else {
+            _lockMaster.waitingForLock(cmd.getMsId(), cmd.getKey());
+        }
+    }
+
+    @Override
+    public void notifyWaiting(long ownerMsId, String key) {
+        send(ownerMsId, new LockNotificationCommand(key, _msId, false));
+    }
+
+    @Override
+    public void notifyReleased(long waiterMsId, String key) {
+        send(waiterMsId, new LockNotificationCommand(key, _msId, true));
+    }
+
+    private void send(long msId, LockNotificationCommand cmd) {
+        _clusterMgr.executeAsync(Long.toString(msId), 0, new Command[] { cmd }, false);
     }
 
     @Override
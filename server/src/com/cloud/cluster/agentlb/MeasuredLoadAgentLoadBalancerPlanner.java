@@ -0,0 +1,190 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster.agentlb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.Local;
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.cloud.agent.manager.AgentLoadMonitor;
+import com.cloud.cluster.ManagementServerHost;
+import com.cloud.cluster.ManagementServerHostVO;
+import com.cloud.cluster.ManagementServerNode;
+import com.cloud.cluster.dao.ManagementServerHostDao;
+import com.cloud.configuration.Config;
+import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.host.dao.HostDao;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.component.AdapterBase;
+import com.cloud.utils.db.SearchCriteria.Op;
+import com.cloud.utils.db.SearchCriteria2;
+import com.cloud.utils.db.SearchCriteriaService;
+
+/**
+ * Picks the hosts a peer gives away by the agent load measured by AgentLoadMonitor
+ * instead of by host count.  Like ClusterBasedAgentLoadBalancerPlanner it moves whole
+ * clusters, largest load first, until the peer is down to the cluster average or the
+ * requesting server is up to it.  Hosts that were never measured count as idle agents,
+ * so without measurements it balances host counts.
+ */
+@Component
+@Local(value=AgentLoadBalancerPlanner.class)
+public class MeasuredLoadAgentLoadBalancerPlanner extends AdapterBase implements AgentLoadBalancerPlanner {
+    private static final Logger s_logger = Logger.getLogger(MeasuredLoadAgentLoadBalancerPlanner.class);
+
+    @Inject HostDao _hostDao;
+    @Inject ManagementServerHostDao _mshostDao;
+    @Inject ConfigurationDao _configDao;
+
+    int _tolerance = 10;
+    int _maxHosts = 50;
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        super.configure(name, params);
+        _tolerance = NumbersUtil.parseInt(_configDao.getValue(Config.AgentLbLoadTolerance.key()), 10);
+        _maxHosts = NumbersUtil.parseInt(_configDao.getValue(Config.AgentLbMaxHosts.key()), 50);
+        return true;
+    }
+
+    @Override
+    public List<HostVO> getHostsToRebalance(long msId, int avLoad) {
+        List<ManagementServerHostVO> upServers = _mshostDao.listBy(ManagementServerHost.State.Up);
+        if (upServers.isEmpty()) {
+            return null;
+        }
+        Map<Long, Long> serverLoads = _hostDao.getAgentLoadByManagementServer(AgentLoadMonitor.IDLE_LOAD);
+        long total = 0;
+        for (ManagementServerHostVO server : upServers) {
+            Long load = serverLoads.get(server.getMsid());
+            total += load == null ? 0 : load;
+        }
+        long average = total / upServers.size();
+        long peerLoad = getLoad(serverLoads, msId);
+        long ownLoad = getLoad(serverLoads, ManagementServerNode.getManagementServerId());
+
+        long loadToGive = getLoadToGive(peerLoad, ownLoad, average, _tolerance);
+        if (loadToGive <= 0) {
+            s_logger.debug("Agent load = " + peerLoad + " for management server " + msId + " and " + ownLoad + " for this one are within " + _tolerance
+                    + "% of the average agent load = " + average + "; so it doesn't participate in agent rebalancing process");
+            return null;
+        }
+
+        SearchCriteriaService<HostVO, HostVO> sc = SearchCriteria2.create(HostVO.class);
+        sc.addAnd(sc.getEntity().getType(), Op.EQ, Host.Type.Routing);
+        sc.addAnd(sc.getEntity().getManagementServerId(), Op.EQ, msId);
+        sc.addAnd(sc.getEntity().getStatus(), Op.EQ, Status.Up);
+        List<HostVO> hosts = sc.list();
+        if (hosts.isEmpty()) {
+            s_logger.debug("No routing agents in status " + Status.Up + " exist for the management server " + msId + "; so it doesn't participate in agent rebalancing process");
+            return null;
+        }
+
+        Map<Long, Long> hostLoads = _hostDao.getAgentLoads(msId);
+        Map<Long, List<HostVO>> hostsByCluster = new HashMap<Long, List<HostVO>>();
+        Map<Long, Long> clusterLoads = new HashMap<Long, Long>();
+        for (HostVO host : hosts) {
+            Long clusterId = host.getClusterId();
+            List<HostVO> clusterHosts = hostsByCluster.get(clusterId);
+            if (clusterHosts == null) {
+                clusterHosts = new ArrayList<HostVO>();
+                hostsByCluster.put(clusterId, clusterHosts);
+                clusterLoads.put(clusterId, 0L);
+            }
+            clusterHosts.add(host);
+            clusterLoads.put(clusterId, clusterLoads.get(clusterId) + getHostLoad(hostLoads, host.getId()));
+        }
+
+        s_logger.debug("Management server " + msId + " can give away agent load " + loadToGive + " as its load is " + peerLoad
+                + " and the average agent load in the system is " + average + "; finalyzing list of hosts to give away...");
+        List<HostVO> hostsToReturn = new ArrayList<HostVO>();
+        for (Long clusterId : selectClusters(clusterLoads, hostsByCluster, loadToGive, _maxHosts)) {
+            List<HostVO> clusterHosts = hostsByCluster.get(clusterId);
+            s_logger.debug("Taking all " + clusterHosts.size() + " hosts with agent load " + clusterLoads.get(clusterId) + " from cluster id=" + clusterId);
+            hostsToReturn.addAll(clusterHosts);
+        }
+
+        s_logger.debug("Management server " + msId + " is ready to give away " + hostsToReturn.size() + " hosts");
+        return hostsToReturn;
+    }
+
+    private static long getLoad(Map<Long, Long> loads, long id) {
+        Long load = loads.get(id);
+        return load == null ? 0 : load;
+    }
+
+    private static long getHostLoad(Map<Long, Long> hostLoads, long hostId) {
+        long load = getLoad(hostLoads, hostId);
+        return load == 0 ? AgentLoadMonitor.IDLE_LOAD : load;
+    }
+
+    /**
+     * @return the load a peer should give to the requesting server, 0 if none
+     */
+    static long getLoadToGive(long peerLoad, long ownLoad, long average, int tolerancePercent) {
+        if (peerLoad * 100 <= average * (100 + tolerancePercent)) {
+            return 0;
+        }
+        return Math.max(0, Math.min(peerLoad - average, average - ownLoad));
+    }
+
+    /**
+     * Picks whole clusters, largest load first, whose load and hosts fit what is left to give.
+     */
+    static <T> List<Long> selectClusters(final Map<Long, Long> clusterLoads, Map<Long, List<T>> hostsByCluster, long loadToGive, int maxHosts) {
+        List<Long> clusters = new ArrayList<Long>(clusterLoads.keySet());
+        Collections.sort(clusters, new Comparator<Long>() {
+            @Override
+            public int compare(Long o1, Long o2) {
+                return clusterLoads.get(o2).compareTo(clusterLoads.get(o1));
+            }
+        });
+
+        List<Long> selected = new ArrayList<Long>();
+        long loadLeft = loadToGive;
+        int hostsLeft = maxHosts;
+        for (Long clusterId : clusters) {
+            long load = clusterLoads.get(clusterId);
+            int size = hostsByCluster.get(clusterId).size();
+            if (load > loadLeft || size > hostsLeft) {
+                s_logger.debug("Skipping cluster id=" + clusterId + " as its agent load " + load + " or its " + size + " hosts are more than we need: "
+                        + loadLeft + " or " + hostsLeft);
+                continue;
+            }
+            selected.add(clusterId);
+            loadLeft -= load;
+            hostsLeft -= size;
+            if (loadLeft < AgentLoadMonitor.IDLE_LOAD || hostsLeft == 0) {
+                break;
+            }
+        }
+        return selected;
+    }
+}
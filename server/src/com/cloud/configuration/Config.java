@@ -147,6 +147,9 @@ public enum Config {
     SnapshotWeeklyMax("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.weekly", "8", "Maximum weekly snapshots for a volume", null),
     SnapshotMonthlyMax("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.monthly", "8", "Maximum monthly snapshots for a volume", null),
     SnapshotPollInterval("Snapshots", SnapshotManager.class, Integer.class, "snapshot.poll.interval", "300", "The time interval in seconds when the management server polls for snapshots to be scheduled.", null),
+    SnapshotScheduleJitter("Snapshots", SnapshotManager.class, Integer.class, "snapshot.schedule.jitter", "300", "Scheduled snapshots start at a random time up to this many seconds after they are due, so that snapshots due at the same time do not all start at once.", null),
+    SnapshotMaxConcurrentPerPool("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.concurrent.per.pool", "4", "Maximum scheduled snapshots a management server runs at a time on one primary storage pool, 0 for no limit.", null),
+    SnapshotMaxConcurrentPerSecondary("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.concurrent.per.secondary", "8", "Maximum scheduled snapshots a management server runs at a time per secondary storage of a zone, 0 for no limit.", null),
     SnapshotDeltaMax("Snapshots", SnapshotManager.class, Integer.class, "snapshot.delta.max", "16", "max delta snapshots between two full snapshots.", null),
     BackupSnapshotAfterTakingSnapshot("Snapshots", SnapshotManager.class, Boolean.class, "snapshot.backup.rightafter", "true", "backup snapshot right after snapshot is taken", null),
     KVMSnapshotEnabled("Snapshots", SnapshotManager.class, Boolean.class, "kvm.snapshot.enabled", "false", "whether snapshot is enabled for KVM hosts", null),
@@ -197,6 +200,7 @@ public enum Config {
 	MigrateWait("Advanced", AgentManager.class, Integer.class, "migratewait", "3600", "Time (in seconds) to wait for VM migrate finish", null),
 	Workers("Advanced", AgentManager.class, Integer.class, "workers", "5", "Number of worker threads.", null),
 	HAWorkers("Advanced", AgentManager.class, Integer.class, "ha.workers", "5", "Number of ha worker threads.", null),
+	HARestartClusterParallelism("Advanced", AgentManager.class, Integer.class, "ha.restart.cluster.parallelism", null, "Number of VMs from the same cluster the HA workers restart at a time. Defaults to ha.workers, 0 is no limit.", null),
 	MountParent("Advanced", ManagementServer.class, String.class, "mount.parent", "/var/cloudstack/mnt", "The mount point on the Management Server for Secondary Storage.", null),
 //	UpgradeURL("Advanced", ManagementServer.class, String.class, "upgrade.url", "http://example.com:8080/client/agent/update.zip", "The upgrade URL is the URL of the management server that agents will connect to in order to automatically upgrade.", null),
 	SystemVMUseLocalStorage("Advanced", ManagementServer.class, Boolean.class, "system.vm.use.local.storage", "false", "Indicates whether to use local storage pools or shared storage pools for system VMs.", null),
@@ -210,6 +214,9 @@ public enum Config {
 	ManagementHostIPAdr("Advanced", ManagementServer.class, String.class, "host", "localhost", "The ip address of management server", null),
 	ManagementNetwork("Advanced", ManagementServer.class, String.class, "management.network.cidr", null, "The cidr of management server network", null),
 	EventPurgeDelay("Advanced", ManagementServer.class, Integer.class, "event.purge.delay", "15", "Events older than specified number days will be purged. Set this value to 0 to never delete events", null),
+	EventPersistAsync("Advanced", ManagementServer.class, Boolean.class, "event.persist.async", "true", "Write action events to the database in batches from a background thread instead of on the API or job thread", null),
+	EventPersistQueueSize("Advanced", ManagementServer.class, Integer.class, "event.persist.queue.size", "10000", "The number of action events that may wait to be written; when it is reached events are written on the calling thread", null),
+	EventPersistFlushOnJobComplete("Advanced", ManagementServer.class, Boolean.class, "event.persist.flush.on.job.complete", "true", "Wait for queued action events to be written before an async job is marked complete", null),
 	SecStorageVmMTUSize("Advanced", AgentManager.class, Integer.class, "secstorage.vm.mtu.size", String.valueOf(SecondaryStorageVmManager.DEFAULT_SS_VM_MTUSIZE), "MTU size (in Byte) of storage network in secondary storage vms", null),
 	MaxTemplateAndIsoSize("Advanced",  ManagementServer.class, Long.class, "max.template.iso.size", "50", "The maximum size for a downloaded template or ISO (in GB).", null),
 	SecStorageAllowedInternalDownloadSites("Advanced", ManagementServer.class, String.class, "secstorage.allowed.internal.sites", null, "Comma separated list of cidrs internal to the datacenter that can host template download servers, please note 0.0.0.0 is not a valid site", null),
@@ -305,6 +312,9 @@ public enum Config {
     VmwareRecycleHungWorker("Advanced", ManagementServer.class, Boolean.class, "vmware.recycle.hung.wokervm", "false", "Specify whether or not to recycle hung worker VMs", null),
     VmwareHungWorkerTimeout("Advanced", ManagementServer.class, Long.class, "vmware.hung.wokervm.timeout", "7200", "Worker VM timeout in seconds", null),
     VmwareEnableNestedVirtualization("Advanced", ManagementServer.class, Boolean.class, "vmware.nested.virtualization", "false", "When set to true this will enable nested virtualization when this is supported by the hypervisor", null),
+    VmwareContextPoolMaxSize("Advanced", ManagementServer.class, Integer.class, "vmware.context.pool.max.size", "64", "Maximum number of vCenter sessions checked out of the context pool at a time, per vCenter", null),
+    VmwareContextPoolWarmSize("Advanced", ManagementServer.class, Integer.class, "vmware.context.pool.warm.size", "4", "Number of idle vCenter sessions the context pool keeps logged in ahead of time, per vCenter", null),
+    VmwareContextPoolWait("Advanced", ManagementServer.class, Integer.class, "vmware.context.pool.wait", "120", "Time in seconds a command waits for a vCenter session when all sessions of the vCenter are in use", null),
 
     // Midonet
     MidoNetAPIServerAddress("Network", ManagementServer.class, String.class, "midonet.apiserver.address", "http://localhost:8081", "Specify the address at which the Midonet API server can be contacted (if using Midonet)", null),
@@ -364,11 +374,15 @@ public enum Config {
 	DefaultMaxAccountSecondaryStorage("Account Defaults", ManagementServer.class, Long.class, "max.account.secondary.storage", "400", "The default maximum secondary storage space (in GiB) that can be used for an account", null),
 
 	ResourceCountCheckInterval("Advanced", ManagementServer.class, Long.class, "resourcecount.check.interval", "0", "Time (in seconds) to wait before retrying resource count check task. Default is 0 which is to never run the task", "Seconds"),
+	ResourceCountCompactInterval("Advanced", ManagementServer.class, Long.class, "resourcecount.compact.interval", "60", "Time (in seconds) between folding the per-account domain resource count deltas into the domain counts. 0 never folds them, the resource count check task still does", "Seconds"),
 	DirectAgentLoadSize("Advanced", ManagementServer.class, Integer.class, "direct.agent.load.size", "16", "The number of direct agents to load each time", null),
     DirectAgentScanInterval("Advanced", ManagementServer.class, Integer.class, "direct.agent.scan.interval", "90", "Time interval (in seconds) to run the direct agent scan task", null),
 
 	//disabling lb as cluster sync does not work with distributed cluster
 	AgentLbEnable("Advanced", ManagementServer.class, Boolean.class, "agent.lb.enabled", "false", "If agent load balancing enabled in cluster setup", null),
+	AgentLbLoadTolerance("Advanced", ManagementServer.class, Integer.class, "agent.lb.load.tolerance", "10", "Percentage by which the measured agent load of a management server has to exceed the cluster average before it gives agents away", null),
+	AgentLbMaxHosts("Advanced", ManagementServer.class, Integer.class, "agent.lb.max.hosts", "50", "Maximum number of hosts a management server asks one peer for in a rebalance", null),
+	AgentLbTransferBatch("Advanced", ManagementServer.class, Integer.class, "agent.lb.transfer.batch", "5", "Maximum number of agent transfers a management server starts every 10 seconds", null),
 	SubDomainNetworkAccess("Advanced", NetworkManager.class, Boolean.class, "allow.subdomain.network.access", "true", "Allow subdomains to use networks dedicated to their parent domain(s)", null),
 	UseExternalDnsServers("Advanced", NetworkManager.class, Boolean.class, "use.external.dns", "false", "Bypass internal dns, use external dns1 and dns2", null, ConfigurationParameterScope.zone.toString()),
 	EncodeApiResponse("Advanced", ManagementServer.class, Boolean.class, "encode.api.response", "false", "Do URL encoding for the api response, false by default", null),
@@ -0,0 +1,221 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Hands action events from API and job threads to a single writer thread, which
+ * stores them in batches.  The queue is bounded; when it is full offer() refuses
+ * the event and the caller is expected to store it itself.  Events are written
+ * in the order they were queued, which is what lets flush() wait for the last
+ * event the calling thread queued without waiting on the rest of the backlog.
+ */
+public class ActionEventPipeline implements ActionEventPipelineMBean {
+    private static final Logger s_logger = Logger.getLogger(ActionEventPipeline.class);
+
+    public interface BatchWriter {
+        /**
+         * Stores the events; any exception drops the whole batch.
+         */
+        void write(List<PendingActionEvent> events);
+    }
+
+    public static class PendingActionEvent {
+        final EventVO _event;
+        // taken from the UserContext of the thread that raised the event
+        final String _entityType;
+        final String _entityUuid;
+
+        public PendingActionEvent(EventVO event, String entityType, String entityUuid) {
+            _event = event;
+            _entityType = entityType;
+            _entityUuid = entityUuid;
+        }
+
+        public EventVO getEvent() {
+            return _event;
+        }
+
+        public String getEntityType() {
+            return _entityType;
+        }
+
+        public String getEntityUuid() {
+            return _entityUuid;
+        }
+    }
+
+    private final ArrayBlockingQueue<PendingActionEvent> _queue;
+    private final int _batchSize;
+    private final BatchWriter _writer;
+    private final ExecutorService _executor;
+    private volatile boolean _running = true;
+
+    // guarded by _queue for offers, so the count matches the queue order
+    private final AtomicLong _queuedCount = new AtomicLong();
+    private final AtomicLong _writtenCount = new AtomicLong();
+    private final AtomicLong _batchCount = new AtomicLong();
+    private final AtomicLong _overflowCount = new AtomicLong();
+    private final AtomicLong _droppedCount = new AtomicLong();
+    private final Object _flushLock = new Object();
+    // position in the queue order of the last event each thread queued
+    private final ThreadLocal<Long> _lastQueued = new ThreadLocal<Long>();
+
+    public ActionEventPipeline(int capacity, int batchSize, BatchWriter writer) {
+        _queue = new ArrayBlockingQueue<PendingActionEvent>(capacity);
+        _batchSize = batchSize;
+        _writer = writer;
+        _executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("ActionEventWriter"));
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        });
+    }
+
+    /**
+     * @return false if the queue is full or the pipeline stopped, the event is then not queued
+     */
+    public boolean offer(PendingActionEvent event) {
+        if (!_running) {
+            return false;
+        }
+        synchronized (_queue) {
+            if (_queue.offer(event)) {
+                _lastQueued.set(_queuedCount.incrementAndGet());
+                return true;
+            }
+        }
+        _overflowCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Waits until every event the calling thread queued has been written.  Events
+     * other threads queued later are not waited for.
+     *
+     * @return false if that did not happen within the timeout
+     */
+    public boolean flush(long timeoutMs) {
+        Long last = _lastQueued.get();
+        if (last == null) {
+            return true;
+        }
+        long target = last;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (_flushLock) {
+            while (_writtenCount.get() < target) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                try {
+                    _flushLock.wait(wait);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        _lastQueued.remove();
+        return true;
+    }
+
+    public void stop(long timeoutMs) {
+        _running = false;
+        _executor.shutdown();
+        try {
+            if (!_executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                s_logger.warn(_queue.size() + " action events were not written before shutdown");
+            }
+        } catch (InterruptedException e) {
+            s_logger.warn("Interrupted while writing the remaining action events");
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingActionEvent> batch = new ArrayList<PendingActionEvent>(_batchSize);
+        while (_running || !_queue.isEmpty()) {
+            try {
+                PendingActionEvent first = _queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                _queue.drainTo(batch, _batchSize - 1);
+            } catch (InterruptedException e) {
+                s_logger.debug("Action event writer interrupted");
+                continue;
+            }
+
+            try {
+                _writer.write(batch);
+                _batchCount.incrementAndGet();
+            } catch (Throwable e) {
+                _droppedCount.addAndGet(batch.size());
+                s_logger.error("Unable to write " + batch.size() + " action events", e);
+            }
+
+            synchronized (_flushLock) {
+                _writtenCount.addAndGet(batch.size());
+                _flushLock.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return _queue.size();
+    }
+
+    @Override
+    public long getQueuedCount() {
+        return _queuedCount.get();
+    }
+
+    @Override
+    public long getWrittenCount() {
+        return _writtenCount.get();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return _batchCount.get();
+    }
+
+    @Override
+    public long getOverflowCount() {
+        return _overflowCount.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return _droppedCount.get();
+    }
+}
@@ -17,6 +17,9 @@
 
 package com.cloud.event;
 
+import com.cloud.configuration.Config;
+import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.event.ActionEventPipeline.PendingActionEvent;
 import com.cloud.event.dao.EventDao;
 import com.cloud.server.ManagementServer;
 import com.cloud.user.Account;
@@ -25,7 +28,10 @@ import com.cloud.user.User;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserDao;
 import com.cloud.user.UserContext;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ComponentContext;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.mgmt.JmxUtil;
 import org.apache.cloudstack.framework.events.EventBus;
 import org.apache.cloudstack.framework.events.EventBusException;
 import org.apache.log4j.Logger;
@@ -33,8 +39,12 @@ import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Component
@@ -46,9 +56,16 @@ public class ActionEventUtils {
     protected static UserDao _userDao;
     protected static EventBus _eventBus = null;
 
+    private static final int EVENT_BATCH_SIZE = 100;
+    private static final long FLUSH_TIMEOUT = 30000;
+    // null when events are written on the calling thread
+    private static ActionEventPipeline s_pipeline;
+    private static boolean s_flushOnJobComplete = true;
+
     @Inject EventDao eventDao;
     @Inject AccountDao accountDao;
     @Inject UserDao userDao;
+    @Inject ConfigurationDao configDao;
 
     public ActionEventUtils() {
     }
@@ -58,32 +75,58 @@ public class ActionEventUtils {
     	_eventDao = eventDao;
     	_accountDao = accountDao;
     	_userDao = userDao;
-    }
 
-    public static Long onActionEvent(Long userId, Long accountId, Long domainId, String type, String description) {
+        try {
+            if (Boolean.parseBoolean(configDao.getValue(Config.EventPersistAsync.key()))) {
+                int queueSize = NumbersUtil.parseInt(configDao.getValue(Config.EventPersistQueueSize.key()), 10000);
+                s_flushOnJobComplete = !"false".equalsIgnoreCase(configDao.getValue(Config.EventPersistFlushOnJobComplete.key()));
+                s_pipeline = new ActionEventPipeline(queueSize, EVENT_BATCH_SIZE, new ActionEventPipeline.BatchWriter() {
+                    @Override
+                    public void write(List<PendingActionEvent> events) {
+                        writeActionEvents(events);
+                    }
+                });
+                JmxUtil.registerMBean("ActionEventPipeline", null, s_pipeline);
+            }
+        } catch (Exception e) {
+            s_logger.warn("Unable to set up asynchronous action event persistence, events will be written on the calling thread", e);
+        }
+    }
 
-        publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(),
-                type, com.cloud.event.Event.State.Completed);
+    @PreDestroy
+    void destroy() {
+        if (s_pipeline != null) {
+            s_pipeline.stop(FLUSH_TIMEOUT);
+        }
+    }
 
-        Event event = persistActionEvent(userId, accountId, domainId, null, type, Event.State.Completed,
-                description, null);
+    /**
+     * Waits for the action events the calling thread queued to be written, so that an
+     * async job's events are in the database by the time its result is.  Does nothing
+     * unless event.persist.flush.on.job.complete is set.
+     */
+    public static void flushPendingEvents() {
+        ActionEventPipeline pipeline = s_pipeline;
+        if (pipeline != null && s_flushOnJobComplete && !pipeline.flush(FLUSH_TIMEOUT)) {
+            s_logger.warn("Timed out waiting for " + pipeline.getQueueDepth() + " action events to be written");
+        }
+    }
 
-        return event.getId();
+    /*
+     * Unless noted otherwise, the on*ActionEvent methods queue the event and return 0 when
+     * asynchronous persistence is enabled; the id is only known once the event is written.
+     */
+    public static Long onActionEvent(Long userId, Long accountId, Long domainId, String type, String description) {
+        return recordActionEvent(userId, accountId, domainId, null, type, Event.State.Completed, description, null, false);
     }
 
     /*
-     * Save event after scheduling an async job
+     * Save event after scheduling an async job; always written right away as its id
+     * becomes the start id of the job's later events
      */
     public static Long onScheduledActionEvent(Long userId, Long accountId, String type, String description,
                                               long startEventId) {
-
-        publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type,
-                com.cloud.event.Event.State.Scheduled);
-
-        Event event = persistActionEvent(userId, accountId, null, null, type, Event.State.Scheduled,
-                description, startEventId);
-
-        return event.getId();
+        return recordActionEvent(userId, accountId, null, null, type, Event.State.Scheduled, description, startEventId, true);
     }
 
     /*
@@ -91,49 +134,32 @@ public class ActionEventUtils {
      */
     public static Long onStartedActionEvent(Long userId, Long accountId, String type, String description,
                                             long startEventId) {
-
-        publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type,
-                com.cloud.event.Event.State.Started);
-
-        Event event = persistActionEvent(userId, accountId, null, null, type, Event.State.Started,
-                description, startEventId);
-        return event.getId();
+        return recordActionEvent(userId, accountId, null, null, type, Event.State.Started, description, startEventId, false);
     }
 
     public static Long onCompletedActionEvent(Long userId, Long accountId, String level, String type,
                                               String description, long startEventId) {
-
-        publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type,
-                com.cloud.event.Event.State.Completed);
-
-        Event event = persistActionEvent(userId, accountId, null, level, type, Event.State.Completed,
-                description, startEventId);
-
-        return event.getId();
+        return recordActionEvent(userId, accountId, null, level, type, Event.State.Completed, description, startEventId, false);
     }
 
+    /*
+     * Always written right away, the id is the start id of the events that follow
+     */
     public static Long onCreatedActionEvent(Long userId, Long accountId, String level, String type, String description) {
-
-        publishOnEventBus(userId, accountId, EventCategory.ACTION_EVENT.getName(), type,
-                com.cloud.event.Event.State.Created);
-
-        Event event = persistActionEvent(userId, accountId, null, level, type, Event.State.Created, description, null);
-
-        return event.getId();
+        return recordActionEvent(userId, accountId, null, level, type, Event.State.Created, description, null, true);
     }
 
-    private static Event persistActionEvent(Long userId, Long accountId, Long domainId, String level, String type,
-                                           Event.State state, String description, Long startEventId) {
+    private static Long recordActionEvent(Long userId, Long accountId, Long domainId, String level, String type,
+                                          Event.State state, String description, Long startEventId, boolean needsId) {
         EventVO event = new EventVO();
         event.setUserId(userId);
         event.setAccountId(accountId);
         event.setType(type);
         event.setState(state);
         event.setDescription(description);
+        event.setCreatedDate(new Date());
         if (domainId != null) {
             event.setDomainId(domainId);
-        } else {
-            event.setDomainId(getDomainId(accountId));
         }
         if (level != null && !level.isEmpty()) {
             event.setLevel(level);
@@ -141,19 +167,8 @@ public class ActionEventUtils {
         if (startEventId != null) {
             event.setStartId(startEventId);
         }
-        event = _eventDao.persist(event);
-        return event;
-    }
 
-    private static void publishOnEventBus(long userId, long accountId, String eventCategory,
-                                          String eventType, Event.State state) {
-        try {
-            _eventBus = ComponentContext.getComponent(EventBus.class);
-        } catch(NoSuchBeanDefinitionException nbe) {
-            return; // no provider is configured to provide events bus, so just return
-        }
-
-        // get the entity details for which ActionEvent is generated
+        // get the entity details for which ActionEvent is generated, they only live on this thread
         String entityType = null;
         String entityUuid = null;
         UserContext context = UserContext.current();
@@ -162,6 +177,75 @@ public class ActionEventUtils {
             entityUuid = context.getEntityUUID();
         }
 
+        PendingActionEvent pending = new PendingActionEvent(event, entityType, entityUuid);
+        ActionEventPipeline pipeline = s_pipeline;
+        if (pipeline != null) {
+            if (!needsId && pipeline.offer(pending)) {
+                return 0L;
+            }
+            // written on this thread, so the events it queued earlier have to go first
+            if (!pipeline.flush(FLUSH_TIMEOUT)) {
+                s_logger.warn("Timed out waiting for earlier action events, writing " + type + " out of order");
+            }
+        }
+
+        publishOnEventBus(pending);
+        if (domainId == null) {
+            event.setDomainId(getDomainId(accountId));
+        }
+        return _eventDao.persist(event).getId();
+    }
+
+    // runs on the pipeline's writer thread
+    private static void writeActionEvents(List<PendingActionEvent> events) {
+        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+        try {
+            List<EventVO> vos = new ArrayList<EventVO>(events.size());
+            for (PendingActionEvent pending : events) {
+                EventVO event = pending.getEvent();
+                if (event.getDomainId() == 0) {
+                    event.setDomainId(getDomainId(event.getAccountId()));
+                }
+                vos.add(event);
+            }
+
+            try {
+                _eventDao.persistBatch(vos);
+            } catch (Exception e) {
+                s_logger.warn("Unable to write " + vos.size() + " action events in one batch, writing them one by one", e);
+                for (EventVO event : vos) {
+                    _eventDao.persist(event);
+                }
+            }
+
+            for (PendingActionEvent pending : events) {
+                try {
+                    publishOnEventBus(pending);
+                } catch (Exception e) {
+                    s_logger.warn("Failed to publish action event " + pending.getEvent().getType() + " on the event bus", e);
+                }
+            }
+        } finally {
+            txn.close();
+        }
+    }
+
+    private static void publishOnEventBus(PendingActionEvent pending) {
+        try {
+            _eventBus = ComponentContext.getComponent(EventBus.class);
+        } catch(NoSuchBeanDefinitionException nbe) {
+            return; // no provider is configured to provide events bus, so just return
+        }
+
+        EventVO vo = pending.getEvent();
+        long userId = vo.getUserId();
+        long accountId = vo.getAccountId();
+        String eventCategory = EventCategory.ACTION_EVENT.getName();
+        String eventType = vo.getType();
+        Event.State state = vo.getState();
+        String entityType = pending.getEntityType();
+        String entityUuid = pending.getEntityUuid();
+
         org.apache.cloudstack.framework.events.Event event = new org.apache.cloudstack.framework.events.Event(
                 ManagementServer.Name,
                 eventCategory,
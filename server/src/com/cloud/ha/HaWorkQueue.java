@@ -0,0 +1,199 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory hand-off of HA work items to the HA workers.  Work is queued when it is
+ * scheduled or rescheduled on this management server, and by the dispatcher task for
+ * work it finds in the database (scheduled by other servers or released by a server
+ * that left the cluster).  The queue only carries ids: a worker still has to claim the
+ * item in op_ha_work before working on it, so an item queued on several servers is
+ * worked on once.
+ *
+ * It also keeps the time it takes to restart the VMs of a host, from the first restart
+ * scheduled for the host to the last one finished.  Restarts that another server works on
+ * are retired with restartFinished() once the manager finds them done in the database.
+ */
+public class HaWorkQueue implements HaWorkQueueMBean {
+    private static final Logger s_logger = Logger.getLogger(HaWorkQueue.class);
+
+    public static class QueuedWork implements Delayed {
+        final long _workId;
+        final long _hostId;
+        final long _timeToTry;
+
+        QueuedWork(long workId, long hostId, long timeToTry) {
+            _workId = workId;
+            _hostId = hostId;
+            _timeToTry = timeToTry;
+        }
+
+        public long getWorkId() {
+            return _workId;
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(_timeToTry - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            QueuedWork other = (QueuedWork)o;
+            if (_timeToTry != other._timeToTry) {
+                return _timeToTry < other._timeToTry ? -1 : 1;
+            }
+            // oldest work first, the same order take() used
+            return _workId < other._workId ? -1 : (_workId == other._workId ? 0 : 1);
+        }
+    }
+
+    static class HostRecovery {
+        final long _started;
+        final Set<Long> _outstanding = new HashSet<Long>();
+
+        HostRecovery(long started) {
+            _started = started;
+        }
+    }
+
+    private final DelayQueue<QueuedWork> _queue = new DelayQueue<QueuedWork>();
+    private final ConcurrentHashMap<Long, QueuedWork> _queued = new ConcurrentHashMap<Long, QueuedWork>();
+    private final ConcurrentHashMap<Long, HostRecovery> _recoveries = new ConcurrentHashMap<Long, HostRecovery>();
+
+    private final AtomicLong _dispatchedCount = new AtomicLong();
+    private final AtomicLong _recoveredHosts = new AtomicLong();
+    private volatile long _lastRecoveryMs;
+    private volatile long _maxRecoveryMs;
+
+    /**
+     * @param timeToTry when the work is due, in milliseconds
+     * @return false if the work item is already queued
+     */
+    public boolean offer(long workId, long hostId, long timeToTry) {
+        QueuedWork work = new QueuedWork(workId, hostId, timeToTry);
+        if (_queued.putIfAbsent(workId, work) != null) {
+            return false;
+        }
+        _queue.offer(work);
+        return true;
+    }
+
+    /**
+     * Waits for the next work item that is due.
+     *
+     * @return null if none became due within the timeout
+     */
+    public QueuedWork poll(long timeoutMs) throws InterruptedException {
+        QueuedWork work = _queue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (work != null) {
+            _queued.remove(work._workId, work);
+            _dispatchedCount.incrementAndGet();
+        }
+        return work;
+    }
+
+    public void restartScheduled(long hostId, long workId) {
+        synchronized (_recoveries) {
+            HostRecovery recovery = _recoveries.get(hostId);
+            if (recovery == null) {
+                recovery = new HostRecovery(System.currentTimeMillis());
+                _recoveries.put(hostId, recovery);
+            }
+            recovery._outstanding.add(workId);
+        }
+    }
+
+    public void restartFinished(long hostId, long workId) {
+        long elapsed;
+        synchronized (_recoveries) {
+            HostRecovery recovery = _recoveries.get(hostId);
+            if (recovery == null || !recovery._outstanding.remove(workId) || !recovery._outstanding.isEmpty()) {
+                return;
+            }
+            _recoveries.remove(hostId);
+            elapsed = System.currentTimeMillis() - recovery._started;
+        }
+        _lastRecoveryMs = elapsed;
+        if (elapsed > _maxRecoveryMs) {
+            _maxRecoveryMs = elapsed;
+        }
+        _recoveredHosts.incrementAndGet();
+        s_logger.info("HA finished with the VMs of host " + hostId + " in " + elapsed + "ms");
+    }
+
+    /**
+     * @return the restart work ids that are not finished yet, to their host ids
+     */
+    public Map<Long, Long> listOutstandingRestarts() {
+        Map<Long, Long> restarts = new HashMap<Long, Long>();
+        synchronized (_recoveries) {
+            for (Map.Entry<Long, HostRecovery> entry : _recoveries.entrySet()) {
+                for (Long workId : entry.getValue()._outstanding) {
+                    restarts.put(workId, entry.getKey());
+                }
+            }
+        }
+        return restarts;
+    }
+
+    @Override
+    public int getQueuedWork() {
+        return _queue.size();
+    }
+
+    @Override
+    public long getDispatchedCount() {
+        return _dispatchedCount.get();
+    }
+
+    @Override
+    public int getHostsRecovering() {
+        return _recoveries.size();
+    }
+
+    @Override
+    public long getRecoveredHosts() {
+        return _recoveredHosts.get();
+    }
+
+    @Override
+    public long getLastRecoveryMs() {
+        return _lastRecoveryMs;
+    }
+
+    @Override
+    public long getMaxRecoveryMs() {
+        return _maxRecoveryMs;
+    }
+}
@@ -21,8 +21,13 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
@@ -68,6 +73,7 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
@@ -78,7 +84,8 @@ import com.cloud.vm.dao.VMInstanceDao;
 /**
  * HighAvailabilityManagerImpl coordinates the HA process. VMs are registered with the HA Manager for HA. The request is stored
  * within a database backed work queue. HAManager has a number of workers that pick up these work items to perform HA on the
- * VMs.
+ * VMs. Work scheduled on this server is handed to the workers through an in-memory HaWorkQueue; the dispatcher task adds the
+ * work it finds in the database every time.to.sleep. Workers claim each item in the database before working on it.
  * 
  * The HA process goes as follows: 1. Check with the list of Investigators to determine that the VM is no longer running. If a
  * Investigator finds the VM is still alive, the HA process is stopped and the state of the VM reverts back to its previous
@@ -90,7 +97,7 @@ import com.cloud.vm.dao.VMInstanceDao;
  * the VM.
  * 
  * @config {@table || Param Name | Description | Values | Default || || workers | number of worker threads to spin off to do the
- *         processing | int | 1 || || time.to.sleep | Time to sleep if no work items are found | seconds | 60 || || max.retries
+ *         processing | int | 1 || || time.to.sleep | Time between looks for HA work in the database | seconds | 60 || || max.retries
  *         | number of times to retry start | int | 5 || || time.between.failure | Time elapsed between failures before we
  *         consider it as another retry | seconds | 3600 || || time.between.cleanup | Time to wait before the cleanup thread
  *         runs | seconds | 86400 || || force.ha | Force HA to happen even if the VM says no | boolean | false || ||
@@ -100,9 +107,16 @@ import com.cloud.vm.dao.VMInstanceDao;
 @Local(value = { HighAvailabilityManager.class })
 public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvailabilityManager, ClusterManagerListener {
     protected static final Logger s_logger = Logger.getLogger(HighAvailabilityManagerImpl.class);
+    protected static final int DISPATCH_BATCH_SIZE = 1000;
     WorkerThread[] _workers;
     boolean _stopped;
     long _timeToSleep;
+    final HaWorkQueue _workQueue = new HaWorkQueue();
+    // host id to the investigation of that host, shared by the HA work for the host's VMs
+    final ConcurrentHashMap<Long, HostInvestigation> _hostInvestigations = new ConcurrentHashMap<Long, HostInvestigation>();
+    // cluster id to the permits for restarting VMs that ran in that cluster
+    final ConcurrentHashMap<Long, Semaphore> _clusterRestartPermits = new ConcurrentHashMap<Long, Semaphore>();
+    int _restartClusterParallelism;
     @Inject
     HighAvailabilityDao _haDao;
     @Inject
@@ -268,13 +282,11 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Scheduled " + work);
         }
-        wakeupWorkers();
+        dispatch(work);
     }
 
-    protected void wakeupWorkers() {
-        for (WorkerThread worker : _workers) {
-            worker.wakup();
-        }
+    protected void dispatch(HaWorkVO work) {
+        _workQueue.offer(work.getId(), work.getHostId(), work.getTimeToTry() << 10);
     }
 
     @Override
@@ -282,7 +294,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         if (vm.getHostId() != null) {
             final HaWorkVO work = new HaWorkVO(vm.getId(), vm.getType(), WorkType.Migration, Step.Scheduled, vm.getHostId(), vm.getState(), 0, vm.getUpdated());
             _haDao.persist(work);
-            wakeupWorkers();
+            dispatch(work);
         }
         return true;
     }
@@ -361,12 +373,13 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
         HaWorkVO work = new HaWorkVO(vm.getId(), vm.getType(), WorkType.HA, investigate ? Step.Investigating : Step.Scheduled, hostId, vm.getState(), maxRetries + 1, vm.getUpdated());
         _haDao.persist(work);
+        _workQueue.restartScheduled(hostId, work.getId());
 
         if (s_logger.isInfoEnabled()) {
             s_logger.info("Schedule vm for HA:  " + vm);
         }
 
-        wakeupWorkers();
+        dispatch(work);
 
     }
 
@@ -440,12 +453,18 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
                 }
 
                 Investigator investigator = null;
-                for(Investigator it : _investigators) {
-                    investigator = it;
-                    alive = investigator.isVmAlive(vm, host);
-                    s_logger.info(investigator.getName() + " found " + vm + "to be alive? " + alive);
-                    if (alive != null) {
-                        break;
+                if (investigateHost(host) == Status.Down) {
+                    // Down may only mean the host cannot be reached, its VMs may still be running on shared
+                    // storage; skip asking about each VM but leave it unknown so that it is fenced
+                    s_logger.info("Host " + host.getId() + " of " + vm + " is down, fencing the VM instead of investigating it");
+                } else {
+                    for(Investigator it : _investigators) {
+                        investigator = it;
+                        alive = investigator.isVmAlive(vm, host);
+                        s_logger.info(investigator.getName() + " found " + vm + "to be alive? " + alive);
+                        if (alive != null) {
+                            break;
+                        }
                     }
                 }
 
@@ -542,13 +561,23 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
             // First try starting the vm with its original planner, if it doesn't succeed send HAPlanner as its an emergency.
             VMInstanceVO started = null;
-            try{
-                started = _itMgr.advanceStart(vm, params, _accountMgr.getSystemUser(), _accountMgr.getSystemAccount(), null);
-            }finally {
-                // Send HAPlanner.
-                if(started == null){
-                    s_logger.warn("Failed to deploy vm " + vmId + " with original planner, sending HAPlanner");
-                    started = _itMgr.advanceStart(vm, params, _accountMgr.getSystemUser(), _accountMgr.getSystemAccount(), _haPlanners.get(0));
+            Semaphore permits = getRestartPermits(host.getClusterId());
+            if (permits != null) {
+                permits.acquireUninterruptibly();
+            }
+            try {
+                try{
+                    started = _itMgr.advanceStart(vm, params, _accountMgr.getSystemUser(), _accountMgr.getSystemAccount(), null);
+                }finally {
+                    // Send HAPlanner.
+                    if(started == null){
+                        s_logger.warn("Failed to deploy vm " + vmId + " with original planner, sending HAPlanner");
+                        started = _itMgr.advanceStart(vm, params, _accountMgr.getSystemUser(), _accountMgr.getSystemAccount(), _haPlanners.get(0));
+                    }
+                }
+            } finally {
+                if (permits != null) {
+                    permits.release();
                 }
             }
             if (started != null) {
@@ -582,6 +611,59 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         return (System.currentTimeMillis() >> 10) + _restartRetryInterval;
     }
 
+    /**
+     * Investigates the host once for all the HA work on its VMs: the work items that come
+     * in while an investigation is running wait for its result, and the result is reused
+     * for investigate.retry.interval.
+     */
+    protected Status investigateHost(final HostVO host) {
+        final long hostId = host.getId();
+        long now = System.currentTimeMillis();
+        HostInvestigation investigation = _hostInvestigations.get(hostId);
+        if (investigation == null || investigation._expires < now) {
+            HostInvestigation fresh = new HostInvestigation(now + _investigateRetryInterval * 1000L, new FutureTask<Status>(new Callable<Status>() {
+                @Override
+                public Status call() {
+                    return investigate(hostId);
+                }
+            }));
+            boolean ours = investigation == null ? _hostInvestigations.putIfAbsent(hostId, fresh) == null : _hostInvestigations.replace(hostId, investigation, fresh);
+            investigation = ours ? fresh : _hostInvestigations.get(hostId);
+            if (ours) {
+                fresh._task.run();
+            }
+        }
+        if (investigation == null) {
+            return null;
+        }
+
+        try {
+            return investigation._task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            s_logger.warn("Unable to investigate host " + hostId, e.getCause());
+            _hostInvestigations.remove(hostId, investigation);
+            return null;
+        }
+    }
+
+    protected Semaphore getRestartPermits(Long clusterId) {
+        if (clusterId == null || _restartClusterParallelism <= 0) {
+            return null;
+        }
+        Semaphore permits = _clusterRestartPermits.get(clusterId);
+        if (permits == null) {
+            Semaphore created = new Semaphore(_restartClusterParallelism);
+            permits = _clusterRestartPermits.putIfAbsent(clusterId, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+
     public Long migrate(final HaWorkVO work) {
         long vmId = work.getInstanceId();
 
@@ -623,7 +705,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Scheduled " + work.toString());
         }
-        wakeupWorkers();
+        dispatch(work);
     }
 
     @Override
@@ -770,6 +852,9 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         value = params.get("migrate.retry.interval");
         _migrateRetryInterval = NumbersUtil.parseInt(value, 2 * 60);
 
+        value = params.get(Config.HARestartClusterParallelism.key());
+        _restartClusterParallelism = NumbersUtil.parseInt(value, count);
+
         _instance = params.get("instance");
         if (_instance == null) {
             _instance = "VMOPS";
@@ -795,6 +880,13 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         }
 
         _executor.scheduleAtFixedRate(new CleanupTask(), _timeBetweenCleanups, _timeBetweenCleanups, TimeUnit.SECONDS);
+        _executor.scheduleWithFixedDelay(new DispatchTask(), 0, _timeToSleep, TimeUnit.MILLISECONDS);
+
+        try {
+            JmxUtil.registerMBean("HighAvailabilityManager", "HaWorkQueue", _workQueue);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the HA work queue MBean", e);
+        }
 
         return true;
     }
@@ -803,7 +895,9 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     public boolean stop() {
         _stopped = true;
 
-        wakeupWorkers();
+        for (WorkerThread worker : _workers) {
+            worker.interrupt();
+        }
 
         _executor.shutdown();
 
@@ -823,6 +917,111 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         }
     }
 
+    /**
+     * Queues the due work that nobody has taken: work scheduled by other management servers,
+     * released by a server that left, or rescheduled by a server that will not get to it.
+     */
+    protected class DispatchTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                List<HaWorkVO> works = _haDao.listUntakenWork(System.currentTimeMillis() >> 10, DISPATCH_BATCH_SIZE);
+                int queued = 0;
+                for (HaWorkVO work : works) {
+                    if (_workQueue.offer(work.getId(), work.getHostId(), work.getTimeToTry() << 10)) {
+                        queued++;
+                    }
+                }
+                if (queued > 0 && s_logger.isDebugEnabled()) {
+                    s_logger.debug("Queued " + queued + " HA work items found in the database");
+                }
+                retireRestartsFinishedElsewhere();
+            } catch (Exception e) {
+                s_logger.warn("Unable to look for HA work", e);
+            }
+        }
+    }
+
+    /**
+     * Restarts scheduled here may be worked on by another management server; finish them
+     * here too once that server is done with them, or they would stay outstanding forever.
+     */
+    protected void retireRestartsFinishedElsewhere() {
+        for (Map.Entry<Long, Long> restart : _workQueue.listOutstandingRestarts().entrySet()) {
+            HaWorkVO work = _haDao.findById(restart.getKey());
+            if (work == null || work.getStep() == Step.Done || work.getStep() == Step.Error || work.getStep() == Step.Cancelled) {
+                _workQueue.restartFinished(restart.getValue(), restart.getKey());
+            }
+        }
+    }
+
+    static class HostInvestigation {
+        final long _expires;
+        final FutureTask<Status> _task;
+
+        HostInvestigation(long expires, FutureTask<Status> task) {
+            _expires = expires;
+            _task = task;
+        }
+    }
+
+    /**
+     * Takes the work item and works on it.
+     *
+     * @return false if the item was taken by someone else, rescheduled or gone
+     */
+    protected boolean processWork(long workId) {
+        HaWorkVO work = _haDao.take(workId, _serverId);
+        if (work == null) {
+            s_logger.trace("HA work " + workId + " has been taken by someone else or is not due");
+            return false;
+        }
+
+        NDC.push("work-" + work.getId());
+        try {
+            s_logger.info("Processing " + work);
+
+            try {
+                final WorkType wt = work.getWorkType();
+                Long nextTime = null;
+                if (wt == WorkType.Migration) {
+                    nextTime = migrate(work);
+                } else if (wt == WorkType.HA) {
+                    nextTime = restart(work);
+                } else if (wt == WorkType.Stop || wt == WorkType.CheckStop || wt == WorkType.ForceStop) {
+                    nextTime = stopVM(work);
+                } else if (wt == WorkType.Destroy) {
+                    nextTime = destroyVM(work);
+                } else {
+                    assert false : "How did we get here with " + wt.toString();
+                    return true;
+                }
+
+                if (nextTime == null) {
+                    s_logger.info("Completed " + work);
+                    work.setStep(Step.Done);
+                } else {
+                    s_logger.info("Rescheduling " + work + " to try again at " + new Date(nextTime << 10));
+                    work.setTimeToTry(nextTime);
+                    work.setServerId(null);
+                    work.setDateTaken(null);
+                }
+            } catch (Exception e) {
+                s_logger.error("Terminating " + work, e);
+                work.setStep(Step.Error);
+            }
+            _haDao.update(work.getId(), work);
+            if (work.getServerId() == null) {
+                dispatch(work);
+            } else if (work.getWorkType() == WorkType.HA) {
+                _workQueue.restartFinished(work.getHostId(), work.getId());
+            }
+            return true;
+        } finally {
+            NDC.pop();
+        }
+    }
+
     protected class WorkerThread extends Thread {
         public WorkerThread(String name) {
             super(name);
@@ -832,69 +1031,24 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         public void run() {
             s_logger.info("Starting work");
             while (!_stopped) {
-                HaWorkVO work = null;
                 try {
-                    s_logger.trace("Checking the database");
-                    work = _haDao.take(_serverId);
-                    if (work == null) {
-                        try {
-                            synchronized (this) {
-                                wait(_timeToSleep);
-                            }
-                            continue;
-                        } catch (final InterruptedException e) {
-                            s_logger.info("Interrupted");
-                            continue;
-                        }
-                    }
-
-                    NDC.push("work-" + work.getId());
-                    s_logger.info("Processing " + work);
-
+                    HaWorkQueue.QueuedWork queued;
                     try {
-                        final WorkType wt = work.getWorkType();
-                        Long nextTime = null;
-                        if (wt == WorkType.Migration) {
-                            nextTime = migrate(work);
-                        } else if (wt == WorkType.HA) {
-                            nextTime = restart(work);
-                        } else if (wt == WorkType.Stop || wt == WorkType.CheckStop || wt == WorkType.ForceStop) {
-                            nextTime = stopVM(work);
-                        } else if (wt == WorkType.Destroy) {
-                            nextTime = destroyVM(work);
-                        } else {
-                            assert false : "How did we get here with " + wt.toString();
+                        queued = _workQueue.poll(_timeToSleep);
+                    } catch (final InterruptedException e) {
+                        s_logger.info("Interrupted");
                         continue;
-                        }
-
-                        if (nextTime == null) {
-                            s_logger.info("Completed " + work);
-                            work.setStep(Step.Done);
-                        } else {
-                            s_logger.info("Rescheduling " + work + " to try again at " + new Date(nextTime << 10));
-                            work.setTimeToTry(nextTime);
-                            work.setServerId(null);
-                            work.setDateTaken(null);
-                        }
-                    } catch (Exception e) {
-                        s_logger.error("Terminating " + work, e);
-                        work.setStep(Step.Error);
                     }
-                    _haDao.update(work.getId(), work);
+                    if (queued == null) {
+                        continue;
+                    }
+                    processWork(queued.getWorkId());
                 } catch (final Throwable th) {
                     s_logger.error("Caught this throwable, ", th);
-                } finally {
-                    if (work != null) {
-                        NDC.pop();
-                    }
                 }
             }
             s_logger.info("Time to go home!");
         }
-
-        public synchronized void wakup() {
-            notifyAll();
-        }
     }
 
     @Override
@@ -906,6 +1060,8 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         for (ManagementServerHostVO node : nodeList) {
             _haDao.releaseWorkItems(node.getMsid());
         }
+        // pick up what the nodes left behind now rather than at the next dispatch
+        _executor.execute(new DispatchTask());
     }
 
     @Override
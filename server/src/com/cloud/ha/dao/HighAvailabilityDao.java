@@ -32,6 +32,24 @@ public interface HighAvailabilityDao extends GenericDao<HaWorkVO, Long> {
      */
     HaWorkVO take(long serverId);
 
+    /**
+     * Takes a specific HA work item if no server has taken it yet and it is due.
+     * 
+     * @param workId work item to take.
+     * @param serverId server that is taking this.
+     * @return WorkVO if this server got it; null if it is taken, not due or gone.
+     */
+    HaWorkVO take(long workId, long serverId);
+
+    /**
+     * Lists work items that are due and not taken, oldest first.
+     * 
+     * @param time in seconds (System.currentTimeMillis() >> 10) the work must be due by.
+     * @param limit maximum number of items to return.
+     * @return list of WorkVO or empty list.
+     */
+    List<HaWorkVO> listUntakenWork(long time, int limit);
+
     /**
      * Finds all the work items related to this instance.
      * 
@@ -41,6 +41,7 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
     private static final Logger s_logger = Logger.getLogger(HighAvailabilityDaoImpl.class);
 
     private final SearchBuilder<HaWorkVO> TBASearch;
+    private final SearchBuilder<HaWorkVO> TakeByIdSearch;
     private final SearchBuilder<HaWorkVO> PreviousInstanceSearch;
     private final SearchBuilder<HaWorkVO> UntakenMigrationSearch;
     private final SearchBuilder<HaWorkVO> CleanupSearch;
@@ -64,6 +65,13 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         TBASearch.and("time", TBASearch.entity().getTimeToTry(), Op.LTEQ);
         TBASearch.done();
 
+        TakeByIdSearch = createSearchBuilder();
+        TakeByIdSearch.and("id", TakeByIdSearch.entity().getId(), Op.EQ);
+        TakeByIdSearch.and("server", TakeByIdSearch.entity().getServerId(), Op.NULL);
+        TakeByIdSearch.and("taken", TakeByIdSearch.entity().getDateTaken(), Op.NULL);
+        TakeByIdSearch.and("time", TakeByIdSearch.entity().getTimeToTry(), Op.LTEQ);
+        TakeByIdSearch.done();
+
         PreviousInstanceSearch = createSearchBuilder();
         PreviousInstanceSearch.and("instance", PreviousInstanceSearch.entity().getInstanceId(), Op.EQ);
         PreviousInstanceSearch.done();
@@ -159,6 +167,32 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         }
     }
 
+    @Override
+    public HaWorkVO take(final long workId, final long serverId) {
+        final SearchCriteria<HaWorkVO> sc = TakeByIdSearch.create();
+        sc.setParameters("id", workId);
+        // the item may have been rescheduled since it was queued
+        sc.setParameters("time", System.currentTimeMillis() >> 10);
+
+        // conditional update instead of select for update, the row is only ours if nobody set the server first
+        final HaWorkVO vo = createForUpdate();
+        vo.setServerId(serverId);
+        vo.setDateTaken(new Date());
+        if (update(vo, sc) == 0) {
+            return null;
+        }
+        return findById(workId);
+    }
+
+    @Override
+    public List<HaWorkVO> listUntakenWork(final long time, final int limit) {
+        final SearchCriteria<HaWorkVO> sc = TBASearch.create();
+        sc.setParameters("time", time);
+
+        final Filter filter = new Filter(HaWorkVO.class, "id", true, 0l, (long)limit);
+        return listBy(sc, filter);
+    }
+
     @Override
     public List<HaWorkVO> findPreviousHA(final long instanceId) {
         final SearchCriteria<HaWorkVO> sc = PreviousInstanceSearch.create();
@@ -21,6 +21,7 @@ import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -81,6 +82,7 @@ import com.cloud.user.ResourceLimitService;
 import com.cloud.user.UserContext;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
@@ -154,6 +156,8 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
     protected SearchBuilder<ResourceCountVO> ResourceCountSearch;
     ScheduledExecutorService _rcExecutor;
     long _resourceCountCheckInterval = 0;
+    ScheduledExecutorService _compactExecutor;
+    long _resourceCountCompactInterval = 60;
     Map<ResourceType, Long> accountResourceLimitMap = new EnumMap<ResourceType, Long>(ResourceType.class);
     Map<ResourceType, Long> projectResourceLimitMap = new EnumMap<ResourceType, Long>(ResourceType.class);
 
@@ -162,11 +166,17 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         if (_resourceCountCheckInterval > 0) {
             _rcExecutor.scheduleAtFixedRate(new ResourceCountCheckTask(), _resourceCountCheckInterval, _resourceCountCheckInterval, TimeUnit.SECONDS);
         }
+        if (_resourceCountCompactInterval > 0) {
+            _compactExecutor.scheduleWithFixedDelay(new ResourceCountCompactTask(), _resourceCountCompactInterval, _resourceCountCompactInterval, TimeUnit.SECONDS);
+        }
         return true;
     }
 
     @Override
     public boolean stop() {
+        if (_compactExecutor != null) {
+            _compactExecutor.shutdown();
+        }
         return true;
     }
 
@@ -193,6 +203,11 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             _rcExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("ResourceCountChecker"));
         }
 
+        _resourceCountCompactInterval = NumbersUtil.parseLong(_configDao.getValue(Config.ResourceCountCompactInterval.key()), 60);
+        if (_resourceCountCompactInterval > 0) {
+            _compactExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("ResourceCountCompactor"));
+        }
+
         try {
             projectResourceLimitMap.put(Resource.ResourceType.public_ip, Long.parseLong(_configDao.getValue(Config.DefaultMaxProjectPublicIPs.key())));
             projectResourceLimitMap.put(Resource.ResourceType.snapshot, Long.parseLong(_configDao.getValue(Config.DefaultMaxProjectSnapshots.key())));
@@ -382,11 +397,14 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         Transaction txn = Transaction.currentTxn();
         txn.start();
         try {
-            // Lock all rows first so nobody else can read it
-            Set<Long> rowIdsToLock = _resourceCountDao.listAllRowsToUpdate(account.getId(), ResourceOwnerType.Account, type);
-            SearchCriteria<ResourceCountVO> sc = ResourceCountSearch.create();
-            sc.setParameters("id", rowIdsToLock.toArray());
-            _resourceCountDao.lockRows(sc, null, true);
+            // Lock the account row so checks and updates for the account are serialized. Domain rows
+            // are only locked for domains with a limit, see below: their updates go to delta rows (see
+            // updateResourceCountForAccount), and locking ROOT and other unlimited domains here would put
+            // every account under them back behind one row lock
+            ResourceCountVO accountRC = _resourceCountDao.findByOwnerAndType(account.getId(), ResourceOwnerType.Account, type);
+            if (accountRC != null) {
+                _resourceCountDao.lockRow(accountRC.getId(), true);
+            }
 
             // Check account limits
             long accountLimit = findCorrectResourceLimitForAccount(account, type);
@@ -415,6 +433,11 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
                 if (domainId != Domain.ROOT_DOMAIN) {
                     ResourceLimitVO domainLimit = _resourceLimitDao.findByOwnerIdAndType(domainId, ResourceOwnerType.Domain, type);
                     if (domainLimit != null && domainLimit.getMax().longValue() != Resource.RESOURCE_UNLIMITED) {
+                        // checks against the same domain limit take turns, as they did before the deltas
+                        ResourceCountVO domainRC = _resourceCountDao.findByOwnerAndType(domainId, ResourceOwnerType.Domain, type);
+                        if (domainRC != null) {
+                            _resourceCountDao.lockRow(domainRC.getId(), true);
+                        }
                         long domainCount = _resourceCountDao.getResourceCount(domainId, ResourceOwnerType.Domain, type);
                         if ((domainCount + numResources) > domainLimit.getMax().longValue()) {
                             throw new ResourceAllocationException("Maximum number of resources of type '" + type + "' for domain id=" + domainId + " has been exceeded.", type);
@@ -720,6 +743,13 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         return counts;
     }
 
+    /**
+     * Updates the account's count row and adds the change to a delta row of each of its
+     * parent domains.  The delta row is picked by account id, so updates from different
+     * accounts of a domain only contend when they land on the same stripe, instead of all
+     * of them queueing on the domain's count row (and the ROOT domain's, which every update
+     * used to lock).  ResourceCountCompactTask folds the deltas back into the domain rows.
+     */
     @DB
     protected boolean updateResourceCountForAccount(long accountId, ResourceType type, boolean increment, long delta) {
         boolean result = true;
@@ -727,20 +757,22 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             Transaction txn = Transaction.currentTxn();
             txn.start();
 
-            Set<Long> rowsToLock = _resourceCountDao.listAllRowsToUpdate(accountId, ResourceOwnerType.Account, type);
-
-            // Lock rows first
-            SearchCriteria<ResourceCountVO> sc = ResourceCountSearch.create();
-            sc.setParameters("id", rowsToLock.toArray());
-            List<ResourceCountVO> rowsToUpdate = _resourceCountDao.lockRows(sc, null, true);
-
-            for (ResourceCountVO rowToUpdate : rowsToUpdate) {
-                if (!_resourceCountDao.updateById(rowToUpdate.getId(), increment, delta)) {
-                    s_logger.trace("Unable to update resource count for the row " + rowToUpdate);
+            ResourceCountVO accountRC = _resourceCountDao.findByOwnerAndType(accountId, ResourceOwnerType.Account, type);
+            if (accountRC != null) {
+                _resourceCountDao.lockRow(accountRC.getId(), true);
+                if (!_resourceCountDao.updateById(accountRC.getId(), increment, delta)) {
+                    s_logger.trace("Unable to update resource count for the row " + accountRC);
                     result = false;
                 }
             }
 
+            // always in the same order, so two updates sharing a stripe cannot deadlock
+            Set<Long> domainIds = new TreeSet<Long>(_domainDao.getDomainParentIds(_accountDao.findByIdIncludingRemoved(accountId).getDomainId()));
+            int stripe = (int)(accountId % ResourceCountDao.DOMAIN_COUNT_STRIPES);
+            for (Long domainId : domainIds) {
+                _resourceCountDao.addDomainDelta(domainId, type, stripe, increment ? delta : -delta);
+            }
+
             txn.commit();
         } catch (Exception ex) {
             s_logger.error("Failed to update resource count for account id=" + accountId);
@@ -763,8 +795,7 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             sc.setParameters("id", rowIdsToLock.toArray());
             _resourceCountDao.lockRows(sc, null, true);
 
-            ResourceCountVO domainRC = _resourceCountDao.findByOwnerAndType(domainId, ResourceOwnerType.Domain, type);
-            long oldCount = domainRC.getCount();
+            long oldCount = _resourceCountDao.getResourceCount(domainId, ResourceOwnerType.Domain, type);
 
             List<DomainVO> domainChildren = _domainDao.findImmediateChildrenForParent(domainId);
             // for each child domain update the resource count
@@ -788,6 +819,8 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
                     newCount = newCount + accountCount; // add account's resource count to parent domain count
                 }
             }
+            // the accounts are locked by now, so no delta can arrive that the new count does not include
+            _resourceCountDao.removeDomainDeltas(domainId, type);
             _resourceCountDao.setResourceCount(domainId, ResourceOwnerType.Domain, type, newCount);
 
             if (oldCount != newCount) {
@@ -975,4 +1008,21 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             }
         }
     }
+
+    protected class ResourceCountCompactTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                List<Pair<Long, ResourceType>> pending = _resourceCountDao.listDomainsWithDeltas();
+                for (Pair<Long, ResourceType> domainCount : pending) {
+                    _resourceCountDao.compactDomainDeltas(domainCount.first(), domainCount.second());
+                }
+                if (s_logger.isDebugEnabled() && !pending.isEmpty()) {
+                    s_logger.debug("Compacted the resource count deltas of " + pending.size() + " domain counts");
+                }
+            } catch (Exception e) {
+                s_logger.warn("Unable to compact the domain resource count deltas", e);
+            }
+        }
+    }
 }
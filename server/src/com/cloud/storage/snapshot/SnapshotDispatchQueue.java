@@ -0,0 +1,242 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.snapshot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scheduled snapshots this management server has leased, waiting for their turn to run.
+ *
+ * Each snapshot gets a dispatch time when it is queued, spread after the time it came due,
+ * so that the snapshots of policies that come due together do not all start at once.  A due
+ * snapshot is only handed out while its primary storage pool and the secondary storage of
+ * its zone run fewer snapshots than their limit; otherwise it waits, and snapshots behind it
+ * on other storage go first.
+ *
+ * The queue lag is the time between a snapshot coming due and it being handed out.
+ */
+public class SnapshotDispatchQueue implements SnapshotDispatchQueueMBean {
+
+    public static class QueuedSnapshot implements Comparable<QueuedSnapshot> {
+        final long _scheduleId;
+        final long _volumeId;
+        final long _poolId;
+        final long _zoneId;
+        final long _scheduledTime;
+        final long _dispatchTime;
+        volatile Long _jobId;
+
+        QueuedSnapshot(long scheduleId, long volumeId, long poolId, long zoneId, long scheduledTime, long dispatchTime) {
+            _scheduleId = scheduleId;
+            _volumeId = volumeId;
+            _poolId = poolId;
+            _zoneId = zoneId;
+            _scheduledTime = scheduledTime;
+            _dispatchTime = dispatchTime;
+        }
+
+        public long getScheduleId() {
+            return _scheduleId;
+        }
+
+        public long getVolumeId() {
+            return _volumeId;
+        }
+
+        public long getPoolId() {
+            return _poolId;
+        }
+
+        public long getZoneId() {
+            return _zoneId;
+        }
+
+        public Long getJobId() {
+            return _jobId;
+        }
+
+        public void setJobId(Long jobId) {
+            _jobId = jobId;
+        }
+
+        @Override
+        public int compareTo(QueuedSnapshot other) {
+            if (_dispatchTime != other._dispatchTime) {
+                return _dispatchTime < other._dispatchTime ? -1 : 1;
+            }
+            return _scheduleId < other._scheduleId ? -1 : (_scheduleId == other._scheduleId ? 0 : 1);
+        }
+    }
+
+    private final TreeSet<QueuedSnapshot> _queue = new TreeSet<QueuedSnapshot>();
+    private final Map<Long, QueuedSnapshot> _queued = new HashMap<Long, QueuedSnapshot>();
+    private final Map<Long, QueuedSnapshot> _running = new HashMap<Long, QueuedSnapshot>();
+    private final Map<Long, Integer> _runningPerPool = new HashMap<Long, Integer>();
+    private final Map<Long, Integer> _runningPerZone = new HashMap<Long, Integer>();
+    private final Map<Long, Integer> _zoneLimits = new HashMap<Long, Integer>();
+
+    private volatile int _poolLimit;
+    private volatile int _defaultZoneLimit;
+
+    private final AtomicLong _dispatchedCount = new AtomicLong();
+    private volatile long _lastQueueLagMs;
+    private volatile long _maxQueueLagMs;
+
+    /**
+     * @param poolLimit snapshots running at a time on a primary storage pool, 0 is unlimited
+     * @param zoneLimit snapshots running at a time on the secondary storage of a zone that has
+     * no limit of its own, 0 is unlimited
+     */
+    public SnapshotDispatchQueue(int poolLimit, int zoneLimit) {
+        _poolLimit = poolLimit;
+        _defaultZoneLimit = zoneLimit;
+    }
+
+    public synchronized void setZoneLimit(long zoneId, int limit) {
+        _zoneLimits.put(zoneId, limit);
+    }
+
+    /**
+     * @param scheduledTime when the snapshot came due, in milliseconds
+     * @param dispatchTime when the snapshot may start at the earliest
+     * @return false if the schedule is already queued or running
+     */
+    public synchronized boolean offer(long scheduleId, long volumeId, long poolId, long zoneId, long scheduledTime, long dispatchTime) {
+        if (_queued.containsKey(scheduleId) || _running.containsKey(scheduleId)) {
+            return false;
+        }
+        QueuedSnapshot snapshot = new QueuedSnapshot(scheduleId, volumeId, poolId, zoneId, scheduledTime, dispatchTime);
+        _queued.put(scheduleId, snapshot);
+        _queue.add(snapshot);
+        return true;
+    }
+
+    /**
+     * Hands out the snapshots that are due and have room on their storage, in dispatch order.
+     * They count as running until finished() is called for them.
+     */
+    public synchronized List<QueuedSnapshot> takeDispatchable(long now, int max) {
+        List<QueuedSnapshot> dispatchable = new ArrayList<QueuedSnapshot>();
+        Iterator<QueuedSnapshot> it = _queue.iterator();
+        while (it.hasNext() && dispatchable.size() < max) {
+            QueuedSnapshot snapshot = it.next();
+            if (snapshot._dispatchTime > now) {
+                break;
+            }
+            if (isFull(_runningPerPool, snapshot._poolId, _poolLimit) || isFull(_runningPerZone, snapshot._zoneId, getZoneLimit(snapshot._zoneId))) {
+                continue;
+            }
+
+            it.remove();
+            _queued.remove(snapshot._scheduleId);
+            _running.put(snapshot._scheduleId, snapshot);
+            add(_runningPerPool, snapshot._poolId, 1);
+            add(_runningPerZone, snapshot._zoneId, 1);
+            dispatchable.add(snapshot);
+
+            long lag = Math.max(0, now - snapshot._scheduledTime);
+            _lastQueueLagMs = lag;
+            if (lag > _maxQueueLagMs) {
+                _maxQueueLagMs = lag;
+            }
+            _dispatchedCount.incrementAndGet();
+        }
+        return dispatchable;
+    }
+
+    /**
+     * Gives the storage of a running snapshot room again.
+     */
+    public synchronized void finished(long scheduleId) {
+        QueuedSnapshot snapshot = _running.remove(scheduleId);
+        if (snapshot != null) {
+            add(_runningPerPool, snapshot._poolId, -1);
+            add(_runningPerZone, snapshot._zoneId, -1);
+        }
+    }
+
+    public synchronized List<QueuedSnapshot> listRunning() {
+        return new ArrayList<QueuedSnapshot>(_running.values());
+    }
+
+    private int getZoneLimit(long zoneId) {
+        Integer limit = _zoneLimits.get(zoneId);
+        return limit != null ? limit : _defaultZoneLimit;
+    }
+
+    private static boolean isFull(Map<Long, Integer> running, long key, int limit) {
+        if (limit <= 0) {
+            return false;
+        }
+        Integer count = running.get(key);
+        return count != null && count >= limit;
+    }
+
+    private static void add(Map<Long, Integer> running, long key, int delta) {
+        Integer count = running.get(key);
+        int value = (count == null ? 0 : count) + delta;
+        if (value > 0) {
+            running.put(key, value);
+        } else {
+            running.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized int getQueuedSnapshots() {
+        return _queue.size();
+    }
+
+    @Override
+    public synchronized int getRunningSnapshots() {
+        return _running.size();
+    }
+
+    @Override
+    public long getDispatchedCount() {
+        return _dispatchedCount.get();
+    }
+
+    /**
+     * @return how long the oldest queued snapshot has been due
+     */
+    @Override
+    public synchronized long getQueueLagMs() {
+        long now = System.currentTimeMillis();
+        long lag = 0;
+        for (QueuedSnapshot snapshot : _queue) {
+            lag = Math.max(lag, now - snapshot._scheduledTime);
+        }
+        return lag;
+    }
+
+    @Override
+    public long getLastQueueLagMs() {
+        return _lastQueueLagMs;
+    }
+
+    @Override
+    public long getMaxQueueLagMs() {
+        return _maxQueueLagMs;
+    }
+}
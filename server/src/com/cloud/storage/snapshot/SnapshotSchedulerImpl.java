@@ -16,12 +16,17 @@
 // under the License.
 package com.cloud.storage.snapshot;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -29,6 +34,8 @@ import javax.naming.ConfigurationException;
 
 import com.cloud.event.ActionEventUtils;
 import org.apache.cloudstack.api.command.user.snapshot.CreateSnapshotCmd;
+import org.apache.cloudstack.engine.subsystem.api.storage.DataStoreManager;
+import org.apache.cloudstack.engine.subsystem.api.storage.ZoneScope;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
@@ -40,6 +47,10 @@ import com.cloud.async.AsyncJobManager;
 import com.cloud.async.AsyncJobResult;
 import com.cloud.async.AsyncJobVO;
 import com.cloud.async.dao.AsyncJobDao;
+import com.cloud.cluster.ManagementServerHost;
+import com.cloud.cluster.ManagementServerNode;
+import com.cloud.cluster.dao.ManagementServerHostDao;
+import com.cloud.configuration.Config;
 import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.event.EventTypes;
 import com.cloud.storage.Snapshot;
@@ -58,10 +69,12 @@ import com.cloud.utils.NumbersUtil;
 
 import com.cloud.utils.component.ComponentContext;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.concurrency.TestClock;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.mgmt.JmxUtil;
 
 
 @Component
@@ -76,12 +89,22 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
     @Inject protected AsyncJobManager         _asyncMgr;
     @Inject protected VolumeDao               _volsDao;
     @Inject protected ConfigurationDao 		  _configDao;
+    @Inject protected ManagementServerHostDao _msHostDao;
+    @Inject protected DataStoreManager        _dataStoreMgr;
 
     private static final int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION = 5;    // 5 seconds
+    private static final int DISPATCH_INTERVAL = 5;    // 5 seconds
+    private static final int LEASE_PAGE_SIZE = 1000;
     private int        _snapshotPollInterval;
+    private int        _snapshotJitter;
+    private int        _maxConcurrentPerSecondary;
     private Timer      _testClockTimer;
     private Date       _currentTimestamp;
     private TestClock  _testTimerTask;
+    private long       _msId;
+    private final Random _random = new Random();
+    private SnapshotDispatchQueue _dispatchQueue;
+    private ScheduledExecutorService _dispatcher;
 
     private Date getNextScheduledTime(long policyId, Date currentTimestamp) {
         SnapshotPolicyVO policy = _snapshotPolicyDao.findById(policyId);
@@ -120,17 +143,12 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
             scanLock.releaseRef();
         }
 
-        scanLock = GlobalLock.getInternLock("snapshot.poll");
-        try {
-            if(scanLock.lock(ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION)) {
-                try {
-                    scheduleSnapshots();
-                } finally {
-                    scanLock.unlock();
-                }
-            }
-        } finally {
-            scanLock.releaseRef();
+        // schedules are leased one by one, management servers do not have to take turns for them
+        scheduleSnapshots();
+
+        if (_testTimerTask != null) {
+            // the test clock has no jitter, what is due runs in this tick
+            dispatchSnapshots();
         }
     }
 
@@ -200,72 +218,213 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
         }
     }
 
-    @DB
+    /**
+     * Leases this management server's share of the due schedules and queues them for the
+     * dispatcher.  The share is the due schedules divided by the management servers that are
+     * up, so that every server starts some of the snapshots of a busy hour; what one server
+     * leaves is picked up by the next poll of any of them.
+     */
     protected void scheduleSnapshots() {
         String displayTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, _currentTimestamp);
         s_logger.debug("Snapshot scheduler.poll is being called at " + displayTime);
 
-        List<SnapshotScheduleVO> snapshotsToBeExecuted = _snapshotScheduleDao.getSchedulesToExecute(_currentTimestamp);
-        s_logger.debug("Got " + snapshotsToBeExecuted.size() + " snapshots to be executed at " + displayTime);
+        // the leases of what is still queued here must outlive the next poll
+        _snapshotScheduleDao.renewLeases(_msId, getLeaseExpiry());
 
-        for (SnapshotScheduleVO snapshotToBeExecuted : snapshotsToBeExecuted) {
-            SnapshotScheduleVO tmpSnapshotScheduleVO = null;
-            long snapshotScheId = snapshotToBeExecuted.getId();
-            long policyId = snapshotToBeExecuted.getPolicyId();
-            long volumeId = snapshotToBeExecuted.getVolumeId();
-            try {
-                VolumeVO volume = _volsDao.findById(volumeId);
-                if ( volume.getPoolId() == null) {
-                    // this volume is not attached
-                    continue;
-                }
-                if ( _snapshotPolicyDao.findById(policyId) == null ) {
-                    _snapshotScheduleDao.remove(snapshotToBeExecuted.getId());
-                }
-                if (s_logger.isDebugEnabled()) {
-                    Date scheduledTimestamp = snapshotToBeExecuted.getScheduledTimestamp();
-                    displayTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, scheduledTimestamp);
-                    s_logger.debug("Scheduling 1 snapshot for volume " + volumeId + " for schedule id: "
-                            + snapshotToBeExecuted.getId() + " at " + displayTime);
-                }
+        int due = _snapshotScheduleDao.countSchedulesToLease(_currentTimestamp);
+        if (due == 0) {
+            return;
+        }
+        int servers = Math.max(1, _msHostDao.listBy(ManagementServerHost.State.Up).size());
+        int share = (due + servers - 1) / servers;
+        s_logger.debug("Got " + due + " snapshots to be executed at " + displayTime + ", leasing up to " + share + " of them");
+
+        int leased = 0;
+        long afterId = 0;
+        Map<Long, Boolean> zonesLimited = new HashMap<Long, Boolean>();
+        while (leased < share) {
+            List<SnapshotScheduleVO> page = _snapshotScheduleDao.listSchedulesToLease(_currentTimestamp, afterId, LEASE_PAGE_SIZE);
+            if (page.isEmpty()) {
+                break;
+            }
+            afterId = page.get(page.size() - 1).getId();
 
+            // shuffled so that the servers going through the same page mostly lease different schedules
+            Collections.shuffle(page, _random);
+            for (int i = 0; i < page.size() && leased < share; i++) {
+                if (leaseAndQueue(page.get(i), zonesLimited)) {
+                    leased++;
+                }
+            }
+        }
+    }
 
+    /**
+     * @return true if the schedule was leased and queued for the dispatcher
+     */
+    private boolean leaseAndQueue(SnapshotScheduleVO snapshotToBeExecuted, Map<Long, Boolean> zonesLimited) {
+        long snapshotScheId = snapshotToBeExecuted.getId();
+        long policyId = snapshotToBeExecuted.getPolicyId();
+        long volumeId = snapshotToBeExecuted.getVolumeId();
+        boolean leased = false;
+        boolean queued = false;
+        try {
+            VolumeVO volume = _volsDao.findById(volumeId);
+            if ( volume.getPoolId() == null) {
+                // this volume is not attached
+                return false;
+            }
+            if ( _snapshotPolicyDao.findById(policyId) == null ) {
+                _snapshotScheduleDao.remove(snapshotToBeExecuted.getId());
+                return false;
+            }
+            if (!_snapshotScheduleDao.lease(snapshotScheId, _msId, _currentTimestamp, getLeaseExpiry())) {
+                // another management server got it first
+                return false;
+            }
+            leased = true;
 
-                tmpSnapshotScheduleVO = _snapshotScheduleDao.acquireInLockTable(snapshotScheId);
-                Long eventId = ActionEventUtils.onScheduledActionEvent(User.UID_SYSTEM, volume.getAccountId(),
-                        EventTypes.EVENT_SNAPSHOT_CREATE, "creating snapshot for volume Id:" + volumeId, 0);
+            long zoneId = volume.getDataCenterId();
+            if (!zonesLimited.containsKey(zoneId)) {
+                setSecondaryStorageLimit(zoneId);
+                zonesLimited.put(zoneId, true);
+            }
 
-                Map<String, String> params = new HashMap<String, String>();
-                params.put(ApiConstants.VOLUME_ID, "" + volumeId);
-                params.put(ApiConstants.POLICY_ID, "" + policyId);
-                params.put("ctxUserId", "1");
-                params.put("ctxAccountId", "" + volume.getAccountId());
-                params.put("ctxStartEventId", String.valueOf(eventId));
+            long now = System.currentTimeMillis();
+            long scheduled = _testTimerTask != null ? now : snapshotToBeExecuted.getScheduledTimestamp().getTime();
+            long dispatchTime = now + (_snapshotJitter > 0 && _testTimerTask == null ? (long)_random.nextInt(_snapshotJitter * 1000) : 0);
+            _dispatchQueue.offer(snapshotScheId, volumeId, volume.getPoolId(), zoneId, scheduled, dispatchTime);
+            queued = true;
+
+            if (s_logger.isDebugEnabled()) {
+                Date scheduledTimestamp = snapshotToBeExecuted.getScheduledTimestamp();
+                String displayTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, scheduledTimestamp);
+                s_logger.debug("Queued 1 snapshot for volume " + volumeId + " for schedule id: "
+                        + snapshotScheId + " scheduled at " + displayTime + ", to start in " + (dispatchTime - now) / 1000 + "s");
+            }
+        } catch (Exception e) {
+            s_logger.warn("Leasing snapshot schedule " + snapshotScheId + " failed due to " + e.toString());
+            if (leased && !queued) {
+                // nothing here will run it, let the other management servers have it now rather than after the lease runs out
+                _snapshotScheduleDao.releaseLease(snapshotScheId, _msId);
+            }
+        }
+        return queued;
+    }
 
-                CreateSnapshotCmd cmd = new CreateSnapshotCmd();
-                ComponentContext.inject(cmd);
-                ApiDispatcher.getInstance().dispatchCreateCmd(cmd, params);
-                params.put("id", ""+cmd.getEntityId());
-                params.put("ctxStartEventId", "1");
+    private Date getLeaseExpiry() {
+        return new Date(_currentTimestamp.getTime() + (2L * _snapshotPollInterval + _snapshotJitter) * 1000L);
+    }
 
-                AsyncJobVO job = new AsyncJobVO(User.UID_SYSTEM, volume.getAccountId(), CreateSnapshotCmd.class.getName(),
-                        ApiGsonHelper.getBuilder().create().toJson(params), cmd.getEntityId(),
-                        cmd.getInstanceType());
+    private void setSecondaryStorageLimit(long zoneId) {
+        if (_maxConcurrentPerSecondary <= 0) {
+            return;
+        }
+        int stores = _dataStoreMgr.getImageStoresByScope(new ZoneScope(zoneId)).size();
+        _dispatchQueue.setZoneLimit(zoneId, _maxConcurrentPerSecondary * Math.max(1, stores));
+    }
 
-                long jobId = _asyncMgr.submitAsyncJob(job);
+    /**
+     * Starts the queued snapshots whose storage has room, after looking which of the running
+     * ones are done.
+     */
+    protected void dispatchSnapshots() {
+        for (SnapshotDispatchQueue.QueuedSnapshot running : _dispatchQueue.listRunning()) {
+            Long jobId = running.getJobId();
+            AsyncJobVO job = jobId != null ? _asyncJobDao.findById(jobId) : null;
+            if (job == null || job.getStatus() != AsyncJobResult.STATUS_IN_PROGRESS) {
+                _dispatchQueue.finished(running.getScheduleId());
+            }
+        }
 
-                tmpSnapshotScheduleVO.setAsyncJobId(jobId);
-                _snapshotScheduleDao.update(snapshotScheId, tmpSnapshotScheduleVO);
-            } catch (Exception e) {
-                s_logger.warn("Scheduling snapshot failed due to " + e.toString());
+        for (SnapshotDispatchQueue.QueuedSnapshot snapshot : _dispatchQueue.takeDispatchable(System.currentTimeMillis(), Integer.MAX_VALUE)) {
+            Long jobId = null;
+            try {
+                jobId = executeSnapshot(snapshot.getScheduleId());
             } finally {
-                if ( tmpSnapshotScheduleVO != null) {
-                    _snapshotScheduleDao.releaseFromLockTable(snapshotScheId);
+                if (jobId == null) {
+                    _snapshotScheduleDao.releaseLease(snapshot.getScheduleId(), _msId);
+                    _dispatchQueue.finished(snapshot.getScheduleId());
+                } else {
+                    snapshot.setJobId(jobId);
                 }
             }
         }
     }
 
+    /**
+     * @return the id of the snapshot job, null if the schedule was not run
+     */
+    @DB
+    protected Long executeSnapshot(long snapshotScheId) {
+        SnapshotScheduleVO tmpSnapshotScheduleVO = null;
+        try {
+            tmpSnapshotScheduleVO = _snapshotScheduleDao.acquireInLockTable(snapshotScheId);
+            if (tmpSnapshotScheduleVO == null) {
+                return null;
+            }
+            // the lease may have expired and gone to another management server, or the schedule moved on
+            if (tmpSnapshotScheduleVO.getMsId() == null || tmpSnapshotScheduleVO.getMsId() != _msId || tmpSnapshotScheduleVO.getAsyncJobId() != null) {
+                s_logger.debug("Snapshot schedule " + snapshotScheId + " is no longer leased by this management server");
+                return null;
+            }
+            long policyId = tmpSnapshotScheduleVO.getPolicyId();
+            long volumeId = tmpSnapshotScheduleVO.getVolumeId();
+            VolumeVO volume = _volsDao.findById(volumeId);
+
+            if (s_logger.isDebugEnabled()) {
+                Date scheduledTimestamp = tmpSnapshotScheduleVO.getScheduledTimestamp();
+                String displayTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, scheduledTimestamp);
+                s_logger.debug("Scheduling 1 snapshot for volume " + volumeId + " for schedule id: "
+                        + snapshotScheId + " at " + displayTime);
+            }
+
+            Long eventId = ActionEventUtils.onScheduledActionEvent(User.UID_SYSTEM, volume.getAccountId(),
+                    EventTypes.EVENT_SNAPSHOT_CREATE, "creating snapshot for volume Id:" + volumeId, 0);
+
+            Map<String, String> params = new HashMap<String, String>();
+            params.put(ApiConstants.VOLUME_ID, "" + volumeId);
+            params.put(ApiConstants.POLICY_ID, "" + policyId);
+            params.put("ctxUserId", "1");
+            params.put("ctxAccountId", "" + volume.getAccountId());
+            params.put("ctxStartEventId", String.valueOf(eventId));
+
+            CreateSnapshotCmd cmd = new CreateSnapshotCmd();
+            ComponentContext.inject(cmd);
+            ApiDispatcher.getInstance().dispatchCreateCmd(cmd, params);
+            params.put("id", ""+cmd.getEntityId());
+            params.put("ctxStartEventId", "1");
+
+            AsyncJobVO job = new AsyncJobVO(User.UID_SYSTEM, volume.getAccountId(), CreateSnapshotCmd.class.getName(),
+                    ApiGsonHelper.getBuilder().create().toJson(params), cmd.getEntityId(),
+                    cmd.getInstanceType());
+
+            long jobId = _asyncMgr.submitAsyncJob(job);
+
+            tmpSnapshotScheduleVO.setAsyncJobId(jobId);
+            _snapshotScheduleDao.update(snapshotScheId, tmpSnapshotScheduleVO);
+            return jobId;
+        } catch (Exception e) {
+            s_logger.warn("Scheduling snapshot failed due to " + e.toString());
+            return null;
+        } finally {
+            if ( tmpSnapshotScheduleVO != null) {
+                _snapshotScheduleDao.releaseFromLockTable(snapshotScheId);
+            }
+        }
+    }
+
+    protected class DispatchTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                dispatchSnapshots();
+            } catch (Throwable t) {
+                s_logger.warn("Catch throwable in snapshot dispatcher " + t.toString(), t);
+            }
+        }
+    }
+
     private Date scheduleNextSnapshotJob(SnapshotScheduleVO snapshotSchedule) {
         if ( snapshotSchedule == null ) {
             return null;
@@ -303,6 +462,8 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
                 spstSchedVO.setScheduledTimestamp(nextSnapshotTimestamp);
                 spstSchedVO.setAsyncJobId(null);
                 spstSchedVO.setSnapshotId(null);
+                spstSchedVO.setMsId(null);
+                spstSchedVO.setLeaseExpires(null);
                 _snapshotScheduleDao.update(spstSchedVO.getId(), spstSchedVO);
             } finally {
                 if(spstSchedVO != null ) {
@@ -349,6 +510,12 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
         }
         _currentTimestamp = new Date();
 
+        _snapshotJitter = NumbersUtil.parseInt(_configDao.getValue(Config.SnapshotScheduleJitter.key()), 300);
+        int maxConcurrentPerPool = NumbersUtil.parseInt(_configDao.getValue(Config.SnapshotMaxConcurrentPerPool.key()), 4);
+        _maxConcurrentPerSecondary = NumbersUtil.parseInt(_configDao.getValue(Config.SnapshotMaxConcurrentPerSecondary.key()), 8);
+        _dispatchQueue = new SnapshotDispatchQueue(maxConcurrentPerPool, _maxConcurrentPerSecondary);
+        _msId = ManagementServerNode.getManagementServerId();
+
         s_logger.info("Snapshot Scheduler is configured.");
 
         return true;
@@ -356,6 +523,9 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
 
     @Override @DB
     public boolean start() {
+        // schedules leased by the previous run of this server were never started
+        _snapshotScheduleDao.releaseLeases(_msId);
+
         // reschedule all policies after management restart
         List<SnapshotPolicyVO> policyInstances = _snapshotPolicyDao.listAll();
         for( SnapshotPolicyVO policyInstance : policyInstances) {
@@ -383,6 +553,15 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
             };
             _testClockTimer = new Timer("SnapshotPollTask");
             _testClockTimer.schedule(timerTask, _snapshotPollInterval*1000L, _snapshotPollInterval*1000L);
+
+            _dispatcher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("SnapshotDispatcher"));
+            _dispatcher.scheduleWithFixedDelay(new DispatchTask(), DISPATCH_INTERVAL, DISPATCH_INTERVAL, TimeUnit.SECONDS);
+        }
+
+        try {
+            JmxUtil.registerMBean("SnapshotScheduler", "DispatchQueue", _dispatchQueue);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the snapshot dispatch queue MBean", e);
         }
 
         return true;
@@ -390,6 +569,9 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
 
     @Override
     public boolean stop() {
+        if (_dispatcher != null) {
+            _dispatcher.shutdown();
+        }
         return true;
     }
 }
@@ -0,0 +1,109 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PingTimingWheelTest {
+    static final long TIMEOUT = 150;
+    static final long RECHECK = 60;
+
+    @Test
+    public void testAgentThatKeepsPingingIsNeverBehind() {
+        long now = 1000;
+        PingTimingWheel wheel = new PingTimingWheel(4, TIMEOUT, RECHECK, now);
+        wheel.add(1, now);
+        for (int i = 0; i < 1000; i++) {
+            now++;
+            if (now % 60 == 0) {
+                wheel.ping(1, now);
+            }
+            Assert.assertTrue(wheel.advance(now).isEmpty());
+        }
+        Assert.assertEquals(Long.valueOf(1980), wheel.getLastPing(1));
+    }
+
+    @Test
+    public void testSilentAgentIsReportedAtItsDeadlineAndAgainUntilRemoved() {
+        long now = 1000;
+        PingTimingWheel wheel = new PingTimingWheel(4, TIMEOUT, RECHECK, now);
+        wheel.add(7, now);
+
+        for (long t = now + 1; t < now + TIMEOUT; t++) {
+            Assert.assertTrue(wheel.advance(t).isEmpty());
+        }
+        Assert.assertEquals(7L, (long)wheel.advance(now + TIMEOUT).get(0));
+        Assert.assertEquals(0, wheel.getMaxDetectionLag());
+
+        Assert.assertTrue(wheel.advance(now + TIMEOUT + RECHECK - 1).isEmpty());
+        Assert.assertEquals(7L, (long)wheel.advance(now + TIMEOUT + RECHECK).get(0));
+
+        wheel.remove(7);
+        Assert.assertTrue(wheel.advance(now + TIMEOUT + 3 * RECHECK).isEmpty());
+        Assert.assertNull(wheel.getLastPing(7));
+    }
+
+    @Test
+    public void testStalledWheelCatchesUp() {
+        long now = 1000;
+        PingTimingWheel wheel = new PingTimingWheel(4, TIMEOUT, RECHECK, now);
+        wheel.add(1, now);
+        wheel.add(2, now + 100);
+
+        // nothing advanced the wheel for several turns
+        List<Long> behind = wheel.advance(now + 10000);
+        Assert.assertEquals(2, behind.size());
+        Assert.assertTrue(wheel.getMaxDetectionLag() > 0);
+    }
+
+    @Test
+    public void testTenThousandAgents() {
+        final int agents = 10000;
+        final int silent = 100;
+        long start = 100000;
+        PingTimingWheel wheel = new PingTimingWheel(16, TIMEOUT, RECHECK, start);
+        for (int i = 0; i < agents; i++) {
+            wheel.add(i, start);
+        }
+
+        // every agent pings once a minute, spread over the minute; the first 100 stop at 'stopAt'
+        long stopAt = start + 300;
+        Set<Long> reported = new HashSet<Long>();
+        for (long now = start + 1; now <= start + 600; now++) {
+            for (int i = (int)(now % 60); i < agents; i += 60) {
+                if (i < silent && now >= stopAt) {
+                    continue;
+                }
+                wheel.ping(i, now);
+            }
+            List<Long> behind = wheel.advance(now);
+            for (Long agentId : behind) {
+                Assert.assertTrue("agent " + agentId + " pings but was reported", agentId < silent);
+                reported.add(agentId);
+            }
+        }
+
+        Assert.assertEquals(silent, reported.size());
+        // found in the second their deadline passed, not at the next scan of every agent
+        Assert.assertEquals(0, wheel.getMaxDetectionLag());
+    }
+}
@@ -0,0 +1,189 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ClusterServiceNioTransportTest {
+    static final int PEERS = 4;
+
+    final List<ClusterServiceNioTransport> _transports = new ArrayList<ClusterServiceNioTransport>();
+    final List<Integer> _ports = new ArrayList<Integer>();
+    final ConcurrentLinkedQueue<ClusterServicePdu> _received = new ConcurrentLinkedQueue<ClusterServicePdu>();
+    final AtomicInteger _receivedCount = new AtomicInteger();
+
+    static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    ClusterManager receivingManager() {
+        ClusterManager manager = mock(ClusterManager.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ClusterServicePdu pdu = (ClusterServicePdu)invocation.getArguments()[0];
+                if (_receivedCount.incrementAndGet() <= 10) {
+                    _received.add(pdu);
+                }
+                return null;
+            }
+        }).when(manager).OnReceiveClusterServicePdu(any(ClusterServicePdu.class));
+        return manager;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < PEERS; i++) {
+            ClusterServiceNioTransport transport = new ClusterServiceNioTransport(receivingManager(), 5);
+            int port = freePort();
+            transport.start(port);
+            _transports.add(transport);
+            _ports.add(port);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (ClusterServiceNioTransport transport : _transports) {
+            transport.stop();
+        }
+    }
+
+    ClusterServicePdu pdu(int from, int to, String json) {
+        ClusterServicePdu pdu = new ClusterServiceRequestPdu();
+        pdu.setSourcePeer(Integer.toString(from));
+        pdu.setDestPeer(Integer.toString(to));
+        pdu.setAgentId(42);
+        pdu.setStopOnError(true);
+        pdu.setJsonPackage(json);
+        return pdu;
+    }
+
+    @Test
+    public void testDeliverAndPing() throws Exception {
+        ClusterServiceNioTransport transport = _transports.get(0);
+        Assert.assertTrue(transport.ping("127.0.0.1", _ports.get(1), "0", 10000));
+
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            json.append("{\"command\":").append(i).append("}");
+        }
+        ClusterServicePdu sent = pdu(0, 1, json.toString());
+        Assert.assertEquals("true", transport.deliver("127.0.0.1", _ports.get(1), sent, 10000));
+
+        ClusterServicePdu received = _received.poll();
+        Assert.assertEquals(sent.getSequenceId(), received.getSequenceId());
+        Assert.assertEquals("0", received.getSourcePeer());
+        Assert.assertEquals("1", received.getDestPeer());
+        Assert.assertEquals(42, received.getAgentId());
+        Assert.assertTrue(received.isStopOnError());
+        Assert.assertEquals(ClusterServicePdu.PDU_TYPE_REQUEST, received.getPduType());
+        Assert.assertEquals(json.toString(), received.getJsonPackage());
+    }
+
+    @Test
+    public void testFallbackToServletWhenPeerHasNoTransport() throws Exception {
+        ClusterService servlet = mock(ClusterService.class);
+        when(servlet.execute(any(ClusterServicePdu.class))).thenReturn("true");
+        ClusterService service = new ClusterServiceNioImpl(_transports.get(0), "127.0.0.1", freePort(), 10, servlet);
+
+        ClusterServicePdu pdu = pdu(0, 1, "[]");
+        Assert.assertEquals("true", service.execute(pdu));
+        verify(servlet).execute(pdu);
+    }
+
+    @Test
+    public void testUnreachablePeerIsRemembered() throws Exception {
+        ClusterService servlet = mock(ClusterService.class);
+        when(servlet.execute(any(ClusterServicePdu.class))).thenReturn("true");
+        ClusterServiceNioTransport transport = _transports.get(0);
+        int port = freePort();
+
+        Assert.assertEquals("true", new ClusterServiceNioImpl(transport, "127.0.0.1", port, 10, servlet).execute(pdu(0, 1, "[]")));
+        Assert.assertFalse(transport.isReachable("127.0.0.1", port));
+        Assert.assertTrue(transport.isReachable("127.0.0.1", _ports.get(1)));
+
+        // the peer service is recreated after a failure, it must not try the transport again
+        try {
+            transport.ping("127.0.0.1", port, "0", 10000);
+            Assert.fail("the transport should not connect to a peer that was just unreachable");
+        } catch (IOException e) {
+        }
+        Assert.assertEquals("true", new ClusterServiceNioImpl(transport, "127.0.0.1", port, 10, servlet).execute(pdu(0, 1, "[]")));
+        verify(servlet, times(2)).execute(any(ClusterServicePdu.class));
+    }
+
+    /**
+     * Every peer forwarding PDUs to every other peer from several threads, the way
+     * agent commands are forwarded in a busy cluster.
+     */
+    @Test
+    public void testConcurrentDeliveryBetweenPeers() throws Exception {
+        final int threadsPerPeer = 4;
+        final int pdusPerThread = 25;
+        final String json = "[{\"com.cloud.agent.api.CheckHealthCommand\":{\"wait\":50}}]";
+
+        final CountDownLatch done = new CountDownLatch(PEERS * threadsPerPeer);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int p = 0; p < PEERS; p++) {
+            final int from = p;
+            for (int t = 0; t < threadsPerPeer; t++) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < pdusPerThread; i++) {
+                            int to = (from + 1 + i % (PEERS - 1)) % PEERS;
+                            try {
+                                _transports.get(from).deliver("127.0.0.1", _ports.get(to), pdu(from, to, json), 10000);
+                            } catch (IOException e) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                        done.countDown();
+                    }
+                }.start();
+            }
+        }
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        Assert.assertEquals(0, failures.get());
+        Assert.assertEquals(PEERS * threadsPerPeer * pdusPerThread, _receivedCount.get());
+    }
+}
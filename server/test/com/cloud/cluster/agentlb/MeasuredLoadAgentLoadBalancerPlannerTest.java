@@ -0,0 +1,167 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster.agentlb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.manager.AgentAttache;
+import com.cloud.agent.manager.AgentLoadMonitor;
+import com.cloud.agent.transport.Request;
+import com.cloud.host.Status;
+
+public class MeasuredLoadAgentLoadBalancerPlannerTest {
+    static final int CLUSTER_SIZE = 20;
+
+    static class SimulatedAttache extends AgentAttache {
+        final int _commandsPerMinute;
+        final long _busyMsPerMinute;
+
+        SimulatedAttache(long id, int commandsPerMinute, long busyMsPerMinute) {
+            super(null, id, false);
+            _commandsPerMinute = commandsPerMinute;
+            _busyMsPerMinute = busyMsPerMinute;
+        }
+
+        void runOneMinute() {
+            _commandCount.addAndGet(_commandsPerMinute);
+            recordBusyTime(_busyMsPerMinute);
+        }
+
+        @Override
+        public void send(Request req) {
+        }
+
+        @Override
+        public void updatePassword(Command newPassword) {
+        }
+
+        @Override
+        public void disconnect(Status state) {
+        }
+
+        @Override
+        protected boolean isClosed() {
+            return false;
+        }
+    }
+
+    private static Map<Long, Long> runMinutes(AgentLoadMonitor monitor, List<SimulatedAttache> attaches, int minutes) {
+        List<AgentAttache> all = new ArrayList<AgentAttache>(attaches);
+        long now = 0;
+        Map<Long, Long> loads = monitor.sample(all, now);
+        for (int i = 0; i < minutes; i++) {
+            for (SimulatedAttache attache : attaches) {
+                attache.runOneMinute();
+            }
+            now += 60000;
+            loads = monitor.sample(all, now);
+        }
+        return loads;
+    }
+
+    @Test
+    public void testBusyAgentsCostMoreThanIdleOnes() {
+        List<SimulatedAttache> attaches = new ArrayList<SimulatedAttache>();
+        attaches.add(new SimulatedAttache(1, 30, 30000));
+        attaches.add(new SimulatedAttache(2, 1, 0));
+        AgentLoadMonitor monitor = new AgentLoadMonitor();
+
+        Assert.assertTrue("not measured before a second sample", monitor.sample(new ArrayList<AgentAttache>(attaches), 0).isEmpty());
+        Map<Long, Long> loads = runMinutes(monitor, attaches, 3);
+        Assert.assertEquals(2, monitor.getMeasuredAgents());
+        Assert.assertEquals(450L, (long)loads.get(1L));
+        Assert.assertEquals(105L, (long)loads.get(2L));
+    }
+
+    @Test
+    public void testMixedLoadMovesBusyClustersOnly() {
+        // 400 busy XenServer direct agents on ms 1, 400 idle KVM agents on ms 2, ms 3 just joined
+        List<SimulatedAttache> xen = new ArrayList<SimulatedAttache>();
+        List<SimulatedAttache> kvm = new ArrayList<SimulatedAttache>();
+        for (int i = 0; i < 400; i++) {
+            xen.add(new SimulatedAttache(i, 30, 30000));
+            kvm.add(new SimulatedAttache(1000 + i, 1, 0));
+        }
+        Map<Long, Long> xenLoads = runMinutes(new AgentLoadMonitor(), xen, 5);
+        Map<Long, Long> kvmLoads = runMinutes(new AgentLoadMonitor(), kvm, 5);
+
+        long xenServer = sum(xenLoads);
+        long kvmServer = sum(kvmLoads);
+        long average = (xenServer + kvmServer) / 3;
+
+        AgentLoadMonitor monitor = new AgentLoadMonitor();
+        Map<Long, Long> serverLoads = new HashMap<Long, Long>();
+        serverLoads.put(1L, xenServer);
+        serverLoads.put(2L, kvmServer);
+        List<Long> up = new ArrayList<Long>(serverLoads.keySet());
+        up.add(3L);
+        monitor.setClusterLoads(serverLoads, up, 3);
+        Assert.assertEquals(average, monitor.getClusterAverageLoad());
+        Assert.assertTrue(monitor.isUnderloaded(10));
+        Assert.assertEquals(-100, monitor.getImbalancePercent());
+
+        // host count would take 134 hosts from each; the idle server is below the average load
+        Assert.assertEquals(0, MeasuredLoadAgentLoadBalancerPlanner.getLoadToGive(kvmServer, 0, average, 10));
+        long loadToGive = MeasuredLoadAgentLoadBalancerPlanner.getLoadToGive(xenServer, 0, average, 10);
+        Assert.assertEquals(average, loadToGive);
+
+        Map<Long, List<Long>> hostsByCluster = new HashMap<Long, List<Long>>();
+        Map<Long, Long> clusterLoads = new HashMap<Long, Long>();
+        for (SimulatedAttache attache : xen) {
+            long clusterId = attache.getId() / CLUSTER_SIZE;
+            if (!hostsByCluster.containsKey(clusterId)) {
+                hostsByCluster.put(clusterId, new ArrayList<Long>());
+                clusterLoads.put(clusterId, 0L);
+            }
+            hostsByCluster.get(clusterId).add(attache.getId());
+            clusterLoads.put(clusterId, clusterLoads.get(clusterId) + xenLoads.get(attache.getId()));
+        }
+
+        List<Long> clusters = MeasuredLoadAgentLoadBalancerPlanner.selectClusters(clusterLoads, hostsByCluster, loadToGive, 1000);
+        long moved = 0;
+        for (Long clusterId : clusters) {
+            moved += clusterLoads.get(clusterId);
+        }
+        Assert.assertTrue(moved <= loadToGive);
+        Assert.assertTrue(loadToGive - moved < CLUSTER_SIZE * 450);
+
+        // the number of hosts moved in one rebalance is capped
+        Assert.assertEquals(2, MeasuredLoadAgentLoadBalancerPlanner.selectClusters(clusterLoads, hostsByCluster, loadToGive, 50).size());
+    }
+
+    @Test
+    public void testWithinToleranceNothingMoves() {
+        Assert.assertEquals(0, MeasuredLoadAgentLoadBalancerPlanner.getLoadToGive(1050, 950, 1000, 10));
+        Assert.assertEquals(0, MeasuredLoadAgentLoadBalancerPlanner.getLoadToGive(1500, 1000, 1000, 10));
+        Assert.assertEquals(100, MeasuredLoadAgentLoadBalancerPlanner.getLoadToGive(1500, 900, 1000, 10));
+    }
+
+    private static long sum(Map<Long, Long> loads) {
+        long total = 0;
+        for (Long load : loads.values()) {
+            total += load;
+        }
+        return total;
+    }
+}
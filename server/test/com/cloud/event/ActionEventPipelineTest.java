@@ -0,0 +1,170 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.event.ActionEventPipeline.PendingActionEvent;
+
+public class ActionEventPipelineTest {
+    final List<String> _written = Collections.synchronizedList(new ArrayList<String>());
+    final List<Integer> _batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+    ActionEventPipeline _pipeline;
+
+    @After
+    public void tearDown() {
+        if (_pipeline != null) {
+            _pipeline.stop(5000);
+        }
+    }
+
+    PendingActionEvent event(String description) {
+        EventVO vo = new EventVO();
+        vo.setType(EventTypes.EVENT_VM_START);
+        vo.setDescription(description);
+        return new PendingActionEvent(vo, null, null);
+    }
+
+    ActionEventPipeline.BatchWriter recordingWriter(final CountDownLatch gate) {
+        return new ActionEventPipeline.BatchWriter() {
+            @Override
+            public void write(List<PendingActionEvent> events) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                }
+                _batchSizes.add(events.size());
+                for (PendingActionEvent event : events) {
+                    _written.add(event.getEvent().getDescription());
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testEventsAreWrittenInBatchesInOrder() {
+        CountDownLatch gate = new CountDownLatch(1);
+        _pipeline = new ActionEventPipeline(1000, 100, recordingWriter(gate));
+        for (int i = 0; i < 250; i++) {
+            Assert.assertTrue(_pipeline.offer(event("event-" + i)));
+        }
+        gate.countDown();
+
+        Assert.assertTrue(_pipeline.flush(5000));
+        Assert.assertEquals(250, _written.size());
+        for (int i = 0; i < 250; i++) {
+            Assert.assertEquals("event-" + i, _written.get(i));
+        }
+        // the first event is picked up on its own before the gate opens, the rest come in full batches
+        Assert.assertTrue(_batchSizes.size() <= 4);
+        Assert.assertEquals(250, _pipeline.getWrittenCount());
+        Assert.assertEquals(0, _pipeline.getQueueDepth());
+    }
+
+    @Test
+    public void testFullQueueRefusesEvents() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final ActionEventPipeline.BatchWriter recorder = recordingWriter(gate);
+        _pipeline = new ActionEventPipeline(10, 100, new ActionEventPipeline.BatchWriter() {
+            @Override
+            public void write(List<PendingActionEvent> events) {
+                writing.countDown();
+                recorder.write(events);
+            }
+        });
+        // park the writer on its first batch so nothing leaves the queue
+        Assert.assertTrue(_pipeline.offer(event("first")));
+        Assert.assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        int accepted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (_pipeline.offer(event("event-" + i))) {
+                accepted++;
+            }
+        }
+        Assert.assertEquals(10, accepted);
+        Assert.assertEquals(10, _pipeline.getOverflowCount());
+        Assert.assertEquals(10, _pipeline.getQueueDepth());
+
+        Assert.assertFalse(_pipeline.flush(100));
+        gate.countDown();
+        Assert.assertTrue(_pipeline.flush(5000));
+        Assert.assertEquals(11, _written.size());
+    }
+
+    @Test
+    public void testFlushWaitsOnlyForOwnEvents() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        _pipeline = new ActionEventPipeline(1000, 100, recordingWriter(gate));
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    _pipeline.offer(event("other-" + i));
+                }
+            }
+        };
+        other.start();
+        other.join();
+
+        // nothing queued by this thread, the other thread's backlog does not hold it up
+        Assert.assertTrue(_pipeline.flush(100));
+
+        Assert.assertTrue(_pipeline.offer(event("own")));
+        Assert.assertFalse(_pipeline.flush(100));
+        gate.countDown();
+        Assert.assertTrue(_pipeline.flush(5000));
+        Assert.assertEquals("own", _written.get(_written.size() - 1));
+    }
+
+    @Test
+    public void testFailedBatchIsCountedAsDropped() throws Exception {
+        final CountDownLatch attempted = new CountDownLatch(1);
+        _pipeline = new ActionEventPipeline(100, 100, new ActionEventPipeline.BatchWriter() {
+            @Override
+            public void write(List<PendingActionEvent> events) {
+                attempted.countDown();
+                throw new RuntimeException("database is gone");
+            }
+        });
+        _pipeline.offer(event("lost"));
+        Assert.assertTrue(attempted.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(_pipeline.flush(5000));
+        Assert.assertEquals(1, _pipeline.getDroppedCount());
+    }
+
+    @Test
+    public void testStopWritesQueuedEvents() {
+        _pipeline = new ActionEventPipeline(1000, 100, recordingWriter(new CountDownLatch(0)));
+        for (int i = 0; i < 500; i++) {
+            _pipeline.offer(event("event-" + i));
+        }
+        _pipeline.stop(5000);
+        Assert.assertEquals(500, _written.size());
+        Assert.assertFalse(_pipeline.offer(event("late")));
+        _pipeline = null;
+    }
+}
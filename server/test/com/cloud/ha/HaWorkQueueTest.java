@@ -0,0 +1,130 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HaWorkQueueTest {
+
+    @Test
+    public void testDueWorkComesOutOldestFirst() throws Exception {
+        HaWorkQueue queue = new HaWorkQueue();
+        long now = System.currentTimeMillis();
+        Assert.assertTrue(queue.offer(3, 1, now - 1000));
+        Assert.assertTrue(queue.offer(2, 1, now - 1000));
+        Assert.assertTrue(queue.offer(1, 1, now - 500));
+
+        Assert.assertEquals(2, queue.poll(100).getWorkId());
+        Assert.assertEquals(3, queue.poll(100).getWorkId());
+        Assert.assertEquals(1, queue.poll(100).getWorkId());
+        Assert.assertNull(queue.poll(10));
+        Assert.assertEquals(3, queue.getDispatchedCount());
+    }
+
+    @Test
+    public void testWorkIsHeldUntilDue() throws Exception {
+        HaWorkQueue queue = new HaWorkQueue();
+        queue.offer(1, 1, System.currentTimeMillis() + 200);
+
+        Assert.assertNull(queue.poll(10));
+        Assert.assertEquals(1, queue.getQueuedWork());
+        Assert.assertEquals(1, queue.poll(5000).getWorkId());
+    }
+
+    @Test
+    public void testWorkIsQueuedOnce() throws Exception {
+        HaWorkQueue queue = new HaWorkQueue();
+        long now = System.currentTimeMillis();
+        Assert.assertTrue(queue.offer(1, 1, now));
+        Assert.assertFalse(queue.offer(1, 1, now));
+        Assert.assertEquals(1, queue.getQueuedWork());
+
+        queue.poll(100);
+        // once handed out it can be queued again, e.g. when it is rescheduled
+        Assert.assertTrue(queue.offer(1, 1, now));
+    }
+
+    @Test
+    public void testHostRecoveryTime() throws Exception {
+        final HaWorkQueue queue = new HaWorkQueue();
+        final int vms = 300;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < vms; i++) {
+            queue.restartScheduled(42, i);
+            queue.offer(i, 42, now);
+        }
+        Assert.assertEquals(1, queue.getHostsRecovering());
+
+        final AtomicInteger restarted = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(vms);
+        ExecutorService workers = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HaWorkQueue.QueuedWork work;
+                        while ((work = queue.poll(100)) != null) {
+                            restarted.incrementAndGet();
+                            queue.restartFinished(work.getHostId(), work.getWorkId());
+                            done.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        workers.shutdown();
+
+        Assert.assertEquals(vms, restarted.get());
+        Assert.assertEquals(0, queue.getHostsRecovering());
+        Assert.assertEquals(1, queue.getRecoveredHosts());
+        Assert.assertTrue(queue.getLastRecoveryMs() >= 0);
+        Assert.assertEquals(queue.getLastRecoveryMs(), queue.getMaxRecoveryMs());
+
+        // finishing work for a host that is not being recovered is ignored
+        queue.restartFinished(7, 1);
+        Assert.assertEquals(1, queue.getRecoveredHosts());
+    }
+
+    @Test
+    public void testRestartsAreFinishedOnce() {
+        HaWorkQueue queue = new HaWorkQueue();
+        queue.restartScheduled(42, 1);
+        queue.restartScheduled(42, 2);
+        Assert.assertEquals(2, queue.listOutstandingRestarts().size());
+
+        // e.g. found done in the database after this server finished it
+        queue.restartFinished(42, 1);
+        queue.restartFinished(42, 1);
+        Assert.assertEquals(1, queue.getHostsRecovering());
+        Assert.assertEquals(Long.valueOf(42), queue.listOutstandingRestarts().get(2L));
+
+        queue.restartFinished(42, 2);
+        Assert.assertEquals(0, queue.getHostsRecovering());
+        Assert.assertEquals(1, queue.getRecoveredHosts());
+        Assert.assertTrue(queue.listOutstandingRestarts().isEmpty());
+    }
+}
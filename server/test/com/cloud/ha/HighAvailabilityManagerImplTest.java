@@ -0,0 +1,207 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyShort;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.alert.AlertManager;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.dc.HostPodVO;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.dc.dao.HostPodDao;
+import com.cloud.ha.HighAvailabilityManager.Step;
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.ha.dao.HighAvailabilityDao;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.host.dao.HostDao;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.User;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.VirtualMachine.State;
+import com.cloud.vm.VirtualMachineManager;
+
+public class HighAvailabilityManagerImplTest {
+    static final long HOST_ID = 5;
+    static final long VM_ID = 7;
+    static final long UPDATED = 42;
+
+    HighAvailabilityManagerImpl _haMgr;
+    HighAvailabilityDao _haDao;
+    VirtualMachineManager _itMgr;
+    Investigator _investigator;
+    FenceBuilder _fencer;
+    HostVO _host;
+    VMInstanceVO _vm;
+
+    @Before
+    public void setUp() {
+        _haMgr = new HighAvailabilityManagerImpl();
+        _haDao = mock(HighAvailabilityDao.class);
+        _itMgr = mock(VirtualMachineManager.class);
+        _investigator = mock(Investigator.class);
+        _fencer = mock(FenceBuilder.class);
+        _haMgr._haDao = _haDao;
+        _haMgr._itMgr = _itMgr;
+        _haMgr._hostDao = mock(HostDao.class);
+        _haMgr._dcDao = mock(DataCenterDao.class);
+        _haMgr._podDao = mock(HostPodDao.class);
+        _haMgr._alertMgr = mock(AlertManager.class);
+        _haMgr._accountMgr = mock(AccountManager.class);
+        _haMgr.setInvestigators(Arrays.asList(_investigator));
+        _haMgr.setFenceBuilders(Arrays.asList(_fencer));
+        _haMgr._investigateRetryInterval = 60;
+        _haMgr._restartRetryInterval = 600;
+
+        _host = mock(HostVO.class);
+        when(_host.getId()).thenReturn(HOST_ID);
+        when(_host.getStatus()).thenReturn(Status.Down);
+        when(_haMgr._hostDao.findById(HOST_ID)).thenReturn(_host);
+        when(_haMgr._dcDao.findById(anyLong())).thenReturn(mock(DataCenterVO.class));
+        when(_haMgr._podDao.findById(anyLong())).thenReturn(mock(HostPodVO.class));
+
+        _vm = mock(VMInstanceVO.class);
+        when(_vm.getId()).thenReturn(VM_ID);
+        when(_vm.getType()).thenReturn(VirtualMachine.Type.User);
+        when(_vm.getState()).thenReturn(State.Running);
+        when(_vm.getUpdated()).thenReturn(UPDATED);
+        when(_vm.getHostId()).thenReturn(HOST_ID);
+        when(_itMgr.findByIdAndType(VirtualMachine.Type.User, VM_ID)).thenReturn(_vm);
+    }
+
+    private HaWorkVO restartWork(final long id) {
+        // the id is only set when the work is persisted
+        return new HaWorkVO(VM_ID, VirtualMachine.Type.User, WorkType.HA, Step.Investigating, HOST_ID, State.Running, 0, UPDATED) {
+            @Override
+            public long getId() {
+                return id;
+            }
+        };
+    }
+
+    @Test
+    public void testVmOfDownHostIsNotRestartedWithoutFencing() throws Exception {
+        when(_investigator.isAgentAlive(_host)).thenReturn(Status.Down);
+        when(_fencer.fenceOff(_vm, _host)).thenReturn(false);
+
+        Long retry = _haMgr.restart(restartWork(1));
+
+        Assert.assertNotNull(retry);
+        verify(_fencer).fenceOff(_vm, _host);
+        verify(_itMgr, never()).advanceStop(any(VMInstanceVO.class), anyBoolean(), any(User.class), any(Account.class));
+        verify(_haMgr._alertMgr).sendAlert(anyShort(), anyLong(), any(Long.class), anyString(), anyString());
+    }
+
+    @Test
+    public void testVmOfDownHostIsStoppedOnceFenced() throws Exception {
+        when(_investigator.isAgentAlive(_host)).thenReturn(Status.Down);
+        when(_fencer.fenceOff(_vm, _host)).thenReturn(true);
+
+        HaWorkVO work = restartWork(1);
+        // not HA enabled, done once it is stopped
+        Assert.assertNull(_haMgr.restart(work));
+
+        verify(_itMgr).advanceStop(eq(_vm), eq(true), any(User.class), any(Account.class));
+        Assert.assertEquals(Step.Scheduled, work.getStep());
+        // the host was investigated, not each of its VMs
+        verify(_investigator, never()).isVmAlive(_vm, _host);
+    }
+
+    @Test
+    public void testHostIsInvestigatedOnceForItsVms() throws Exception {
+        when(_investigator.isAgentAlive(_host)).thenReturn(Status.Down);
+        when(_fencer.fenceOff(_vm, _host)).thenReturn(false);
+
+        _haMgr.restart(restartWork(1));
+        _haMgr.restart(restartWork(1));
+
+        verify(_investigator, times(1)).isAgentAlive(_host);
+        verify(_fencer, times(2)).fenceOff(_vm, _host);
+    }
+
+    @Test
+    public void testAliveVmOnUpHostIsLeftAlone() throws Exception {
+        when(_host.getStatus()).thenReturn(Status.Up);
+        when(_investigator.isAgentAlive(_host)).thenReturn(Status.Up);
+        when(_investigator.isVmAlive(_vm, _host)).thenReturn(true);
+
+        Assert.assertNull(_haMgr.restart(restartWork(1)));
+        verify(_fencer, never()).fenceOff(_vm, _host);
+    }
+
+    @Test
+    public void testWorkTakenElsewhereIsSkipped() {
+        when(_haDao.take(1, 0)).thenReturn(null);
+
+        Assert.assertFalse(_haMgr.processWork(1));
+        verify(_haDao, never()).update(anyLong(), any(HaWorkVO.class));
+    }
+
+    @Test
+    public void testFinishedRestartEndsRecovery() {
+        HaWorkVO work = restartWork(1);
+        // as taken by this server
+        work.setServerId(0L);
+        when(_haDao.take(1, 0)).thenReturn(work);
+        _haMgr._workQueue.restartScheduled(HOST_ID, work.getId());
+        // the VM went away in the meantime
+        when(_itMgr.findByIdAndType(VirtualMachine.Type.User, VM_ID)).thenReturn(null);
+
+        Assert.assertTrue(_haMgr.processWork(1));
+
+        Assert.assertEquals(Step.Done, work.getStep());
+        verify(_haDao).update(work.getId(), work);
+        Assert.assertEquals(0, _haMgr._workQueue.getHostsRecovering());
+        Assert.assertEquals(1, _haMgr._workQueue.getRecoveredHosts());
+    }
+
+    @Test
+    public void testRestartsFinishedElsewhereAreRetired() {
+        _haMgr._workQueue.restartScheduled(HOST_ID, 10);
+        _haMgr._workQueue.restartScheduled(HOST_ID, 11);
+        HaWorkVO done = restartWork(10);
+        done.setStep(Step.Done);
+        HaWorkVO running = restartWork(11);
+        when(_haDao.findById(10L)).thenReturn(done);
+        when(_haDao.findById(11L)).thenReturn(running);
+
+        _haMgr.retireRestartsFinishedElsewhere();
+        Assert.assertEquals(1, _haMgr._workQueue.getHostsRecovering());
+
+        running.setStep(Step.Done);
+        _haMgr.retireRestartsFinishedElsewhere();
+        Assert.assertEquals(0, _haMgr._workQueue.getHostsRecovering());
+    }
+}
@@ -0,0 +1,177 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.resourcelimit;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.cloud.configuration.Resource.ResourceOwnerType;
+import com.cloud.configuration.Resource.ResourceType;
+import com.cloud.configuration.ResourceCountVO;
+import com.cloud.configuration.ResourceLimitVO;
+import com.cloud.configuration.dao.ResourceCountDao;
+import com.cloud.configuration.dao.ResourceCountDaoImpl;
+import com.cloud.configuration.dao.ResourceLimitDao;
+import com.cloud.domain.Domain;
+import com.cloud.domain.DomainVO;
+import com.cloud.domain.dao.DomainDao;
+import com.cloud.exception.ResourceAllocationException;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.AccountVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * Domain counts kept in delta rows: ROOT (1) is the parent of the limited domain 2, which is
+ * the parent of domain 3 without a limit, where the account lives.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ResourceCountDeltaTest {
+    static final long ACCOUNT_ID = 21;
+    static final long LIMITED_DOMAIN_ID = 2;
+    static final long DOMAIN_ID = 3;
+
+    @Mock DomainDao _domainDao;
+    @Mock AccountManager _accountMgr;
+    @Mock ResourceCountDao _resourceCountDao;
+    @Mock ResourceLimitDao _resourceLimitDao;
+    @Mock AccountDao _accountDao;
+    @InjectMocks ResourceLimitManagerImpl _manager = new ResourceLimitManagerImpl();
+
+    Account _account;
+    Transaction _txn;
+
+    ResourceCountVO countRow(long id) {
+        ResourceCountVO row = mock(ResourceCountVO.class);
+        when(row.getId()).thenReturn(id);
+        return row;
+    }
+
+    @Before
+    public void setUp() {
+        _txn = Transaction.open("ResourceCountDeltaTest");
+        AccountVO account = new AccountVO("test", DOMAIN_ID, null, Account.ACCOUNT_TYPE_NORMAL, null);
+        account.setId(ACCOUNT_ID);
+        _account = account;
+        when(_accountDao.findByIdIncludingRemoved(ACCOUNT_ID)).thenReturn(account);
+
+        when(_domainDao.findById(Domain.ROOT_DOMAIN)).thenReturn(new DomainVO("ROOT", 2, null, null));
+        when(_domainDao.findById(LIMITED_DOMAIN_ID)).thenReturn(new DomainVO("limited", 2, Domain.ROOT_DOMAIN, null));
+        when(_domainDao.findById(DOMAIN_ID)).thenReturn(new DomainVO("unlimited", 2, LIMITED_DOMAIN_ID, null));
+        when(_domainDao.getDomainParentIds(DOMAIN_ID)).thenReturn(new HashSet<Long>(Arrays.asList(DOMAIN_ID, LIMITED_DOMAIN_ID, Domain.ROOT_DOMAIN)));
+
+        ResourceCountVO accountRow = countRow(100);
+        when(_resourceCountDao.findByOwnerAndType(ACCOUNT_ID, ResourceOwnerType.Account, ResourceType.user_vm)).thenReturn(accountRow);
+        when(_resourceCountDao.lockRow(100L, true)).thenReturn(accountRow);
+        when(_resourceCountDao.updateById(eq(100L), anyBoolean(), anyLong())).thenReturn(true);
+        ResourceCountVO rootRow = countRow(101);
+        when(_resourceCountDao.findByOwnerAndType(Domain.ROOT_DOMAIN, ResourceOwnerType.Domain, ResourceType.user_vm)).thenReturn(rootRow);
+        ResourceCountVO limitedRow = countRow(102);
+        when(_resourceCountDao.findByOwnerAndType(LIMITED_DOMAIN_ID, ResourceOwnerType.Domain, ResourceType.user_vm)).thenReturn(limitedRow);
+        ResourceCountVO domainRow = countRow(103);
+        when(_resourceCountDao.findByOwnerAndType(DOMAIN_ID, ResourceOwnerType.Domain, ResourceType.user_vm)).thenReturn(domainRow);
+
+        when(_resourceLimitDao.findByOwnerIdAndType(LIMITED_DOMAIN_ID, ResourceOwnerType.Domain, ResourceType.user_vm))
+                .thenReturn(new ResourceLimitVO(ResourceType.user_vm, 10L, LIMITED_DOMAIN_ID, ResourceOwnerType.Domain));
+    }
+
+    @After
+    public void tearDown() {
+        _txn.close();
+    }
+
+    @Test
+    public void testUpdateAddsToOneStripeOfEveryParentDomain() {
+        Assert.assertTrue(_manager.updateResourceCountForAccount(ACCOUNT_ID, ResourceType.user_vm, false, 2));
+
+        verify(_resourceCountDao).updateById(100L, false, 2);
+        int stripe = (int)(ACCOUNT_ID % ResourceCountDao.DOMAIN_COUNT_STRIPES);
+        verify(_resourceCountDao).addDomainDelta(DOMAIN_ID, ResourceType.user_vm, stripe, -2);
+        verify(_resourceCountDao).addDomainDelta(LIMITED_DOMAIN_ID, ResourceType.user_vm, stripe, -2);
+        verify(_resourceCountDao).addDomainDelta(Domain.ROOT_DOMAIN, ResourceType.user_vm, stripe, -2);
+        // the domain rows are left to the compactor
+        verify(_resourceCountDao, never()).lockRow(102L, true);
+        verify(_resourceCountDao, never()).updateById(eq(101L), anyBoolean(), anyLong());
+    }
+
+    @Test
+    public void testOnlyLimitedDomainsAreLockedForTheCheck() throws Exception {
+        when(_resourceCountDao.getResourceCount(LIMITED_DOMAIN_ID, ResourceOwnerType.Domain, ResourceType.user_vm)).thenReturn(9L);
+
+        _manager.checkResourceLimit(_account, ResourceType.user_vm);
+        verify(_resourceCountDao).lockRow(100L, true);
+        verify(_resourceCountDao).lockRow(102L, true);
+        verify(_resourceCountDao, never()).lockRow(101L, true);
+        verify(_resourceCountDao, never()).lockRow(103L, true);
+    }
+
+    @Test
+    public void testDomainLimitIsCheckedAgainstTheCountWithDeltas() throws Exception {
+        // getResourceCount adds the deltas for domains
+        when(_resourceCountDao.getResourceCount(LIMITED_DOMAIN_ID, ResourceOwnerType.Domain, ResourceType.user_vm)).thenReturn(10L);
+
+        try {
+            _manager.checkResourceLimit(_account, ResourceType.user_vm);
+            Assert.fail("the limit of domain " + LIMITED_DOMAIN_ID + " is reached");
+        } catch (ResourceAllocationException e) {
+        }
+    }
+
+    @Test
+    public void testCompactTaskFoldsEveryDomainWithDeltas() {
+        when(_resourceCountDao.listDomainsWithDeltas()).thenReturn(Arrays.asList(
+                new Pair<Long, ResourceType>(DOMAIN_ID, ResourceType.user_vm), new Pair<Long, ResourceType>(Domain.ROOT_DOMAIN, ResourceType.volume)));
+
+        _manager.new ResourceCountCompactTask().run();
+        verify(_resourceCountDao).compactDomainDeltas(DOMAIN_ID, ResourceType.user_vm);
+        verify(_resourceCountDao).compactDomainDeltas(Domain.ROOT_DOMAIN, ResourceType.volume);
+    }
+
+    @Test
+    public void testDeltasOfRemovedDomainAreDropped() {
+        ResourceCountDaoImpl dao = spy(new ResourceCountDaoImpl());
+        doReturn(null).when(dao).findByOwnerAndType(DOMAIN_ID, ResourceOwnerType.Domain, ResourceType.user_vm);
+        doNothing().when(dao).removeDomainDeltas(DOMAIN_ID, ResourceType.user_vm);
+
+        Assert.assertEquals(0, dao.compactDomainDeltas(DOMAIN_ID, ResourceType.user_vm));
+        verify(dao).removeDomainDeltas(DOMAIN_ID, ResourceType.user_vm);
+        verify(dao, never()).addDomainDelta(anyLong(), eq(ResourceType.user_vm), anyInt(), anyLong());
+    }
+}
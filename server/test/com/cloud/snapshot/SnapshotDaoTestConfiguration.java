@@ -35,6 +35,7 @@ import com.cloud.host.dao.HostDaoImpl;
 import com.cloud.host.dao.HostDetailsDaoImpl;
 import com.cloud.host.dao.HostTagsDaoImpl;
 import com.cloud.storage.dao.SnapshotDaoImpl;
+import com.cloud.storage.dao.SnapshotScheduleDaoImpl;
 import com.cloud.storage.dao.VolumeDaoImpl;
 import com.cloud.tags.dao.ResourceTagsDaoImpl;
 import com.cloud.vm.dao.NicDaoImpl;
@@ -43,6 +44,7 @@ import com.cloud.vm.dao.VMInstanceDaoImpl;
 @Configuration
 @ComponentScan(basePackageClasses={
         SnapshotDaoImpl.class,
+        SnapshotScheduleDaoImpl.class,
         ResourceTagsDaoImpl.class,
         VMInstanceDaoImpl.class,
         VolumeDaoImpl.class,
@@ -0,0 +1,113 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.snapshot;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.cloud.storage.SnapshotScheduleVO;
+import com.cloud.storage.dao.SnapshotScheduleDaoImpl;
+import com.cloud.utils.component.ComponentContext;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = "classpath:/SnapshotDaoTestContext.xml")
+public class SnapshotScheduleDaoTest extends TestCase {
+    @Inject SnapshotScheduleDaoImpl dao;
+
+    static final long VOLUME_ID = 990001;
+    static final long MS_ID = 990002;
+    static final long OTHER_MS_ID = 990003;
+
+    SnapshotScheduleVO schedule;
+    Date now;
+
+    @Before
+    public void setup() throws Exception {
+        ComponentContext.initComponentsLifeCycle();
+        now = new Date();
+        schedule = dao.persist(new SnapshotScheduleVO(VOLUME_ID, 2, new Date(now.getTime() - 60000)));
+    }
+
+    @After
+    public void tearDown() {
+        dao.expunge(schedule.getId());
+    }
+
+    Date inMinutes(int minutes) {
+        return new Date(now.getTime() + minutes * 60000L);
+    }
+
+    boolean isLeasable(Date at) {
+        List<SnapshotScheduleVO> schedules = dao.listSchedulesToLease(at, schedule.getId() - 1, 1);
+        return !schedules.isEmpty() && schedules.get(0).getId() == schedule.getId();
+    }
+
+    @Test
+    public void testLeaseIsExclusiveUntilItExpires() {
+        Assert.assertTrue(isLeasable(now));
+        Assert.assertTrue(dao.lease(schedule.getId(), MS_ID, now, inMinutes(10)));
+        Assert.assertFalse(isLeasable(now));
+        Assert.assertFalse(dao.lease(schedule.getId(), OTHER_MS_ID, now, inMinutes(10)));
+
+        Assert.assertTrue(isLeasable(inMinutes(11)));
+        Assert.assertTrue(dao.lease(schedule.getId(), OTHER_MS_ID, inMinutes(11), inMinutes(20)));
+        Assert.assertEquals(OTHER_MS_ID, dao.findById(schedule.getId()).getMsId().longValue());
+    }
+
+    @Test
+    public void testRenewedLeaseOutlivesTheOldExpiry() {
+        Assert.assertTrue(dao.lease(schedule.getId(), MS_ID, now, inMinutes(10)));
+        Assert.assertEquals(0, dao.renewLeases(OTHER_MS_ID, inMinutes(30)));
+        Assert.assertEquals(1, dao.renewLeases(MS_ID, inMinutes(30)));
+
+        Assert.assertFalse(isLeasable(inMinutes(11)));
+        Assert.assertFalse(dao.lease(schedule.getId(), OTHER_MS_ID, inMinutes(11), inMinutes(20)));
+    }
+
+    @Test
+    public void testLeaseIsOnlyReleasedByItsHolder() {
+        Assert.assertTrue(dao.lease(schedule.getId(), MS_ID, now, inMinutes(10)));
+        Assert.assertFalse(dao.releaseLease(schedule.getId(), OTHER_MS_ID));
+        Assert.assertFalse(isLeasable(now));
+
+        Assert.assertTrue(dao.releaseLease(schedule.getId(), MS_ID));
+        Assert.assertTrue(isLeasable(now));
+        Assert.assertNull(dao.findById(schedule.getId()).getMsId());
+    }
+
+    @Test
+    public void testRunningScheduleIsNotLeasable() {
+        SnapshotScheduleVO running = dao.createForUpdate();
+        running.setAsyncJobId(1L);
+        dao.update(schedule.getId(), running);
+
+        Assert.assertFalse(isLeasable(now));
+        Assert.assertFalse(dao.lease(schedule.getId(), MS_ID, now, inMinutes(10)));
+    }
+}
@@ -0,0 +1,104 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.snapshot;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SnapshotDispatchQueueTest {
+
+    @Test
+    public void testSnapshotsWaitForTheirDispatchTime() {
+        SnapshotDispatchQueue queue = new SnapshotDispatchQueue(0, 0);
+        Assert.assertTrue(queue.offer(1, 10, 100, 1, 1000, 1500));
+        Assert.assertTrue(queue.offer(2, 20, 100, 1, 1000, 1200));
+
+        Assert.assertTrue(queue.takeDispatchable(1100, 10).isEmpty());
+        List<SnapshotDispatchQueue.QueuedSnapshot> taken = queue.takeDispatchable(1200, 10);
+        Assert.assertEquals(1, taken.size());
+        Assert.assertEquals(2, taken.get(0).getScheduleId());
+        Assert.assertEquals(200, queue.getLastQueueLagMs());
+
+        taken = queue.takeDispatchable(2000, 10);
+        Assert.assertEquals(1, taken.get(0).getScheduleId());
+        Assert.assertEquals(1000, queue.getMaxQueueLagMs());
+        Assert.assertEquals(2, queue.getDispatchedCount());
+        Assert.assertEquals(0, queue.getQueuedSnapshots());
+        Assert.assertEquals(2, queue.getRunningSnapshots());
+    }
+
+    @Test
+    public void testScheduleIsQueuedOnceUntilFinished() {
+        SnapshotDispatchQueue queue = new SnapshotDispatchQueue(0, 0);
+        Assert.assertTrue(queue.offer(1, 10, 100, 1, 1000, 1000));
+        Assert.assertFalse(queue.offer(1, 10, 100, 1, 1000, 1000));
+
+        queue.takeDispatchable(1000, 10);
+        // still running
+        Assert.assertFalse(queue.offer(1, 10, 100, 1, 2000, 2000));
+
+        queue.finished(1);
+        Assert.assertTrue(queue.offer(1, 10, 100, 1, 2000, 2000));
+    }
+
+    @Test
+    public void testPoolLimitLetsOtherPoolsGoFirst() {
+        SnapshotDispatchQueue queue = new SnapshotDispatchQueue(2, 0);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(i, i, 100, 1, 1000, 1000 + i);
+        }
+        queue.offer(9, 9, 200, 1, 1000, 1009);
+
+        List<SnapshotDispatchQueue.QueuedSnapshot> taken = queue.takeDispatchable(2000, 10);
+        Assert.assertEquals(3, taken.size());
+        Assert.assertEquals(9, taken.get(2).getScheduleId());
+        Assert.assertEquals(3, queue.getQueuedSnapshots());
+
+        Assert.assertTrue(queue.takeDispatchable(2000, 10).isEmpty());
+        queue.finished(0);
+        taken = queue.takeDispatchable(2000, 10);
+        Assert.assertEquals(1, taken.size());
+        Assert.assertEquals(2, taken.get(0).getScheduleId());
+    }
+
+    @Test
+    public void testZoneLimit() {
+        SnapshotDispatchQueue queue = new SnapshotDispatchQueue(0, 1);
+        queue.setZoneLimit(2, 3);
+        for (int i = 0; i < 4; i++) {
+            queue.offer(i, i, i, 1, 1000, 1000);
+            queue.offer(10 + i, 10 + i, 10 + i, 2, 1000, 1000);
+        }
+
+        List<SnapshotDispatchQueue.QueuedSnapshot> taken = queue.takeDispatchable(1000, 100);
+        int zone1 = 0;
+        int zone2 = 0;
+        for (SnapshotDispatchQueue.QueuedSnapshot snapshot : taken) {
+            if (snapshot.getZoneId() == 1) {
+                zone1++;
+            } else {
+                zone2++;
+            }
+        }
+        Assert.assertEquals(1, zone1);
+        Assert.assertEquals(3, zone2);
+        Assert.assertEquals(4, queue.getQueuedSnapshots());
+        Assert.assertTrue(queue.getQueueLagMs() > 0);
+    }
+}
@@ -0,0 +1,151 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.snapshot;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.DataStore;
+import org.apache.cloudstack.engine.subsystem.api.storage.DataStoreManager;
+import org.apache.cloudstack.engine.subsystem.api.storage.ZoneScope;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.cluster.ManagementServerHost;
+import com.cloud.cluster.ManagementServerHostVO;
+import com.cloud.cluster.ManagementServerNode;
+import com.cloud.cluster.dao.ManagementServerHostDao;
+import com.cloud.configuration.Config;
+import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.storage.SnapshotPolicyVO;
+import com.cloud.storage.SnapshotScheduleVO;
+import com.cloud.storage.VolumeVO;
+import com.cloud.storage.dao.SnapshotPolicyDao;
+import com.cloud.storage.dao.SnapshotScheduleDao;
+import com.cloud.storage.dao.VolumeDao;
+
+public class SnapshotSchedulerImplTest {
+    SnapshotSchedulerImpl _scheduler;
+    SnapshotScheduleDao _scheduleDao;
+
+    @Before
+    public void setUp() throws Exception {
+        _scheduler = new SnapshotSchedulerImpl();
+        _scheduler._configDao = mock(ConfigurationDao.class);
+        when(_scheduler._configDao.getValue(Config.SnapshotScheduleJitter.key())).thenReturn("0");
+        _scheduleDao = mock(SnapshotScheduleDao.class);
+        _scheduler._snapshotScheduleDao = _scheduleDao;
+        _scheduler._snapshotPolicyDao = mock(SnapshotPolicyDao.class);
+        when(_scheduler._snapshotPolicyDao.findById(anyLong())).thenReturn(mock(SnapshotPolicyVO.class));
+        _scheduler._volsDao = mock(VolumeDao.class);
+        VolumeVO volume = mock(VolumeVO.class);
+        when(volume.getPoolId()).thenReturn(1L);
+        when(volume.getDataCenterId()).thenReturn(1L);
+        when(_scheduler._volsDao.findById(anyLong())).thenReturn(volume);
+        _scheduler._dataStoreMgr = mock(DataStoreManager.class);
+        when(_scheduler._dataStoreMgr.getImageStoresByScope(any(ZoneScope.class))).thenReturn(Collections.<DataStore>emptyList());
+        _scheduler._msHostDao = mock(ManagementServerHostDao.class);
+        _scheduler.configure("SnapshotScheduler", null);
+        when(_scheduleDao.lease(anyLong(), anyLong(), any(Date.class), any(Date.class))).thenReturn(true);
+    }
+
+    void setServersUp(int servers) {
+        List<ManagementServerHostVO> hosts = new ArrayList<ManagementServerHostVO>();
+        for (int i = 0; i < servers; i++) {
+            hosts.add(mock(ManagementServerHostVO.class));
+        }
+        when(_scheduler._msHostDao.listBy(ManagementServerHost.State.Up)).thenReturn(hosts);
+    }
+
+    static List<SnapshotScheduleVO> schedules(long firstId, int count) {
+        List<SnapshotScheduleVO> schedules = new ArrayList<SnapshotScheduleVO>();
+        for (long id = firstId; id < firstId + count; id++) {
+            final long scheduleId = id;
+            schedules.add(new SnapshotScheduleVO(scheduleId, 1, new Date()) {
+                @Override
+                public long getId() {
+                    return scheduleId;
+                }
+            });
+        }
+        return schedules;
+    }
+
+    void setDue(int due) {
+        when(_scheduleDao.countSchedulesToLease(any(Date.class))).thenReturn(due);
+        when(_scheduleDao.listSchedulesToLease(any(Date.class), anyLong(), anyInt())).thenReturn(new ArrayList<SnapshotScheduleVO>());
+        for (int afterId = 0; afterId < due; afterId += 1000) {
+            when(_scheduleDao.listSchedulesToLease(any(Date.class), eq((long)afterId), anyInt())).thenReturn(schedules(afterId + 1, Math.min(1000, due - afterId)));
+        }
+    }
+
+    @Test
+    public void testAllDueSchedulesArePagedThrough() {
+        setServersUp(1);
+        setDue(2500);
+
+        _scheduler.scheduleSnapshots();
+        verify(_scheduleDao).renewLeases(anyLong(), any(Date.class));
+        verify(_scheduleDao, times(2500)).lease(anyLong(), anyLong(), any(Date.class), any(Date.class));
+        verify(_scheduleDao).listSchedulesToLease(any(Date.class), eq(2000L), anyInt());
+    }
+
+    @Test
+    public void testServerLeasesItsShare() {
+        setServersUp(4);
+        setDue(2500);
+
+        _scheduler.scheduleSnapshots();
+        verify(_scheduleDao, times(625)).lease(anyLong(), anyLong(), any(Date.class), any(Date.class));
+        verify(_scheduleDao, never()).listSchedulesToLease(any(Date.class), eq(1000L), anyInt());
+    }
+
+    @Test
+    public void testLeaseIsReleasedWhenQueueingFails() {
+        setServersUp(1);
+        setDue(1);
+        when(_scheduler._dataStoreMgr.getImageStoresByScope(any(ZoneScope.class))).thenThrow(new RuntimeException("no stores"));
+
+        _scheduler.scheduleSnapshots();
+        verify(_scheduleDao).lease(eq(1L), anyLong(), any(Date.class), any(Date.class));
+        verify(_scheduleDao).releaseLease(1L, ManagementServerNode.getManagementServerId());
+    }
+
+    @Test
+    public void testLeaseOfScheduleNotRunIsReleasedConditionally() {
+        setServersUp(1);
+        setDue(1);
+
+        _scheduler.scheduleSnapshots();
+        // the schedule is locked elsewhere, so it is not run here
+        _scheduler.dispatchSnapshots();
+        verify(_scheduleDao).releaseLease(1L, ManagementServerNode.getManagementServerId());
+        verify(_scheduleDao, never()).releaseLeases(anyLong());
+    }
+}
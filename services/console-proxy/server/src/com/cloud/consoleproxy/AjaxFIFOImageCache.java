@@ -16,60 +16,66 @@
 // under the License.
 package com.cloud.consoleproxy;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.cloud.consoleproxy.util.Logger;
 
 public class AjaxFIFOImageCache {
     private static final Logger s_logger = Logger.getLogger(AjaxFIFOImageCache.class);
     
-    private List<Integer> fifoQueue;
+    private Queue<Integer> fifoQueue;
     private Map<Integer, byte[]> cache;
     private int cacheSize;
-    private int nextKey = 0;
+    private AtomicInteger nextKey = new AtomicInteger(0);
     
     public AjaxFIFOImageCache(int cacheSize) {
         this.cacheSize = cacheSize;
-        fifoQueue = new ArrayList<Integer>();
-        cache = new HashMap<Integer, byte[]>();
+        fifoQueue = new ConcurrentLinkedQueue<Integer>();
+        cache = new ConcurrentHashMap<Integer, byte[]>();
     }
     
-    public synchronized void clear() {
+    public void clear() {
         fifoQueue.clear();
         cache.clear();
     }
     
-    public synchronized int putImage(byte[] image) {
-        while(cache.size() >= cacheSize) {
-            Integer keyToRemove = fifoQueue.remove(0);
-            cache.remove(keyToRemove);
-            
-            if(s_logger.isTraceEnabled())
-                s_logger.trace("Remove image from cache, key: " + keyToRemove);
-        }
-        
+    public int putImage(byte[] image) {
         int key = getNextKey();
         
         if(s_logger.isTraceEnabled())
             s_logger.trace("Add image to cache, key: " + key);
         
-        cache.put(key, image);
+        // a failed encoding is not stored, fetching its key then answers as if it has been swept out
+        if(image != null)
+            cache.put(key, image);
         fifoQueue.add(key);
+        
+        while(fifoQueue.size() > cacheSize) {
+            Integer keyToRemove = fifoQueue.poll();
+            if(keyToRemove == null)
+                break;
+            cache.remove(keyToRemove);
+            
+            if(s_logger.isTraceEnabled())
+                s_logger.trace("Remove image from cache, key: " + keyToRemove);
+        }
         return key;
     }
     
-    public synchronized byte[] getImage(int key) {
+    public byte[] getImage(int key) {
         if (key == 0) {
-            key = nextKey;
+            key = nextKey.get();
         }
-        if (cache.containsKey(key)) {
+        byte[] image = cache.get(key);
+        if (image != null) {
             if (s_logger.isTraceEnabled())
                 s_logger.trace("Retrieve image from cache, key: " + key);
 
-            return cache.get(key);
+            return image;
         }
 
         if (s_logger.isTraceEnabled())
@@ -77,7 +83,7 @@ public class AjaxFIFOImageCache {
         return null;
     }
 
-    public synchronized int getNextKey() {
-        return ++nextKey;
+    public int getNextKey() {
+        return nextKey.incrementAndGet();
     }
 }
\ No newline at end of file
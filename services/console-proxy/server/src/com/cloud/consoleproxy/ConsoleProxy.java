@@ -36,6 +36,7 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.xml.DOMConfigurator;
 
 import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.vnc.VncNioEngine;
 import com.cloud.utils.PropertiesUtil;
 import com.google.gson.Gson;
 import com.sun.net.httpserver.HttpServer;
@@ -71,6 +72,7 @@ public class ConsoleProxy {
     static int keyboardType = KEYBOARD_RAW;
     static String factoryClzName;
     static boolean standaloneStart = false;
+    static boolean vncNioEnabled = true;
     
     static String encryptorPassword = genDefaultEncryptorPassword(); 
     
@@ -156,6 +158,24 @@ public class ConsoleProxy {
             readTimeoutSeconds = Integer.parseInt(s);
             s_logger.info("Setting readTimeoutSeconds=" + readTimeoutSeconds);
         }
+        
+        s = conf.getProperty("consoleproxy.vncNioEnabled");
+        if (s!=null) {
+            vncNioEnabled = Boolean.parseBoolean(s);
+            s_logger.info("Setting vncNioEnabled=" + vncNioEnabled);
+        }
+        
+        s = conf.getProperty("consoleproxy.vncEventLoops");
+        if (s!=null) {
+            VncNioEngine.setEventLoopCount(Integer.parseInt(s));
+            s_logger.info("Setting vncEventLoops=" + s);
+        }
+        
+        s = conf.getProperty("consoleproxy.imageCacheSizeMB");
+        if (s!=null) {
+            ConsoleProxyImageCache.getInstance().setMaxBytes(Long.parseLong(s) * 1024 * 1024);
+            s_logger.info("Setting imageCacheSizeMB=" + s);
+        }
     }
     
     public static ConsoleProxyServerFactory getHttpServerFactory() {
@@ -40,6 +40,7 @@ public interface ConsoleProxyClient {
     long getAjaxSessionId();
     AjaxFIFOImageCache getAjaxImageCache();
     Image getClientScaledImage(int width, int height);                  // client thumbnail support
+    byte[] getClientScaledJpeg(int width, int height);                  // encoded thumbnail, reused while the screen does not change
     
     String onAjaxClientStart(String title, List<String> languages, String guest);
     String onAjaxClientUpdate();
@@ -66,4 +67,5 @@ public interface ConsoleProxyClient {
     //
     void initClient(ConsoleProxyClientParam param);
     void closeClient();
+    void releaseFrameBuffer(long idleMillis);                           // frame buffer unused that long is dropped, rebuilt on next access
 }
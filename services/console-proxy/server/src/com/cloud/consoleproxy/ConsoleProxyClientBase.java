@@ -16,14 +16,18 @@
 // under the License.
 package com.cloud.consoleproxy;
 
+import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.List;
 
 import javassist.tools.web.Viewer;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.consoleproxy.util.ImageHelper;
 import com.cloud.consoleproxy.util.TileInfo;
 import com.cloud.consoleproxy.util.TileTracker;
 import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
@@ -92,6 +96,40 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         return null;
     }
     
+    @Override
+    public byte[] getClientScaledJpeg(int width, int height) {
+        FrameBufferCanvas canvas = getFrameBufferCavas();
+        ConsoleProxyImageCache imageCache = ConsoleProxyImageCache.getInstance();
+        
+        // take the version before the frame buffer is read, an update that lands while
+        // encoding makes the next request encode again
+        long version = tracker.getVersion();
+        if(canvas != null) {
+            byte[] imgBits = imageCache.getImage(clientId, ConsoleProxyImageCache.KIND_THUMBNAIL, width, height, version);
+            if(imgBits != null)
+                return imgBits;
+        }
+        
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        if(canvas != null) {
+            Image scaledImage = canvas.getFrameBufferScaledImage(width, height);
+            Graphics2D g = bufferedImage.createGraphics();
+            g.drawImage(scaledImage, 0, 0, null);
+            g.dispose();
+        }
+        
+        byte[] imgBits = null;
+        try {
+            imgBits = ImageHelper.jpegFromImage(bufferedImage);
+        } catch (IOException e) {
+            s_logger.warn("Unable to generate thumbnail jpeg image", e);
+        }
+        
+        if(canvas != null)
+            imageCache.putImage(clientId, ConsoleProxyImageCache.KIND_THUMBNAIL, width, height, version, imgBits);
+        return imgBits;
+    }
+    
     public abstract void sendClientRawKeyboardEvent(InputEventType event, int code, int modifiers);
     public abstract void sendClientMouseEvent(InputEventType event, int x, int y, int code, int modifiers);
     
@@ -133,6 +171,10 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     @Override
     public abstract void closeClient();
     
+    @Override
+    public void releaseFrameBuffer(long idleMillis) {
+    }
+    
     //
     // interface FrameBufferEventListener
     //
@@ -176,12 +218,43 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         return null;
     }
     
+    private byte[] getCachedFrameBufferJpeg() {
+        ConsoleProxyImageCache imageCache = ConsoleProxyImageCache.getInstance();
+        long version = tracker.getVersion();
+        int width = tracker.getTrackWidth();
+        int height = tracker.getTrackHeight();
+        
+        byte[] imgBits = imageCache.getImage(clientId, ConsoleProxyImageCache.KIND_FRAME, width, height, version);
+        if(imgBits == null) {
+            imgBits = getFrameBufferJpeg();
+            imageCache.putImage(clientId, ConsoleProxyImageCache.KIND_FRAME, width, height, version, imgBits);
+        }
+        return imgBits;
+    }
+    
+    private byte[] getCachedTilesMergedJpeg(List<TileInfo> tiles) {
+        int tileWidth = tracker.getTileWidth();
+        int tileHeight = tracker.getTileHeight();
+        if(!tiles.isEmpty())
+            return getTilesMergedJpeg(tiles, tileWidth, tileHeight);
+        
+        // an update poll that times out without any dirty tile still sends a (blank) tile image,
+        // it is the same for every session so encode it only once
+        ConsoleProxyImageCache imageCache = ConsoleProxyImageCache.getInstance();
+        byte[] imgBits = imageCache.getImage(0, ConsoleProxyImageCache.KIND_BLANK_TILE, tileWidth, tileHeight, 0);
+        if(imgBits == null) {
+            imgBits = getTilesMergedJpeg(tiles, tileWidth, tileHeight);
+            imageCache.putImage(0, ConsoleProxyImageCache.KIND_BLANK_TILE, tileWidth, tileHeight, 0, imgBits);
+        }
+        return imgBits;
+    }
+    
     private String prepareAjaxImage(List<TileInfo> tiles, boolean init) {
         byte[] imgBits;
         if(init)
-            imgBits = getFrameBufferJpeg();
+            imgBits = getCachedFrameBufferJpeg();
         else 
-            imgBits = getTilesMergedJpeg(tiles, tracker.getTileWidth(), tracker.getTileHeight());
+            imgBits = getCachedTilesMergedJpeg(tiles);
         
         if(imgBits == null) {
             s_logger.warn("Unable to generate jpeg image");
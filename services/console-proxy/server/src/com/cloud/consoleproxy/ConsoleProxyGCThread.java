@@ -32,6 +32,8 @@ public class ConsoleProxyGCThread extends Thread {
     private static final Logger s_logger = Logger.getLogger(ConsoleProxyGCThread.class);
     
     private final static int MAX_SESSION_IDLE_SECONDS = 180;
+    // frame buffers of sessions nobody looked at for this long are released until the next access
+    private final static int MAX_FRAMEBUFFER_IDLE_SECONDS = 60;
 
     private Hashtable<String, ConsoleProxyClient> connMap;
     private long lastLogScan = 0;
@@ -83,6 +85,9 @@ public class ConsoleProxyGCThread extends Thread {
 
                 long seconds_unused = (System.currentTimeMillis() - client.getClientLastFrontEndActivityTime()) / 1000;
                 if (seconds_unused < MAX_SESSION_IDLE_SECONDS) {
+                    if (seconds_unused >= MAX_FRAMEBUFFER_IDLE_SECONDS) {
+                        client.releaseFrameBuffer(MAX_FRAMEBUFFER_IDLE_SECONDS * 1000L);
+                    }
                     continue;
                 }
                 
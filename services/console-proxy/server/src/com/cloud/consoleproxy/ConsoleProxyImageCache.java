@@ -0,0 +1,215 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.consoleproxy.util.Logger;
+
+/**
+ * 
+ * ConsoleProxyImageCache keeps encoded images that can be served again as long as the
+ * frame buffer they were taken from has not changed, it is shared by all client sessions
+ * of the process
+ * 
+ * Every image is stored with the frame buffer version it was encoded from, a lookup with
+ * a different version is a miss. The cache is bounded by the total size of the images,
+ * when it grows over the limit the oldest images are evicted first, an image that has been
+ * read since it was stored is given a second pass
+ */
+public class ConsoleProxyImageCache {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyImageCache.class);
+
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    public static final String KIND_THUMBNAIL = "thumbnail";
+    public static final String KIND_FRAME = "frame";
+    public static final String KIND_BLANK_TILE = "blank";
+
+    private static final ConsoleProxyImageCache s_instance = new ConsoleProxyImageCache(DEFAULT_MAX_BYTES);
+
+    private final ConcurrentHashMap<ImageKey, ImageEntry> cache = new ConcurrentHashMap<ImageKey, ImageEntry>();
+    private final ConcurrentLinkedQueue<ImageEntry> fifoQueue = new ConcurrentLinkedQueue<ImageEntry>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private volatile long maxBytes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public ConsoleProxyImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static ConsoleProxyImageCache getInstance() {
+        return s_instance;
+    }
+
+    public byte[] getImage(int clientId, String kind, int width, int height, long version) {
+        ImageEntry entry = cache.get(new ImageKey(clientId, kind, width, height));
+        if (entry != null && entry.version == version) {
+            entry.referenced = true;
+            hitCount.incrementAndGet();
+            return entry.image;
+        }
+
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    public void putImage(int clientId, String kind, int width, int height, long version, byte[] image) {
+        if (image == null || image.length > maxBytes)
+            return;
+
+        ImageEntry entry = new ImageEntry(new ImageKey(clientId, kind, width, height), version, image);
+        cachedBytes.addAndGet(image.length);
+        ImageEntry replaced = cache.put(entry.key, entry);
+        if (replaced != null)
+            release(replaced);
+        fifoQueue.add(entry);
+
+        if (cachedBytes.get() > maxBytes)
+            evict();
+    }
+
+    public void removeClient(int clientId) {
+        Iterator<ImageEntry> it = cache.values().iterator();
+        while (it.hasNext()) {
+            ImageEntry entry = it.next();
+            if (entry.key.clientId == clientId && cache.remove(entry.key, entry))
+                release(entry);
+        }
+    }
+
+    public void clear() {
+        for (ImageEntry entry : cache.values()) {
+            if (cache.remove(entry.key, entry))
+                release(entry);
+        }
+    }
+
+    private void release(ImageEntry entry) {
+        cachedBytes.addAndGet(-entry.image.length);
+        fifoQueue.remove(entry);
+    }
+
+    private void evict() {
+        // every entry can be passed over at most once, so this ends after two rounds at most
+        int secondChances = fifoQueue.size();
+        while (cachedBytes.get() > maxBytes) {
+            ImageEntry entry = fifoQueue.poll();
+            if (entry == null)
+                break;
+
+            if (cache.get(entry.key) != entry)
+                continue;
+
+            if (entry.referenced && secondChances > 0) {
+                entry.referenced = false;
+                secondChances--;
+                fifoQueue.add(entry);
+                continue;
+            }
+
+            if (cache.remove(entry.key, entry)) {
+                cachedBytes.addAndGet(-entry.image.length);
+                evictionCount.incrementAndGet();
+
+                if (s_logger.isTraceEnabled())
+                    s_logger.trace("Evict image from cache, client: " + entry.key.clientId + ", kind: " + entry.key.kind + ", size: " + entry.image.length);
+            }
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (cachedBytes.get() > maxBytes)
+            evict();
+    }
+
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    public int getImageCount() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private static class ImageKey {
+        final int clientId;
+        final String kind;
+        final int width;
+        final int height;
+
+        ImageKey(int clientId, String kind, int width, int height) {
+            this.clientId = clientId;
+            this.kind = kind;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ImageKey))
+                return false;
+
+            ImageKey other = (ImageKey)obj;
+            return clientId == other.clientId && width == other.width && height == other.height && kind.equals(other.kind);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = clientId;
+            result = 31 * result + kind.hashCode();
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return result;
+        }
+    }
+
+    private static class ImageEntry {
+        final ImageKey key;
+        final long version;
+        final byte[] image;
+        volatile boolean referenced = false;
+
+        ImageEntry(ImageKey key, long version, byte[] image) {
+            this.key = key;
+            this.version = version;
+            this.image = image;
+        }
+    }
+}
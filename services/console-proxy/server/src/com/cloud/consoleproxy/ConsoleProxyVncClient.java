@@ -25,6 +25,7 @@ import org.apache.log4j.Logger;
 import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
 import com.cloud.consoleproxy.vnc.RfbConstants;
 import com.cloud.consoleproxy.vnc.VncClient;
+import com.cloud.consoleproxy.vnc.VncNioEngine;
 
 /**
  * 
@@ -75,27 +76,71 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
         setClientParam(param);
         
         client = new VncClient(this);
+        startWorker(client, 0);
+    }
+    
+    /**
+     * The worker connects to the VNC server and keeps retrying until timeout. A tunneled
+     * session runs on the worker itself, a direct one is handed over to the NIO engine and
+     * the worker exits, it is started again with the remaining attempts when that session ends.
+     */
+    private void startWorker(final VncClient vncClient, final int firstAttempt) {
         worker = new Thread(new Runnable() {
             public void run() {
                 String tunnelUrl = getClientParam().getClientTunnelUrl();
                 String tunnelSession = getClientParam().getClientTunnelSession();
                 
-                for(int i = 0; i < 15 && !workerDone; i++) {
+                for(int i = firstAttempt; i < 15 && !workerDone; i++) {
+                    if(i > 0) {
+                        try {
+                            Thread.sleep(1000);
+                        } catch (InterruptedException e) {
+                        }
+                        
+                        if(tunnelUrl != null && !tunnelUrl.isEmpty() && tunnelSession != null && !tunnelSession.isEmpty()) {
+                            ConsoleProxyAuthenticationResult authResult = ConsoleProxy.reAuthenticationExternally(getClientParam());
+                            if(authResult != null && authResult.isSuccess()) {
+                                if(authResult.getTunnelUrl() != null && !authResult.getTunnelUrl().isEmpty() && 
+                                    authResult.getTunnelSession() != null && !authResult.getTunnelSession().isEmpty()) {
+                                    tunnelUrl = authResult.getTunnelUrl();
+                                    tunnelSession = authResult.getTunnelSession();
+                                    
+                                    s_logger.info("Reset XAPI session. url: " + tunnelUrl + ", session: " + tunnelSession);
+                                }
+                            }
+                        }
+                        
+                        if(workerDone)
+                            break;
+                    }
+                    
                     try {
                         if(tunnelUrl != null && !tunnelUrl.isEmpty() && tunnelSession != null && !tunnelSession.isEmpty()) {
                             URI uri = new URI(tunnelUrl);
                             s_logger.info("Connect to VNC server via tunnel. url: " + tunnelUrl + ", session: " + tunnelSession);
                             
                             ConsoleProxy.ensureRoute(uri.getHost());
-                            client.connectTo(
+                            vncClient.connectTo(
                                 uri.getHost(), uri.getPort(), 
                                 uri.getPath() + "?" + uri.getQuery(), 
                                 tunnelSession, "https".equalsIgnoreCase(uri.getScheme()),
                                 getClientHostPassword());
+                        } else if(ConsoleProxy.vncNioEnabled) {
+                            s_logger.info("Connect to VNC server directly. host: " + getClientHostAddress() + ", port: " + getClientHostPort());
+                            ConsoleProxy.ensureRoute(getClientHostAddress());
+                            
+                            final int nextAttempt = i + 1;
+                            vncClient.connectTo(getClientHostAddress(), getClientHostPort(), getClientHostPassword(), 
+                                VncNioEngine.getInstance(), new Runnable() {
+                                    public void run() {
+                                        onVncSessionClosed(vncClient, nextAttempt);
+                                    }
+                                });
+                            return;
                         } else {
                             s_logger.info("Connect to VNC server directly. host: " + getClientHostAddress() + ", port: " + getClientHostPort());
                             ConsoleProxy.ensureRoute(getClientHostAddress());
-                            client.connectTo(getClientHostAddress(), getClientHostPort(), getClientHostPassword());
+                            vncClient.connectTo(getClientHostAddress(), getClientHostPort(), getClientHostPassword());
                         }
                     } catch (UnknownHostException e) {
                         s_logger.error("Unexpected exception (will retry until timeout)", e);
@@ -104,29 +149,11 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
                     } catch (Throwable e) {
                         s_logger.error("Unexpected exception (will retry until timeout) ", e);
                     }
-                    
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                    }
-
-                    if(tunnelUrl != null && !tunnelUrl.isEmpty() && tunnelSession != null && !tunnelSession.isEmpty()) {
-                        ConsoleProxyAuthenticationResult authResult = ConsoleProxy.reAuthenticationExternally(getClientParam());
-                        if(authResult != null && authResult.isSuccess()) {
-                            if(authResult.getTunnelUrl() != null && !authResult.getTunnelUrl().isEmpty() && 
-                                authResult.getTunnelSession() != null && !authResult.getTunnelSession().isEmpty()) {
-                                tunnelUrl = authResult.getTunnelUrl();
-                                tunnelSession = authResult.getTunnelSession();
-                                
-                                s_logger.info("Reset XAPI session. url: " + tunnelUrl + ", session: " + tunnelSession);
-                            }
-                        }
-                    }
                 }
 
                 s_logger.info("Receiver thread stopped.");
                 workerDone = true;
-                client.getClientListener().onClientClose();
+                vncClient.getClientListener().onClientClose();
             }
         });
         
@@ -134,11 +161,32 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
         worker.start();
     }
     
+    private void onVncSessionClosed(VncClient vncClient, int nextAttempt) {
+        // the viewer may have been initialized again with a new client in the meantime
+        if(vncClient != client)
+            return;
+        
+        if(!workerDone && nextAttempt < 15) {
+            startWorker(vncClient, nextAttempt);
+        } else {
+            s_logger.info("VNC session stopped.");
+            workerDone = true;
+            vncClient.getClientListener().onClientClose();
+        }
+    }
+    
     @Override
     public void closeClient() {
     	workerDone = true;
         if(client != null)
             client.shutdown();
+        ConsoleProxyImageCache.getInstance().removeClient(getClientId());
+    }
+    
+    @Override
+    public void releaseFrameBuffer(long idleMillis) {
+        if(client != null)
+            client.releaseFrameBuffer(idleMillis);
     }
     
     @Override
@@ -149,6 +197,7 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
         s_logger.info("Received client close indication. remove viewer from map.");
         
         ConsoleProxy.removeViewer(this);
+        ConsoleProxyImageCache.getInstance().removeClient(getClientId());
     }
     
     @Override
@@ -30,6 +30,10 @@ public class TileTracker {
     private int trackWidth = 0;
     private int trackHeight = 0;
     
+    // bumped whenever a tile is invalidated or the tracked area changes, an image encoded
+    // while the version stays the same still matches the frame buffer
+    private volatile long version = 0;
+    
     public TileTracker() {
     }
 
@@ -65,6 +69,10 @@ public class TileTracker {
         this.trackHeight = trackHeight;
     }
     
+    public long getVersion() {
+        return version;
+    }
+    
     public void initTracking(int tileWidth, int tileHeight, int trackWidth, int trackHeight) {
         assert(tileWidth > 0);
         assert(tileHeight > 0);
@@ -101,6 +109,7 @@ public class TileTracker {
         for(int i = 0; i < rows; i++)
             for(int j = 0; j < cols; j++)
                 snapshot[i][j] = true;
+        version++;
     }
     
     public void invalidate(Rectangle rect) {
@@ -249,6 +258,9 @@ public class TileTracker {
         for(int i = nStartTileRow; i <= nEndTileRow; i++)
             for(int j = nStartTileCol; j <= nEndTileCol; j++)
                 snapshot[i][j] = flag;
+        
+        if(flag)
+            version++;
     }
     
     private int getTileRows() {
@@ -23,8 +23,10 @@ import java.awt.event.WindowEvent;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.security.spec.KeySpec;
 
 import javax.crypto.Cipher;
@@ -50,6 +52,9 @@ public class VncClient {
     private VncClientPacketSender sender;
     private VncServerPacketReceiver receiver;
 
+    // set instead of sender and receiver when the session runs on the NIO engine
+    private volatile VncNioSession session;
+
     private boolean noUI = false;
     private ConsoleProxyClientListener clientListener = null;
 
@@ -98,6 +103,9 @@ public class VncClient {
     }
 
     public void shutdown() {
+        if (session != null)
+            session.close();
+
         if (sender != null)
             sender.closeConnection();
 
@@ -150,7 +158,36 @@ public class VncClient {
         doConnect(password);
     }
 
+    /**
+     * Connects and authenticates on the calling thread, then hands the session over to
+     * the NIO engine and returns. The close handler is called from an event loop thread
+     * once the session has ended.
+     */
+    public void connectTo(String host, int port, String password, VncNioEngine engine, Runnable closeHandler) throws UnknownHostException, IOException {
+        s_logger.info("Connecting to VNC server " + host + ":" + port + "...");
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        boolean success = false;
+        try {
+            // the handshake is short, do it with blocking streams before the channel goes non-blocking
+            is = new DataInputStream(channel.socket().getInputStream());
+            os = new DataOutputStream(channel.socket().getOutputStream());
+
+            handshake();
+            authenticate(password);
+            initialize();
+            success = true;
+        } finally {
+            if (!success)
+                channel.close();
+        }
+
+        s_logger.info("Connecting to VNC server succeeded, start session on VNC engine");
+        session = new VncNioSession(channel, screen, clientListener, closeHandler);
+        engine.register(session);
+    }
+
     private void doConnect(String password) throws IOException {
+        session = null;
         is = new DataInputStream(socket.getInputStream());
         os = new DataOutputStream(socket.getOutputStream());
 
@@ -424,13 +461,30 @@ public class VncClient {
     }
 
     public FrameBufferCanvas getFrameBufferCanvas() {
+        if (session != null)
+            return session.getFrameBuffer();
+
         if (receiver != null)
             return receiver.getCanvas();
 
         return null;
     }
 
+    /**
+     * Lets go of the frame buffer memory if it has not been used within the given time,
+     * only sessions on the NIO engine support this.
+     */
+    public void releaseFrameBuffer(long idleMillis) {
+        if (session != null)
+            session.releaseFrameBuffer(idleMillis);
+    }
+
     public void requestUpdate(boolean fullUpdate) {
+        if (session != null) {
+            session.requestUpdate(fullUpdate);
+            return;
+        }
+
         if (fullUpdate)
             sender.requestFullScreenUpdate();
         else
@@ -438,14 +492,23 @@ public class VncClient {
     }
 
     public void sendClientKeyboardEvent(int event, int code, int modifiers) {
-        sender.sendClientPacket(new KeyboardEventPacket(event, code));
+        if (session != null)
+            session.sendClientPacket(new KeyboardEventPacket(event, code));
+        else
+            sender.sendClientPacket(new KeyboardEventPacket(event, code));
     }
 
     public void sendClientMouseEvent(int event, int x, int y, int code, int modifiers) {
-        sender.sendClientPacket(new MouseEventPacket(event, x, y));
+        if (session != null)
+            session.sendClientPacket(new MouseEventPacket(event, x, y));
+        else
+            sender.sendClientPacket(new MouseEventPacket(event, x, y));
     }
 
     public boolean isHostConnected() {
+        if (session != null)
+            return session.isConnectionAlive();
+
         return receiver != null && receiver.isConnectionAlive();
     }
 }
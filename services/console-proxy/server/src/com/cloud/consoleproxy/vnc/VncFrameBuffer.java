@@ -0,0 +1,217 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.vnc;
+
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.cloud.consoleproxy.util.ImageHelper;
+import com.cloud.consoleproxy.util.TileInfo;
+
+/**
+ * A <code>VncFrameBuffer</code> keeps the remote screen of a session run by the
+ * NIO engine outside of the Java heap, packed as 3 bytes per pixel in the
+ * blue-green-red order of <code>BufferedImage.TYPE_3BYTE_BGR</code>, so images
+ * handed to the front end are filled with plain row copies.
+ * 
+ * The pixels can be released while nobody looks at the session, they are
+ * allocated again (black) by <code>acquire()</code>.
+ */
+public class VncFrameBuffer implements FrameBufferCanvas {
+    private static final int BYTES_PER_PIXEL = 3;
+
+    // null while released
+    private ByteBuffer pixels;
+    private int width;
+    private int height;
+
+    public VncFrameBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        pixels = ByteBuffer.allocateDirect(width * height * BYTES_PER_PIXEL);
+    }
+
+    public synchronized void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        if (pixels != null)
+            pixels = ByteBuffer.allocateDirect(width * height * BYTES_PER_PIXEL);
+    }
+
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    public synchronized int getHeight() {
+        return height;
+    }
+
+    public synchronized boolean isReleased() {
+        return pixels == null;
+    }
+
+    /**
+     * Drops the pixels, the direct memory is returned once the buffer object is collected.
+     */
+    public synchronized void release() {
+        pixels = null;
+    }
+
+    /**
+     * @return true if the pixels had been released and are allocated again
+     */
+    public synchronized boolean acquire() {
+        if (pixels != null)
+            return false;
+
+        pixels = ByteBuffer.allocateDirect(width * height * BYTES_PER_PIXEL);
+        return true;
+    }
+
+    /**
+     * Paints rows of a raw rectangle in RGB888 32 bit little-endian format, the
+     * rows are consumed from the source buffer even if they are clipped off or
+     * the pixels are released.
+     */
+    public synchronized void paintRawRows(int x, int y, int w, int rows, ByteBuffer src, byte[] rowBuf) {
+        int srcRowBytes = w * 4;
+        int visibleWidth = Math.min(w, width - x);
+        if (pixels == null || x >= width || visibleWidth <= 0) {
+            src.position(src.position() + srcRowBytes * rows);
+            return;
+        }
+
+        ByteBuffer dst = pixels.duplicate();
+        for (int row = 0; row < rows; row++) {
+            if (y + row >= height) {
+                src.position(src.position() + srcRowBytes * (rows - row));
+                return;
+            }
+
+            src.get(rowBuf, 0, srcRowBytes);
+            // B, G, R, X -> B, G, R in place, the packed row always stays behind the one being read
+            for (int i = 0, j = 0; i < visibleWidth; i++, j += 4) {
+                int k = i * BYTES_PER_PIXEL;
+                rowBuf[k] = rowBuf[j];
+                rowBuf[k + 1] = rowBuf[j + 1];
+                rowBuf[k + 2] = rowBuf[j + 2];
+            }
+            dst.position(((y + row) * width + x) * BYTES_PER_PIXEL);
+            dst.put(rowBuf, 0, visibleWidth * BYTES_PER_PIXEL);
+        }
+    }
+
+    public synchronized void copyRect(int srcX, int srcY, int x, int y, int w, int h) {
+        if (pixels == null)
+            return;
+
+        w = Math.min(w, Math.min(width - x, width - srcX));
+        h = Math.min(h, Math.min(height - y, height - srcY));
+        if (w <= 0 || h <= 0)
+            return;
+
+        byte[] rowBuf = new byte[w * BYTES_PER_PIXEL];
+        ByteBuffer buf = pixels.duplicate();
+        // copy bottom up when moving down, so overlapping source rows are read before they are overwritten
+        boolean bottomUp = y > srcY;
+        for (int i = 0; i < h; i++) {
+            int row = bottomUp ? h - 1 - i : i;
+            buf.position(((srcY + row) * width + srcX) * BYTES_PER_PIXEL);
+            buf.get(rowBuf);
+            buf.position(((y + row) * width + x) * BYTES_PER_PIXEL);
+            buf.put(rowBuf);
+        }
+    }
+
+    private synchronized void copyTo(BufferedImage image, int dstX, int dstY, Rectangle rc) {
+        byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        int imageWidth = image.getWidth();
+        int w = Math.min(rc.width, width - rc.x);
+        int h = Math.min(rc.height, height - rc.y);
+        if (pixels == null || w <= 0 || h <= 0)
+            return;
+
+        ByteBuffer buf = pixels.duplicate();
+        for (int row = 0; row < h; row++) {
+            buf.position(((rc.y + row) * width + rc.x) * BYTES_PER_PIXEL);
+            buf.get(data, ((dstY + row) * imageWidth + dstX) * BYTES_PER_PIXEL, w * BYTES_PER_PIXEL);
+        }
+    }
+
+    @Override
+    public synchronized Image getFrameBufferScaledImage(int scaledWidth, int scaledHeight) {
+        BufferedImage image = new BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_3BYTE_BGR);
+        if (pixels == null)
+            return image;
+
+        // nearest neighbour, the same sampling as Image.SCALE_DEFAULT
+        byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        for (int sy = 0; sy < scaledHeight; sy++) {
+            int rowBase = (sy * height / scaledHeight) * width;
+            for (int sx = 0; sx < scaledWidth; sx++) {
+                int src = (rowBase + sx * width / scaledWidth) * BYTES_PER_PIXEL;
+                int dst = (sy * scaledWidth + sx) * BYTES_PER_PIXEL;
+                data[dst] = pixels.get(src);
+                data[dst + 1] = pixels.get(src + 1);
+                data[dst + 2] = pixels.get(src + 2);
+            }
+        }
+        return image;
+    }
+
+    @Override
+    public byte[] getFrameBufferJpeg() {
+        BufferedImage image;
+        synchronized (this) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            copyTo(image, 0, 0, new Rectangle(0, 0, width, height));
+        }
+
+        byte[] imgBits = null;
+        try {
+            imgBits = ImageHelper.jpegFromImage(image);
+        } catch (IOException e) {
+        }
+        return imgBits;
+    }
+
+    @Override
+    public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
+        int imageWidth = Math.max(tileWidth, tileWidth * tileList.size());
+        BufferedImage image = new BufferedImage(imageWidth, tileHeight, BufferedImage.TYPE_3BYTE_BGR);
+
+        synchronized (this) {
+            int i = 0;
+            for (TileInfo tile : tileList) {
+                copyTo(image, i * tileWidth, 0, tile.getTileRect());
+                i++;
+            }
+        }
+
+        byte[] imgBits = null;
+        try {
+            imgBits = ImageHelper.jpegFromImage(image);
+        } catch (IOException e) {
+        }
+        return imgBits;
+    }
+}
@@ -0,0 +1,151 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.vnc;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cloud.consoleproxy.util.Logger;
+
+/**
+ * VncNioEngine runs the VNC sessions of the process on a small pool of selector
+ * threads instead of a receiver and a sender thread per session. A session is
+ * bound to one event loop for its whole life, all its socket I/O and frame buffer
+ * painting happen on that loop's thread.
+ */
+public class VncNioEngine {
+    private static final Logger s_logger = Logger.getLogger(VncNioEngine.class);
+
+    private static int s_eventLoopCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static VncNioEngine s_instance;
+
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public static synchronized void setEventLoopCount(int count) {
+        s_eventLoopCount = Math.max(1, count);
+    }
+
+    public static synchronized VncNioEngine getInstance() throws IOException {
+        if (s_instance == null)
+            s_instance = new VncNioEngine(s_eventLoopCount);
+        return s_instance;
+    }
+
+    public VncNioEngine(int eventLoopCount) throws IOException {
+        eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(eventLoops[i], "VNC Event Loop " + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        s_logger.info("Started VNC engine with " + eventLoopCount + " event loops");
+    }
+
+    public void register(VncNioSession session) {
+        // round robin is good enough, the sessions of a proxy VM are alike
+        EventLoop loop = eventLoops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length];
+        session.attach(loop);
+        loop.sessionCount.incrementAndGet();
+    }
+
+    public int getSessionCount() {
+        int count = 0;
+        for (EventLoop loop : eventLoops)
+            count += loop.sessionCount.get();
+        return count;
+    }
+
+    public void shutdown() {
+        for (EventLoop loop : eventLoops)
+            loop.shutdown();
+    }
+
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicInteger sessionCount = new AtomicInteger();
+        private volatile boolean running = true;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        Selector getSelector() {
+            return selector;
+        }
+
+        /**
+         * Runs the task on the loop thread, interest ops and registrations are only changed from there.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void sessionClosed() {
+            sessionCount.decrementAndGet();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (Throwable e) {
+                            s_logger.error("Unexpected exception in VNC event loop task: ", e);
+                        }
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        VncNioSession session = (VncNioSession)key.attachment();
+                        session.handleReady(key);
+                    }
+                } catch (Throwable e) {
+                    s_logger.error("Unexpected exception in VNC event loop: ", e);
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((VncNioSession)key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.vnc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.cloud.consoleproxy.ConsoleProxyClientListener;
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.vnc.packet.client.ClientPacket;
+import com.cloud.consoleproxy.vnc.packet.client.FramebufferUpdateRequestPacket;
+import com.cloud.consoleproxy.vnc.packet.client.SetEncodingsPacket;
+import com.cloud.consoleproxy.vnc.packet.client.SetPixelFormatPacket;
+
+/**
+ * VncNioSession is the part of a VNC session that runs after the handshake, on
+ * an event loop of <code>VncNioEngine</code>. Server messages are parsed as the
+ * bytes arrive, raw rectangles are painted row by row, so the receive buffer
+ * never needs to hold more than one row of a rectangle.
+ * 
+ * While the frame buffer is released no further updates are requested from the
+ * server, the session stays connected but idle until the frame buffer is
+ * acquired again.
+ */
+public class VncNioSession {
+    private static final Logger s_logger = Logger.getLogger(VncNioSession.class);
+
+    // we always ask the server for RGB888 packed into 32 bit little-endian
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final int STATE_MESSAGE_TYPE = 0;
+    private static final int STATE_UPDATE_HEADER = 1;
+    private static final int STATE_RECT_HEADER = 2;
+    private static final int STATE_RAW_PIXELS = 3;
+    private static final int STATE_COPY_RECT = 4;
+    private static final int STATE_CUT_TEXT_HEADER = 5;
+    private static final int STATE_CUT_TEXT = 6;
+
+    private final SocketChannel channel;
+    private final VncScreenDescription screen;
+    private final VncFrameBuffer frameBuffer;
+    private final ConsoleProxyClientListener clientListener;
+    private final Runnable closeHandler;
+
+    private VncNioEngine.EventLoop eventLoop;
+    private volatile SelectionKey key;
+    private volatile boolean connectionAlive = true;
+    private volatile long lastFrameBufferAccessTime = System.currentTimeMillis();
+
+    private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    // Don't send update request again until we receive next frame buffer update
+    private boolean updateRequestSent = false;
+
+    // parser state, only touched by the event loop thread
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private byte[] rowBuffer = new byte[0];
+    private int state = STATE_MESSAGE_TYPE;
+    private int rectsRemaining;
+    private int rectX, rectY, rectWidth, rectHeight;
+    private int rowsPainted;
+    private boolean rectPainted;
+    private long cutTextRemaining;
+
+    public VncNioSession(SocketChannel channel, VncScreenDescription screen, ConsoleProxyClientListener clientListener, Runnable closeHandler) {
+        this.channel = channel;
+        this.screen = screen;
+        this.clientListener = clientListener;
+        this.closeHandler = closeHandler;
+        this.frameBuffer = new VncFrameBuffer(screen.getFramebufferWidth(), screen.getFramebufferHeight());
+    }
+
+    void attach(VncNioEngine.EventLoop loop) {
+        this.eventLoop = loop;
+
+        if (!screen.isRGB888_32_LE())
+            sendClientPacket(new SetPixelFormatPacket(screen, 32, 24, RfbConstants.LITTLE_ENDIAN, RfbConstants.TRUE_COLOR, 255, 255, 255, 16, 8, 0));
+        sendClientPacket(new SetEncodingsPacket(RfbConstants.SUPPORTED_ENCODINGS_ARRAY));
+        requestUpdate(true);
+
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    key = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ | SelectionKey.OP_WRITE, VncNioSession.this);
+                } catch (IOException e) {
+                    s_logger.error("Unable to register VNC session with event loop: ", e);
+                    close();
+                }
+            }
+        });
+    }
+
+    public boolean isConnectionAlive() {
+        return connectionAlive;
+    }
+
+    /**
+     * Frame buffer of the session, allocated again with a full update requested
+     * from the server if it has been released.
+     */
+    public VncFrameBuffer getFrameBuffer() {
+        lastFrameBufferAccessTime = System.currentTimeMillis();
+        if (frameBuffer.acquire()) {
+            s_logger.info("Frame buffer of VNC session is in use again, request full update");
+            requestUpdate(true);
+        }
+        return frameBuffer;
+    }
+
+    /**
+     * Releases the frame buffer unless it has been used within the given time.
+     */
+    public void releaseFrameBuffer(long idleMillis) {
+        if (System.currentTimeMillis() - lastFrameBufferAccessTime < idleMillis)
+            return;
+
+        if (!frameBuffer.isReleased()) {
+            s_logger.info("Release frame buffer of idle VNC session");
+            frameBuffer.release();
+        }
+    }
+
+    public void requestUpdate(boolean fullUpdate) {
+        synchronized (this) {
+            if (!fullUpdate && (updateRequestSent || frameBuffer.isReleased()))
+                return;
+            updateRequestSent = true;
+        }
+
+        sendClientPacket(new FramebufferUpdateRequestPacket(fullUpdate ? RfbConstants.FRAMEBUFFER_FULL_UPDATE_REQUEST
+                : RfbConstants.FRAMEBUFFER_INCREMENTAL_UPDATE_REQUEST, 0, 0, screen.getFramebufferWidth(), screen.getFramebufferHeight()));
+    }
+
+    public void sendClientPacket(ClientPacket packet) {
+        if (!connectionAlive)
+            return;
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32);
+        try {
+            packet.write(new DataOutputStream(bos));
+        } catch (IOException e) {
+            // not possible when writing to memory
+        }
+        writeQueue.add(ByteBuffer.wrap(bos.toByteArray()));
+
+        VncNioEngine.EventLoop loop = eventLoop;
+        if (loop != null) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (key != null && key.isValid())
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (!connectionAlive)
+                return;
+            connectionAlive = false;
+        }
+
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        frameBuffer.release();
+
+        if (eventLoop != null)
+            eventLoop.sessionClosed();
+        if (closeHandler != null)
+            closeHandler.run();
+    }
+
+    void handleReady(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isWritable())
+                handleWrite();
+            if (key.isValid() && key.isReadable())
+                handleRead();
+        } catch (ClosedChannelException e) {
+            close();
+        } catch (Throwable e) {
+            if (connectionAlive)
+                s_logger.error("Unexpected exception: ", e);
+            close();
+        }
+    }
+
+    private void handleWrite() throws IOException {
+        ByteBuffer buf;
+        while ((buf = writeQueue.peek()) != null) {
+            channel.write(buf);
+            if (buf.hasRemaining())
+                return;
+            writeQueue.poll();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private void handleRead() throws IOException {
+        int count = channel.read(readBuffer);
+        if (count < 0) {
+            s_logger.info("VNC server closed the connection");
+            close();
+            return;
+        }
+
+        readBuffer.flip();
+        while (connectionAlive && parse())
+            ;
+        readBuffer.compact();
+    }
+
+    /**
+     * Consumes what it can of the next server message.
+     * 
+     * @return false if more bytes are needed
+     */
+    private boolean parse() {
+        switch (state) {
+        case STATE_MESSAGE_TYPE: {
+            if (readBuffer.remaining() < 1)
+                return false;
+
+            int messageType = readBuffer.get() & 0xff;
+            switch (messageType) {
+            case RfbConstants.SERVER_FRAMEBUFFER_UPDATE:
+                state = STATE_UPDATE_HEADER;
+                break;
+
+            case RfbConstants.SERVER_BELL:
+                break;
+
+            case RfbConstants.SERVER_CUT_TEXT:
+                state = STATE_CUT_TEXT_HEADER;
+                break;
+
+            default:
+                throw new RuntimeException("Unknown server packet type: " + messageType + ".");
+            }
+            return true;
+        }
+
+        case STATE_UPDATE_HEADER: {
+            if (readBuffer.remaining() < 3)
+                return false;
+
+            readBuffer.get(); // padding
+            rectsRemaining = readBuffer.getShort() & 0xffff;
+
+            // so the first painted rectangle can ask for the next update
+            synchronized (this) {
+                updateRequestSent = false;
+            }
+            state = rectsRemaining > 0 ? STATE_RECT_HEADER : STATE_MESSAGE_TYPE;
+            return true;
+        }
+
+        case STATE_RECT_HEADER: {
+            if (readBuffer.remaining() < 12)
+                return false;
+
+            rectX = readBuffer.getShort() & 0xffff;
+            rectY = readBuffer.getShort() & 0xffff;
+            rectWidth = readBuffer.getShort() & 0xffff;
+            rectHeight = readBuffer.getShort() & 0xffff;
+            int encodingType = readBuffer.getInt();
+
+            switch (encodingType) {
+            case RfbConstants.ENCODING_RAW: {
+                int rowBytes = rectWidth * BYTES_PER_PIXEL;
+                if (rowBytes > readBuffer.capacity())
+                    growReadBuffer(rowBytes);
+                if (rowBytes > rowBuffer.length)
+                    rowBuffer = new byte[rowBytes];
+
+                rowsPainted = 0;
+                rectPainted = !frameBuffer.isReleased();
+                if (rectWidth == 0 || rectHeight == 0)
+                    rectDone();
+                else
+                    state = STATE_RAW_PIXELS;
+                break;
+            }
+
+            case RfbConstants.ENCODING_COPY_RECT:
+                state = STATE_COPY_RECT;
+                break;
+
+            case RfbConstants.ENCODING_DESKTOP_SIZE:
+                screen.setFramebufferSize(rectWidth, rectHeight);
+                frameBuffer.setSize(rectWidth, rectHeight);
+                if (clientListener != null)
+                    clientListener.onFramebufferSizeChange(rectWidth, rectHeight);
+                rectPainted = true;
+                rectDone();
+                break;
+
+            default:
+                throw new RuntimeException("Unsupported ecnoding: " + encodingType);
+            }
+            return true;
+        }
+
+        case STATE_RAW_PIXELS: {
+            int rowBytes = rectWidth * BYTES_PER_PIXEL;
+            int rows = Math.min(rectHeight - rowsPainted, readBuffer.remaining() / rowBytes);
+            if (rows == 0)
+                return false;
+
+            frameBuffer.paintRawRows(rectX, rectY + rowsPainted, rectWidth, rows, readBuffer, rowBuffer);
+            rowsPainted += rows;
+            if (rowsPainted == rectHeight)
+                rectDone();
+            return true;
+        }
+
+        case STATE_COPY_RECT: {
+            if (readBuffer.remaining() < 4)
+                return false;
+
+            int srcX = readBuffer.getShort() & 0xffff;
+            int srcY = readBuffer.getShort() & 0xffff;
+            frameBuffer.copyRect(srcX, srcY, rectX, rectY, rectWidth, rectHeight);
+            rectPainted = !frameBuffer.isReleased();
+            rectDone();
+            return true;
+        }
+
+        case STATE_CUT_TEXT_HEADER: {
+            if (readBuffer.remaining() < 7)
+                return false;
+
+            readBuffer.position(readBuffer.position() + 3); // padding
+            cutTextRemaining = readBuffer.getInt() & 0xffffffffL;
+            state = cutTextRemaining > 0 ? STATE_CUT_TEXT : STATE_MESSAGE_TYPE;
+            return true;
+        }
+
+        case STATE_CUT_TEXT: {
+            // the server clipboard is of no use to the AJAX viewer, skip it
+            int skip = (int)Math.min(cutTextRemaining, readBuffer.remaining());
+            if (skip == 0)
+                return false;
+
+            readBuffer.position(readBuffer.position() + skip);
+            cutTextRemaining -= skip;
+            if (cutTextRemaining == 0)
+                state = STATE_MESSAGE_TYPE;
+            return true;
+        }
+
+        default:
+            throw new IllegalStateException("Unknown parser state " + state);
+        }
+    }
+
+    private void rectDone() {
+        // a released frame buffer has nothing to show for the rectangle, the full update
+        // requested when it is acquired again covers it
+        if (rectPainted && clientListener != null)
+            clientListener.onFramebufferUpdate(rectX, rectY, rectWidth, rectHeight);
+
+        rectsRemaining--;
+        state = rectsRemaining > 0 ? STATE_RECT_HEADER : STATE_MESSAGE_TYPE;
+    }
+
+    private void growReadBuffer(int capacity) {
+        // called while the buffer is flipped for reading
+        ByteBuffer buf = ByteBuffer.allocate(capacity);
+        buf.put(readBuffer);
+        buf.flip();
+        readBuffer = buf;
+    }
+}
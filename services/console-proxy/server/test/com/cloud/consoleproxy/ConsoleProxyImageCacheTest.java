@@ -0,0 +1,176 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ConsoleProxyImageCacheTest {
+
+    VncStandIn _server;
+    List<StandInClient> _clients = new ArrayList<StandInClient>();
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @After
+    public void tearDown() {
+        for (StandInClient client : _clients) {
+            client.closeClient();
+        }
+        if (_server != null) {
+            _server.shutdown();
+        }
+        ConsoleProxyImageCache.getInstance().setMaxBytes(ConsoleProxyImageCache.DEFAULT_MAX_BYTES);
+        ConsoleProxyImageCache.getInstance().clear();
+    }
+
+    @Test
+    public void testImageIsOnlyServedForItsVersion() {
+        ConsoleProxyImageCache cache = new ConsoleProxyImageCache(1024);
+        byte[] image = new byte[100];
+        cache.putImage(1, ConsoleProxyImageCache.KIND_THUMBNAIL, 144, 110, 7, image);
+
+        Assert.assertSame(image, cache.getImage(1, ConsoleProxyImageCache.KIND_THUMBNAIL, 144, 110, 7));
+        Assert.assertNull(cache.getImage(1, ConsoleProxyImageCache.KIND_THUMBNAIL, 144, 110, 8));
+        Assert.assertNull(cache.getImage(1, ConsoleProxyImageCache.KIND_THUMBNAIL, 200, 150, 7));
+        Assert.assertNull(cache.getImage(2, ConsoleProxyImageCache.KIND_THUMBNAIL, 144, 110, 7));
+
+        cache.putImage(1, ConsoleProxyImageCache.KIND_THUMBNAIL, 144, 110, 8, new byte[200]);
+        Assert.assertNull(cache.getImage(1, ConsoleProxyImageCache.KIND_THUMBNAIL, 144, 110, 7));
+        Assert.assertEquals(200, cache.getCachedBytes());
+        Assert.assertEquals(1, cache.getImageCount());
+    }
+
+    @Test
+    public void testEvictionKeepsCacheWithinMemoryLimit() {
+        ConsoleProxyImageCache cache = new ConsoleProxyImageCache(1000);
+        for (int i = 1; i <= 4; i++) {
+            cache.putImage(i, ConsoleProxyImageCache.KIND_THUMBNAIL, 144, 110, 0, new byte[300]);
+        }
+        Assert.assertEquals(900, cache.getCachedBytes());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertNull(cache.getImage(1, ConsoleProxyImageCache.KIND_THUMBNAIL, 144, 110, 0));
+
+        // client 2 is the oldest, but it has been read since, so client 3 goes instead
+        Assert.assertNotNull(cache.getImage(2, ConsoleProxyImageCache.KIND_THUMBNAIL, 144, 110, 0));
+        cache.putImage(5, ConsoleProxyImageCache.KIND_THUMBNAIL, 144, 110, 0, new byte[300]);
+        Assert.assertNotNull(cache.getImage(2, ConsoleProxyImageCache.KIND_THUMBNAIL, 144, 110, 0));
+        Assert.assertNull(cache.getImage(3, ConsoleProxyImageCache.KIND_THUMBNAIL, 144, 110, 0));
+        Assert.assertEquals(900, cache.getCachedBytes());
+
+        // larger than the whole cache, never stored
+        cache.putImage(6, ConsoleProxyImageCache.KIND_FRAME, 800, 600, 0, new byte[2000]);
+        Assert.assertNull(cache.getImage(6, ConsoleProxyImageCache.KIND_FRAME, 800, 600, 0));
+
+        cache.removeClient(2);
+        Assert.assertEquals(600, cache.getCachedBytes());
+        Assert.assertEquals(2, cache.getImageCount());
+    }
+
+    @Test
+    public void testThumbnailIsEncodedAgainOnlyAfterScreenChanges() throws Exception {
+        _server = new VncStandIn(640, 480, 2000);
+        StandInClient client = connect(1).get(0);
+
+        byte[] first = client.getClientScaledJpeg(144, 110);
+        Assert.assertSame(first, client.getClientScaledJpeg(144, 110));
+
+        long version = client.tracker.getVersion();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (client.tracker.getVersion() == version && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(client.tracker.getVersion() != version);
+        Assert.assertNotSame(first, client.getClientScaledJpeg(144, 110));
+    }
+
+    @Test
+    public void testPollersShareCachedThumbnails() throws Exception {
+        final int sessions = 4;
+        final int pollers = 4;
+        _server = new VncStandIn(640, 480, 2000);
+        List<StandInClient> clients = connect(sessions);
+
+        ConsoleProxyImageCache cache = ConsoleProxyImageCache.getInstance();
+        long hits = cache.getHitCount();
+        Assert.assertEquals(pollers * 50, pollThumbnails(clients, pollers, 50));
+
+        // the screens hardly change while they are polled, most polls are served from the cache
+        Assert.assertTrue(cache.getHitCount() - hits > pollers * 25);
+        Assert.assertTrue(cache.getCachedBytes() <= ConsoleProxyImageCache.DEFAULT_MAX_BYTES);
+    }
+
+    List<StandInClient> connect(int sessions) throws InterruptedException {
+        List<StandInClient> clients = new ArrayList<StandInClient>();
+        for (int i = 0; i < sessions; i++) {
+            StandInClient client = new StandInClient();
+            client.connect(_server.getPort());
+            clients.add(client);
+            _clients.add(client);
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        for (StandInClient client : clients) {
+            while (!(client.isHostConnected() && client.getFrameBufferCavas() != null) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(client.isHostConnected());
+        }
+        // let the full screen update land, the size change of the handshake is the first version
+        for (StandInClient client : clients) {
+            while (client.tracker.getVersion() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(client.tracker.getVersion() >= 2);
+        }
+        return clients;
+    }
+
+    long pollThumbnails(final List<StandInClient> clients, int pollers, final int polls) throws InterruptedException {
+        final AtomicLong served = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(pollers);
+        for (int p = 0; p < pollers; p++) {
+            final int offset = p;
+            Thread poller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = offset; i < offset + polls; i++) {
+                        byte[] image = clients.get(i % clients.size()).getClientScaledJpeg(144, 110);
+                        if (image != null && image.length > 0) {
+                            served.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            });
+            poller.start();
+        }
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        return served.get();
+    }
+}
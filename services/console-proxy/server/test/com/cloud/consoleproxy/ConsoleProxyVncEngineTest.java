@@ -0,0 +1,176 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.consoleproxy.vnc.VncFrameBuffer;
+import com.cloud.consoleproxy.vnc.VncNioEngine;
+
+public class ConsoleProxyVncEngineTest {
+    VncStandIn _server;
+    VncNioEngine _engine;
+    List<StandInClient> _clients = new ArrayList<StandInClient>();
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @After
+    public void tearDown() {
+        for (StandInClient client : _clients) {
+            client.closeClient();
+        }
+        if (_server != null) {
+            _server.shutdown();
+        }
+        if (_engine != null) {
+            _engine.shutdown();
+        }
+    }
+
+    List<StandInClient> connect(int sessions) throws InterruptedException {
+        List<StandInClient> clients = new ArrayList<StandInClient>();
+        for (int i = 0; i < sessions; i++) {
+            StandInClient client = new StandInClient();
+            client.connect(_server.getPort(), _engine);
+            clients.add(client);
+            _clients.add(client);
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        for (StandInClient client : clients) {
+            while (client.tracker.getVersion() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(client.isHostConnected());
+            Assert.assertTrue(client.tracker.getVersion() >= 2);
+        }
+        return clients;
+    }
+
+    void assertScreen(StandInClient client) {
+        BufferedImage image = (BufferedImage)client.getFrameBufferCavas().getFrameBufferScaledImage(640, 480);
+        // the bottom right corner is repainted by every incremental update
+        for (int y = 0; y < 464; y += 7) {
+            for (int x = 0; x < 640; x += 13) {
+                Assert.assertEquals(VncStandIn.pixel(x, y, 0), image.getRGB(x, y) & 0xffffff);
+            }
+        }
+    }
+
+    @Test
+    public void testSessionsShareEventLoops() throws Exception {
+        _server = new VncStandIn(640, 480, 100);
+        _engine = new VncNioEngine(2);
+        List<StandInClient> clients = connect(50);
+        Assert.assertEquals(50, _engine.getSessionCount());
+
+        for (StandInClient client : clients) {
+            assertScreen(client);
+        }
+
+        // the connecting threads are gone, the sessions run on the two event loops
+        int loops = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            Assert.assertFalse(thread.getName().startsWith("StandInClient-"));
+            if (thread.getName().startsWith("VNC Event Loop"))
+                loops++;
+        }
+        Assert.assertEquals(2, loops);
+
+        // and they keep asking for incremental updates
+        StandInClient client = clients.get(0);
+        long version = client.tracker.getVersion();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.tracker.getVersion() < version + 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(client.tracker.getVersion() >= version + 3);
+
+        clients.get(1).closeClient();
+        Assert.assertFalse(clients.get(1).isHostConnected());
+        Assert.assertEquals(49, _engine.getSessionCount());
+    }
+
+    @Test
+    public void testIdleFrameBufferIsReleasedAndRestored() throws Exception {
+        _server = new VncStandIn(640, 480, 50);
+        _engine = new VncNioEngine(1);
+        StandInClient client = connect(1).get(0);
+
+        client.releaseFrameBuffer(60000);
+        Thread.sleep(200);
+        long sent = _server.updatesSent.get();
+        Thread.sleep(200);
+        Assert.assertTrue("recently used frame buffer must be kept", _server.updatesSent.get() > sent);
+
+        client.releaseFrameBuffer(0);
+        Thread.sleep(200);
+        // no more update requests once the one in flight is answered
+        sent = _server.updatesSent.get();
+        long version = client.tracker.getVersion();
+        Thread.sleep(500);
+        Assert.assertEquals(sent, _server.updatesSent.get());
+        Assert.assertEquals(version, client.tracker.getVersion());
+        Assert.assertTrue(client.isHostConnected());
+
+        // first access allocates it again and asks for the whole screen
+        client.getFrameBufferCavas();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.tracker.getVersion() == version && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertScreen(client);
+    }
+
+    @Test
+    public void testCopyRectHandlesOverlap() {
+        VncFrameBuffer frameBuffer = new VncFrameBuffer(4, 4);
+        ByteBuffer raw = ByteBuffer.allocate(4 * 4 * 4);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                raw.put((byte)(y * 4 + x)).put((byte)0).put((byte)0).put((byte)0);
+            }
+        }
+        raw.flip();
+        frameBuffer.paintRawRows(0, 0, 4, 4, raw, new byte[16]);
+        Assert.assertEquals(0, raw.remaining());
+
+        // move the top three rows one down, then the left three columns one right
+        frameBuffer.copyRect(0, 0, 0, 1, 4, 3);
+        frameBuffer.copyRect(0, 0, 1, 0, 3, 4);
+
+        BufferedImage image = (BufferedImage)frameBuffer.getFrameBufferScaledImage(4, 4);
+        int[][] expected = { {0, 0, 1, 2}, {0, 0, 1, 2}, {4, 4, 5, 6}, {8, 8, 9, 10} };
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                Assert.assertEquals(expected[y][x], image.getRGB(x, y) & 0xff);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.io.IOException;
+
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+import com.cloud.consoleproxy.vnc.VncClient;
+import com.cloud.consoleproxy.vnc.VncNioEngine;
+
+/**
+ * The VNC client glue of ConsoleProxyVncClient without the tunnel, authentication and
+ * session bookkeeping that needs a running console proxy.
+ */
+class StandInClient extends ConsoleProxyClientBase {
+    final VncClient client = new VncClient(this);
+
+    void connect(final int port) {
+        connect(port, null);
+    }
+
+    /**
+     * Connects on a worker thread that runs the session, or only the handshake when an engine is given.
+     */
+    void connect(final int port, final VncNioEngine engine) {
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (engine != null)
+                        client.connectTo("127.0.0.1", port, "", engine, null);
+                    else
+                        client.connectTo("127.0.0.1", port, "");
+                } catch (IOException e) {
+                }
+            }
+        }, "StandInClient-" + getClientId());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public boolean isHostConnected() {
+        return client.isHostConnected();
+    }
+
+    @Override
+    public boolean isFrontEndAlive() {
+        return true;
+    }
+
+    @Override
+    public void sendClientRawKeyboardEvent(InputEventType event, int code, int modifiers) {
+    }
+
+    @Override
+    public void sendClientMouseEvent(InputEventType event, int x, int y, int code, int modifiers) {
+    }
+
+    @Override
+    public void initClient(ConsoleProxyClientParam param) {
+    }
+
+    @Override
+    public void closeClient() {
+        client.shutdown();
+        ConsoleProxyImageCache.getInstance().removeClient(getClientId());
+    }
+
+    @Override
+    public void releaseFrameBuffer(long idleMillis) {
+        client.releaseFrameBuffer(idleMillis);
+    }
+
+    @Override
+    public void onClientConnected() {
+    }
+
+    @Override
+    public void onClientClose() {
+    }
+
+    @Override
+    public void onFramebufferUpdate(int x, int y, int w, int h) {
+        super.onFramebufferUpdate(x, y, w, h);
+        client.requestUpdate(false);
+    }
+
+    @Override
+    protected FrameBufferCanvas getFrameBufferCavas() {
+        return client.getFrameBufferCanvas();
+    }
+}
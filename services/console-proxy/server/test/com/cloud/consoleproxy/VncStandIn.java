@@ -0,0 +1,197 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.consoleproxy.vnc.RfbConstants;
+
+/**
+ * Local stand-in for a hypervisor VNC server: RFB 3.3 without authentication, raw encoding
+ * only. It answers a full update request with the whole screen and every incremental request,
+ * after a pause, with a small changed area, the way a blinking cursor or a clock keeps an
+ * otherwise idle guest console busy.
+ */
+class VncStandIn implements Runnable {
+    final ServerSocket serverSocket;
+    final int width;
+    final int height;
+    final long updateIntervalMs;
+    final List<Socket> sockets = new ArrayList<Socket>();
+    final AtomicLong updatesSent = new AtomicLong();
+    volatile boolean running = true;
+
+    VncStandIn(int width, int height, long updateIntervalMs) throws IOException {
+        this.serverSocket = new ServerSocket(0);
+        this.width = width;
+        this.height = height;
+        this.updateIntervalMs = updateIntervalMs;
+        Thread acceptor = new Thread(this, "VncStandIn-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                Thread session = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                        }
+                    }
+                }, "VncStandIn-session");
+                session.setDaemon(true);
+                session.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    void serve(Socket socket) throws IOException {
+        DataInputStream is = new DataInputStream(socket.getInputStream());
+        DataOutputStream os = new DataOutputStream(socket.getOutputStream());
+
+        os.write((RfbConstants.RFB_PROTOCOL_VERSION + "\n").getBytes());
+        os.flush();
+        is.readFully(new byte[12]);
+        os.writeInt(RfbConstants.NO_AUTH);
+        os.flush();
+        is.readUnsignedByte(); // shared flag
+
+        os.writeShort(width);
+        os.writeShort(height);
+        // 32 bits per pixel, depth 24, little endian, true color, RGB888
+        os.write(new byte[] {32, 24, 0, 1});
+        os.writeShort(255);
+        os.writeShort(255);
+        os.writeShort(255);
+        os.write(new byte[] {16, 8, 0, 0, 0, 0});
+        byte[] name = "stand-in".getBytes();
+        os.writeInt(name.length);
+        os.write(name);
+        os.flush();
+
+        int frame = 0;
+        while (running) {
+            int type = is.readUnsignedByte();
+            switch (type) {
+            case RfbConstants.CLIENT_SET_PIXEL_FORMAT:
+                is.readFully(new byte[19]);
+                break;
+            case RfbConstants.CLIENT_SET_ENCODINGS:
+                is.readUnsignedByte();
+                is.readFully(new byte[is.readUnsignedShort() * 4]);
+                break;
+            case RfbConstants.CLIENT_FRAMEBUFFER_UPDATE_REQUEST:
+                boolean incremental = is.readUnsignedByte() == RfbConstants.FRAMEBUFFER_INCREMENTAL_UPDATE_REQUEST;
+                is.readFully(new byte[8]);
+                if (incremental) {
+                    sleep(updateIntervalMs);
+                    sendUpdate(os, width - 64, height - 16, 64, 16, ++frame);
+                } else {
+                    sendUpdate(os, 0, 0, width, height, 0);
+                }
+                break;
+            case RfbConstants.CLIENT_KEYBOARD_EVENT:
+                is.readFully(new byte[7]);
+                break;
+            case RfbConstants.CLIENT_POINTER_EVENT:
+                is.readFully(new byte[5]);
+                break;
+            case RfbConstants.CLIENT_CUT_TEXT:
+                is.readFully(new byte[3]);
+                is.readFully(new byte[is.readInt()]);
+                break;
+            default:
+                throw new IOException("Unexpected client message " + type);
+            }
+        }
+    }
+
+    void sendUpdate(DataOutputStream os, int x, int y, int w, int h, int frame) throws IOException {
+        os.writeByte(0); // FramebufferUpdate
+        os.writeByte(0);
+        os.writeShort(1);
+        os.writeShort(x);
+        os.writeShort(y);
+        os.writeShort(w);
+        os.writeShort(h);
+        os.writeInt(RfbConstants.ENCODING_RAW);
+        byte[] pixels = new byte[w * h * 4];
+        for (int i = 0; i < w * h; i++) {
+            int px = x + i % w;
+            int py = y + i / w;
+            int rgb = pixel(px, py, frame);
+            pixels[i * 4] = (byte)rgb;
+            pixels[i * 4 + 1] = (byte)(rgb >> 8);
+            pixels[i * 4 + 2] = (byte)(rgb >> 16);
+        }
+        os.write(pixels);
+        os.flush();
+        updatesSent.incrementAndGet();
+    }
+
+    /**
+     * RGB value the stand-in paints at a position.
+     */
+    static int pixel(int x, int y, int frame) {
+        return (((x ^ y) & 0xff) << 16) | ((y & 0xff) << 8) | ((x + frame) & 0xff);
+    }
+
+    void shutdown() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+        }
+    }
+}
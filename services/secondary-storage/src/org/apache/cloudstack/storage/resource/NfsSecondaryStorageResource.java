@@ -36,6 +36,9 @@ import java.io.InputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -118,9 +121,11 @@ import com.cloud.storage.template.Processor.FormatInfo;
 import com.cloud.storage.template.QCOW2Processor;
 import com.cloud.storage.template.RawImageProcessor;
 import com.cloud.storage.template.TemplateLocation;
+import com.cloud.storage.template.TemplateManifest;
 import com.cloud.storage.template.TemplateProp;
 import com.cloud.storage.template.VhdProcessor;
 import com.cloud.storage.template.VmdkProcessor;
+import com.cloud.utils.FileUtil;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.S3Utils;
 import com.cloud.utils.S3Utils.FileNamingStrategy;
@@ -138,6 +143,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
     private static final String TEMPLATE_ROOT_DIR = "template/tmpl";
     private static final String SNAPSHOT_ROOT_DIR = "snapshots";
     private static final String VOLUME_ROOT_DIR = "volumes";
+    private static final long COPY_CHUNK_SIZE = 64L * 1024 * 1024;
 
     int _timeout;
 
@@ -445,8 +451,8 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             String fileName = templateName + "." + srcFormat.getFileExtension();
             String destFileFullPath = destFile.getAbsolutePath() + File.separator + fileName;
             s_logger.debug("copy snapshot " + srcFile.getAbsolutePath() + " to template " + destFileFullPath);
-            Script.runSimpleBashScript("cp " + srcFile.getAbsolutePath() + " " + destFileFullPath);
             try {
+                copyFile(srcFile, new File(destFileFullPath), srcFormat == ImageFormat.RAW);
                 // generate template.properties file
                 String metaFileName = destFile.getAbsolutePath() + File.separator + "template.properties";
                 _storage.create(destFile.getAbsolutePath(), "template.properties");
@@ -511,6 +517,21 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         return new CopyCmdAnswer("");
     }
 
+    protected long copyFile(final File srcFile, final File destFile, boolean sparse) throws IOException {
+        long start = System.currentTimeMillis();
+        long size = FileUtil.copyFile(srcFile, destFile, sparse, new FileUtil.CopyProgressListener() {
+            @Override
+            public void progress(long copied, long total) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Copied " + copied + " of " + total + " bytes of " + srcFile.getAbsolutePath() + " to " + destFile.getAbsolutePath());
+                }
+            }
+        });
+        s_logger.debug("Copied " + srcFile.getAbsolutePath() + " to " + destFile.getAbsolutePath() + " (" + size + " bytes) in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return size;
+    }
+
     protected File getFile(String path, String nfsPath) {
         String filePath = getRootDir(nfsPath) + File.separator + path;
         File f = new File(filePath);
@@ -684,8 +705,20 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             if (!destFile.exists()) {
                 destFile.createNewFile();
             }
+            InputStream in = entity.getContent();
             FileOutputStream outputStream = new FileOutputStream(destFile);
-            entity.writeTo(outputStream);
+            try {
+                ReadableByteChannel source = Channels.newChannel(in);
+                FileChannel channel = outputStream.getChannel();
+                long position = 0;
+                long count;
+                while ((count = channel.transferFrom(source, position, COPY_CHUNK_SIZE)) > 0) {
+                    position += count;
+                }
+            } finally {
+                outputStream.close();
+                in.close();
+            }
             return new File(destFile.getAbsolutePath());
         } catch (IOException e) {
             s_logger.debug("Faild to get url:"+ url + ", due to " + e.toString());
@@ -1156,7 +1189,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         String checksum = null;
         File f = new File(absoluteTemplatePath);
         InputStream is = null;
-        byte[] buffer = new byte[8192];
+        byte[] buffer = new byte[1024 * 1024];
         int read = 0;
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("parent path " + parent + " relative template path " + relativeTemplatePath);
@@ -1515,20 +1548,32 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             String secUrl = nfs.getUrl();
             String root = getRootDir(secUrl);
             Map<String, TemplateProp> templateInfos = _dlMgr.gatherTemplateInfo(root);
-            return new ListTemplateAnswer(secUrl, templateInfos);
+            return createListTemplateAnswer(cmd, secUrl, templateInfos);
         } else if (store instanceof SwiftTO) {
             SwiftTO swift = (SwiftTO) store;
             Map<String, TemplateProp> templateInfos = swiftListTemplate(swift);
-            return new ListTemplateAnswer(swift.toString(), templateInfos);
+            return createListTemplateAnswer(cmd, swift.toString(), templateInfos);
         } else if (store instanceof S3TO) {
             S3TO s3 = (S3TO) store;
             Map<String, TemplateProp> templateInfos = s3ListTemplate(s3);
-            return new ListTemplateAnswer(s3.getBucketName(), templateInfos);
+            return createListTemplateAnswer(cmd, s3.getBucketName(), templateInfos);
         } else {
             return new Answer(cmd, false, "Unsupported image data store: " + store);
         }
     }
 
+    private ListTemplateAnswer createListTemplateAnswer(ListTemplateCommand cmd, String secUrl, Map<String, TemplateProp> templateInfos) {
+        String digest = TemplateManifest.digest(templateInfos);
+        ListTemplateAnswer answer = new ListTemplateAnswer(secUrl, templateInfos);
+        answer.setManifestDigest(digest);
+        if (digest != null && digest.equals(cmd.getManifestDigest())) {
+            // the management server already has this list
+            answer.setTemplateInfo(null);
+            answer.setUnchanged(true);
+        }
+        return answer;
+    }
+
     private Answer execute(ListVolumeCommand cmd) {
         if (!_inSystemVM) {
             return new ListVolumeAnswer(cmd.getSecUrl(), null);
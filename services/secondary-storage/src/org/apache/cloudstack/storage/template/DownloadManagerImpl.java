@@ -239,6 +239,8 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
     private String listTmpltScr;
     private String listVolScr;
     private int installTimeoutPerGig = 180 * 60 * 1000;
+    private int downloadConnections = 4;
+    private long downloadBandwidthLimit = 0;
     private boolean _sslCopy;
 
     public void setThreadPool(ExecutorService threadPool) {
@@ -382,7 +384,14 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         */
 
         File originalTemplate = new File(td.getDownloadLocalPath());
-        String checkSum = computeCheckSum(originalTemplate);
+        String checkSum = null;
+        if (td instanceof HttpTemplateDownloader) {
+            // computed while downloading, saves reading the whole file again
+            checkSum = ((HttpTemplateDownloader) td).getDownloadedChecksum();
+        }
+        if (checkSum == null) {
+            checkSum = computeCheckSum(originalTemplate);
+        }
         if (checkSum == null) {
             s_logger.warn("Something wrong happened when try to calculate the checksum of downloaded template!");
         }
@@ -560,8 +569,11 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
             TemplateDownloader td;
             if ((uri != null) && (uri.getScheme() != null)) {
                 if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                    td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy,
-                            resourceType);
+                    HttpTemplateDownloader httpDownloader = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes,
+                            user, password, proxy, resourceType);
+                    httpDownloader.setParallelism(downloadConnections);
+                    httpDownloader.setBandwidthLimit(downloadBandwidthLimit);
+                    td = httpDownloader;
                 } else if (uri.getScheme().equalsIgnoreCase("file")) {
                     td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                 } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -1022,6 +1034,12 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         value = (String) params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
+        value = (String) params.get("download.connections");
+        downloadConnections = NumbersUtil.parseInt(value, 4);
+
+        value = (String) params.get("download.bandwidth.limit.kbps");
+        downloadBandwidthLimit = NumbersUtil.parseLong(value, 0) * 1024 / 8;
+
         String scriptsDir = (String) params.get("template.scripts.dir");
         if (scriptsDir == null) {
             scriptsDir = "scripts/storage/secondary";
@@ -227,3 +227,33 @@ INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'manag
 INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'vmware.hung.wokervm.timeout', '7200', 'Worker VM timeout in seconds');
 INSERT IGNORE INTO `cloud`.`configuration` VALUES ("Alert", 'DEFAULT', 'management-server', "alert.smtp.connectiontimeout", "30000", "Socket connection timeout value in milliseconds. -1 for infinite timeout.");
 INSERT IGNORE INTO `cloud`.`configuration` VALUES ("Alert", 'DEFAULT', 'management-server', "alert.smtp.timeout", "30000", "Socket I/O timeout value in milliseconds. -1 for infinite timeout.");
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'agent.lb.load.tolerance', '10', 'Percentage by which the measured agent load of a management server has to exceed the cluster average before it gives agents away');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'agent.lb.max.hosts', '50', 'Maximum number of hosts a management server asks one peer for in a rebalance');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'agent.lb.transfer.batch', '5', 'Maximum number of agent transfers a management server starts every 10 seconds');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'event.persist.async', 'true', 'Write action events to the database in batches from a background thread instead of on the API or job thread');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'event.persist.queue.size', '10000', 'The number of action events that may wait to be written; when it is reached events are written on the calling thread');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'event.persist.flush.on.job.complete', 'true', 'Wait for queued action events to be written before an async job is marked complete');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'resourcecount.compact.interval', '60', 'Time (in seconds) between folding the per-account domain resource count deltas into the domain counts. 0 never folds them, the resource count check task still does');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'ha.restart.cluster.parallelism', NULL, 'Number of VMs from the same cluster the HA workers restart at a time. Defaults to ha.workers, 0 is no limit.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'vmware.context.pool.max.size', '64', 'Maximum number of vCenter sessions checked out of the context pool at a time, per vCenter');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'vmware.context.pool.warm.size', '4', 'Number of idle vCenter sessions the context pool keeps logged in ahead of time, per vCenter');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'vmware.context.pool.wait', '120', 'Time in seconds a command waits for a vCenter session when all sessions of the vCenter are in use');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Snapshots', 'DEFAULT', 'management-server', 'snapshot.schedule.jitter', '300', 'Scheduled snapshots start at a random time up to this many seconds after they are due, so that snapshots due at the same time do not all start at once.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Snapshots', 'DEFAULT', 'management-server', 'snapshot.max.concurrent.per.pool', '4', 'Maximum scheduled snapshots a management server runs at a time on one primary storage pool, 0 for no limit.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Snapshots', 'DEFAULT', 'management-server', 'snapshot.max.concurrent.per.secondary', '8', 'Maximum scheduled snapshots a management server runs at a time per secondary storage of a zone, 0 for no limit.');
+
+CREATE TABLE IF NOT EXISTS `cloud`.`op_resource_count_delta` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `domain_id` bigint unsigned NOT NULL COMMENT 'domain the change is counted against',
+  `type` varchar(255) NOT NULL COMMENT 'resource type',
+  `stripe` int NOT NULL COMMENT 'account id modulo the stripe count, spreads concurrent updates over rows',
+  `count` bigint NOT NULL default '0' COMMENT 'change not yet folded into resource_count',
+  PRIMARY KEY (`id`),
+  UNIQUE `i_op_resource_count_delta__domain_id_type_stripe`(`domain_id`, `type`, `stripe`),
+  CONSTRAINT `fk_op_resource_count_delta__domain_id` FOREIGN KEY (`domain_id`) REFERENCES `domain`(`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+ALTER TABLE `cloud`.`op_host` ADD COLUMN `agent_load` bigint unsigned NOT NULL DEFAULT 0 COMMENT 'measured cost of the agent to its management server, 0 if not measured';
+
+ALTER TABLE `cloud`.`snapshot_schedule` ADD COLUMN `mgmt_server_id` bigint unsigned COMMENT 'management server that leased the schedule to run it';
+ALTER TABLE `cloud`.`snapshot_schedule` ADD COLUMN `lease_expires` datetime COMMENT 'time the lease of the management server runs out';
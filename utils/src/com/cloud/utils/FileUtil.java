@@ -18,27 +18,112 @@ package com.cloud.utils;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class FileUtil {
+    // how much is handed to the kernel per transferTo call, and how often progress is reported
+    private static final long TRANSFER_CHUNK = 64L * 1024 * 1024;
+    private static final int SPARSE_BLOCK = 1024 * 1024;
+
+    public interface CopyProgressListener {
+        void progress(long copied, long total);
+    }
 
     public static void copyfile(File f1, File f2) throws IOException {
-        InputStream in = new FileInputStream(f1);
-        OutputStream out = new FileOutputStream(f2);
+        copyFile(f1, f2, false, null);
+    }
 
+    /**
+     * Copies a file with FileChannel.transferTo, so the data moves between the two
+     * files inside the kernel instead of through a Java buffer.
+     *
+     * With sparse set, blocks that are all zeroes are skipped rather than written,
+     * leaving holes in the destination.  That costs reading the data into the JVM,
+     * so it is only worth it for formats like raw images that are mostly empty.
+     *
+     * @return the number of bytes in the destination file
+     */
+    public static long copyFile(File src, File dest, boolean sparse, CopyProgressListener listener) throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        RandomAccessFile out = null;
         try {
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
+            out = new RandomAccessFile(dest, "rw");
+            out.setLength(0);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long size = inChannel.size();
+            if (sparse) {
+                copySparse(inChannel, outChannel, size, listener);
+                // extends the file over any trailing hole
+                out.setLength(size);
+            } else {
+                copyDense(inChannel, outChannel, size, listener);
             }
+            return outChannel.size();
         } finally {
             in.close();
-            out.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private static void copyDense(FileChannel in, FileChannel out, long size, CopyProgressListener listener) throws IOException {
+        long position = 0;
+        while (position < size) {
+            long count = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+            if (count <= 0) {
+                // the source was truncated under us
+                break;
+            }
+            position += count;
+            if (listener != null) {
+                listener.progress(position, size);
+            }
+        }
+    }
+
+    private static void copySparse(FileChannel in, FileChannel out, long size, CopyProgressListener listener) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SPARSE_BLOCK);
+        long position = 0;
+        long reported = 0;
+        while (position < size) {
+            buffer.clear();
+            int read = in.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            buffer.flip();
+            if (!isZero(buffer)) {
+                long offset = position;
+                while (buffer.hasRemaining()) {
+                    offset += out.write(buffer, offset);
+                }
+            }
+            position += read;
+            if (listener != null && (position - reported >= TRANSFER_CHUNK || position >= size)) {
+                listener.progress(position, size);
+                reported = position;
+            }
         }
     }
-}
 
+    private static boolean isZero(ByteBuffer buffer) {
+        int i = buffer.position();
+        int limit = buffer.limit();
+        for (; i + 8 <= limit; i += 8) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < limit; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
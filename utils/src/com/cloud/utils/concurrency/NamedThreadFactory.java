@@ -21,15 +21,28 @@ import java.util.concurrent.ThreadFactory;
 public class NamedThreadFactory implements ThreadFactory {
     private int _number;
     private final String _name;
+    private final boolean _daemon;
     
     public NamedThreadFactory(String name) {
+        this(name, false);
+    }
+
+    /**
+     * @param daemon true for background threads that must not keep the JVM from exiting
+     */
+    public NamedThreadFactory(String name, boolean daemon) {
         _name = name;
+        _daemon = daemon;
         _number = 1;
     }
 
     @Override
     public synchronized Thread newThread(Runnable r) {
-        return new Thread(r, _name + "-" + _number++);
+        Thread thread = new Thread(r, _name + "-" + _number++);
+        if (_daemon) {
+            thread.setDaemon(true);
+        }
+        return thread;
     }
 
 }
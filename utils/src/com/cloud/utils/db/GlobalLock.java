@@ -133,7 +133,7 @@ public class GlobalLock {
 					if(ownerThread != null) {
 						profiler.start();
 						try {
-							wait(((long)timeoutSeconds)*1000L);
+							wait(Math.max(remainingMilliSeconds, 1));
 						} catch (InterruptedException e) {
 							interrupted = true;
 						}
@@ -164,6 +164,8 @@ public class GlobalLock {
 					synchronized(this) {
 						ownerThread = null;
 						releaseRef();
+						// let the next in-process waiter try instead of sleeping out its timeout
+						notifyAll();
 						return false;
 					}
 				}
@@ -21,11 +21,16 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.management.StandardMBean;
 
@@ -52,6 +57,28 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
     private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
 
+    // Waiters are woken up as soon as a lock is released, by this server or through a peer's
+    // notification.  The poll only covers notifications that never arrive, e.g. a peer dying.
+    private static final long POLL_INTERVAL = 5000;
+    private static final long[] WAIT_BUCKETS = {10, 100, 1000, 5000, 30000};
+
+    /**
+     * Tells other management servers about lock waits and releases.  The op_lock row stays
+     * the only thing that decides who owns a lock; notifications only cut the time waiters
+     * spend sleeping.
+     */
+    public interface LockNotifier {
+        void notifyWaiting(long ownerMsId, String key);
+
+        void notifyReleased(long waiterMsId, String key);
+    }
+
+    protected static class Waiters {
+        int waiting = 0;
+        long releases = 0;
+        boolean removed = false;
+    }
+
     TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     private final long _msId;
@@ -60,6 +87,13 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
+    private volatile LockNotifier _notifier = null;
+    private final ConcurrentHashMap<String, Waiters> _waiters = new ConcurrentHashMap<String, Waiters>();
+    // other management servers waiting on locks held here
+    private final ConcurrentHashMap<String, Set<Long>> _remoteWaiters = new ConcurrentHashMap<String, Set<Long>>();
+    // the last bucket counts waits longer than every bound, the one after it timeouts
+    private final AtomicLongArray _waitHistogram = new AtomicLongArray(WAIT_BUCKETS.length + 2);
+
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
         _msId = msId;
@@ -112,6 +146,10 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
 
+    public void setLockNotifier(LockNotifier notifier) {
+        _notifier = notifier;
+    }
+
     public boolean acquire(String key, int timeInSeconds) {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
@@ -121,31 +159,174 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
         long startTime = InaccurateClock.getTime();
+        long timeout = timeInSeconds * 1000L;
 
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000)) {
-            int count = owns(key);
+        Waiters waiters = registerWaiter(key);
+        try {
+            long notifiedOwner = -1;
+            while (true) {
+                long releases;
+                synchronized (waiters) {
+                    releases = waiters.releases;
+                }
 
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
-                    return true;
+                Map<String, String> owner = isLocked(key);
+                if (owner == null) {
+                    if (doAcquire(key, threadName, threadId)) {
+                        recordWait(InaccurateClock.getTime() - startTime);
+                        return true;
+                    }
+                } else if (owner.get("mgmt").equals(Long.toString(_msId))) {
+                    if (owner.get("tid").equals(Integer.toString(threadId))) {
+                        return increment(key, threadName, threadId);
+                    }
+                } else {
+                    long ownerMsId = Long.parseLong(owner.get("mgmt"));
+                    LockNotifier notifier = _notifier;
+                    if (notifier != null && ownerMsId != notifiedOwner) {
+                        notifier.notifyWaiting(ownerMsId, key);
+                        notifiedOwner = ownerMsId;
+                    }
                 }
-            }
-            try {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+
+                long remaining = timeout - (InaccurateClock.getTime() - startTime);
+                if (remaining <= 0) {
+                    break;
+                }
+                synchronized (waiters) {
+                    if (waiters.releases == releases) {
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("Waiting for release of lck-" + key);
+                        }
+                        try {
+                            waiters.wait(Math.min(remaining, POLL_INTERVAL));
+                        } catch (InterruptedException e) {
+                        }
+                    }
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
             }
+        } finally {
+            unregisterWaiter(key, waiters);
         }
+        _waitHistogram.incrementAndGet(WAIT_BUCKETS.length + 1);
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (InaccurateClock.getTime() - startTime));
         }
         return false;
     }
 
+    protected Waiters registerWaiter(String key) {
+        while (true) {
+            Waiters waiters = _waiters.get(key);
+            if (waiters == null) {
+                waiters = new Waiters();
+                Waiters existing = _waiters.putIfAbsent(key, waiters);
+                if (existing != null) {
+                    waiters = existing;
+                }
+            }
+            synchronized (waiters) {
+                if (!waiters.removed) {
+                    waiters.waiting++;
+                    return waiters;
+                }
+            }
+        }
+    }
+
+    protected void unregisterWaiter(String key, Waiters waiters) {
+        synchronized (waiters) {
+            waiters.waiting--;
+            if (waiters.waiting == 0) {
+                waiters.removed = true;
+                _waiters.remove(key, waiters);
+            }
+        }
+    }
+
+    protected void wakeUpWaiters(String key) {
+        Waiters waiters = _waiters.get(key);
+        if (waiters != null) {
+            synchronized (waiters) {
+                waiters.releases++;
+                waiters.notifyAll();
+            }
+        }
+    }
+
+    protected void wakeUpAllWaiters() {
+        for (Map.Entry<String, Waiters> entry : _waiters.entrySet()) {
+            wakeUpWaiters(entry.getKey());
+        }
+    }
+
+    protected void recordWait(long waited) {
+        int bucket = 0;
+        while (bucket < WAIT_BUCKETS.length && waited >= WAIT_BUCKETS[bucket]) {
+            bucket++;
+        }
+        _waitHistogram.incrementAndGet(bucket);
+    }
+
+    /**
+     * Called when another management server reports that it is waiting for a lock held here.
+     */
+    public void waitingForLock(long msId, String key) {
+        Set<Long> waiting = _remoteWaiters.get(key);
+        if (waiting == null) {
+            waiting = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+            Set<Long> existing = _remoteWaiters.putIfAbsent(key, waiting);
+            if (existing != null) {
+                waiting = existing;
+            }
+        }
+        waiting.add(msId);
+
+        // the lock may have gone before the message got here
+        Map<String, String> owner = isLocked(key);
+        if (owner == null || !owner.get("mgmt").equals(Long.toString(_msId))) {
+            notifyRemoteWaiters(key);
+        }
+    }
+
+    /**
+     * Called when another management server reports that it released a lock we wait for.
+     */
+    public void lockReleased(String key) {
+        wakeUpWaiters(key);
+    }
+
+    protected void notifyRemoteWaiters(String key) {
+        Set<Long> waiting = _remoteWaiters.remove(key);
+        LockNotifier notifier = _notifier;
+        if (waiting == null || notifier == null) {
+            return;
+        }
+        for (Long msId : waiting) {
+            try {
+                notifier.notifyReleased(msId, key);
+            } catch (Exception e) {
+                s_logger.debug("Unable to notify " + msId + " of the release of lck-" + key + ": " + e.toString());
+            }
+        }
+    }
+
+    protected void released(String key) {
+        wakeUpWaiters(key);
+        notifyRemoteWaiters(key);
+    }
+
+    @Override
+    public Map<String, Long> getLockWaitHistogram() {
+        Map<String, Long> histogram = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < WAIT_BUCKETS.length; i++) {
+            histogram.put("<" + WAIT_BUCKETS[i] + "ms", _waitHistogram.get(i));
+        }
+        histogram.put(">=" + WAIT_BUCKETS[WAIT_BUCKETS.length - 1] + "ms", _waitHistogram.get(WAIT_BUCKETS.length));
+        histogram.put("timedout", _waitHistogram.get(WAIT_BUCKETS.length + 1));
+        return histogram;
+    }
+
     protected boolean increment(String key, String threadName, int threadId) {
         PreparedStatement pstmt = null;
         try {
@@ -257,6 +438,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setLong(1, msId);
             int rows = pstmt.executeUpdate();
             s_logger.info("Released " + rows + " locks for " + msId);
+            if (rows > 0) {
+                wakeUpAllWaiters();
+            }
         } catch (SQLException e) {
             throw new CloudRuntimeException("Unable to clear the locks", e);
         } finally {
@@ -293,8 +477,11 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                 pstmt.setString(1, key);
                 pstmt.setLong(2, _msId);
                 int result = pstmt.executeUpdate();
-                if (result == 1 && s_logger.isTraceEnabled()) {
-                    s_logger.trace("lck-" + key + " removed");
+                if (result == 1) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("lck-" + key + " removed");
+                    }
+                    released(key);
                 }
                 decrCount();
             } else  if (rows < 1) {
@@ -428,6 +615,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setString(2, threadName);
             pstmt.setInt(3, threadId);
             int rows = pstmt.executeUpdate();
+            if (rows > 0) {
+                wakeUpAllWaiters();
+            }
             assert (false) : "Abandon hope, all ye who enter here....There were still " + rows + ":" + c + " locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!";
         } catch (SQLException e) {
             throw new CloudRuntimeException("Can't clear locks " + pstmt, e);
@@ -449,6 +639,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt = _concierge.conn().prepareStatement(RELEASE_LOCK_SQL);
             pstmt.setString(1, key);
             int rows = pstmt.executeUpdate();
+            if (rows > 0) {
+                released(key);
+            }
             return rows > 0;
         } catch (SQLException e) {
             s_logger.error("Unable to release lock " + key, e);
@@ -29,4 +29,9 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
     
     void cleanupForServer(long msId);
+
+    /**
+     * @return how long lock acquisitions waited, as counts per bucket
+     */
+    Map<String, Long> getLockWaitHistogram();
 }
@@ -19,19 +19,29 @@ package com.cloud.utils.db;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.persistence.TableGenerator;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.mgmt.JmxUtil;
 
 /**
  * Since Mysql does not have sequence support, we have
@@ -40,10 +50,21 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
  * 
  * allocation size.
  *
+ * Sequences with an allocation size above one reserve that many values per
+ * round trip and hand them out from memory.  The next block is fetched in the
+ * background once a quarter of the current one is left, so callers normally
+ * never wait on the database.  Values reserved but not handed out before a
+ * restart are skipped, and with several management servers the values are
+ * unique but no longer increase in the order they were handed out.  A sequence
+ * nobody asked for in a while is dropped along with the rest of its block, so
+ * sequences with a key do not pile up.
  */
-public class SequenceFetcher {
+public class SequenceFetcher implements SequenceFetcherMBean {
     private final static Logger s_logger = Logger.getLogger(SequenceFetcher.class);
+    protected final static long SEQUENCE_IDLE_TIMEOUT = 10 * 60 * 1000;
     ExecutorService _executors;
+    private final ConcurrentHashMap<String, Sequence> _sequences = new ConcurrentHashMap<String, Sequence>();
+    private final AtomicLong _lastPrune = new AtomicLong(System.currentTimeMillis());
     private final static Random random = new Random();
     
     public <T> T getNextSequence(Class<T> clazz, TableGenerator tg) {
@@ -59,6 +80,14 @@ public class SequenceFetcher {
     }
     
     public <T> T getNextSequence(Class<T> clazz, TableGenerator tg, Object key, boolean isRandom) {
+        if (!isRandom && tg.allocationSize() > 1 && (clazz.isAssignableFrom(Long.class) || clazz.isAssignableFrom(Integer.class))) {
+            Long value = getSequence(tg, key).next();
+            if (value == null) {
+                return null;
+            }
+            return clazz.cast(clazz.isAssignableFrom(Long.class) ? (Object)value : (Object)value.intValue());
+        }
+
         Future<T> future = _executors.submit(new Fetcher<T>(clazz, tg, key, isRandom));
         try {
             return future.get();
@@ -67,12 +96,216 @@ public class SequenceFetcher {
             return null;
         }
     }
-    
+
+    /**
+     * @return per sequence counters of values handed out, blocks fetched and time callers spent waiting for a block
+     */
+    public Map<String, SequenceStats> getStats() {
+        Map<String, SequenceStats> stats = new HashMap<String, SequenceStats>();
+        for (Map.Entry<String, Sequence> entry : _sequences.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue()._stats);
+        }
+        return stats;
+    }
+
+    @Override
+    public List<String> getSequenceStats() {
+        List<String> stats = new ArrayList<String>();
+        for (Map.Entry<String, Sequence> entry : _sequences.entrySet()) {
+            stats.add(entry.getKey() + ": " + entry.getValue()._stats);
+        }
+        return stats;
+    }
+
+    protected Sequence getSequence(TableGenerator tg, Object key) {
+        long now = System.currentTimeMillis();
+        long lastPrune = _lastPrune.get();
+        if (now - lastPrune > SEQUENCE_IDLE_TIMEOUT && _lastPrune.compareAndSet(lastPrune, now)) {
+            pruneSequences(now);
+        }
+
+        String name = tg.table() + "." + tg.valueColumnName() + ":" + (key == null ? tg.pkColumnValue() : key.toString());
+        Sequence sequence = _sequences.get(name);
+        if (sequence == null) {
+            sequence = new Sequence(name, tg, key);
+            Sequence existing = _sequences.putIfAbsent(name, sequence);
+            if (existing != null) {
+                sequence = existing;
+            }
+        }
+        sequence._lastUsed = now;
+        return sequence;
+    }
+
+    /**
+     * Drops the sequences that were not used for SEQUENCE_IDLE_TIMEOUT before the given time.
+     * A caller still holding one keeps getting unique values from it.
+     */
+    protected void pruneSequences(long now) {
+        for (Map.Entry<String, Sequence> entry : _sequences.entrySet()) {
+            if (now - entry.getValue()._lastUsed > SEQUENCE_IDLE_TIMEOUT && _sequences.remove(entry.getKey(), entry.getValue())) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Dropping idle sequence " + entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves the next block in the database.  Runs on a fetcher thread, so it
+     * has a transaction of its own.
+     *
+     * @return the first value of the block, null if the sequence could not be read
+     */
+    protected Long fetchBlock(TableGenerator tg, Object key) throws Exception {
+        return new Fetcher<Long>(Long.class, tg, key, false).call();
+    }
+
+    public static class SequenceStats {
+        final AtomicLong _values = new AtomicLong();
+        final AtomicLong _blocks = new AtomicLong();
+        final AtomicLong _waits = new AtomicLong();
+        final AtomicLong _waitTime = new AtomicLong();
+
+        public long getValues() {
+            return _values.get();
+        }
+
+        public long getBlocks() {
+            return _blocks.get();
+        }
+
+        /**
+         * @return how many times a caller found the block used up and had to wait for the next one
+         */
+        public long getWaits() {
+            return _waits.get();
+        }
+
+        public long getWaitTime() {
+            return _waitTime.get();
+        }
+
+        @Override
+        public String toString() {
+            return "values=" + getValues() + ", blocks=" + getBlocks() + ", waits=" + getWaits() + ", waitTime=" + getWaitTime() + "ms";
+        }
+    }
+
+    protected static class Block {
+        final AtomicLong _next;
+        final long _end;
+
+        Block(long start, long end) {
+            _next = new AtomicLong(start);
+            _end = end;
+        }
+    }
+
+    protected class Sequence {
+        final String _name;
+        final TableGenerator _tg;
+        final Object _key;
+        final long _refillAt;
+        final SequenceStats _stats = new SequenceStats();
+        final AtomicReference<Block> _current = new AtomicReference<Block>();
+        final AtomicReference<FutureTask<Block>> _refill = new AtomicReference<FutureTask<Block>>();
+        volatile long _lastUsed = System.currentTimeMillis();
+
+        Sequence(String name, TableGenerator tg, Object key) {
+            _name = name;
+            _tg = tg;
+            _key = key;
+            _refillAt = Math.max(1, tg.allocationSize() / 4);
+        }
+
+        Long next() {
+            while (true) {
+                Block block = _current.get();
+                if (block != null) {
+                    long value = block._next.getAndIncrement();
+                    if (value < block._end) {
+                        // exactly one caller sees this value, so only one refill is started per block
+                        if (block._end - value == _refillAt) {
+                            try {
+                                startRefill();
+                            } catch (RejectedExecutionException e) {
+                                s_logger.debug("Unable to prefetch the next block of " + _name + ", it will be fetched once this one is used up");
+                            }
+                        }
+                        _stats._values.incrementAndGet();
+                        return value;
+                    }
+                }
+
+                FutureTask<Block> refill = startRefill();
+                long start = System.currentTimeMillis();
+                Block fresh;
+                try {
+                    fresh = refill.get();
+                } catch (Exception e) {
+                    s_logger.warn("Unable to get sequence block for " + _name, e);
+                    fresh = null;
+                } finally {
+                    _stats._waits.incrementAndGet();
+                    _stats._waitTime.addAndGet(System.currentTimeMillis() - start);
+                }
+                if (fresh == null) {
+                    _refill.compareAndSet(refill, null);
+                    return null;
+                }
+                // whoever installs the block clears the refill; everyone else retries on the new block
+                if (_current.compareAndSet(block, fresh)) {
+                    _refill.compareAndSet(refill, null);
+                }
+            }
+        }
+
+        FutureTask<Block> startRefill() {
+            while (true) {
+                FutureTask<Block> refill = _refill.get();
+                if (refill != null) {
+                    return refill;
+                }
+                refill = new FutureTask<Block>(new Callable<Block>() {
+                    @Override
+                    public Block call() throws Exception {
+                        Long start = fetchBlock(_tg, _key);
+                        if (start == null) {
+                            return null;
+                        }
+                        _stats._blocks.incrementAndGet();
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("Reserved " + _name + " values " + start + " to " + (start + _tg.allocationSize() - 1));
+                        }
+                        return new Block(start, start + _tg.allocationSize());
+                    }
+                });
+                if (_refill.compareAndSet(null, refill)) {
+                    try {
+                        _executors.execute(refill);
+                    } catch (RejectedExecutionException e) {
+                        _refill.compareAndSet(refill, null);
+                        throw e;
+                    }
+                    return refill;
+                }
+            }
+        }
+    }
+
     protected SequenceFetcher() {
         _executors = new ThreadPoolExecutor(100, 100, 120l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(250), new NamedThreadFactory("SequenceFetcher"));
     }
 
     protected static final SequenceFetcher s_instance = new SequenceFetcher();
+    static {
+        try {
+            JmxUtil.registerMBean("SequenceFetcher", "SequenceFetcher", s_instance);
+        } catch (Exception e) {
+            s_logger.error("Unable to register mbean", e);
+        }
+    }
     public static SequenceFetcher getInstance() {
         return s_instance;
     }
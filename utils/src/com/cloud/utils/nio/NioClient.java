@@ -32,6 +32,7 @@ public class NioClient extends NioConnection {
     
     protected String _host;
     protected String _bindAddress;
+    protected int _connectTimeout = 0;
     
     public NioClient(String name, String host, int port, int workers, HandlerFactory factory) {
         super(name, port, workers, factory);
@@ -42,6 +43,13 @@ public class NioClient extends NioConnection {
     	_bindAddress = ipAddress;
     }
     
+    /**
+     * @param timeoutMs how long to wait for the TCP connection, 0 to wait as long as the OS does
+     */
+    public void setConnectTimeout(int timeoutMs) {
+    	_connectTimeout = timeoutMs;
+    }
+    
     @Override
     protected void init() throws IOException {
         _selector = Selector.open();
@@ -51,6 +59,8 @@ public class NioClient extends NioConnection {
         try {
             sch = SocketChannel.open();
             sch.configureBlocking(true);
+            // Link writes the length header and the payload separately; don't let Nagle hold the payload back
+            sch.socket().setTcpNoDelay(true);
             s_logger.info("Connecting to " + _host + ":" + _port);
 
             if(_bindAddress != null) {
@@ -61,7 +71,11 @@ public class NioClient extends NioConnection {
             }
 
             addr = new InetSocketAddress(_host, _port);
-            sch.connect(addr);
+            if(_connectTimeout > 0) {
+                sch.socket().connect(addr, _connectTimeout);
+            } else {
+                sch.connect(addr);
+            }
         } catch (IOException e) {
         	_selector.close();
         	throw e;
@@ -75,6 +89,7 @@ public class NioClient extends NioConnection {
         	SSLContext sslContext = Link.initSSLContext(true);
         	sslEngine = sslContext.createSSLEngine(_host, _port);
         	sslEngine.setUseClientMode(true);
+        	configureSSLEngine(sslEngine);
 
         	Link.doHandshake(sch, sslEngine, true);
         	s_logger.info("SSL: Handshake done");
@@ -52,7 +52,7 @@ public abstract class NioConnection implements Runnable {
     protected Selector _selector;
     protected Thread _thread;
     protected boolean _isRunning;
-    protected boolean _isStartup;
+    protected volatile boolean _isStartup;
     protected int _port;
     protected List<ChangeRequest> _todos;
     protected HandlerFactory _factory;
@@ -75,10 +75,12 @@ public abstract class NioConnection implements Runnable {
         _thread = new Thread(this, _name + "-Selector");
         _isRunning = true;
         _thread.start();
-        // Wait until we got init() done
+        // Wait until we got init() done; the thread ends if init() fails
         synchronized(_thread) {
             try {
-                _thread.wait();
+                while (!_isStartup && _thread.isAlive()) {
+                    _thread.wait(1000);
+                }
             } catch (InterruptedException e) {
                 s_logger.warn("Interrupted start thread ", e);
             }
@@ -173,12 +175,20 @@ public abstract class NioConnection implements Runnable {
     abstract void registerLink(InetSocketAddress saddr, Link link);
     abstract void unregisterLink(InetSocketAddress saddr);
 
+    /**
+     * Called on every new SSLEngine before the handshake, for connections that
+     * need to restrict its protocols or cipher suites.
+     */
+    protected void configureSSLEngine(SSLEngine sslEngine) {
+    }
+
     protected void accept(SelectionKey key) throws IOException {
         ServerSocketChannel serverSocketChannel = (ServerSocketChannel)key.channel();
 
         SocketChannel socketChannel = serverSocketChannel.accept();
         Socket socket = socketChannel.socket();
         socket.setKeepAlive(true);
+        socket.setTcpNoDelay(true);
 
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Connection accepted for " + socket);
@@ -193,6 +203,7 @@ public abstract class NioConnection implements Runnable {
             sslEngine = sslContext.createSSLEngine();
             sslEngine.setUseClientMode(false);
             sslEngine.setNeedClientAuth(false);
+            configureSSLEngine(sslEngine);
 
             Link.doHandshake(socketChannel, sslEngine, false);
 
@@ -22,6 +22,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -39,6 +40,7 @@ import org.apache.log4j.Logger;
 
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.script.OutputInterpreter.TimedOutLogger;
 
 public class Script implements Callable<String> {
@@ -55,6 +57,8 @@ public class Script implements Callable<String> {
 
     private static final ScheduledExecutorService s_executors = Executors.newScheduledThreadPool(10, new NamedThreadFactory("Script"));
 
+    private static volatile ScriptRunner s_runner;
+
     String _workDir;
     ArrayList<String> _command;
     long _timeout;
@@ -118,6 +122,33 @@ public class Script implements Callable<String> {
     	_workDir = workDir;
     }
 
+    /**
+     * Routes scripts through a long-lived runner process instead of forking this JVM.
+     * Pass null to go back to forking every command.
+     */
+    public static synchronized void setScriptRunner(ScriptRunner runner) {
+        ScriptRunner old = s_runner;
+        s_runner = runner;
+        if (old == runner) {
+            return;
+        }
+        try {
+            if (old != null) {
+                old.shutdown();
+                JmxUtil.unregisterMBean("ScriptRunner", "ScriptRunner");
+            }
+            if (runner != null) {
+                JmxUtil.registerMBean("ScriptRunner", "ScriptRunner", runner);
+            }
+        } catch (Exception e) {
+            s_logger.warn("Unable to update the script runner mbean", e);
+        }
+    }
+
+    public static ScriptRunner getScriptRunner() {
+        return s_runner;
+    }
+
     protected String buildCommandLine(String[] command) {
         StringBuilder builder = new StringBuilder();
         boolean obscureParam = false;
@@ -174,6 +205,14 @@ public class Script implements Callable<String> {
             _logger.debug("Executing: " + buildCommandLine(command));
         }
 
+        ScriptRunner runner = s_runner;
+        if (runner != null && runner.isAvailable()) {
+            ScriptRunner.Result result = runner.run(_command, _workDir, _timeout);
+            if (result != null) {
+                return interpret(command, result, interpreter);
+            }
+        }
+
         try {
             ProcessBuilder pb = new ProcessBuilder(command);
             pb.redirectErrorStream(true);
@@ -287,6 +326,37 @@ public class Script implements Callable<String> {
         }
     }
 
+    private String interpret(String[] command, ScriptRunner.Result result, OutputInterpreter interpreter) {
+        try {
+            BufferedReader reader = new BufferedReader(new StringReader(result.getOutput()));
+            if (result.isTimedOut()) {
+                if (!_passwordCommand) {
+                    _logger.warn("Timed out: " + buildCommandLine(command) + ".  Output is: " + result.getOutput());
+                } else {
+                    _logger.warn("Timed out: " + buildCommandLine(command));
+                }
+                return ERR_TIMEOUT;
+            }
+
+            if (result.getExitCode() == 0) {
+                _logger.debug("Execution is successful.");
+                return interpreter != null ? interpreter.interpret(reader) : String.valueOf(result.getExitCode());
+            }
+
+            _logger.debug("Exit value is " + result.getExitCode());
+            String error = interpreter != null ? interpreter.processError(reader) : String.valueOf(result.getExitCode());
+            if (_logger.isDebugEnabled()) {
+                _logger.debug(error);
+            }
+            return error;
+        } catch (IOException ex) {
+            _logger.warn("Exception: " + buildCommandLine(command), ex);
+            StringWriter writer = new StringWriter();
+            ex.printStackTrace(new PrintWriter(writer));
+            return writer.toString();
+        }
+    }
+
     @Override
     public String call() {
         try {
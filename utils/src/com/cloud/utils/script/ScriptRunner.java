@@ -0,0 +1,417 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.script;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Client side of the long-lived script runner helper (scripts/util/cloud-script-runner.py).
+ *
+ * Forking a large JVM for every script is expensive, so the helper process does the fork
+ * on our behalf.  Requests and responses are length-prefixed frames over a loopback socket:
+ *
+ *   request:  int length, string key, long id, int timeoutMs, string workDir, int argc, string[argc] argv
+ *   response: int length, long id, int exitCode, byte timedOut, string output
+ *
+ * where a string is an int byte count followed by UTF-8 bytes.  Each pooled connection carries
+ * one request at a time.  When the helper is unreachable the runner is marked down for a while
+ * and Script falls back to forking the command itself.
+ *
+ * The helper runs whatever it is sent, so every request carries the secret from the helper's
+ * key file, which only its owner can read.  The helper closes a connection with a wrong key.
+ *
+ * A command is never run twice: once a request may have reached the helper, a lost connection
+ * is reported as a failure of the command instead of being retried or forked.  Only a request
+ * that could not be written to a pooled connection is sent again, on a fresh one.
+ */
+public class ScriptRunner implements ScriptRunnerMBean {
+    private static final Logger s_logger = Logger.getLogger(ScriptRunner.class);
+
+    private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    private static final long RETRY_INTERVAL = 30 * 1000;
+
+    private final String _host;
+    private final int _port;
+    private final String _key;
+    private final int _connectTimeout;
+    private final Semaphore _permits;
+    private final ConcurrentLinkedQueue<Socket> _idle = new ConcurrentLinkedQueue<Socket>();
+    private final AtomicLong _nextId = new AtomicLong(1);
+    private final ConcurrentHashMap<String, ScriptStats> _stats = new ConcurrentHashMap<String, ScriptStats>();
+    private volatile long _downUntil = 0;
+
+    public ScriptRunner(String host, int port, String key, int maxConcurrency, int connectTimeout) {
+        _host = host;
+        _port = port;
+        _key = key;
+        _connectTimeout = connectTimeout;
+        _permits = new Semaphore(maxConcurrency > 0 ? maxConcurrency : 16, true);
+    }
+
+    public static class Result {
+        private final int _exitCode;
+        private final boolean _timedOut;
+        private final String _output;
+
+        public Result(int exitCode, boolean timedOut, String output) {
+            _exitCode = exitCode;
+            _timedOut = timedOut;
+            _output = output;
+        }
+
+        public int getExitCode() {
+            return _exitCode;
+        }
+
+        public boolean isTimedOut() {
+            return _timedOut;
+        }
+
+        public String getOutput() {
+            return _output;
+        }
+    }
+
+    public static class ScriptStats {
+        private final AtomicLong _count = new AtomicLong();
+        private final AtomicLong _failures = new AtomicLong();
+        private final AtomicLong _totalMillis = new AtomicLong();
+        private final AtomicLong _maxMillis = new AtomicLong();
+
+        void record(long millis, boolean failed) {
+            _count.incrementAndGet();
+            if (failed) {
+                _failures.incrementAndGet();
+            }
+            _totalMillis.addAndGet(millis);
+            long max = _maxMillis.get();
+            while (millis > max && !_maxMillis.compareAndSet(max, millis)) {
+                max = _maxMillis.get();
+            }
+        }
+
+        public long getCount() {
+            return _count.get();
+        }
+
+        public long getFailures() {
+            return _failures.get();
+        }
+
+        public long getMaxMillis() {
+            return _maxMillis.get();
+        }
+
+        public long getAverageMillis() {
+            long count = _count.get();
+            return count == 0 ? 0 : _totalMillis.get() / count;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + ", failures=" + getFailures() + ", avg=" + getAverageMillis() + "ms, max=" + getMaxMillis() + "ms";
+        }
+    }
+
+    /**
+     * Reads the shared secret the helper was started with.
+     */
+    public static String readKey(String path) throws IOException {
+        File file = new File(path);
+        byte[] bytes = new byte[(int)file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            DataInputStream data = new DataInputStream(in);
+            data.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        String key = new String(bytes, "UTF-8").trim();
+        if (key.isEmpty()) {
+            throw new IOException("Script runner key file " + path + " is empty");
+        }
+        return key;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return System.currentTimeMillis() >= _downUntil;
+    }
+
+    public Map<String, ScriptStats> getStats() {
+        return new HashMap<String, ScriptStats>(_stats);
+    }
+
+    @Override
+    public List<String> getScriptStats() {
+        List<String> stats = new ArrayList<String>();
+        for (Map.Entry<String, ScriptStats> entry : _stats.entrySet()) {
+            stats.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return stats;
+    }
+
+    /**
+     * Runs the command through the helper.
+     * @return the result, or null if the request was not sent because the helper could not be reached,
+     * in which case the caller should fork the command itself.
+     */
+    public Result run(List<String> command, String workDir, long timeout) {
+        if (!isAvailable()) {
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            if (!_permits.tryAcquire(timeout > 0 ? timeout : Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                s_logger.debug("Timed out waiting for a script runner slot, falling back to fork");
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        try {
+            Socket socket = pollIdle();
+            boolean pooled = socket != null;
+            if (!pooled) {
+                socket = connect();
+                if (socket == null) {
+                    return null;
+                }
+            }
+
+            long id = _nextId.getAndIncrement();
+            try {
+                send(socket, id, command, workDir, timeout);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                if (!pooled) {
+                    return lost(command, start, e);
+                }
+                // the pooled connection went away while idle, the helper did not get the request
+                socket = connect();
+                if (socket == null) {
+                    return null;
+                }
+                try {
+                    send(socket, id, command, workDir, timeout);
+                } catch (IOException e2) {
+                    closeQuietly(socket);
+                    return lost(command, start, e2);
+                }
+            }
+
+            Result result;
+            try {
+                result = receive(socket, id);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                return lost(command, start, e);
+            }
+            _idle.offer(socket);
+
+            getStats(scriptName(command)).record(System.currentTimeMillis() - start, result.getExitCode() != 0 || result.isTimedOut());
+            return result;
+        } finally {
+            _permits.release();
+        }
+    }
+
+    /**
+     * The request may have reached the helper and the command may have run, so it is neither
+     * retried nor forked.
+     */
+    private Result lost(List<String> command, long start, IOException e) {
+        s_logger.warn("Lost the script runner while running " + scriptName(command) + ": " + e.getMessage());
+        markDown();
+        getStats(scriptName(command)).record(System.currentTimeMillis() - start, true);
+        if (e instanceof SocketTimeoutException) {
+            return new Result(-1, true, "Timed out waiting for the script runner");
+        }
+        return new Result(-1, false, "Lost the script runner: " + e.getMessage());
+    }
+
+    /**
+     * @return an idle connection the helper has not closed, or null
+     */
+    private Socket pollIdle() {
+        Socket socket;
+        while ((socket = _idle.poll()) != null) {
+            if (isUsable(socket)) {
+                return socket;
+            }
+            closeQuietly(socket);
+        }
+        return null;
+    }
+
+    private static boolean isUsable(Socket socket) {
+        if (socket.isClosed()) {
+            return false;
+        }
+        try {
+            // nothing is due on an idle connection, so anything but a timeout means it is unusable
+            socket.setSoTimeout(1);
+            socket.getInputStream().read();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        Socket socket;
+        while ((socket = _idle.poll()) != null) {
+            closeQuietly(socket);
+        }
+    }
+
+    private ScriptStats getStats(String name) {
+        ScriptStats stats = _stats.get(name);
+        if (stats == null) {
+            stats = new ScriptStats();
+            ScriptStats existing = _stats.putIfAbsent(name, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    private Socket connect() {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(_host, _port), _connectTimeout);
+            return socket;
+        } catch (IOException e) {
+            s_logger.warn("Unable to connect to script runner at " + _host + ":" + _port + ", falling back to fork: " + e.getMessage());
+            closeQuietly(socket);
+            markDown();
+            return null;
+        }
+    }
+
+    private void markDown() {
+        _downUntil = System.currentTimeMillis() + RETRY_INTERVAL;
+    }
+
+    private void send(Socket socket, long id, List<String> command, String workDir, long timeout) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream payload = new DataOutputStream(buffer);
+        writeString(payload, _key);
+        payload.writeLong(id);
+        payload.writeInt((int)Math.min(timeout, Integer.MAX_VALUE));
+        writeString(payload, workDir == null ? "" : workDir);
+        payload.writeInt(command.size());
+        for (String arg : command) {
+            writeString(payload, arg);
+        }
+        payload.flush();
+
+        // A script may legitimately run up to its own timeout; leave the helper some slack to report it.
+        socket.setSoTimeout(timeout > 0 ? (int)Math.min(timeout + 30 * 1000, Integer.MAX_VALUE) : 0);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+        out.flush();
+    }
+
+    private Result receive(Socket socket, long id) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length + " from script runner");
+        }
+        long responseId = in.readLong();
+        if (responseId != id) {
+            throw new IOException("Script runner answered request " + responseId + " while waiting for " + id);
+        }
+        int exitCode = in.readInt();
+        boolean timedOut = in.readByte() != 0;
+        String output = readString(in);
+        return new Result(exitCode, timedOut, output);
+    }
+
+    static String scriptName(List<String> command) {
+        if (command.isEmpty()) {
+            return "";
+        }
+        String name = command.get(0);
+        int i = 0;
+        if ("sudo".equals(name) && command.size() > 1) {
+            name = command.get(++i);
+        }
+        // For "bash -c <cmdline>" the interesting part is the first word of the command line
+        if (name.endsWith("bash") && command.size() > i + 2 && "-c".equals(command.get(i + 1))) {
+            String cmdline = command.get(i + 2).trim();
+            int space = cmdline.indexOf(' ');
+            name = space > 0 ? cmdline.substring(0, space) : cmdline;
+        }
+        int slash = name.lastIndexOf('/');
+        return slash >= 0 ? name.substring(slash + 1) : name;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid string length " + length + " from script runner");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,113 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileUtilTest {
+    File _src;
+    File _dest;
+
+    @Before
+    public void setUp() throws IOException {
+        _src = File.createTempFile("copy", ".src");
+        _dest = File.createTempFile("copy", ".dest");
+    }
+
+    @After
+    public void tearDown() {
+        _src.delete();
+        _dest.delete();
+    }
+
+    private byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int)in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A mostly empty image: random data at the start, a block in the middle, and a
+     * trailing hole.
+     */
+    private byte[] writeImage() throws IOException {
+        byte[] data = new byte[10 * 1024 * 1024 + 123];
+        Random random = new Random(7);
+        byte[] block = new byte[300 * 1024];
+        random.nextBytes(block);
+        System.arraycopy(block, 0, data, 0, block.length);
+        random.nextBytes(block);
+        System.arraycopy(block, 0, data, 4 * 1024 * 1024 + 17, block.length);
+
+        RandomAccessFile out = new RandomAccessFile(_src, "rw");
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return data;
+    }
+
+    @Test
+    public void testCopy() throws IOException {
+        byte[] data = writeImage();
+        final long[] last = new long[2];
+        long size = FileUtil.copyFile(_src, _dest, false, new FileUtil.CopyProgressListener() {
+            @Override
+            public void progress(long copied, long total) {
+                last[0] = copied;
+                last[1] = total;
+            }
+        });
+        Assert.assertEquals(data.length, size);
+        Assert.assertEquals(data.length, last[0]);
+        Assert.assertEquals(data.length, last[1]);
+        Assert.assertTrue(Arrays.equals(data, read(_dest)));
+    }
+
+    @Test
+    public void testSparseCopy() throws IOException {
+        byte[] data = writeImage();
+        Assert.assertEquals(data.length, FileUtil.copyFile(_src, _dest, true, null));
+        Assert.assertTrue(Arrays.equals(data, read(_dest)));
+    }
+
+    @Test
+    public void testCopyOverLargerFile() throws IOException {
+        RandomAccessFile out = new RandomAccessFile(_dest, "rw");
+        out.setLength(20 * 1024 * 1024);
+        out.close();
+
+        byte[] data = writeImage();
+        FileUtil.copyfile(_src, _dest);
+        Assert.assertTrue(Arrays.equals(data, read(_dest)));
+    }
+}
@@ -0,0 +1,275 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.lang.SystemUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.script.OutputInterpreter;
+import com.cloud.utils.script.Script;
+import com.cloud.utils.script.ScriptRunner;
+
+public class ScriptRunnerTest {
+    static final String KEY = "0123456789abcdef";
+
+    /**
+     * Stand-in for cloud-script-runner.py: answers every request by echoing the
+     * arguments back, exiting with 1 when the first argument is "fail".
+     */
+    static class EchoRunner extends Thread {
+        final ServerSocket _server;
+        volatile int _requests;
+        volatile int _rejected;
+        // close the connection after reading a request, as if the helper died running it
+        volatile boolean _dropRequests;
+        // close the connection after answering, as if the helper timed out an idle connection
+        volatile boolean _closeWhenIdle;
+
+        EchoRunner() throws IOException {
+            _server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return _server.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!_server.isClosed()) {
+                try {
+                    final Socket socket = _server.accept();
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        void serve(Socket socket) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                while (true) {
+                    in.readInt();
+                    if (!KEY.equals(readString(in))) {
+                        _rejected++;
+                        socket.close();
+                        return;
+                    }
+                    long id = in.readLong();
+                    in.readInt();
+                    readString(in);
+                    int argc = in.readInt();
+                    List<String> args = new ArrayList<String>();
+                    for (int i = 0; i < argc; i++) {
+                        args.add(readString(in));
+                    }
+                    _requests++;
+                    if (_dropRequests) {
+                        socket.close();
+                        return;
+                    }
+
+                    StringBuilder output = new StringBuilder();
+                    for (String arg : args.subList(1, args.size())) {
+                        output.append(arg).append("\n");
+                    }
+                    int exitCode = args.size() > 1 && "fail".equals(args.get(1)) ? 1 : 0;
+
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    DataOutputStream body = new DataOutputStream(buffer);
+                    body.writeLong(id);
+                    body.writeInt(exitCode);
+                    body.writeByte(0);
+                    byte[] bytes = output.toString().getBytes("UTF-8");
+                    body.writeInt(bytes.length);
+                    body.write(bytes);
+                    out.writeInt(buffer.size());
+                    buffer.writeTo(out);
+                    out.flush();
+                    if (_closeWhenIdle) {
+                        socket.close();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+
+        static String readString(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+    }
+
+    EchoRunner _echo;
+
+    @Before
+    public void setUp() throws IOException {
+        _echo = new EchoRunner();
+        _echo.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Script.setScriptRunner(null);
+        _echo._server.close();
+    }
+
+    @Test
+    public void testRunThroughRunner() {
+        Script.setScriptRunner(new ScriptRunner("127.0.0.1", _echo.getPort(), KEY, 4, 1000));
+        Script script = new Script("/bin/echo");
+        script.add("foo", "bar");
+        OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+        Assert.assertNull(script.execute(parser));
+        Assert.assertEquals("foo\nbar\n", parser.getLines());
+
+        script = new Script("/bin/false");
+        script.add("fail");
+        Assert.assertEquals("1", script.execute(null));
+
+        Assert.assertEquals(2, _echo._requests);
+        ScriptRunner.ScriptStats stats = Script.getScriptRunner().getStats().get("echo");
+        Assert.assertEquals(1, stats.getCount());
+        Assert.assertEquals(1, Script.getScriptRunner().getStats().get("false").getFailures());
+    }
+
+    @Test
+    public void testStatsKeyForBashCommand() {
+        ScriptRunner runner = new ScriptRunner("127.0.0.1", _echo.getPort(), KEY, 4, 1000);
+        runner.run(Arrays.asList("/bin/bash", "-c", "iptables -L INPUT"), null, 1000);
+        Assert.assertNotNull(runner.getStats().get("iptables"));
+    }
+
+    @Test
+    public void testFallbackToForkWhenRunnerIsDown() throws IOException {
+        Assume.assumeTrue(SystemUtils.IS_OS_LINUX);
+        int port = _echo.getPort();
+        _echo._server.close();
+        ScriptRunner runner = new ScriptRunner("127.0.0.1", port, KEY, 4, 1000);
+        Script.setScriptRunner(runner);
+
+        Script script = new Script("/bin/echo");
+        script.add("bar");
+        OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+        Assert.assertNull(script.execute(parser));
+        Assert.assertEquals("bar\n", parser.getLines());
+        Assert.assertFalse(runner.isAvailable());
+    }
+
+    @Test
+    public void testLostRequestIsNotRunAgain() {
+        Assume.assumeTrue(SystemUtils.IS_OS_LINUX);
+        ScriptRunner runner = new ScriptRunner("127.0.0.1", _echo.getPort(), KEY, 4, 1000);
+        Script.setScriptRunner(runner);
+        _echo._dropRequests = true;
+
+        Script script = new Script("/bin/echo");
+        script.add("bar");
+        OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+        // neither retried through the helper nor forked
+        Assert.assertNotNull(script.execute(parser));
+        Assert.assertNull(parser.getLines());
+        Assert.assertEquals(1, _echo._requests);
+        Assert.assertFalse(runner.isAvailable());
+    }
+
+    @Test
+    public void testWrongKeyIsRejected() {
+        ScriptRunner runner = new ScriptRunner("127.0.0.1", _echo.getPort(), "wrong", 4, 1000);
+
+        ScriptRunner.Result result = runner.run(Arrays.asList("/bin/echo", "foo"), null, 1000);
+        Assert.assertEquals(-1, result.getExitCode());
+        Assert.assertEquals(0, _echo._requests);
+        Assert.assertEquals(1, _echo._rejected);
+    }
+
+    @Test
+    public void testStatsAreExposedToJmx() throws Exception {
+        Script.setScriptRunner(new ScriptRunner("127.0.0.1", _echo.getPort(), KEY, 4, 1000));
+        Script.getScriptRunner().run(Arrays.asList("/bin/echo", "foo"), null, 1000);
+
+        ObjectName name = new ObjectName("com.cloud:type=ScriptRunner, name=ScriptRunner");
+        List<?> stats = (List<?>)ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ScriptStats");
+        Assert.assertEquals(1, stats.size());
+        Assert.assertTrue(((String)stats.get(0)).startsWith("echo: count=1"));
+
+        Script.setScriptRunner(null);
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void testKeyIsReadFromFile() throws IOException {
+        File file = File.createTempFile("script-runner", ".key");
+        try {
+            FileWriter writer = new FileWriter(file);
+            writer.write(KEY + "\n");
+            writer.close();
+            Assert.assertEquals(KEY, ScriptRunner.readKey(file.getAbsolutePath()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testClosedIdleConnectionIsReplaced() throws Exception {
+        ScriptRunner runner = new ScriptRunner("127.0.0.1", _echo.getPort(), KEY, 4, 1000);
+        _echo._closeWhenIdle = true;
+
+        Assert.assertEquals(0, runner.run(Arrays.asList("/bin/echo", "foo"), null, 1000).getExitCode());
+        // let the close reach us
+        Thread.sleep(100);
+        ScriptRunner.Result result = runner.run(Arrays.asList("/bin/echo", "bar"), null, 1000);
+        Assert.assertEquals(0, result.getExitCode());
+        Assert.assertEquals("bar\n", result.getOutput());
+        Assert.assertEquals(2, _echo._requests);
+        Assert.assertTrue(runner.isAvailable());
+    }
+}
@@ -0,0 +1,133 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.TableGenerator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.utils.db.SequenceFetcher;
+
+public class SequenceFetcherTest {
+    @TableGenerator(name = "test_sq", table = "sequence", pkColumnName = "name", valueColumnName = "value", pkColumnValue = "test_seq", allocationSize = 20)
+    static class Blocked {
+    }
+
+    /**
+     * Hands out blocks from memory the way the sequence table would, slowly.
+     */
+    static class MemoryFetcher extends SequenceFetcher {
+        final AtomicInteger _fetches = new AtomicInteger();
+        long _value = 1;
+
+        @Override
+        protected Long fetchBlock(TableGenerator tg, Object key) throws Exception {
+            _fetches.incrementAndGet();
+            Thread.sleep(20);
+            synchronized (this) {
+                long start = _value;
+                _value += tg.allocationSize();
+                return start;
+            }
+        }
+
+        void prune(long idleMillis) {
+            pruneSequences(System.currentTimeMillis() + idleMillis);
+        }
+
+        void pruneIdle() {
+            prune(SEQUENCE_IDLE_TIMEOUT + 1000);
+        }
+    }
+
+    private final TableGenerator _tg = Blocked.class.getAnnotation(TableGenerator.class);
+
+    @Test
+    public void testValuesComeFromReservedBlocks() {
+        MemoryFetcher fetcher = new MemoryFetcher();
+        for (long i = 1; i <= 100; i++) {
+            Assert.assertEquals(Long.valueOf(i), fetcher.getNextSequence(Long.class, _tg));
+        }
+        Assert.assertTrue(fetcher._fetches.get() <= 6);
+
+        SequenceFetcher.SequenceStats stats = fetcher.getStats().values().iterator().next();
+        Assert.assertEquals(100, stats.getValues());
+        Assert.assertEquals(Integer.valueOf(101), fetcher.getNextSequence(Integer.class, _tg));
+    }
+
+    @Test
+    public void testKeysHaveTheirOwnBlocks() {
+        MemoryFetcher fetcher = new MemoryFetcher();
+        fetcher.getNextSequence(Long.class, _tg, 1L);
+        fetcher.getNextSequence(Long.class, _tg, 2L);
+        Assert.assertEquals(2, fetcher.getStats().size());
+    }
+
+    @Test
+    public void testIdleSequencesAreDropped() {
+        MemoryFetcher fetcher = new MemoryFetcher();
+        fetcher.getNextSequence(Long.class, _tg, 1L);
+        fetcher.prune(0);
+        Assert.assertEquals(1, fetcher.getStats().size());
+
+        fetcher.pruneIdle();
+        Assert.assertTrue(fetcher.getStats().isEmpty());
+
+        // a new sequence starts from a fresh block, so no value is handed out twice
+        Assert.assertEquals(Long.valueOf(21), fetcher.getNextSequence(Long.class, _tg, 1L));
+    }
+
+    @Test
+    public void testStatsAreExposedToJmx() {
+        MemoryFetcher fetcher = new MemoryFetcher();
+        fetcher.getNextSequence(Long.class, _tg, 1L);
+        Assert.assertEquals(1, fetcher.getSequenceStats().size());
+        Assert.assertTrue(fetcher.getSequenceStats().get(0).startsWith("sequence.value:1: "));
+    }
+
+    @Test
+    public void testConcurrentCallersGetUniqueValues() throws Exception {
+        final MemoryFetcher fetcher = new MemoryFetcher();
+        final Set<Long> values = Collections.synchronizedSet(new HashSet<Long>());
+        final int threads = 16;
+        final int perThread = 100;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        values.add(fetcher.getNextSequence(Long.class, _tg));
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+
+        Assert.assertEquals(threads * perThread, values.size());
+        Assert.assertFalse(values.contains(null));
+    }
+}
@@ -73,5 +73,31 @@ public class Merovingian2Test extends TestCase {
         result = _lockMaster.release("first"+1234);
         Assert.assertTrue(result);
     }
+
+    @Test
+    public void testWaiterIsWokenUpOnRelease() throws Exception {
+        Assert.assertTrue(_lockMaster.acquire("contended"+1234, 5));
+
+        final boolean[] acquired = new boolean[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                acquired[0] = _lockMaster.acquire("contended"+1234, 60);
+                if (acquired[0]) {
+                    _lockMaster.release("contended"+1234);
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(500);
+
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(_lockMaster.release("contended"+1234));
+        waiter.join(10000);
+        Assert.assertTrue(acquired[0]);
+        // well within the old 5 second polling step
+        Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+        Assert.assertTrue(_lockMaster.getLockWaitHistogram().get("<1000ms") >= 1);
+    }
     
 }
@@ -127,6 +127,18 @@ public class ClusterMO extends BaseMO implements VmwareHypervisorHost {
 		if(s_logger.isTraceEnabled())
 			s_logger.trace("vCenter API trace - retrieveProperties() for VM properties. target MOR: " + _mor.getValue() + ", properties: " + new Gson().toJson(propertyPaths));
 
+	    List<PropertyFilterSpec> pfSpecArr = new ArrayList<PropertyFilterSpec>();
+	    pfSpecArr.add(getVmPropertyFilterSpec(propertyPaths));
+
+	    List<ObjectContent> properties = _context.getService().retrieveProperties(_context.getPropertyCollector(), pfSpecArr);
+
+	    if(s_logger.isTraceEnabled())
+			s_logger.trace("vCenter API trace - retrieveProperties() done");
+	    return properties.toArray(new ObjectContent[properties.size()]);
+	}
+
+	@Override
+	public PropertyFilterSpec getVmPropertyFilterSpec(String[] propertyPaths) {
 		PropertySpec pSpec = new PropertySpec();
 		pSpec.setType("VirtualMachine");
 		pSpec.getPathSet().addAll(Arrays.asList(propertyPaths));
@@ -150,14 +162,7 @@ public class ClusterMO extends BaseMO implements VmwareHypervisorHost {
 	    PropertyFilterSpec pfSpec = new PropertyFilterSpec();
 	    pfSpec.getPropSet().add(pSpec);
 	    pfSpec.getObjectSet().add(oSpec);
-	    List<PropertyFilterSpec> pfSpecArr = new ArrayList<PropertyFilterSpec>();
-	    pfSpecArr.add(pfSpec);
-
-	    List<ObjectContent> properties = _context.getService().retrieveProperties(_context.getPropertyCollector(), pfSpecArr);
-
-	    if(s_logger.isTraceEnabled())
-			s_logger.trace("vCenter API trace - retrieveProperties() done");
-	    return properties.toArray(new ObjectContent[properties.size()]);
+	    return pfSpec;
 	}
 
 	@Override
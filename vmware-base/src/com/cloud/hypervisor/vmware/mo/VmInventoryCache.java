@@ -0,0 +1,204 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.mo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.hypervisor.vmware.util.VmwareContext;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+
+/**
+ * The VMs of a host or cluster with a fixed set of their properties, kept up to date through
+ * a property collector of the cache's own.
+ *
+ * The first refresh reads every VM, later ones only get what changed since the previous one,
+ * so a refresh is one WaitForUpdatesEx call however many VMs there are.  The collector lives
+ * in the session of the context the cache is given; the context stays with the caller, who
+ * must keep other calls through it from running at the same time as the cache's.
+ */
+public class VmInventoryCache {
+    private static final Logger s_logger = Logger.getLogger(VmInventoryCache.class);
+
+    static class VmEntry {
+        final ManagedObjectReference _mor;
+        final Map<String, Object> _props = new HashMap<String, Object>();
+
+        VmEntry(ManagedObjectReference mor) {
+            _mor = mor;
+        }
+    }
+
+    private final VmwareContext _context;
+    private final PropertyFilterSpec _filterSpec;
+
+    private ManagedObjectReference _morCollector;
+    private String _version;
+    // keyed by the value of the VM's MOR
+    private final Map<String, VmEntry> _vms = new HashMap<String, VmEntry>();
+    private int _lastChangedVms;
+
+    /**
+     * @param filterSpec selects the VMs and properties, see VmwareHypervisorHost.getVmPropertyFilterSpec()
+     */
+    public VmInventoryCache(VmwareContext context, PropertyFilterSpec filterSpec) {
+        _context = context;
+        _filterSpec = filterSpec;
+    }
+
+    /**
+     * Brings the cache up to date.  If this fails the cache starts over with a full read on
+     * the next refresh.
+     */
+    public synchronized void refresh() throws Exception {
+        try {
+            if(_morCollector == null) {
+                ManagedObjectReference morCollector = _context.getService().createPropertyCollector(_context.getPropertyCollector());
+                _context.getService().createFilter(morCollector, _filterSpec, false);
+                _morCollector = morCollector;
+                _version = "";
+                _vms.clear();
+            }
+
+            WaitOptions options = new WaitOptions();
+            // return at once, with nothing if nothing changed
+            options.setMaxWaitSeconds(0);
+
+            _lastChangedVms = 0;
+            UpdateSet updateSet = _context.getService().waitForUpdatesEx(_morCollector, _version, options);
+            while(updateSet != null) {
+                apply(updateSet);
+                _version = updateSet.getVersion();
+                if(!Boolean.TRUE.equals(updateSet.isTruncated()))
+                    break;
+                updateSet = _context.getService().waitForUpdatesEx(_morCollector, _version, options);
+            }
+        } catch(Exception e) {
+            reset();
+            throw e;
+        }
+
+        if(s_logger.isTraceEnabled())
+            s_logger.trace("VM inventory refreshed, version: " + _version + ", VMs: " + _vms.size() + ", changed: " + _lastChangedVms);
+    }
+
+    void apply(UpdateSet updateSet) {
+        if(updateSet.getFilterSet() == null)
+            return;
+
+        for(PropertyFilterUpdate filterUpdate : updateSet.getFilterSet()) {
+            if(filterUpdate.getObjectSet() == null)
+                continue;
+
+            for(ObjectUpdate objUpdate : filterUpdate.getObjectSet()) {
+                _lastChangedVms++;
+                String key = objUpdate.getObj().getValue();
+                if(objUpdate.getKind() == ObjectUpdateKind.LEAVE) {
+                    _vms.remove(key);
+                    continue;
+                }
+
+                VmEntry vm = _vms.get(key);
+                if(vm == null) {
+                    vm = new VmEntry(objUpdate.getObj());
+                    _vms.put(key, vm);
+                }
+
+                if(objUpdate.getChangeSet() == null)
+                    continue;
+                for(PropertyChange change : objUpdate.getChangeSet()) {
+                    if(change.getOp() == PropertyChangeOp.REMOVE || change.getOp() == PropertyChangeOp.INDIRECT_REMOVE)
+                        vm._props.remove(change.getName());
+                    else
+                        vm._props.put(change.getName(), change.getVal());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the cached properties of every VM in the form retrieveProperties() returns them,
+     * limited to the given properties
+     */
+    public synchronized ObjectContent[] getVmProperties(String[] propertyPaths) {
+        List<ObjectContent> ocs = new ArrayList<ObjectContent>(_vms.size());
+        for(VmEntry vm : _vms.values()) {
+            ObjectContent oc = new ObjectContent();
+            oc.setObj(vm._mor);
+            for(String path : propertyPaths) {
+                if(vm._props.containsKey(path)) {
+                    DynamicProperty prop = new DynamicProperty();
+                    prop.setName(path);
+                    prop.setVal(vm._props.get(path));
+                    oc.getPropSet().add(prop);
+                }
+            }
+            ocs.add(oc);
+        }
+        return ocs.toArray(new ObjectContent[ocs.size()]);
+    }
+
+    public synchronized int getVmCount() {
+        return _vms.size();
+    }
+
+    /**
+     * @return the number of VMs that entered, changed or left in the last refresh
+     */
+    public synchronized int getLastChangedVms() {
+        return _lastChangedVms;
+    }
+
+    private void reset() {
+        if(_morCollector != null) {
+            try {
+                // takes the filter with it
+                _context.getService().destroyPropertyCollector(_morCollector);
+            } catch(Exception e) {
+                s_logger.debug("Unable to destroy the property collector of the VM inventory: " + e.getMessage());
+            }
+        }
+        _morCollector = null;
+        _version = null;
+        _vms.clear();
+    }
+
+    public VmwareContext getContext() {
+        return _context;
+    }
+
+    /**
+     * Drops the cache's collector.  The context is left open.
+     */
+    public synchronized void close() {
+        reset();
+    }
+}
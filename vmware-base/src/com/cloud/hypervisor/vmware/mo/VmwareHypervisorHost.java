@@ -20,6 +20,7 @@ import com.vmware.vim25.ClusterDasConfigInfo;
 import com.vmware.vim25.ComputeResourceSummary;
 import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.PropertyFilterSpec;
 import com.vmware.vim25.VirtualMachineConfigSpec;
 
 import com.cloud.hypervisor.vmware.util.VmwareContext;
@@ -51,6 +52,7 @@ public interface VmwareHypervisorHost {
 	void importVmFromOVF(String ovfFilePath, String vmName, DatastoreMO dsMo, String diskOption) throws Exception;
 
 	ObjectContent[] getVmPropertiesOnHyperHost(String[] propertyPaths) throws Exception;
+	PropertyFilterSpec getVmPropertyFilterSpec(String[] propertyPaths);
 	ObjectContent[] getDatastorePropertiesOnHyperHost(String[] propertyPaths) throws Exception;
 	
 	ManagedObjectReference mountDatastore(boolean vmfsDatastore, String poolHostAddress,
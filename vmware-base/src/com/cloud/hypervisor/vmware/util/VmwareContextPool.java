@@ -17,27 +17,122 @@
 package com.cloud.hypervisor.vmware.util;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
-public class VmwareContextPool {
+/**
+ * vCenter sessions kept per vCenter address and user.
+ *
+ * Every vCenter gets its own bounded pool: at most maxContexts sessions are checked out of it
+ * at a time and further callers wait for one, in the order they came, up to the checkout wait.
+ * Idle sessions sit in a lock-free queue, so a checkout that finds one does not take a lock.
+ * Once the pool knows how to log in to a vCenter (the creator passed to checkout) it keeps
+ * warmContexts idle sessions logged in ahead of time from its timer, which also keeps idle
+ * sessions from timing out on the vCenter side.
+ */
+public class VmwareContextPool implements VmwareContextPoolMBean {
     private static final Logger s_logger = Logger.getLogger(VmwareContextPool.class);
     
     private static final long DEFAULT_CHECK_INTERVAL = 10000;
     private static final int DEFAULT_IDLE_QUEUE_LENGTH = 128;
-	
-    private List<VmwareContext> _outstandingRegistry = new ArrayList<VmwareContext>();
+    private static final int DEFAULT_MAX_CONTEXTS = 64;
+    private static final int DEFAULT_WARM_CONTEXTS = 4;
+    private static final long DEFAULT_CHECKOUT_WAIT = 120000;
+    private static final long DEFAULT_KEEP_ALIVE_INTERVAL = 600000;
+
+	public interface ContextCreator {
+		VmwareContext create() throws Exception;
+	}
+
+	static class IdleContext {
+		final VmwareContext _context;
+		final long _since;
+
+		IdleContext(VmwareContext context, long since) {
+			_context = context;
+			_since = since;
+		}
+	}
+
+	class KeyedPool {
+		final String _key;
+		final int _maxContexts;
+		final Semaphore _permits;
+		final ConcurrentLinkedQueue<IdleContext> _idle = new ConcurrentLinkedQueue<IdleContext>();
+		// size() of the queue walks it
+		final AtomicInteger _idleCount = new AtomicInteger();
+		final Set<VmwareContext> _checkedOut = Collections.newSetFromMap(new ConcurrentHashMap<VmwareContext, Boolean>());
+		// idle and checked out sessions
+		final AtomicInteger _size = new AtomicInteger();
+		final AtomicBoolean _warming = new AtomicBoolean();
+		volatile ContextCreator _creator;
+
+		KeyedPool(String key, int maxContexts) {
+			_key = key;
+			_maxContexts = maxContexts;
+			_permits = new Semaphore(maxContexts, true);
+		}
+
+		IdleContext pollIdle() {
+			IdleContext idle = _idle.poll();
+			if(idle != null)
+				_idleCount.decrementAndGet();
+			return idle;
+		}
+
+		boolean removeIdle(IdleContext idle) {
+			if(_idle.remove(idle)) {
+				_idleCount.decrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+		void offerIdle(VmwareContext context) {
+			_idleCount.incrementAndGet();
+			_idle.offer(new IdleContext(context, System.currentTimeMillis()));
+		}
+
+		VmwareContext checkOut(VmwareContext context) {
+			context.setPoolInfo(VmwareContextPool.this, _key);
+			_checkedOut.add(context);
+			return context;
+		}
+	}
+
+	private final Set<VmwareContext> _outstandingRegistry = Collections.newSetFromMap(new ConcurrentHashMap<VmwareContext, Boolean>());
     
-	private Map<String, List<VmwareContext>> _pool;
+	private final ConcurrentHashMap<String, KeyedPool> _pools = new ConcurrentHashMap<String, KeyedPool>();
 	private int _maxIdleQueueLength = DEFAULT_IDLE_QUEUE_LENGTH;
 	private long _idleCheckIntervalMs = DEFAULT_CHECK_INTERVAL;
+	private volatile int _maxContexts = DEFAULT_MAX_CONTEXTS;
+	private volatile int _warmContexts = DEFAULT_WARM_CONTEXTS;
+	private volatile long _checkoutWaitMs = DEFAULT_CHECKOUT_WAIT;
+	private volatile long _keepAliveIntervalMs = DEFAULT_KEEP_ALIVE_INTERVAL;
+
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _waits = new AtomicLong();
+	private final AtomicLong _waitTimeouts = new AtomicLong();
+	private final AtomicLong _totalWaitMs = new AtomicLong();
+	private volatile long _maxWaitMs;
+	private final AtomicLong _warmedUp = new AtomicLong();
+	private final AtomicLong _discarded = new AtomicLong();
 			
-	private Timer _timer = new Timer();
+	private Timer _timer = new Timer("VmwareContextPool", true);
 	
 	public VmwareContextPool() {
 		this(DEFAULT_IDLE_QUEUE_LENGTH, DEFAULT_CHECK_INTERVAL);
@@ -48,71 +143,212 @@ public class VmwareContextPool {
 	}
 	
 	public VmwareContextPool(int maxIdleQueueLength, long idleCheckIntervalMs) {
-		_pool = new HashMap<String, List<VmwareContext>>();
-		
 		_maxIdleQueueLength = maxIdleQueueLength;
 		_idleCheckIntervalMs = idleCheckIntervalMs;
 		
 		_timer.scheduleAtFixedRate(getTimerTask(), _idleCheckIntervalMs, _idleCheckIntervalMs);
 	}
+
+	/**
+	 * Sizes the pools of the vCenters this pool has not talked to yet.
+	 *
+	 * @param maxContexts sessions a vCenter can have checked out at a time
+	 * @param warmContexts idle sessions kept logged in ahead of checkouts
+	 * @param checkoutWaitMs time a checkout waits for a session before it gives up
+	 */
+	public void configure(int maxContexts, int warmContexts, long checkoutWaitMs) {
+		assert(maxContexts > 0);
+		_maxContexts = maxContexts;
+		_warmContexts = Math.min(warmContexts, maxContexts);
+		_checkoutWaitMs = checkoutWaitMs;
+	}
+
+	public void setKeepAliveInterval(long keepAliveIntervalMs) {
+		_keepAliveIntervalMs = keepAliveIntervalMs;
+	}
 	
 	public void registerOutstandingContext(VmwareContext context) {
 		assert(context != null);
-		synchronized(this) {
-			_outstandingRegistry.add(context);
-		}
+		_outstandingRegistry.add(context);
 	}
 	
 	public void unregisterOutstandingContext(VmwareContext context) {
 		assert(context != null);
-		synchronized(this) {
-			_outstandingRegistry.remove(context);
+		_outstandingRegistry.remove(context);
+
+		// a checked out session that gets closed gives its place back
+		KeyedPool pool = context.getPoolKey() != null ? _pools.get(context.getPoolKey()) : null;
+		if(pool != null && pool._checkedOut.remove(context)) {
+			pool._size.decrementAndGet();
+			pool._permits.release();
+			_discarded.incrementAndGet();
 		}
 	}
-	
+
+	/**
+	 * Takes an idle session of the vCenter without waiting or logging in.
+	 *
+	 * @return null if the vCenter has no idle session or no session to spare
+	 */
 	public VmwareContext getContext(String vCenterAddress, String vCenterUserName) {
 		String poolKey = composePoolKey(vCenterAddress, vCenterUserName);
-		synchronized(this) {
-			List<VmwareContext> l = _pool.get(poolKey);
-			if(l == null)
-				return null;
-
-			if(l.size() > 0) {
-				VmwareContext context = l.remove(0);
-				context.setPoolInfo(this, poolKey);
-				
-				if(s_logger.isTraceEnabled())
-					s_logger.trace("Return a VmwareContext from the idle pool: " + poolKey + ". current pool size: " + l.size() + ", outstanding count: " + VmwareContext.getOutstandingContextCount());
-				return context;
-			}
-			
-			// TODO, we need to control the maximum number of outstanding VmwareContext object in the future
+		KeyedPool pool = _pools.get(poolKey);
+		if(pool == null || !pool._permits.tryAcquire())
+			return null;
+
+		IdleContext idle = pool.pollIdle();
+		if(idle == null) {
+			pool._permits.release();
 			return null;
 		}
+
+		_hits.incrementAndGet();
+		if(s_logger.isTraceEnabled())
+			s_logger.trace("Return a VmwareContext from the idle pool: " + poolKey + ". current pool size: " + pool._idleCount.get() + ", outstanding count: " + VmwareContext.getOutstandingContextCount());
+		return pool.checkOut(idle._context);
+	}
+
+	/**
+	 * Checks out a session of the vCenter.  An idle session that still validates is handed out
+	 * if there is one, otherwise the creator logs in a new one.  When the vCenter has all its sessions checked
+	 * out the call waits for one to come back.
+	 *
+	 * @param creator logs in to the vCenter, the pool also uses it to warm up
+	 */
+	public VmwareContext getContext(String vCenterAddress, String vCenterUserName, ContextCreator creator) throws Exception {
+		assert(creator != null);
+		KeyedPool pool = getPool(composePoolKey(vCenterAddress, vCenterUserName));
+		pool._creator = creator;
+
+		acquire(pool);
+		VmwareContext context;
+		try {
+			IdleContext idle = pool.pollIdle();
+			if(idle != null && !idle._context.validate()) {
+				s_logger.info("Validation of the context faild. dispose and create a new one");
+				pool._size.decrementAndGet();
+				_discarded.incrementAndGet();
+				idle._context.close();
+				idle = null;
+			}
+
+			if(idle != null) {
+				_hits.incrementAndGet();
+				context = idle._context;
+			} else {
+				_misses.incrementAndGet();
+				context = creator.create();
+				pool._size.incrementAndGet();
+			}
+		} catch(Exception e) {
+			pool._permits.release();
+			throw e;
+		}
+
+		if(pool._idleCount.get() < _warmContexts)
+			scheduleWarmUp(pool);
+		return pool.checkOut(context);
 	}
 	
 	public void returnContext(VmwareContext context) {
 		assert(context.getPool() == this);
 		assert(context.getPoolKey() != null);
-		synchronized(this) {
-			List<VmwareContext> l = _pool.get(context.getPoolKey());
-			if(l == null) {
-				l = new ArrayList<VmwareContext>();
-				_pool.put(context.getPoolKey(), l);
-			}
-			
-			if(l.size() < _maxIdleQueueLength) {
+		KeyedPool pool = getPool(context.getPoolKey());
+		boolean checkedOut = pool._checkedOut.remove(context);
+		if(!checkedOut) {
+			// logged in outside of the pool, it joins it
+			pool._size.incrementAndGet();
+		}
+
+		if(pool._idleCount.get() < Math.min(_maxIdleQueueLength, pool._maxContexts)) {
+			context.clearStockObjects();
+			pool.offerIdle(context);
+
+			if(s_logger.isTraceEnabled())
+				s_logger.trace("Recycle VmwareContext into idle pool: " + context.getPoolKey() + ", current idle pool size: " 
+					+ pool._idleCount.get() + ", outstanding count: " + VmwareContext.getOutstandingContextCount());
+		} else {
+			if(s_logger.isTraceEnabled())
+				s_logger.trace("VmwareContextPool queue exceeds limits, queue size: " + pool._idleCount.get());
+			pool._size.decrementAndGet();
+			context.close();
+		}
+
+		if(checkedOut)
+			pool._permits.release();
+	}
+
+	private KeyedPool getPool(String poolKey) {
+		KeyedPool pool = _pools.get(poolKey);
+		if(pool == null) {
+			pool = new KeyedPool(poolKey, _maxContexts);
+			KeyedPool existing = _pools.putIfAbsent(poolKey, pool);
+			if(existing != null)
+				pool = existing;
+		}
+		return pool;
+	}
+
+	private void acquire(KeyedPool pool) throws Exception {
+		// a timed try honours the queue of waiting callers, the plain one would barge in
+		if(pool._permits.tryAcquire(0, TimeUnit.MILLISECONDS))
+			return;
+
+		_waits.incrementAndGet();
+		long start = System.currentTimeMillis();
+		boolean acquired = pool._permits.tryAcquire(_checkoutWaitMs, TimeUnit.MILLISECONDS);
+		long waited = System.currentTimeMillis() - start;
+		_totalWaitMs.addAndGet(waited);
+		if(waited > _maxWaitMs)
+			_maxWaitMs = waited;
+
+		if(!acquired) {
+			_waitTimeouts.incrementAndGet();
+			throw new Exception("Timed out after " + waited + "ms waiting for one of the " + pool._maxContexts + " sessions of " + pool._key);
+		}
+	}
+
+	private void scheduleWarmUp(final KeyedPool pool) {
+		if(pool._creator == null || !pool._warming.compareAndSet(false, true))
+			return;
+
+		try {
+			_timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					warmUp(pool);
+				}
+			}, 0);
+		} catch(IllegalStateException e) {
+			pool._warming.set(false);
+		}
+	}
+
+	private void warmUp(KeyedPool pool) {
+		try {
+			while(pool._idleCount.get() < _warmContexts) {
+				int size = pool._size.get();
+				if(size >= pool._maxContexts)
+					break;
+				if(!pool._size.compareAndSet(size, size + 1))
+					continue;
+
+				VmwareContext context;
+				try {
+					context = pool._creator.create();
+				} catch(Throwable e) {
+					pool._size.decrementAndGet();
+					s_logger.warn("Unable to warm up a VmwareContext for " + pool._key, e);
+					break;
+				}
+
 				context.clearStockObjects();
-				l.add(context);
-				
-				if(s_logger.isTraceEnabled())
-					s_logger.trace("Recycle VmwareContext into idle pool: " + context.getPoolKey() + ", current idle pool size: " 
-						+ l.size() + ", outstanding count: " + VmwareContext.getOutstandingContextCount());
-			} else {
-				if(s_logger.isTraceEnabled())
-					s_logger.trace("VmwareContextPool queue exceeds limits, queue size: " + l.size());
-				context.close();
+				context.setPoolInfo(this, pool._key);
+				pool.offerIdle(context);
+				_warmedUp.incrementAndGet();
 			}
+		} finally {
+			pool._warming.set(false);
 		}
 	}
 	
@@ -121,74 +357,50 @@ public class VmwareContextPool {
 			@Override
 			public void run() {
 				try {
-					// doIdleCheck();
-					
 					doKeepAlive();
+
+					for(KeyedPool pool : _pools.values()) {
+						if(pool._idleCount.get() < _warmContexts && pool._warming.compareAndSet(false, true))
+							warmUp(pool);
+					}
 				} catch (Throwable e) {
 					s_logger.error("Unexpected exception", e);
 				}
 			}
 		};
 	}
-	
-	private void getIdleCheckContexts(List<VmwareContext> l, int batchSize) {
-		synchronized(this) {
-			for(Map.Entry<String, List<VmwareContext>> entry : _pool.entrySet()) {
-				if(entry.getValue() != null) {
-					int count = 0;
-					while(entry.getValue().size() > 0 && count < batchSize) {
-						VmwareContext context = entry.getValue().remove(0);
-						context.setPoolInfo(this, entry.getKey());
-						l.add(context);
-						count++;
-					}
+
+	private void getKeepAliveCheckContexts(List<IdleContext> l, List<KeyedPool> owners, int batchSize) {
+		long now = System.currentTimeMillis();
+		for(KeyedPool pool : _pools.values()) {
+			Iterator<IdleContext> it = pool._idle.iterator();
+			while(it.hasNext() && l.size() < batchSize) {
+				IdleContext idle = it.next();
+				// a checkout may have taken it meanwhile
+				if(now - idle._since >= _keepAliveIntervalMs && pool.removeIdle(idle)) {
+					l.add(idle);
+					owners.add(pool);
 				}
 			}
 		}
 	}
 	
-	private void doIdleCheck() {
-		List<VmwareContext> l = new ArrayList<VmwareContext>();
-		int batchSize = (int)(_idleCheckIntervalMs / 1000);	// calculate batch size at 1 request/sec rate
-		getIdleCheckContexts(l, batchSize);
-		
-		for(VmwareContext context : l) {
-			try {
-				context.idleCheck();
-				
-				if(s_logger.isTraceEnabled())
-					s_logger.trace("Recyle context after idle check");
-				returnContext(context);
-			} catch(Throwable e) {
-				s_logger.warn("Exception caught during VmwareContext idle check, close and discard the context", e);
-				context.close();
-			}
-		}
-	}
-	
-	private void getKeepAliveCheckContexts(List<VmwareContext> l, int batchSize) {
-		synchronized(this) {
-			int size = Math.min(_outstandingRegistry.size(), batchSize);
-			while(size > 0) {
-				VmwareContext context = _outstandingRegistry.remove(0);
-				l.add(context);
-				
-				_outstandingRegistry.add(context);
-				size--;
-			}
-		}
-	}
-	
 	private void doKeepAlive() {
-		List<VmwareContext> l = new ArrayList<VmwareContext>();
-		int batchSize = (int)(_idleCheckIntervalMs / 1000);	// calculate batch size at 1 request/sec rate
-		getKeepAliveCheckContexts(l, batchSize);
+		List<IdleContext> l = new ArrayList<IdleContext>();
+		List<KeyedPool> owners = new ArrayList<KeyedPool>();
+		int batchSize = Math.max(1, (int)(_idleCheckIntervalMs / 1000));	// calculate batch size at 1 request/sec rate
+		getKeepAliveCheckContexts(l, owners, batchSize);
 		
-		for(VmwareContext context : l) {
+		for(int i = 0; i < l.size(); i++) {
+			VmwareContext context = l.get(i)._context;
+			KeyedPool pool = owners.get(i);
 			try {
 				context.idleCheck();
+				pool.offerIdle(context);
 			} catch(Throwable e) {
 				s_logger.warn("Exception caught during VmwareContext idle check, close and discard the context", e);
+				pool._size.decrementAndGet();
+				_discarded.incrementAndGet();
 				context.close();
 			}
 		}
@@ -199,4 +411,78 @@ public class VmwareContextPool {
 		assert(vCenterAddress != null);
 		return vCenterUserName + "@" + vCenterAddress;
 	}
+
+	@Override
+	public int getPools() {
+		return _pools.size();
+	}
+
+	@Override
+	public int getIdleContexts() {
+		int count = 0;
+		for(KeyedPool pool : _pools.values())
+			count += pool._idleCount.get();
+		return count;
+	}
+
+	@Override
+	public int getCheckedOutContexts() {
+		int count = 0;
+		for(KeyedPool pool : _pools.values())
+			count += pool._checkedOut.size();
+		return count;
+	}
+
+	@Override
+	public int getOutstandingContexts() {
+		return _outstandingRegistry.size();
+	}
+
+	@Override
+	public long getHits() {
+		return _hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return _misses.get();
+	}
+
+	@Override
+	public int getHitRatePercentage() {
+		long hits = _hits.get();
+		long total = hits + _misses.get();
+		return total == 0 ? 0 : (int)(hits * 100 / total);
+	}
+
+	@Override
+	public long getWaits() {
+		return _waits.get();
+	}
+
+	@Override
+	public long getWaitTimeouts() {
+		return _waitTimeouts.get();
+	}
+
+	@Override
+	public long getAverageWaitMs() {
+		long waits = _waits.get();
+		return waits == 0 ? 0 : _totalWaitMs.get() / waits;
+	}
+
+	@Override
+	public long getMaxWaitMs() {
+		return _maxWaitMs;
+	}
+
+	@Override
+	public long getWarmedUpContexts() {
+		return _warmedUp.get();
+	}
+
+	@Override
+	public long getDiscardedContexts() {
+		return _discarded.get();
+	}
 }
@@ -0,0 +1,96 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.util;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The long-lived vCenter session that the VM inventories of all hosts managed through one
+ * vCenter and user keep their property collectors in, so that there is one such session per
+ * vCenter rather than one per host, outside of the bounds of the context pool.
+ *
+ * Callers serialize their calls through the session's context by synchronizing on the session.
+ * Once the session broke, or logging in failed, it is not logged in again before the retry
+ * interval has passed; until then getContext() fails right away and the hosts fall back to
+ * pooled sessions.
+ */
+public class VmwareInventorySession {
+	private static final Logger s_logger = Logger.getLogger(VmwareInventorySession.class);
+
+	private static final long DEFAULT_RETRY_INTERVAL_MS = 60000;
+	private static final Map<String, VmwareInventorySession> s_sessions = new HashMap<String, VmwareInventorySession>();
+
+	private final String _poolKey;
+	private final long _retryIntervalMs;
+	private VmwareContext _context;
+	private long _nextLoginTime;
+
+	VmwareInventorySession(String poolKey, long retryIntervalMs) {
+		_poolKey = poolKey;
+		_retryIntervalMs = retryIntervalMs;
+	}
+
+	public static VmwareInventorySession get(String vCenterAddress, String vCenterUserName) {
+		String poolKey = VmwareContextPool.composePoolKey(vCenterAddress, vCenterUserName);
+		synchronized(s_sessions) {
+			VmwareInventorySession session = s_sessions.get(poolKey);
+			if(session == null) {
+				session = new VmwareInventorySession(poolKey, DEFAULT_RETRY_INTERVAL_MS);
+				s_sessions.put(poolKey, session);
+			}
+			return session;
+		}
+	}
+
+	/**
+	 * @return the context of the session, logged in through the creator if there is none yet
+	 * @throws Exception if logging in fails, or failed less than the retry interval ago
+	 */
+	public synchronized VmwareContext getContext(VmwareContextPool.ContextCreator creator) throws Exception {
+		if(_context == null) {
+			long now = System.currentTimeMillis();
+			if(now < _nextLoginTime)
+				throw new Exception("The inventory session of " + _poolKey + " is not logged in again before " + new Date(_nextLoginTime));
+
+			try {
+				_context = creator.create();
+			} catch(Exception e) {
+				_nextLoginTime = now + _retryIntervalMs;
+				throw e;
+			}
+		}
+		return _context;
+	}
+
+	/**
+	 * Called after a call through the context failed.  A context that no longer validates is
+	 * closed, and the next login waits for the retry interval.
+	 */
+	public synchronized void checkContext(VmwareContext context) {
+		if(context == null || context != _context || context.validate())
+			return;
+
+		s_logger.info("The inventory session of " + _poolKey + " is no longer valid, logging in again after " + _retryIntervalMs + "ms");
+		_context = null;
+		_nextLoginTime = System.currentTimeMillis() + _retryIntervalMs;
+		context.close();
+	}
+}
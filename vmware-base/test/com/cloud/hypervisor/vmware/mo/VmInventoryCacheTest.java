@@ -0,0 +1,187 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.mo;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.hypervisor.vmware.util.VmwareContext;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.WaitOptions;
+
+public class VmInventoryCacheTest {
+
+    static ManagedObjectReference vmMor(String value) {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType("VirtualMachine");
+        mor.setValue(value);
+        return mor;
+    }
+
+    static ObjectUpdate update(String vm, ObjectUpdateKind kind, Object... changes) {
+        ObjectUpdate update = new ObjectUpdate();
+        update.setObj(vmMor(vm));
+        update.setKind(kind);
+        for (int i = 0; i < changes.length; i += 3) {
+            PropertyChange change = new PropertyChange();
+            change.setName((String)changes[i]);
+            change.setOp((PropertyChangeOp)changes[i + 1]);
+            change.setVal(changes[i + 2]);
+            update.getChangeSet().add(change);
+        }
+        return update;
+    }
+
+    static UpdateSet updateSet(String version, ObjectUpdate... updates) {
+        PropertyFilterUpdate filterUpdate = new PropertyFilterUpdate();
+        for (ObjectUpdate update : updates) {
+            filterUpdate.getObjectSet().add(update);
+        }
+        UpdateSet updateSet = new UpdateSet();
+        updateSet.setVersion(version);
+        updateSet.getFilterSet().add(filterUpdate);
+        return updateSet;
+    }
+
+    static UpdateSet truncated(UpdateSet updateSet) {
+        updateSet.setTruncated(true);
+        return updateSet;
+    }
+
+    static Object valueOf(ObjectContent oc, String name) {
+        for (DynamicProperty prop : oc.getPropSet()) {
+            if (prop.getName().equals(name)) {
+                return prop.getVal();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testUpdatesAreAppliedIncrementally() {
+        VmInventoryCache cache = new VmInventoryCache(null, null);
+
+        // the first update carries every VM
+        cache.apply(updateSet("1",
+                update("vm-1", ObjectUpdateKind.ENTER, "name", PropertyChangeOp.ASSIGN, "i-2-10-VM",
+                        "runtime.powerState", PropertyChangeOp.ASSIGN, VirtualMachinePowerState.POWERED_ON),
+                update("vm-2", ObjectUpdateKind.ENTER, "name", PropertyChangeOp.ASSIGN, "r-4-VM",
+                        "runtime.powerState", PropertyChangeOp.ASSIGN, VirtualMachinePowerState.POWERED_OFF,
+                        "value[101]", PropertyChangeOp.ASSIGN, "r-4-VM")));
+        Assert.assertEquals(2, cache.getVmCount());
+
+        // later ones only what changed
+        cache.apply(updateSet("2",
+                update("vm-2", ObjectUpdateKind.MODIFY, "runtime.powerState", PropertyChangeOp.ASSIGN, VirtualMachinePowerState.POWERED_ON,
+                        "value[101]", PropertyChangeOp.REMOVE, null),
+                update("vm-1", ObjectUpdateKind.LEAVE),
+                update("vm-3", ObjectUpdateKind.ENTER, "name", PropertyChangeOp.ASSIGN, "s-1-VM")));
+        Assert.assertEquals(2, cache.getVmCount());
+
+        ObjectContent[] ocs = cache.getVmProperties(new String[] { "name", "runtime.powerState" });
+        Assert.assertEquals(2, ocs.length);
+        for (ObjectContent oc : ocs) {
+            if (oc.getObj().getValue().equals("vm-2")) {
+                Assert.assertEquals("r-4-VM", valueOf(oc, "name"));
+                Assert.assertEquals(VirtualMachinePowerState.POWERED_ON, valueOf(oc, "runtime.powerState"));
+                Assert.assertEquals(2, oc.getPropSet().size());
+            } else {
+                Assert.assertEquals("vm-3", oc.getObj().getValue());
+                Assert.assertEquals(1, oc.getPropSet().size());
+            }
+        }
+
+        // only the asked for properties come back, as from retrieveProperties()
+        for (ObjectContent oc : cache.getVmProperties(new String[] { "value[101]" })) {
+            Assert.assertTrue(oc.getPropSet().isEmpty());
+        }
+    }
+
+    @Test
+    public void testRefreshReadsTruncatedUpdatesToTheEnd() throws Exception {
+        VmwareContext context = mock(VmwareContext.class);
+        VimPortType service = mock(VimPortType.class);
+        ManagedObjectReference collector = new ManagedObjectReference();
+        when(context.getService()).thenReturn(service);
+        when(service.createPropertyCollector(any(ManagedObjectReference.class))).thenReturn(collector);
+        when(service.waitForUpdatesEx(eq(collector), eq(""), any(WaitOptions.class))).thenReturn(
+                truncated(updateSet("1", update("vm-1", ObjectUpdateKind.ENTER, "name", PropertyChangeOp.ASSIGN, "i-2-10-VM"))));
+        when(service.waitForUpdatesEx(eq(collector), eq("1"), any(WaitOptions.class))).thenReturn(
+                updateSet("2", update("vm-2", ObjectUpdateKind.ENTER, "name", PropertyChangeOp.ASSIGN, "r-4-VM")));
+
+        VmInventoryCache cache = new VmInventoryCache(context, new PropertyFilterSpec());
+        cache.refresh();
+        Assert.assertEquals(2, cache.getVmCount());
+        Assert.assertEquals(2, cache.getLastChangedVms());
+
+        // nothing changed since version 2
+        cache.refresh();
+        Assert.assertEquals(2, cache.getVmCount());
+        Assert.assertEquals(0, cache.getLastChangedVms());
+        verify(service, times(1)).waitForUpdatesEx(eq(collector), eq("2"), any(WaitOptions.class));
+        verify(service, times(1)).createPropertyCollector(any(ManagedObjectReference.class));
+        verify(service, times(1)).createFilter(eq(collector), any(PropertyFilterSpec.class), anyBoolean());
+    }
+
+    @Test
+    public void testFailedRefreshStartsOver() throws Exception {
+        VmwareContext context = mock(VmwareContext.class);
+        VimPortType service = mock(VimPortType.class);
+        ManagedObjectReference collector = new ManagedObjectReference();
+        when(context.getService()).thenReturn(service);
+        when(service.createPropertyCollector(any(ManagedObjectReference.class))).thenReturn(collector);
+        when(service.waitForUpdatesEx(eq(collector), eq(""), any(WaitOptions.class))).thenReturn(
+                updateSet("1", update("vm-1", ObjectUpdateKind.ENTER, "name", PropertyChangeOp.ASSIGN, "i-2-10-VM")));
+        when(service.waitForUpdatesEx(eq(collector), eq("1"), any(WaitOptions.class))).thenThrow(new RuntimeException("session expired"));
+
+        VmInventoryCache cache = new VmInventoryCache(context, new PropertyFilterSpec());
+        cache.refresh();
+        Assert.assertEquals(1, cache.getVmCount());
+        try {
+            cache.refresh();
+            Assert.fail("the update failed");
+        } catch (RuntimeException e) {
+        }
+        Assert.assertEquals(0, cache.getVmCount());
+        verify(service, times(1)).destroyPropertyCollector(collector);
+
+        // the next refresh creates a new collector and reads everything again
+        cache.refresh();
+        Assert.assertEquals(1, cache.getVmCount());
+        verify(service, times(2)).createPropertyCollector(any(ManagedObjectReference.class));
+        verify(service, times(2)).waitForUpdatesEx(eq(collector), eq(""), any(WaitOptions.class));
+    }
+}
@@ -0,0 +1,237 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VmwareContextPoolTest {
+    static final String VCENTER = "vcenter.local";
+    static final String USER = "admin";
+
+    static class StubContext extends VmwareContext {
+        volatile boolean _valid = true;
+        volatile boolean _alive = true;
+        final AtomicInteger _idleChecks = new AtomicInteger();
+
+        StubContext() {
+            super(new VmwareClient("stub"), VCENTER);
+        }
+
+        @Override
+        public boolean validate() {
+            return _valid;
+        }
+
+        @Override
+        public void idleCheck() throws Exception {
+            _idleChecks.incrementAndGet();
+            if (!_alive) {
+                throw new Exception("session expired");
+            }
+        }
+    }
+
+    static class StubCreator implements VmwareContextPool.ContextCreator {
+        final AtomicInteger _logins = new AtomicInteger();
+        final long _loginMs;
+
+        StubCreator(long loginMs) {
+            _loginMs = loginMs;
+        }
+
+        @Override
+        public VmwareContext create() throws Exception {
+            if (_loginMs > 0) {
+                Thread.sleep(_loginMs);
+            }
+            _logins.incrementAndGet();
+            return new StubContext();
+        }
+    }
+
+    static void waitForIdle(VmwareContextPool pool, int idle) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getIdleContexts() < idle && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(pool.getIdleContexts() >= idle);
+    }
+
+    @Test
+    public void testWarmUpTurnsCheckoutsIntoHits() throws Exception {
+        VmwareContextPool pool = new VmwareContextPool(128, 60000);
+        pool.configure(8, 2, 1000);
+        StubCreator creator = new StubCreator(0);
+
+        VmwareContext first = pool.getContext(VCENTER, USER, creator);
+        Assert.assertEquals(1, pool.getMisses());
+        waitForIdle(pool, 2);
+        Assert.assertEquals(2, pool.getWarmedUpContexts());
+
+        VmwareContext second = pool.getContext(VCENTER, USER, creator);
+        VmwareContext third = pool.getContext(VCENTER, USER, creator);
+        Assert.assertEquals(2, pool.getHits());
+        Assert.assertEquals(3, pool.getCheckedOutContexts());
+
+        pool.returnContext(first);
+        pool.returnContext(second);
+        pool.returnContext(third);
+        Assert.assertEquals(0, pool.getCheckedOutContexts());
+        Assert.assertTrue(pool.getIdleContexts() >= 3);
+        Assert.assertEquals(creator._logins.get(), pool.getMisses() + pool.getWarmedUpContexts());
+
+        // the non-waiting checkout only hands out idle sessions
+        Assert.assertSame(VCENTER, pool.getContext(VCENTER, USER).getServerAddress());
+        Assert.assertNull(pool.getContext("other.local", USER));
+    }
+
+    @Test
+    public void testCheckoutWaitsForReturnedSessionAndTimesOut() throws Exception {
+        final VmwareContextPool pool = new VmwareContextPool(128, 60000);
+        pool.configure(2, 0, 200);
+        StubCreator creator = new StubCreator(0);
+
+        final VmwareContext first = pool.getContext(VCENTER, USER, creator);
+        pool.getContext(VCENTER, USER, creator);
+
+        try {
+            pool.getContext(VCENTER, USER, creator);
+            Assert.fail("checkout of an exhausted pool should time out");
+        } catch (Exception e) {
+        }
+        Assert.assertEquals(1, pool.getWaitTimeouts());
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                pool.returnContext(first);
+            }
+        }).start();
+        Assert.assertSame(first, pool.getContext(VCENTER, USER, creator));
+        Assert.assertEquals(2, creator._logins.get());
+        Assert.assertEquals(2, pool.getWaits());
+        Assert.assertTrue(pool.getMaxWaitMs() >= 150);
+
+        // closing a checked out session frees its place
+        first.close();
+        Assert.assertNotNull(pool.getContext(VCENTER, USER, creator));
+        Assert.assertEquals(3, creator._logins.get());
+        Assert.assertEquals(1, pool.getDiscardedContexts());
+    }
+
+    @Test
+    public void testInvalidIdleSessionIsReplaced() throws Exception {
+        VmwareContextPool pool = new VmwareContextPool(128, 60000);
+        pool.configure(4, 0, 1000);
+        StubCreator creator = new StubCreator(0);
+
+        StubContext context = (StubContext)pool.getContext(VCENTER, USER, creator);
+        pool.returnContext(context);
+        context._valid = false;
+
+        Assert.assertNotSame(context, pool.getContext(VCENTER, USER, creator));
+        Assert.assertEquals(2, creator._logins.get());
+        Assert.assertEquals(0, pool.getHits());
+        Assert.assertEquals(1, pool.getDiscardedContexts());
+    }
+
+    @Test
+    public void testKeepAliveDiscardsExpiredSessionsAndWarmsUpAgain() throws Exception {
+        VmwareContextPool pool = new VmwareContextPool(128, 50);
+        pool.setKeepAliveInterval(0);
+        pool.configure(4, 2, 1000);
+        StubCreator creator = new StubCreator(0);
+
+        pool.returnContext(pool.getContext(VCENTER, USER, creator));
+        waitForIdle(pool, 2);
+
+        List<StubContext> idle = new ArrayList<StubContext>();
+        idle.add((StubContext)pool.getContext(VCENTER, USER));
+        idle.add((StubContext)pool.getContext(VCENTER, USER));
+        idle.get(0)._alive = false;
+        pool.returnContext(idle.get(0));
+        pool.returnContext(idle.get(1));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        // one session is checked per run at this interval
+        while ((pool.getDiscardedContexts() == 0 || idle.get(1)._idleChecks.get() == 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, pool.getDiscardedContexts());
+        Assert.assertTrue(idle.get(1)._idleChecks.get() > 0);
+        waitForIdle(pool, 2);
+    }
+
+    @Test
+    public void testConcurrentCheckoutStaysWithinBound() throws Exception {
+        final int maxContexts = 4;
+        final int threads = 16;
+        final int checkouts = 200;
+        final VmwareContextPool pool = new VmwareContextPool(128, 60000);
+        pool.configure(maxContexts, 0, 10000);
+        // a login is slow next to a pooled checkout, as against a real vCenter
+        final StubCreator creator = new StubCreator(20);
+
+        final AtomicInteger inUse = new AtomicInteger();
+        final AtomicInteger maxInUse = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < checkouts; j++) {
+                            VmwareContext context = pool.getContext(VCENTER, USER, creator);
+                            int count = inUse.incrementAndGet();
+                            int max;
+                            while (count > (max = maxInUse.get()) && !maxInUse.compareAndSet(max, count)) {
+                            }
+                            inUse.decrementAndGet();
+                            pool.returnContext(context);
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        Assert.assertEquals(0, failures.get());
+        Assert.assertTrue(maxInUse.get() <= maxContexts);
+        Assert.assertTrue(creator._logins.get() <= maxContexts);
+        Assert.assertEquals(threads * checkouts, pool.getHits() + pool.getMisses());
+    }
+}
@@ -0,0 +1,101 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.util;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VmwareInventorySessionTest {
+
+    static class CountingCreator implements VmwareContextPool.ContextCreator {
+        final AtomicInteger _logins = new AtomicInteger();
+        volatile boolean _down;
+
+        @Override
+        public VmwareContext create() throws Exception {
+            _logins.incrementAndGet();
+            if (_down) {
+                throw new Exception("vCenter is down");
+            }
+            return mock(VmwareContext.class);
+        }
+    }
+
+    @Test
+    public void testHostsShareOneSession() throws Exception {
+        Assert.assertSame(VmwareInventorySession.get("vcenter.local", "admin"), VmwareInventorySession.get("vcenter.local", "admin"));
+        Assert.assertNotSame(VmwareInventorySession.get("vcenter.local", "admin"), VmwareInventorySession.get("vcenter.local", "other"));
+
+        VmwareInventorySession session = new VmwareInventorySession("vcenter.local", 60000);
+        CountingCreator creator = new CountingCreator();
+        VmwareContext context = session.getContext(creator);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(context, session.getContext(creator));
+        }
+        Assert.assertEquals(1, creator._logins.get());
+
+        // a failed call through a session that still validates keeps it
+        when(context.validate()).thenReturn(true);
+        session.checkContext(context);
+        Assert.assertSame(context, session.getContext(creator));
+        verify(context, never()).close();
+    }
+
+    @Test
+    public void testBrokenSessionIsNotLoggedInOnEveryPing() throws Exception {
+        VmwareInventorySession session = new VmwareInventorySession("vcenter.local", 200);
+        CountingCreator creator = new CountingCreator();
+        VmwareContext context = session.getContext(creator);
+
+        when(context.validate()).thenReturn(false);
+        session.checkContext(context);
+        verify(context).close();
+
+        creator._down = true;
+        for (int i = 0; i < 10; i++) {
+            try {
+                session.getContext(creator);
+                Assert.fail("the session is held off");
+            } catch (Exception e) {
+            }
+        }
+        Assert.assertEquals(1, creator._logins.get());
+
+        // after the retry interval one login is tried, and its failure holds off the next ones again
+        Thread.sleep(250);
+        for (int i = 0; i < 10; i++) {
+            try {
+                session.getContext(creator);
+                Assert.fail("vCenter is down");
+            } catch (Exception e) {
+            }
+        }
+        Assert.assertEquals(2, creator._logins.get());
+
+        Thread.sleep(250);
+        creator._down = false;
+        Assert.assertNotNull(session.getContext(creator));
+        Assert.assertEquals(3, creator._logins.get());
+    }
+}